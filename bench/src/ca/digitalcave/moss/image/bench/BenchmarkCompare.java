@@ -0,0 +1,87 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH JSON result files (as written by the bench target, one
+ * per version in bench/results), printing the change in each benchmark's
+ * score.  Exits with status 1 if any benchmark got worse by more than the
+ * threshold, so it can fail a build.
+ *
+ * Usage: BenchmarkCompare baseline.json current.json [thresholdPercent]
+ */
+public class BenchmarkCompare {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2){
+			System.err.println("Usage: BenchmarkCompare baseline.json current.json [thresholdPercent]");
+			System.exit(2);
+		}
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+		Map<String, Result> baseline = read(new File(args[0]));
+		Map<String, Result> current = read(new File(args[1]));
+
+		int regressions = 0;
+		System.out.println(String.format("%-90s %12s %12s %8s", "Benchmark", "Baseline", "Current", "Change"));
+		for (Map.Entry<String, Result> entry : new TreeMap<String, Result>(current).entrySet()) {
+			Result now = entry.getValue();
+			Result then = baseline.get(entry.getKey());
+			if (then == null){
+				System.out.println(String.format("%-90s %12s %12.3f %8s  %s", entry.getKey(), "-", now.score, "new", now.unit));
+				continue;
+			}
+			//Positive is better, whichever way the mode counts
+			double change = (now.score - then.score) / then.score * 100.0;
+			double improvement = now.higherIsBetter ? change : -change;
+			boolean regression = improvement < -threshold;
+			if (regression)
+				regressions++;
+			System.out.println(String.format("%-90s %12.3f %12.3f %+7.1f%%  %s%s", entry.getKey(), then.score, now.score, change, now.unit, regression ? "  REGRESSION" : ""));
+		}
+		for (String key : baseline.keySet()) {
+			if (!current.containsKey(key))
+				System.out.println(String.format("%-90s %12.3f %12s %8s", key, baseline.get(key).score, "-", "removed"));
+		}
+
+		System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+		System.exit(regressions > 0 ? 1 : 0);
+	}
+
+	/**
+	 * @return Results keyed by benchmark name and parameters
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		for (Object item : (List<Object>) Json.parse(file)) {
+			Map<String, Object> run = (Map<String, Object>) item;
+			StringBuilder key = new StringBuilder((String) run.get("benchmark"));
+			Map<String, Object> params = (Map<String, Object>) run.get("params");
+			if (params != null){
+				for (Map.Entry<String, Object> param : new TreeMap<String, Object>(params).entrySet())
+					key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+			}
+			Map<String, Object> metric = (Map<String, Object>) run.get("primaryMetric");
+			Result result = new Result();
+			result.score = ((Number) metric.get("score")).doubleValue();
+			result.unit = (String) metric.get("scoreUnit");
+			result.higherIsBetter = "thrpt".equals(run.get("mode"));
+			results.put(key.toString().replaceFirst("^ca\\.digitalcave\\.moss\\.image\\.bench\\.", ""), result);
+		}
+		return results;
+	}
+
+	private static class Result {
+		private double score;
+		private String unit;
+		private boolean higherIsBetter;
+	}
+}
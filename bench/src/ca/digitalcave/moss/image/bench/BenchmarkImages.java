@@ -0,0 +1,148 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The test images and tools used by the benchmarks.
+ *
+ * Images are generated, not shipped: bench/etc/images.json lists each
+ * image's name, size, BufferedImage type and random seed, and the same
+ * entry always generates the same pixels.  Benchmarks refer to images by
+ * name, so results from different versions are comparable as long as the
+ * manifest is not changed; add new entries rather than editing old ones.
+ *
+ * Paths can be overridden with system properties: moss.bench.images (the
+ * manifest), moss.bench.exiftool (the exiftool to run; the bundled fake by
+ * default) and moss.bench.work (where image files are written).
+ */
+public class BenchmarkImages {
+
+	public static final String[] TYPE_NAMES = {"INT_RGB", "INT_ARGB", "3BYTE_BGR", "BYTE_GRAY"};
+	private static final int[] TYPES = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_BYTE_GRAY};
+
+	/**
+	 * Generates the named image.
+	 */
+	public static BufferedImage get(String name) throws IOException {
+		Map<String, Object> entry = getEntry(name);
+		int width = ((Number) entry.get("width")).intValue();
+		int height = ((Number) entry.get("height")).intValue();
+		long seed = ((Number) entry.get("seed")).longValue();
+		String typeName = (String) entry.get("type");
+		for (int i = 0; i < TYPE_NAMES.length; i++){
+			if (TYPE_NAMES[i].equals(typeName))
+				return generate(width, height, TYPES[i], seed);
+		}
+		throw new IOException("Unknown image type " + typeName + " for " + name);
+	}
+
+	/**
+	 * Returns the named image encoded in the given format (jpg, png), in
+	 * the work directory; it is generated the first time it is asked for.
+	 * Files are encoded with ImageIO directly, so they don't depend on the
+	 * code being measured.
+	 */
+	public static synchronized File getFile(String name, String format) throws IOException {
+		File file = new File(getWorkDirectory(), name + "." + format);
+		if (!file.exists()){
+			File temp = new File(file.getPath() + ".tmp");
+			if (!ImageIO.write(get(name), format, temp))
+				throw new IOException("No writer for " + format);
+			if (!temp.renameTo(file))
+				throw new IOException("Unable to create " + file);
+		}
+		return file;
+	}
+
+	/**
+	 * Returns the exiftool to benchmark against; the bundled fake by default.
+	 */
+	public static File getExifTool() throws IOException {
+		File exifTool = new File(System.getProperty("moss.bench.exiftool", "bench/etc/fake-exiftool"));
+		if (!exifTool.isFile())
+			throw new IOException("exiftool " + exifTool.getAbsolutePath() + " not found; set moss.bench.exiftool");
+		return exifTool;
+	}
+
+	public static File getWorkDirectory() throws IOException {
+		File directory = new File(System.getProperty("moss.bench.work", new File(System.getProperty("java.io.tmpdir"), "moss-image-bench").getPath()));
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		return directory;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> getEntry(String name) throws IOException {
+		File manifest = new File(System.getProperty("moss.bench.images", "bench/etc/images.json"));
+		for (Object entry : (List<Object>) Json.parse(manifest)) {
+			Map<String, Object> map = (Map<String, Object>) entry;
+			if (name.equals(map.get("name")))
+				return map;
+		}
+		throw new IOException("No image named " + name + " in " + manifest.getAbsolutePath());
+	}
+
+	/**
+	 * Draws something with the statistics of a photograph, more or less:
+	 * smooth gradients, hard edges, and fine noise.  With an alpha channel,
+	 * the alpha varies across the image too.
+	 */
+	static BufferedImage generate(int width, int height, int type, long seed){
+		Random random = new Random(seed);
+		BufferedImage argb = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = argb.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt()), width, height, new Color(random.nextInt())));
+		g.fillRect(0, 0, width, height);
+		for (int i = 0; i < 60; i++){
+			g.setPaint(new GradientPaint(random.nextInt(width), random.nextInt(height), new Color(random.nextInt(), true),
+					random.nextInt(width), random.nextInt(height), new Color(random.nextInt(), true)));
+			int w = 1 + random.nextInt(width / 3), h = 1 + random.nextInt(height / 3);
+			if (i % 2 == 0)
+				g.fillOval(random.nextInt(width), random.nextInt(height), w, h);
+			else
+				g.fillRect(random.nextInt(width), random.nextInt(height), w, h);
+		}
+		g.dispose();
+
+		int[] pixels = ((DataBufferInt) argb.getRaster().getDataBuffer()).getData();
+		for (int y = 0; y < height; y++){
+			int alpha = type == BufferedImage.TYPE_INT_ARGB ? 255 - 192 * y / height : 255;
+			for (int x = 0; x < width; x++){
+				int i = y * width + x;
+				int noise = random.nextInt(9) - 4;
+				int r = clamp(((pixels[i] >> 16) & 0xff) + noise);
+				int gr = clamp(((pixels[i] >> 8) & 0xff) + noise);
+				int b = clamp((pixels[i] & 0xff) + noise);
+				pixels[i] = (alpha << 24) | (r << 16) | (gr << 8) | b;
+			}
+		}
+		if (type == BufferedImage.TYPE_INT_ARGB)
+			return argb;
+
+		BufferedImage image = new BufferedImage(width, height, type);
+		Graphics2D ig = image.createGraphics();
+		ig.drawImage(argb, 0, 0, null);
+		ig.dispose();
+		return image;
+	}
+
+	private static int clamp(int value){
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+}
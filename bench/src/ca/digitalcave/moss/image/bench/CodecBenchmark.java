@@ -0,0 +1,81 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.digitalcave.moss.image.ImageFunctions;
+import ca.digitalcave.moss.image.ResampleQuality;
+
+/**
+ * Decoding with ImageFunctions.getBufferedImage() (full size, and
+ * subsampled to a thumbnail), and encoding with writeImage() to memory
+ * and to a file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djava.awt.headless=true"})
+public class CodecBenchmark {
+
+	@Param({"vga-rgb", "vga-gray", "6mp-rgb", "6mp-bgr", "24mp-rgb"})
+	public String image;
+
+	@Param({"jpg", "png"})
+	public String format;
+
+	private File file;
+	private BufferedImage source;
+	private File output;
+
+	@Setup
+	public void setUp() throws IOException {
+		file = BenchmarkImages.getFile(image, format);
+		source = BenchmarkImages.get(image);
+		output = new File(BenchmarkImages.getWorkDirectory(), "output-" + image + "." + format);
+	}
+
+	@Benchmark
+	public BufferedImage decode(){
+		return ImageFunctions.getBufferedImage(file);
+	}
+
+	@Benchmark
+	public BufferedImage decodeThumbnail(){
+		return ImageFunctions.getBufferedImage(file, 200, ResampleQuality.BICUBIC);
+	}
+
+	@Benchmark
+	public byte[] encodeToStream() throws IOException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(1024 * 1024);
+		if (!ImageFunctions.writeImage(source, os, 0.85f, format))
+			throw new IOException("Unable to write " + image);
+		return os.toByteArray();
+	}
+
+	@Benchmark
+	public long encodeToFile() throws IOException {
+		if (!ImageFunctions.writeImage(source, output, 0.85f, format))
+			throw new IOException("Unable to write " + output);
+		return output.length();
+	}
+}
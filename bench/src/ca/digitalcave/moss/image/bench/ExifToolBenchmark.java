@@ -0,0 +1,148 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.digitalcave.moss.image.ExifToolWrapper;
+import ca.digitalcave.moss.image.WriteResult;
+
+/**
+ * ExifToolWrapper reads and writes, run against the bundled fake exiftool
+ * (see BenchmarkImages.getExifTool()), so what is measured is the
+ * wrapper's own overhead: process start up or pooling, argument passing
+ * and output parsing.  The fake never changes the files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class ExifToolBenchmark {
+
+	private static final Set<String> TAGS = new HashSet<String>(Arrays.asList(
+			"DateTimeOriginal", "Orientation", "ImageWidth", "ImageHeight", "Make", "Model", "Rating", "Keywords", "GPSLatitude", "GPSLongitude"));
+	private static final Set<String> BUILT_IN_TAGS = new HashSet<String>(Arrays.asList(
+			"DateTimeOriginal", "Orientation", "ImageWidth", "ImageHeight", "Make", "Model", "Rating", "Keywords"));
+
+	@Param({"1", "100"})
+	public int files;
+
+	//0 starts a process per call
+	@Param({"0", "2"})
+	public int poolSize;
+
+	@Param({"false", "true"})
+	public boolean json;
+
+	private ExifToolWrapper exifTool;
+	private ExifToolWrapper builtIn;
+	private List<File> images;
+	private Map<File, Map<String, String>> edits;
+
+	@Setup
+	public void setUp() throws IOException {
+		File exifToolFile = BenchmarkImages.getExifTool();
+		exifTool = poolSize == 0 ? new ExifToolWrapper(exifToolFile) : new ExifToolWrapper(exifToolFile, poolSize);
+		exifTool.setBuiltInReader(false);
+		exifTool.setJsonOutput(json);
+		builtIn = new ExifToolWrapper(exifToolFile);
+		builtIn.setBuiltInReader(true);
+
+		File directory = new File(BenchmarkImages.getWorkDirectory(), "exiftool");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create " + directory);
+		File source = BenchmarkImages.getFile("vga-rgb", "jpg");
+		images = new ArrayList<File>();
+		edits = new LinkedHashMap<File, Map<String, String>>();
+		for (int i = 0; i < files; i++){
+			File image = new File(directory, "image" + i + ".jpg");
+			if (image.length() != source.length())
+				copy(source, image);
+			images.add(image);
+			Map<String, String> edit = new LinkedHashMap<String, String>();
+			edit.put("Rating", Integer.toString(i % 6));
+			edit.put("Title", "Image " + i);
+			edits.put(image, edit);
+		}
+	}
+
+	@TearDown
+	public void tearDown(){
+		exifTool.shutdown();
+		builtIn.shutdown();
+	}
+
+	@Benchmark
+	public Map<File, Map<String, String>> getTags(){
+		return exifTool.getTagsFromFiles(images, TAGS);
+	}
+
+	@Benchmark
+	public Map<File, Map<String, String>> getTagsBuiltIn(){
+		return builtIn.getTagsFromFiles(images, BUILT_IN_TAGS);
+	}
+
+	@Benchmark
+	public Map<File, byte[]> getBinaryTag(){
+		return exifTool.getBinaryTagFromFiles(images, "ThumbnailImage");
+	}
+
+	@Benchmark
+	public String setTags(){
+		return exifTool.setTagsToFiles(images, Collections.singletonMap("Rating", "3"));
+	}
+
+	@Benchmark
+	public Map<File, WriteResult> setTagsBatch(){
+		return exifTool.setTagsToFiles(edits);
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream is = new FileInputStream(from);
+		try {
+			OutputStream os = new FileOutputStream(to);
+			try {
+				byte[] buffer = new byte[64 * 1024];
+				int count;
+				while ((count = is.read(buffer)) >= 0)
+					os.write(buffer, 0, count);
+			}
+			finally {
+				os.close();
+			}
+		}
+		finally {
+			is.close();
+		}
+	}
+}
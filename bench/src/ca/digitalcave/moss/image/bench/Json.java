@@ -0,0 +1,179 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON parsing for the image manifest and JMH result files.
+ * Objects become LinkedHashMaps, arrays ArrayLists, numbers Doubles.
+ */
+class Json {
+
+	private final String text;
+	private int position = 0;
+
+	private Json(String text) {
+		this.text = text;
+	}
+
+	static Object parse(File file) throws IOException {
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[8192];
+			int count;
+			while ((count = reader.read(buffer)) >= 0)
+				sb.append(buffer, 0, count);
+			return parse(sb.toString());
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	static Object parse(String text) throws IOException {
+		Json json = new Json(text);
+		Object value = json.value();
+		json.skipWhitespace();
+		if (json.position < text.length())
+			throw json.error("Unexpected trailing content");
+		return value;
+	}
+
+	private Object value() throws IOException {
+		skipWhitespace();
+		if (position >= text.length())
+			throw error("Unexpected end of input");
+		char c = text.charAt(position);
+		switch (c) {
+		case '{': return object();
+		case '[': return array();
+		case '"': return string();
+		case 't': return literal("true", Boolean.TRUE);
+		case 'f': return literal("false", Boolean.FALSE);
+		case 'n': return literal("null", null);
+		default: return number();
+		}
+	}
+
+	private Map<String, Object> object() throws IOException {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == '}'){
+			position++;
+			return map;
+		}
+		while (true){
+			skipWhitespace();
+			String key = string();
+			skipWhitespace();
+			expect(':');
+			map.put(key, value());
+			skipWhitespace();
+			if (peek() == ','){
+				position++;
+				continue;
+			}
+			expect('}');
+			return map;
+		}
+	}
+
+	private List<Object> array() throws IOException {
+		List<Object> list = new ArrayList<Object>();
+		position++;
+		skipWhitespace();
+		if (peek() == ']'){
+			position++;
+			return list;
+		}
+		while (true){
+			list.add(value());
+			skipWhitespace();
+			if (peek() == ','){
+				position++;
+				continue;
+			}
+			expect(']');
+			return list;
+		}
+	}
+
+	private String string() throws IOException {
+		expect('"');
+		StringBuilder sb = new StringBuilder();
+		while (true){
+			if (position >= text.length())
+				throw error("Unterminated string");
+			char c = text.charAt(position++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\'){
+				sb.append(c);
+				continue;
+			}
+			char escape = text.charAt(position++);
+			switch (escape) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+				position += 4;
+				break;
+			default: sb.append(escape);
+			}
+		}
+	}
+
+	private Double number() throws IOException {
+		int start = position;
+		while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0)
+			position++;
+		try {
+			return Double.valueOf(text.substring(start, position));
+		}
+		catch (NumberFormatException nfe){
+			throw error("Bad number");
+		}
+	}
+
+	private Object literal(String literal, Object value) throws IOException {
+		if (!text.startsWith(literal, position))
+			throw error("Unexpected character");
+		position += literal.length();
+		return value;
+	}
+
+	private void skipWhitespace(){
+		while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+			position++;
+	}
+
+	private char peek(){
+		return position < text.length() ? text.charAt(position) : 0;
+	}
+
+	private void expect(char c) throws IOException {
+		if (peek() != c)
+			throw error("Expected '" + c + "'");
+		position++;
+	}
+
+	private IOException error(String message){
+		return new IOException(message + " at offset " + position);
+	}
+}
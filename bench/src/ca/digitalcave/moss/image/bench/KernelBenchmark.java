@@ -0,0 +1,106 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.digitalcave.moss.image.ImageFunctions;
+import ca.digitalcave.moss.image.ResampleQuality;
+import ca.digitalcave.moss.image.Resampler;
+
+/**
+ * The pixel kernels against Java2D, converting a decoded JPEG (3BYTE_BGR)
+ * to INT_RGB, and scaling it with a bicubic filter.  The kernels parameter
+ * picks the implementation for each fork: "java2d" draws with Graphics2D,
+ * "scalar" forces the scalar kernels, and "vector" needs the SIMD kernels
+ * (which ant bench adds when run on Java 16 or later) and fails without
+ * them.  Java2D has no parallel path, so scaleParallel draws serially for
+ * "java2d".  Note that Java2D's bicubic interpolation does not filter when
+ * reducing, so it is much cheaper (and much worse) than ours for large
+ * reductions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djava.awt.headless=true"})
+public class KernelBenchmark {
+
+	@Param({"java2d", "scalar", "vector"})
+	public String kernels;
+
+	@Param({"6mp-bgr", "24mp-bgr"})
+	public String image;
+
+	@Param({"1024", "3000"})
+	public int maxSize;
+
+	private BufferedImage source;
+	private int width;
+	private int height;
+
+	@Setup
+	public void setUp() throws IOException {
+		//Must be set before the kernels are loaded
+		if (kernels.equals("scalar"))
+			System.setProperty("moss.image.kernels", "scalar");
+		if (!kernels.equals("java2d") && !Resampler.getKernels().startsWith(kernels))
+			throw new IllegalStateException("Wanted " + kernels + " kernels, but have " + Resampler.getKernels());
+
+		source = BenchmarkImages.get(image);
+		double scale = (double) maxSize / Math.max(source.getWidth(), source.getHeight());
+		width = Math.max(1, (int) (source.getWidth() * scale));
+		height = Math.max(1, (int) (source.getHeight() * scale));
+	}
+
+	@Benchmark
+	public BufferedImage convert(){
+		if (kernels.equals("java2d"))
+			return draw(source.getWidth(), source.getHeight(), null);
+		return ImageFunctions.getBufferedImage((Image) source);
+	}
+
+	@Benchmark
+	public BufferedImage scale(){
+		if (kernels.equals("java2d"))
+			return draw(width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		return Resampler.scale(source, width, height, ResampleQuality.BICUBIC, BufferedImage.TYPE_INT_RGB);
+	}
+
+	@Benchmark
+	public BufferedImage scaleParallel(){
+		if (kernels.equals("java2d"))
+			return draw(width, height, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		return Resampler.scale(source, width, height, ResampleQuality.BICUBIC, BufferedImage.TYPE_INT_RGB, ForkJoinPool.commonPool());
+	}
+
+	private BufferedImage draw(int w, int h, Object interpolation){
+		BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = result.createGraphics();
+		if (interpolation != null)
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+		g.drawImage(source, 0, 0, w, h, null);
+		g.dispose();
+		return result;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.digitalcave.moss.image.ImageFunctions;
+import ca.digitalcave.moss.image.JpegTransform;
+
+/**
+ * ImageFunctions.rotate() on decoded images, and the equivalent lossless
+ * rotation of the JPEG file with JpegTransform.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djava.awt.headless=true"})
+public class RotateBenchmark {
+
+	@Param({"vga-rgb", "vga-bgr", "6mp-rgb", "6mp-bgr", "6mp-gray"})
+	public String image;
+
+	@Param({"90", "180", "270"})
+	public int degrees;
+
+	private BufferedImage source;
+	private byte[] jpeg;
+	private int orientation;
+
+	@Setup
+	public void setUp() throws IOException {
+		source = BenchmarkImages.get(image);
+		File file = BenchmarkImages.getFile(image, "jpg");
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			jpeg = new byte[(int) raf.length()];
+			raf.readFully(jpeg);
+		}
+		finally {
+			raf.close();
+		}
+		orientation = degrees == 90 ? 6 : degrees == 180 ? 3 : 8;
+	}
+
+	@Benchmark
+	public BufferedImage rotate(){
+		return ImageFunctions.rotate(source, degrees);
+	}
+
+	@Benchmark
+	public byte[] losslessJpeg() throws IOException {
+		return JpegTransform.transform(jpeg, orientation, null);
+	}
+}
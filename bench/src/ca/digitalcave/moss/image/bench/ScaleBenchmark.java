@@ -0,0 +1,63 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.digitalcave.moss.image.ImageFunctions;
+import ca.digitalcave.moss.image.ResampleQuality;
+
+/**
+ * ImageFunctions.scaleImage() across image sizes, image types, target
+ * sizes and filters, single threaded and on the common ForkJoinPool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djava.awt.headless=true"})
+public class ScaleBenchmark {
+
+	@Param({"vga-rgb", "vga-argb", "vga-bgr", "vga-gray", "6mp-rgb", "6mp-argb", "6mp-bgr", "6mp-gray", "24mp-rgb"})
+	public String image;
+
+	@Param({"200", "1024"})
+	public int maxSize;
+
+	@Param({"BILINEAR", "BICUBIC", "LANCZOS"})
+	public ResampleQuality quality;
+
+	private BufferedImage source;
+
+	@Setup
+	public void setUp() throws IOException {
+		source = BenchmarkImages.get(image);
+	}
+
+	@Benchmark
+	public BufferedImage scale(){
+		return ImageFunctions.scaleImage(source, maxSize, quality);
+	}
+
+	@Benchmark
+	public BufferedImage scaleParallel(){
+		return ImageFunctions.scaleImage(source, maxSize, quality, ForkJoinPool.commonPool());
+	}
+}
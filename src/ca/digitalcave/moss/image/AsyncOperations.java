@@ -0,0 +1,357 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs ExifToolWrapper and ImageFunctions operations in the background,
+ * returning a CompletableFuture for each, so that request handling threads
+ * do not have to wait for exiftool or for image decoding.
+ *
+ * Operations run on the given executor; by default this is a virtual
+ * thread per task executor where the JVM has one (Java 21 and later), or a
+ * cached pool of daemon threads otherwise.  Either way, the number of
+ * exiftool operations and image operations running at once is limited
+ * separately; operations beyond the limit wait in a queue (not on a
+ * thread) until one finishes, so that thousands of concurrent requests do
+ * not start thousands of exiftool processes or decode thousands of images
+ * at once.
+ *
+ * Operations can be given a timeout, counted from when they start
+ * running.  When an exiftool operation times out or its future is
+ * cancelled, the exiftool processes it is using (including pooled and
+ * sharded ones) are killed, and its future fails with a TimeoutException
+ * (or is cancelled).  Image operations cannot be interrupted, so their
+ * futures fail on time, but the work runs to completion in the background.
+ */
+public class AsyncOperations {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	//Shared by all instances; only used to fail futures on time
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "async-timeout");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	static {
+		//Timeouts are cancelled when operations finish; don't keep them queued until they expire
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private final ExifToolWrapper exifTool;
+	private final Limiter exifToolLimiter;
+	private final Limiter imageLimiter;
+	private volatile long exifToolTimeoutMillis = 0;
+	private volatile long imageTimeoutMillis = 0;
+
+	/**
+	 * Creates a facade on the default executor, allowing as many exiftool
+	 * and image operations at once as there are processors.
+	 * @param exifTool The wrapper to run exiftool operations on; may be null if only image operations are used
+	 */
+	public AsyncOperations(ExifToolWrapper exifTool) {
+		this(exifTool, newDefaultExecutor(), Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param exifTool The wrapper to run exiftool operations on; may be null if only image operations are used
+	 * @param executor Runs the operations
+	 * @param maxExifToolOperations The maximum number of exiftool operations to run at once
+	 * @param maxImageOperations The maximum number of decode, scale and encode operations to run at once
+	 */
+	public AsyncOperations(ExifToolWrapper exifTool, Executor executor, int maxExifToolOperations, int maxImageOperations) {
+		if (maxExifToolOperations < 1 || maxImageOperations < 1)
+			throw new IllegalArgumentException("Concurrency limits must be at least 1");
+		this.exifTool = exifTool;
+		this.exifToolLimiter = new Limiter(executor, maxExifToolOperations);
+		this.imageLimiter = new Limiter(executor, maxImageOperations);
+	}
+
+	/**
+	 * Returns a virtual thread per task executor if this JVM supports
+	 * them, or else a cached pool of daemon threads.
+	 */
+	public static Executor newDefaultExecutor(){
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (Exception e){
+			logger.log(Level.FINE, "Virtual threads are not available; using platform threads", e);
+		}
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "async-operation-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets the time each exiftool operation may run for before its
+	 * processes are killed.
+	 * @param timeout The timeout, or 0 for none (the default)
+	 */
+	public void setExifToolTimeout(long timeout, TimeUnit unit){
+		this.exifToolTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Sets the time each image operation may run for before its future fails.
+	 * @param timeout The timeout, or 0 for none (the default)
+	 */
+	public void setImageTimeout(long timeout, TimeUnit unit){
+		this.imageTimeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * @see ExifToolWrapper#getTagsFromFiles(Collection, Set)
+	 */
+	public CompletableFuture<Map<File, Map<String, String>>> getTagsFromFiles(final Collection<File> images, final Set<String> tagNames){
+		return submitExifTool(new Operation<Map<File, Map<String, String>>>() {
+			Map<File, Map<String, String>> call() throws Exception {
+				return exifTool.getTagsFromFiles(images, tagNames);
+			}
+		});
+	}
+
+	/**
+	 * @see ExifToolWrapper#getTagsFromFile(File, Set)
+	 */
+	public CompletableFuture<Map<String, String>> getTagsFromFile(final File image, final Set<String> tagNames){
+		return submitExifTool(new Operation<Map<String, String>>() {
+			Map<String, String> call() throws Exception {
+				return exifTool.getTagsFromFile(image, tagNames);
+			}
+		});
+	}
+
+	/**
+	 * @see ExifToolWrapper#setTagsToFiles(Collection, Map)
+	 */
+	public CompletableFuture<String> setTagsToFiles(final Collection<File> images, final Map<String, String> tags){
+		return submitExifTool(new Operation<String>() {
+			String call() throws Exception {
+				return exifTool.setTagsToFiles(images, tags);
+			}
+		});
+	}
+
+	/**
+	 * @see ExifToolWrapper#getBinaryTagFromFiles(Collection, String)
+	 */
+	public CompletableFuture<Map<File, byte[]>> getBinaryTagFromFiles(final Collection<File> files, final String tagName){
+		return submitExifTool(new Operation<Map<File, byte[]>>() {
+			Map<File, byte[]> call() throws Exception {
+				return exifTool.getBinaryTagFromFiles(files, tagName);
+			}
+		});
+	}
+
+	/**
+	 * @see ExifToolWrapper#getBinaryTagFromFile(File, String)
+	 */
+	public CompletableFuture<byte[]> getBinaryTagFromFile(final File image, final String tagName){
+		return submitExifTool(new Operation<byte[]>() {
+			byte[] call() throws Exception {
+				return exifTool.getBinaryTagFromFile(image, tagName);
+			}
+		});
+	}
+
+	/**
+	 * Decodes an image to roughly maxSize; the future fails with an
+	 * IOException if the image cannot be read.
+	 * @see ImageFunctions#getBufferedImage(File, int, ResampleQuality)
+	 */
+	public CompletableFuture<BufferedImage> getBufferedImage(final File file, final int maxSize, final ResampleQuality quality){
+		return submitImage(new Operation<BufferedImage>() {
+			BufferedImage call() throws Exception {
+				BufferedImage image = ImageFunctions.getBufferedImage(file, maxSize, quality);
+				if (image == null)
+					throw new IOException("Unable to read image " + file);
+				return image;
+			}
+		});
+	}
+
+	/**
+	 * @see ImageFunctions#scaleImage(BufferedImage, int, ResampleQuality)
+	 */
+	public CompletableFuture<BufferedImage> scaleImage(final BufferedImage image, final int maxSize, final ResampleQuality quality){
+		return submitImage(new Operation<BufferedImage>() {
+			BufferedImage call() throws Exception {
+				return ImageFunctions.scaleImage(image, maxSize, quality);
+			}
+		});
+	}
+
+	/**
+	 * Encodes the image to the given file; the future fails with an
+	 * IOException if nothing could be written.
+	 * @see ImageFunctions#writeImage(BufferedImage, File, float, String)
+	 */
+	public CompletableFuture<File> writeImage(final BufferedImage image, final File file, final float quality, final String extension){
+		return submitImage(new Operation<File>() {
+			File call() throws Exception {
+				if (!ImageFunctions.writeImage(image, file, quality, extension))
+					throw new IOException("Unable to write image to " + file);
+				return file;
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> submitExifTool(Operation<T> operation){
+		if (exifTool == null)
+			throw new IllegalStateException("No ExifToolWrapper was given");
+		operation.timeoutMillis = exifToolTimeoutMillis;
+		exifToolLimiter.submit(operation);
+		return operation.future;
+	}
+
+	private <T> CompletableFuture<T> submitImage(Operation<T> operation){
+		operation.timeoutMillis = imageTimeoutMillis;
+		imageLimiter.submit(operation);
+		return operation.future;
+	}
+
+	/**
+	 * One operation, and the future for its result.  If the future is
+	 * completed early (by a timeout, or by the caller cancelling it), the
+	 * operation's exiftool processes are killed.
+	 */
+	private abstract static class Operation<T> implements Runnable {
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		private final ProcessTracker tracker = new ProcessTracker();
+		private long timeoutMillis;
+
+		Operation() {
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable t) {
+					if (t != null)
+						tracker.kill();
+				}
+			});
+		}
+
+		abstract T call() throws Exception;
+
+		public void run() {
+			if (future.isDone())
+				return; //Cancelled while waiting
+			ScheduledFuture<?> timeout = null;
+			if (timeoutMillis > 0){
+				timeout = timer.schedule(new Runnable() {
+					public void run() {
+						future.completeExceptionally(new TimeoutException("Operation did not complete within " + timeoutMillis + "ms"));
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+
+			ProcessTracker.setCurrent(tracker);
+			try {
+				future.complete(call());
+			}
+			catch (Throwable t){
+				future.completeExceptionally(t);
+			}
+			finally {
+				ProcessTracker.setCurrent(null);
+				if (timeout != null)
+					timeout.cancel(false);
+			}
+		}
+
+		void reject(Throwable t){
+			future.completeExceptionally(t);
+		}
+	}
+
+	/**
+	 * Runs at most 'max' operations at once on the executor, queueing the
+	 * rest.  Waiting operations do not hold a thread.
+	 */
+	private static class Limiter {
+		private final Executor executor;
+		private final int max;
+		private final Queue<Operation<?>> pending = new LinkedList<Operation<?>>();
+		private int running = 0;
+
+		Limiter(Executor executor, int max) {
+			this.executor = executor;
+			this.max = max;
+		}
+
+		void submit(Operation<?> operation){
+			synchronized (this) {
+				if (running >= max){
+					pending.add(operation);
+					return;
+				}
+				running++;
+			}
+			start(operation);
+		}
+
+		private void start(final Operation<?> operation){
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							operation.run();
+						}
+						finally {
+							next();
+						}
+					}
+				});
+			}
+			catch (RejectedExecutionException ree){
+				operation.reject(ree);
+				next();
+			}
+		}
+
+		/**
+		 * Called when an operation finishes, to start the next one (if any).
+		 */
+		private void next(){
+			Operation<?> operation;
+			synchronized (this) {
+				operation = pending.poll();
+				if (operation == null){
+					running--;
+					return;
+				}
+			}
+			start(operation);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Receives binary tag values from ExifToolWrapper.getBinaryTagFromFiles(),
+ * one file at a time.  The value is streamed into whatever OutputStream
+ * the sink returns, so it can go straight to a file, a socket, or (via
+ * java.nio.channels.Channels.newOutputStream()) any WritableByteChannel,
+ * without first being collected into a byte array.
+ */
+public interface BinaryTagSink {
+
+	/**
+	 * Called before the value for a file is read.
+	 * @param file The file the value comes from, as passed to getBinaryTagFromFiles()
+	 * @param tagName The name of the tag
+	 * @return The stream to write the value to, or null to skip this file
+	 * @throws IOException
+	 */
+	public OutputStream open(File file, String tagName) throws IOException;
+
+	/**
+	 * Called after the whole value has been written to the stream returned
+	 * by open().  Closing (or not closing) the stream is up to the sink.
+	 * @param file The file the value comes from
+	 * @param tagName The name of the tag
+	 * @param os The stream returned by open()
+	 * @param length The number of bytes written
+	 * @throws IOException
+	 */
+	public void close(File file, String tagName, OutputStream os, long length) throws IOException;
+}
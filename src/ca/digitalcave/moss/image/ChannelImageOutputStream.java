@@ -0,0 +1,130 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * An ImageOutputStream which writes straight to a FileChannel, starting
+ * at the channel's current position.  Unlike the streams ImageIO creates
+ * for an OutputStream, it does not copy everything into a memory or
+ * temporary file cache first; writers which seek back to patch lengths
+ * (PNG, TIFF) write to the file directly.
+ *
+ * Small writes are collected in a buffer.  Closing the stream flushes the
+ * buffer and moves the channel to the end of what was written, but does
+ * not close the channel.
+ */
+class ChannelImageOutputStream extends ImageOutputStreamImpl {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	//Channel position of stream position 0
+	private final long base;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	//Stream position of the first byte in the buffer
+	private long bufferStart = 0;
+	private long length = 0;
+
+	ChannelImageOutputStream(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.base = channel.position();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		flushBits();
+		if (!buffer.hasRemaining())
+			flushBuffer();
+		buffer.put((byte) b);
+		streamPos++;
+		length = Math.max(length, streamPos);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		flushBits();
+		if (len > buffer.remaining()){
+			flushBuffer();
+			if (len > buffer.capacity()){
+				ByteBuffer data = ByteBuffer.wrap(b, off, len);
+				long position = base + streamPos;
+				while (data.hasRemaining())
+					position += channel.write(data, position);
+				streamPos += len;
+				bufferStart = streamPos;
+				length = Math.max(length, streamPos);
+				return;
+			}
+		}
+		buffer.put(b, off, len);
+		streamPos += len;
+		length = Math.max(length, streamPos);
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		flushBuffer();
+		bitOffset = 0;
+		ByteBuffer one = ByteBuffer.allocate(1);
+		if (channel.read(one, base + streamPos) <= 0)
+			return -1;
+		streamPos++;
+		bufferStart = streamPos;
+		return one.get(0) & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		flushBuffer();
+		bitOffset = 0;
+		if (len == 0)
+			return 0;
+		int count = channel.read(ByteBuffer.wrap(b, off, len), base + streamPos);
+		if (count <= 0)
+			return -1;
+		streamPos += count;
+		bufferStart = streamPos;
+		return count;
+	}
+
+	@Override
+	public void seek(long pos) throws IOException {
+		flushBuffer();
+		super.seek(pos);
+		bufferStart = pos;
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushBuffer();
+		channel.position(base + length);
+		super.close();
+	}
+
+	/**
+	 * Writes out the buffered bytes; afterwards the buffer starts at the
+	 * current stream position.
+	 */
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		long position = base + bufferStart;
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+		buffer.clear();
+		bufferStart = streamPos;
+	}
+}
@@ -0,0 +1,399 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.SampleModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeoutException;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * Limits the heap used by concurrent decodes to a budget.  Before an image
+ * is decoded, its header is read, and the peak memory of the planned
+ * operation is estimated: the decoded image, plus (when it is to be
+ * scaled) the int copy, the resampler's working buffer and the result.
+ * The decode only starts once that many bytes can be reserved within the
+ * budget, and the reservation is released when the operation is done.
+ *
+ * Operations which do not fit wait, in the order they arrived, so that a
+ * large image is not starved by a stream of small ones.  If downgrading is
+ * on (the default), a scaled decode which does not fit straight away is
+ * subsampled further instead - to the target size, rather than twice it,
+ * which needs about a quarter of the memory - and only waits if that does
+ * not fit either.  An operation larger than the whole budget is let through
+ * once nothing else is reserved, since waiting longer would not help.
+ *
+ * The governor is off until a budget is set, e.g.
+ * setBudget(Runtime.getRuntime().maxMemory() / 2).  It covers the decodes
+ * of ImageFunctions (and so AsyncOperations), RenditionChain, RenditionCache
+ * and ThumbnailPipeline.  Full resolution decodes can only wait.  The
+ * reservation of getBufferedImage(File) ends when the image is returned;
+ * a caller which goes on to scale the image should use
+ * getBufferedImage(File, int, Permit) instead, which also reserves the
+ * memory of the scale, and holds it until the caller closes the permit.
+ * To make a smaller image from a large file, getBufferedImage(File, int) is
+ * cheaper still.  Other work can reserve memory with acquire().
+ *
+ * Time spent waiting is recorded in ImageMetrics as image.admit, and the
+ * reservations can be watched (and the settings changed) through the
+ * ca.digitalcave.moss.image:type=DecodeGovernor MBean; see
+ * ImageMetrics.registerMBeans().
+ */
+public class DecodeGovernor {
+
+	private static final Object lock = new Object();
+	private static final LinkedList<Permit> waiting = new LinkedList<Permit>();
+	private static long budget = 0;
+	private static long maxWaitMillis = 0;
+	private static boolean downgrade = true;
+	private static long reserved = 0;
+	private static long peak = 0;
+	private static int reservations = 0;
+	private static long admitted = 0;
+	private static long downgraded = 0;
+	private static long timedOut = 0;
+
+	private DecodeGovernor() {}
+
+	/**
+	 * Sets the number of bytes which decodes may reserve between them.
+	 * Reservations already made are kept.
+	 * @param bytes The budget, or 0 to turn the governor off
+	 */
+	public static void setBudget(long bytes){
+		synchronized (lock) {
+			budget = Math.max(0, bytes);
+			lock.notifyAll();
+		}
+	}
+
+	public static long getBudget(){
+		synchronized (lock) {
+			return budget;
+		}
+	}
+
+	public static boolean isEnabled(){
+		return getBudget() > 0;
+	}
+
+	/**
+	 * Sets how long an operation waits for a reservation before giving up,
+	 * in which case the image is not read (and the failure logged).
+	 * @param millis The longest wait, or 0 to wait as long as it takes
+	 */
+	public static void setMaxWait(long millis){
+		synchronized (lock) {
+			maxWaitMillis = Math.max(0, millis);
+		}
+	}
+
+	public static long getMaxWait(){
+		synchronized (lock) {
+			return maxWaitMillis;
+		}
+	}
+
+	/**
+	 * Sets whether scaled decodes which do not fit in the budget are
+	 * subsampled further, rather than waiting.  The result is the same
+	 * size either way, but is filtered from fewer pixels.
+	 */
+	public static void setDowngrade(boolean downgrade){
+		synchronized (lock) {
+			DecodeGovernor.downgrade = downgrade;
+		}
+	}
+
+	public static boolean isDowngrade(){
+		synchronized (lock) {
+			return downgrade;
+		}
+	}
+
+	/**
+	 * @return The bytes currently reserved
+	 */
+	public static long getReservedBytes(){
+		synchronized (lock) {
+			return reserved;
+		}
+	}
+
+	/**
+	 * @return The number of operations waiting for a reservation
+	 */
+	public static int getWaitingCount(){
+		synchronized (lock) {
+			return waiting.size();
+		}
+	}
+
+	/**
+	 * Reserves the given number of bytes, waiting until they fit in the
+	 * budget.  If the governor is off, this returns at once.
+	 * @return The reservation, which must be closed when the memory has
+	 * been freed
+	 * @throws InterruptedException If interrupted while waiting
+	 * @throws TimeoutException If the maximum wait passed first
+	 */
+	public static Permit acquire(long bytes) throws InterruptedException, TimeoutException {
+		Permit permit = new Permit();
+		acquire(permit, null, bytes, 0);
+		return permit;
+	}
+
+	/**
+	 * Reserves memory for a decode, in the given (unused) permit.
+	 * @param file The file being decoded, for the metrics
+	 * @param bytes The bytes which the operation as planned needs
+	 * @param downgradedBytes The bytes needed if the image is subsampled
+	 * further, or 0 if it cannot be
+	 * @throws InterruptedException If interrupted while waiting
+	 * @throws TimeoutException If the maximum wait passed first
+	 */
+	static void acquire(Permit permit, File file, long bytes, long downgradedBytes) throws InterruptedException, TimeoutException {
+		long start = ImageMetrics.start();
+		boolean success = false;
+		try {
+			synchronized (lock) {
+				if (budget == 0){
+					//Not governed, so nothing to record
+					start = 0;
+					return;
+				}
+
+				if (waiting.isEmpty() && fits(bytes)){
+					reserve(permit, bytes, false);
+				}
+				else if (downgradedBytes > 0 && downgrade){
+					if (waiting.isEmpty() && fits(downgradedBytes))
+						reserve(permit, downgradedBytes, true);
+					else
+						await(permit, downgradedBytes, true);
+				}
+				else {
+					await(permit, bytes, false);
+				}
+				success = true;
+			}
+		}
+		finally {
+			ImageMetrics.record(ImageMetrics.ADMIT, start, file, file == null ? 0 : 1, -1, -1, permit.bytes, 0, success);
+		}
+	}
+
+	/**
+	 * Queues the permit, and waits until it is at the head of the queue and
+	 * its bytes fit.  Called with the lock held.
+	 */
+	private static void await(Permit permit, long bytes, boolean downgrading) throws InterruptedException, TimeoutException {
+		long deadline = maxWaitMillis == 0 ? 0 : System.nanoTime() + maxWaitMillis * 1000000;
+		waiting.addLast(permit);
+		try {
+			while (waiting.getFirst() != permit || !fits(bytes)){
+				if (budget == 0)
+					return;
+				if (deadline == 0){
+					lock.wait();
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0){
+					timedOut++;
+					throw new TimeoutException("Waited more than " + maxWaitMillis + "ms for " + bytes + " bytes; " + reserved + " of " + budget + " are reserved");
+				}
+				lock.wait(Math.max(1, remaining / 1000000));
+			}
+			reserve(permit, bytes, downgrading);
+		}
+		finally {
+			waiting.remove(permit);
+			//The next in line may fit now
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Whether the bytes fit in the budget now.  Called with the lock held.
+	 */
+	private static boolean fits(long bytes){
+		return reserved == 0 || reserved + bytes <= budget;
+	}
+
+	private static void reserve(Permit permit, long bytes, boolean downgrading){
+		permit.bytes = bytes;
+		permit.downgraded = downgrading;
+		permit.held = true;
+		reserved += bytes;
+		reservations++;
+		peak = Math.max(peak, reserved);
+		admitted++;
+		if (downgrading)
+			downgraded++;
+	}
+
+	private static void release(Permit permit){
+		synchronized (lock) {
+			if (!permit.held)
+				return;
+			permit.held = false;
+			reserved -= permit.bytes;
+			reservations--;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Estimates the peak bytes of decoding an image of the given size with
+	 * the given subsampling, and then scaling it so that its longest side
+	 * is maxSize.
+	 * @param maxSize The size to scale to, or 0 if the image is not scaled
+	 */
+	static long estimate(int width, int height, int bytesPerPixel, int subsampling, int maxSize){
+		int decodedWidth = (width + subsampling - 1) / subsampling;
+		int decodedHeight = (height + subsampling - 1) / subsampling;
+		long pixels = (long) decodedWidth * decodedHeight;
+		long bytes = pixels * bytesPerPixel;
+		if (maxSize <= 0)
+			return bytes;
+
+		//The int copy (if the decoded image is not one already), the output
+		// of the horizontal pass, which is as tall as the decoded image, and
+		// the result
+		int[] size = RenditionChain.getSize(decodedWidth, decodedHeight, maxSize);
+		if (bytesPerPixel != 4)
+			bytes += pixels * 4;
+		bytes += (long) size[0] * decodedHeight * 4;
+		bytes += (long) size[0] * size[1] * 4;
+		return bytes;
+	}
+
+	/**
+	 * Returns the bytes per pixel which the reader will decode the first
+	 * image to, from the header; 4 if it cannot tell.
+	 */
+	static int getBytesPerPixel(ImageReader reader) throws IOException {
+		ImageTypeSpecifier type = reader.getRawImageType(0);
+		if (type == null){
+			Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+			if (types.hasNext())
+				type = types.next();
+		}
+		if (type == null)
+			return 4;
+		SampleModel sampleModel = type.getSampleModel(1, 1);
+		int bits = 0;
+		for (int size : sampleModel.getSampleSize())
+			bits += size;
+		return Math.max(1, (bits + 7) / 8);
+	}
+
+	/**
+	 * The MBean view, registered by ImageMetrics.registerMBeans().
+	 */
+	static DecodeGovernorMBean getMBean(){
+		return new Control();
+	}
+
+	/**
+	 * A reservation.  Closing it releases the memory; closing it again
+	 * does nothing.
+	 */
+	public static class Permit implements Closeable {
+		private long bytes = 0;
+		private boolean downgraded = false;
+		private boolean held = false;
+
+		/**
+		 * Creates an unused permit, to pass to
+		 * ImageFunctions.getBufferedImage(File, int, Permit).
+		 */
+		public Permit() {}
+
+		/**
+		 * @return The bytes reserved; 0 if the governor was off
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return Whether the decode must be subsampled further than planned
+		 */
+		public boolean isDowngraded() {
+			return downgraded;
+		}
+
+		public void close() {
+			release(this);
+		}
+	}
+
+	private static class Control implements DecodeGovernorMBean {
+		public long getBudgetBytes() {
+			return getBudget();
+		}
+		public void setBudgetBytes(long bytes) {
+			setBudget(bytes);
+		}
+		public long getMaxWaitMillis() {
+			return getMaxWait();
+		}
+		public void setMaxWaitMillis(long millis) {
+			setMaxWait(millis);
+		}
+		public boolean isDowngrade() {
+			return DecodeGovernor.isDowngrade();
+		}
+		public void setDowngrade(boolean downgrade) {
+			DecodeGovernor.setDowngrade(downgrade);
+		}
+		public long getReservedBytes() {
+			return DecodeGovernor.getReservedBytes();
+		}
+		public long getPeakReservedBytes() {
+			synchronized (lock) {
+				return peak;
+			}
+		}
+		public int getReservations() {
+			synchronized (lock) {
+				return reservations;
+			}
+		}
+		public int getWaiting() {
+			return getWaitingCount();
+		}
+		public long getAdmitted() {
+			synchronized (lock) {
+				return admitted;
+			}
+		}
+		public long getDowngraded() {
+			synchronized (lock) {
+				return downgraded;
+			}
+		}
+		public long getTimedOut() {
+			synchronized (lock) {
+				return timedOut;
+			}
+		}
+		public void reset() {
+			synchronized (lock) {
+				peak = reserved;
+				admitted = 0;
+				downgraded = 0;
+				timedOut = 0;
+			}
+		}
+	}
+}
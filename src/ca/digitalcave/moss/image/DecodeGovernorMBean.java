@@ -0,0 +1,60 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * The JMX view of DecodeGovernor: its settings, which can be changed in a
+ * running application, and its current reservations.
+ */
+public interface DecodeGovernorMBean {
+	/**
+	 * @return The heap budget for decodes, in bytes, or 0 if the governor is off
+	 */
+	public long getBudgetBytes();
+
+	public void setBudgetBytes(long bytes);
+
+	public long getMaxWaitMillis();
+
+	public void setMaxWaitMillis(long millis);
+
+	public boolean isDowngrade();
+
+	public void setDowngrade(boolean downgrade);
+
+	/**
+	 * @return The bytes currently reserved
+	 */
+	public long getReservedBytes();
+
+	/**
+	 * @return The most bytes reserved at once since the last reset
+	 */
+	public long getPeakReservedBytes();
+
+	/**
+	 * @return The number of operations currently holding a reservation
+	 */
+	public int getReservations();
+
+	/**
+	 * @return The number of operations currently waiting for a reservation
+	 */
+	public int getWaiting();
+
+	public long getAdmitted();
+
+	/**
+	 * @return The number of decodes which were subsampled more than
+	 * planned, to fit in the budget
+	 */
+	public long getDowngraded();
+
+	public long getTimedOut();
+
+	/**
+	 * Resets the counters and the peak.
+	 */
+	public void reset();
+}
@@ -0,0 +1,798 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps the tags and renditions of a directory tree of images up to date,
+ * without rescanning the whole tree.  When started, the tree is walked in
+ * parallel, and every image which is new or has changed since it was last
+ * processed is queued.  From then on, a WatchService reports images as
+ * they are created or modified, and only those are queued.
+ *
+ * A queued image is only processed once it has been left alone for the
+ * quiet period (2 seconds by default), and its size and modification time
+ * have not changed since it was queued, so that a file which is still
+ * being copied is not read half written.  Ready images are processed in
+ * batches: the tags of the whole batch are read with one call to
+ * ExifToolWrapper.getTagsFromFiles(), and the missing renditions of each
+ * image are made in the RenditionCache (all sizes from one decode) in
+ * parallel.  The listener is told about each image as it is done, and
+ * about images which are deleted (and not recreated within the quiet
+ * period).
+ *
+ * What was done to each file is recorded in a journal (see IngestJournal),
+ * along with its size and modification time, so that after a restart only
+ * files which have changed, or which need renditions or tags that have
+ * been added to the configuration since, are processed again.  Files
+ * which failed are not retried until they change.  Files which were
+ * deleted while the service was stopped are found at the end of the
+ * initial walk.
+ *
+ * If a FingerprintIndex is set, each batch is fingerprinted (in parallel)
+ * before anything else is done, so that duplicates of images already
+ * ingested get their tags (through the MetadataCache) and renditions
+ * (through the RenditionCache) from those images, if the caches were
+ * given the same index.
+ *
+ * Configure the service before calling start().  Tags, renditions and
+ * fingerprints are all optional.
+ */
+public class DirectoryIngest {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	/**
+	 * Notified as images are processed or deleted.  Methods are called on
+	 * the service's threads, one batch at a time, so should return quickly.
+	 */
+	public interface Listener {
+		/**
+		 * @param file The image
+		 * @param tags The tags read, or null if they were not read this time
+		 * (because they are not configured, or have not changed)
+		 * @param renditions The renditions made, in the same order as the
+		 * configured sizes; null for sizes which were already up to date
+		 */
+		public void ingested(File file, Map<String, String> tags, File[] renditions);
+
+		/**
+		 * Called if the tags could not be read, or a rendition could not be
+		 * made; anything which did succeed was also passed to ingested().
+		 */
+		public void failed(File file, Exception e);
+
+		public void removed(File file);
+	}
+
+	private final File root;
+	private final Path rootPath;
+	private final IngestJournal journal;
+	private final Listener listener;
+
+	private ExifToolWrapper exifTool;
+	private Set<String> tagNames;
+	private RenditionCache renditionCache;
+	private FingerprintIndex fingerprints;
+	private int[] maxSizes = new int[0];
+	private ResampleQuality quality;
+	private float encodeQuality;
+	private String format;
+	private Set<String> extensions;
+	private long quietMillis = 2000;
+	private int batchSize = 100;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	private ForkJoinPool workers;
+	private ScheduledThreadPoolExecutor debouncer;
+	private WatchService watchService;
+	private Thread watcher;
+	private final Map<WatchKey, Path> watched = new ConcurrentHashMap<WatchKey, Path>();
+
+	//Files waiting to be processed, in the order they were queued
+	private final LinkedHashMap<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+	private int walking = 0;
+	private boolean processing = false;
+	private boolean started = false;
+	private boolean closed = false;
+
+	private long ingested = 0;
+	private long failed = 0;
+	private long removed = 0;
+
+	/**
+	 * @param root The directory to ingest
+	 * @param journal The journal file (which may be inside root), or null to
+	 * process every image again after a restart
+	 * @param listener Notified of each image processed; may be null
+	 */
+	public DirectoryIngest(File root, File journal, Listener listener) {
+		this.root = root.getAbsoluteFile();
+		this.rootPath = this.root.toPath();
+		this.journal = new IngestJournal(journal);
+		this.listener = listener;
+		Set<String> suffixes = new HashSet<String>();
+		for (String suffix : ImageIO.getReaderFileSuffixes()) {
+			suffixes.add(suffix.toLowerCase(Locale.ROOT));
+		}
+		this.extensions = suffixes;
+	}
+
+	/**
+	 * Reads the given tags of each image.
+	 * @param exifTool The wrapper to read with
+	 * @param tagNames The tags to read
+	 */
+	public void setTags(ExifToolWrapper exifTool, Set<String> tagNames) {
+		this.exifTool = exifTool;
+		this.tagNames = tagNames;
+	}
+
+	/**
+	 * Makes renditions of each image at the given sizes.
+	 * @param renditionCache The cache to make them in
+	 * @param maxSizes The size of the longest side of each rendition
+	 * @param quality The filter to scale with
+	 * @param encodeQuality The compression quality (if appropriate to the format)
+	 * @param format The image format, as a file extension (e.g. "jpg")
+	 */
+	public void setRenditions(RenditionCache renditionCache, int[] maxSizes, ResampleQuality quality, float encodeQuality, String format) {
+		this.renditionCache = renditionCache;
+		this.maxSizes = maxSizes.clone();
+		this.quality = quality;
+		this.encodeQuality = encodeQuality;
+		this.format = format;
+	}
+
+	/**
+	 * Fingerprints each image before its tags are read and its renditions
+	 * made.  Give the same index to the MetadataCache of the ExifToolWrapper
+	 * and to the RenditionCache, so that they can serve duplicates.
+	 * @param fingerprints The index, which the service keeps up to date as
+	 * images change and are deleted
+	 */
+	public void setFingerprintIndex(FingerprintIndex fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * Sets the file extensions of the images to ingest, in lower case;
+	 * by default, everything which ImageIO can read.
+	 */
+	public void setExtensions(Set<String> extensions) {
+		this.extensions = extensions;
+	}
+
+	/**
+	 * Sets how long a file must be left alone before it is processed.
+	 */
+	public void setQuietPeriod(long quietPeriod, TimeUnit unit) {
+		this.quietMillis = unit.toMillis(quietPeriod);
+	}
+
+	/**
+	 * Sets the most files to read the tags of with one exiftool call.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException("batchSize must be at least 1");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of threads which walk the tree and make renditions.
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("threads must be at least 1");
+		this.threads = threads;
+	}
+
+	/**
+	 * Starts watching the tree, and walks it in the background.
+	 * @throws IOException If the tree cannot be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (started)
+			throw new IllegalStateException("Ingest has already been started");
+		if (!root.isDirectory())
+			throw new IOException("Not a directory: " + root);
+		started = true;
+
+		watchService = rootPath.getFileSystem().newWatchService();
+		workers = new ForkJoinPool(threads);
+		debouncer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ingest-debouncer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "ingest-watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+
+		walk(rootPath, true);
+
+		long period = Math.max(50, quietMillis / 4);
+		debouncer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					processReady();
+				}
+				catch (RuntimeException re){
+					//Keep the schedule going
+					logger.log(Level.SEVERE, "Problem encountered while ingesting " + root, re);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops watching, and waits for the current batch to finish.  Files
+	 * still waiting are processed (or found again by the walk) on the
+	 * next start.
+	 */
+	public void close(){
+		synchronized (this) {
+			if (closed || !started)
+				return;
+			closed = true;
+			notifyAll();
+		}
+		try {
+			watchService.close();
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "Problem encountered while closing watch service", ioe);
+		}
+		//The debouncer's current batch still needs the workers
+		debouncer.shutdown();
+		try {
+			debouncer.awaitTermination(1, TimeUnit.MINUTES);
+			workers.shutdown();
+			workers.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		journal.close();
+	}
+
+	/**
+	 * Waits until the initial walk has finished, and every file queued so
+	 * far has been processed.
+	 * @return false if the timeout passed first, or the service was closed
+	 */
+	public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!closed && (walking > 0 || processing || !pending.isEmpty())){
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return !closed;
+	}
+
+	/**
+	 * @return The number of files waiting to be processed
+	 */
+	public synchronized int getPendingCount(){
+		return pending.size();
+	}
+
+	public synchronized long getIngestedCount(){
+		return ingested;
+	}
+
+	public synchronized long getFailedCount(){
+		return failed;
+	}
+
+	public synchronized long getRemovedCount(){
+		return removed;
+	}
+
+	/**
+	 * Walks the directory on the worker pool, registering each directory
+	 * with the watch service before listing it (so that no file is missed
+	 * in between), and queueing each image which needs processing.
+	 * @param initial Whether this is the walk of the whole tree on start,
+	 * after which the journal entries of files which were not found are removed
+	 */
+	private void walk(final Path directory, final boolean initial){
+		final Set<String> seen = initial ? Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()) : null;
+		final boolean[] complete = new boolean[]{true};
+		synchronized (this) {
+			walking++;
+		}
+		workers.execute(new Runnable() {
+			public void run() {
+				try {
+					workers.invoke(new WalkTask(directory, seen, complete));
+					if (initial){
+						if (complete[0])
+							notifyRemoved(journal.retain(seen));
+						else
+							logger.warning("Not all of " + root + " could be read; keeping journal entries of files not found");
+					}
+				}
+				catch (RuntimeException re){
+					logger.log(Level.SEVERE, "Problem encountered while walking " + directory, re);
+				}
+				finally {
+					synchronized (DirectoryIngest.this) {
+						walking--;
+						DirectoryIngest.this.notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	private class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path directory;
+		private final Set<String> seen;
+		private final boolean[] complete;
+
+		WalkTask(Path directory, Set<String> seen, boolean[] complete) {
+			this.directory = directory;
+			this.seen = seen;
+			this.complete = complete;
+		}
+
+		@Override
+		protected void compute() {
+			List<WalkTask> subdirectories = new ArrayList<WalkTask>();
+			DirectoryStream<Path> stream = null;
+			try {
+				register(directory);
+				stream = Files.newDirectoryStream(directory);
+				for (Path path : stream) {
+					if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)){
+						subdirectories.add(new WalkTask(path, seen, complete));
+					}
+					else if (isImage(path)){
+						if (seen != null)
+							seen.add(getKey(path));
+						File file = path.toFile();
+						long size = file.length();
+						long modified = file.lastModified();
+						if (isNeeded(journal.get(getKey(path)), size, modified))
+							queue(path, size, modified, 0);
+					}
+				}
+			}
+			catch (IOException ioe){
+				complete[0] = false;
+				logger.log(Level.WARNING, "Unable to read directory " + directory, ioe);
+			}
+			finally {
+				if (stream != null){
+					try {
+						stream.close();
+					}
+					catch (IOException ioe){
+						logger.log(Level.FINE, "Problem encountered while closing " + directory, ioe);
+					}
+				}
+			}
+			invokeAll(subdirectories);
+		}
+	}
+
+	private void register(Path directory) throws IOException {
+		WatchKey key = directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		watched.put(key, directory);
+	}
+
+	/**
+	 * Runs on the watcher thread until the watch service is closed.
+	 */
+	private void watch(){
+		while (true){
+			WatchKey key;
+			try {
+				key = watchService.take();
+			}
+			catch (InterruptedException ie){
+				continue;
+			}
+			catch (ClosedWatchServiceException cwse){
+				return;
+			}
+
+			Path directory = watched.get(key);
+			if (directory != null){
+				for (WatchEvent<?> event : key.pollEvents()) {
+					try {
+						handle(directory, event);
+					}
+					catch (RuntimeException re){
+						logger.log(Level.WARNING, "Problem encountered while handling " + event.kind() + " in " + directory, re);
+					}
+				}
+			}
+			if (!key.reset())
+				watched.remove(key);
+		}
+	}
+
+	private void handle(Path directory, WatchEvent<?> event){
+		if (event.kind() == OVERFLOW){
+			//Events were lost; look at everything under the directory again
+			logger.fine("Watch events overflowed for " + directory + "; walking it again");
+			walk(directory, false);
+			return;
+		}
+
+		Path path = directory.resolve((Path) event.context());
+		if (event.kind() == ENTRY_DELETE){
+			if (isImage(path)){
+				//Debounced like any other change, as saving by replacing the
+				// file (or ImageIO.write()) deletes it first
+				queue(path, -1, -1, quietMillis);
+			}
+			else {
+				//Possibly a directory; its watch key is cancelled separately
+				notifyRemoved(journal.removeUnder(getKey(path) + File.separator));
+			}
+		}
+		else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)){
+			//Created or moved in; only creation needs a walk, but it is harmless otherwise
+			if (event.kind() == ENTRY_CREATE)
+				walk(path, false);
+		}
+		else if (isImage(path)){
+			File file = path.toFile();
+			queue(path, file.length(), file.lastModified(), quietMillis);
+		}
+	}
+
+	/**
+	 * Queues the file (or pushes back its time, if already queued).
+	 */
+	private synchronized void queue(Path path, long size, long modified, long delay){
+		if (closed)
+			return;
+		pending.remove(path);
+		pending.put(path, new Pending(System.currentTimeMillis() + delay, size, modified));
+	}
+
+	/**
+	 * Runs on the debouncer thread: processes the files which are ready,
+	 * in batches.
+	 */
+	private void processReady(){
+		Map<Path, Pending> ready = new LinkedHashMap<Path, Pending>();
+		synchronized (this) {
+			long now = System.currentTimeMillis();
+			for (Iterator<Map.Entry<Path, Pending>> i = pending.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<Path, Pending> entry = i.next();
+				if (entry.getValue().due <= now){
+					ready.put(entry.getKey(), entry.getValue());
+					i.remove();
+				}
+			}
+			if (ready.isEmpty())
+				return;
+			processing = true;
+		}
+
+		try {
+			List<Path> batch = new ArrayList<Path>();
+			Map<Path, Pending> states = new LinkedHashMap<Path, Pending>();
+			for (Map.Entry<Path, Pending> entry : ready.entrySet()) {
+				Path path = entry.getKey();
+				File file = path.toFile();
+				if (!file.isFile()){
+					if (journal.remove(getKey(path)))
+						notifyRemoved(Collections.singletonList(getKey(path)));
+					continue;
+				}
+				long size = file.length();
+				long modified = file.lastModified();
+				if (size != entry.getValue().size || modified != entry.getValue().modified){
+					//Still being written (or recreated after being deleted)
+					queue(path, size, modified, quietMillis);
+					continue;
+				}
+				batch.add(path);
+				states.put(path, entry.getValue());
+				if (batch.size() == batchSize){
+					process(batch, states);
+					batch.clear();
+					states.clear();
+				}
+			}
+			if (batch.size() > 0)
+				process(batch, states);
+		}
+		finally {
+			synchronized (this) {
+				processing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads the tags of the batch, makes the missing renditions, and
+	 * records what was done in the journal.
+	 */
+	private void process(List<Path> batch, Map<Path, Pending> states){
+		final Map<Path, IngestJournal.Entry> previous = new LinkedHashMap<Path, IngestJournal.Entry>();
+		List<File> needTags = new ArrayList<File>();
+		for (Path path : batch) {
+			Pending state = states.get(path);
+			IngestJournal.Entry entry = journal.get(getKey(path));
+			if (!isNeeded(entry, state.size, state.modified))
+				continue;
+			previous.put(path, entry != null && entry.isSame(state.size, state.modified) ? entry : null);
+			if (isTagsNeeded(previous.get(path)))
+				needTags.add(path.toFile());
+		}
+		if (previous.isEmpty())
+			return;
+
+		if (fingerprints != null){
+			List<Future<ImageFingerprint>> fingerprinted = new ArrayList<Future<ImageFingerprint>>();
+			for (final Path path : previous.keySet()) {
+				fingerprinted.add(workers.submit(new Callable<ImageFingerprint>() {
+					public ImageFingerprint call() throws Exception {
+						return fingerprints.fingerprint(path.toFile());
+					}
+				}));
+			}
+			for (Future<ImageFingerprint> future : fingerprinted) {
+				try {
+					future.get();
+				}
+				catch (InterruptedException ie){
+					Thread.currentThread().interrupt();
+					break;
+				}
+				catch (ExecutionException ee){
+					logger.log(Level.WARNING, "Problem encountered while fingerprinting", ee.getCause());
+				}
+			}
+			fingerprints.flush();
+		}
+
+		final Map<File, Map<String, String>> tags = new ConcurrentHashMap<File, Map<String, String>>();
+		if (needTags.size() > 0){
+			exifTool.getTagsFromFiles(needTags, tagNames, new TagSink() {
+				public void tags(File file, Map<String, String> values) {
+					tags.put(file, values);
+				}
+			});
+		}
+
+		//Make the renditions of each file in parallel
+		Map<Path, Future<File[]>> renders = new LinkedHashMap<Path, Future<File[]>>();
+		for (Map.Entry<Path, IngestJournal.Entry> entry : previous.entrySet()) {
+			final File file = entry.getKey().toFile();
+			final int[] sizes = getMissingRenditions(entry.getValue());
+			if (sizes.length == 0)
+				continue;
+			renders.put(entry.getKey(), workers.submit(new Callable<File[]>() {
+				public File[] call() throws Exception {
+					return renditionCache.getRenditions(file, sizes, quality, encodeQuality, format);
+				}
+			}));
+		}
+
+		for (Map.Entry<Path, IngestJournal.Entry> entry : previous.entrySet()) {
+			Path path = entry.getKey();
+			File file = path.toFile();
+			Pending state = states.get(path);
+			IngestJournal.Entry before = entry.getValue();
+			List<String> problems = new ArrayList<String>();
+
+			boolean tagsRead = before != null && before.tagsRead;
+			Map<String, String> values = null;
+			if (isTagsNeeded(before)){
+				values = tags.get(file);
+				if (values != null)
+					tagsRead = true;
+				else
+					problems.add("tags could not be read");
+			}
+
+			File[] renditions = new File[maxSizes.length];
+			Set<Integer> made = new HashSet<Integer>();
+			if (before != null){
+				for (int maxSize : before.renditions)
+					made.add(maxSize);
+			}
+			Future<File[]> render = renders.get(path);
+			if (render != null){
+				int[] sizes = getMissingRenditions(before);
+				File[] files = null;
+				try {
+					files = render.get();
+				}
+				catch (InterruptedException ie){
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException ee){
+					logger.log(Level.WARNING, "Problem encountered while rendering " + file, ee.getCause());
+				}
+				for (int i = 0; i < sizes.length; i++){
+					if (files != null && files[i] != null){
+						made.add(sizes[i]);
+						renditions[indexOf(maxSizes, sizes[i])] = files[i];
+					}
+					else {
+						problems.add("rendition " + sizes[i] + " could not be made");
+					}
+				}
+			}
+
+			int[] madeSizes = new int[made.size()];
+			int i = 0;
+			for (Integer maxSize : made)
+				madeSizes[i++] = maxSize;
+			journal.put(getKey(path), new IngestJournal.Entry(state.size, state.modified, madeSizes, tagsRead, problems.size() > 0));
+
+			synchronized (this) {
+				ingested++;
+				if (problems.size() > 0)
+					failed++;
+			}
+			if (listener != null){
+				if (values != null || hasAny(renditions))
+					listener.ingested(file, values, renditions);
+				if (problems.size() > 0)
+					listener.failed(file, new IOException("Unable to ingest " + file + ": " + problems));
+			}
+		}
+		journal.flush();
+	}
+
+	/**
+	 * Tells the listener about files which have been removed from the journal.
+	 */
+	private void notifyRemoved(List<String> keys){
+		if (keys.isEmpty())
+			return;
+		for (String key : keys) {
+			synchronized (this) {
+				removed++;
+			}
+			if (listener != null)
+				listener.removed(new File(root, key));
+			if (fingerprints != null)
+				fingerprints.remove(new File(root, key));
+		}
+		journal.flush();
+		if (fingerprints != null)
+			fingerprints.flush();
+	}
+
+	/**
+	 * Whether a file of the given size and modification time needs
+	 * processing, given what the journal says was done.
+	 */
+	private boolean isNeeded(IngestJournal.Entry entry, long size, long modified){
+		if (entry == null || !entry.isSame(size, modified))
+			return true;
+		if (entry.failed)
+			return false;
+		return isTagsNeeded(entry) || getMissingRenditions(entry).length > 0;
+	}
+
+	/**
+	 * @param entry The journal entry of the unchanged file, or null
+	 */
+	private boolean isTagsNeeded(IngestJournal.Entry entry){
+		return exifTool != null && tagNames != null && tagNames.size() > 0 && (entry == null || !entry.tagsRead);
+	}
+
+	/**
+	 * @param entry The journal entry of the unchanged file, or null
+	 * @return The configured sizes which have not been made
+	 */
+	private int[] getMissingRenditions(IngestJournal.Entry entry){
+		if (renditionCache == null)
+			return new int[0];
+		List<Integer> missing = new ArrayList<Integer>();
+		for (int maxSize : maxSizes) {
+			if (entry == null || !entry.hasRendition(maxSize))
+				missing.add(maxSize);
+		}
+		int[] result = new int[missing.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = missing.get(i);
+		return result;
+	}
+
+	private boolean isImage(Path path){
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot > 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return The journal key of the path: its path relative to the root
+	 */
+	private String getKey(Path path){
+		return rootPath.relativize(path).toString();
+	}
+
+	private static boolean hasAny(File[] files){
+		for (File file : files) {
+			if (file != null)
+				return true;
+		}
+		return false;
+	}
+
+	private static int indexOf(int[] values, int value){
+		for (int i = 0; i < values.length; i++){
+			if (values[i] == value)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * A queued file: when it may be processed, and its size and
+	 * modification time when it was queued.
+	 */
+	private static class Pending {
+		private final long due;
+		private final long size;
+		private final long modified;
+
+		Pending(long due, long size, long modified) {
+			this.due = due;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
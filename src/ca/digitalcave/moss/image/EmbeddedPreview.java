@@ -0,0 +1,404 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Finds the JPEG thumbnails and previews which cameras embed in their
+ * files, without exiftool and without decoding the main image.  The file is
+ * memory mapped, and the previews are returned as slices of the mapping, so
+ * nothing is copied until you read them; the JPEG markers and TIFF IFDs are
+ * walked to find:
+ *
+ * <ul>
+ * <li>The EXIF thumbnail (IFD1), in JPEG and TIFF based files</li>
+ * <li>Multi-Picture Format (APP2 MPF) previews, in JPEG files</li>
+ * <li>JPEG compressed images in the IFD chain and SubIFDs of TIFF based
+ * raw files (CR2, NEF, ARW, DNG, etc), which is where the large previews
+ * are kept</li>
+ * </ul>
+ *
+ * Only baseline and progressive JPEGs are returned, so that the results can
+ * always be decoded by ImageIO.  For a grid of thumbnails, getPreview(file,
+ * size) followed by scaleImage() is usually far cheaper than decoding the
+ * full image.
+ */
+public class EmbeddedPreview {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private static final int TAG_NEW_SUBFILE_TYPE = 0x00fe;
+	private static final int TAG_COMPRESSION = 0x0103;
+	private static final int TAG_STRIP_OFFSETS = 0x0111;
+	private static final int TAG_STRIP_BYTE_COUNTS = 0x0117;
+	private static final int TAG_SUB_IFDS = 0x014a;
+	private static final int TAG_JPEG_OFFSET = 0x0201;
+	private static final int TAG_JPEG_LENGTH = 0x0202;
+	private static final int TAG_MP_ENTRY = 0xb002;
+
+	private static final int APP2 = 0xe2;
+
+	//Guards against IFD loops in damaged files
+	private static final int MAX_IFDS = 64;
+
+	/**
+	 * Returns the EXIF (IFD1) thumbnail, usually about 160x120.
+	 * @param file A JPEG or TIFF based file
+	 * @return The thumbnail JPEG data, or null if there is none
+	 */
+	public static ByteBuffer getThumbnail(File file){
+		List<Candidate> candidates = getCandidates(file);
+		if (candidates == null)
+			return null;
+		for (Candidate candidate : candidates) {
+			if (candidate.thumbnail)
+				return candidate.data;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the largest embedded preview (which may be the thumbnail, if
+	 * there is nothing else).
+	 * @param file A JPEG or TIFF based file
+	 * @return The preview JPEG data, or null if there is none
+	 */
+	public static ByteBuffer getLargestPreview(File file){
+		return getPreview(file, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns the smallest embedded preview whose longest side is at least
+	 * minSize pixels, or the largest preview if none is that big.
+	 * @param file A JPEG or TIFF based file
+	 * @param minSize The size needed
+	 * @return The preview JPEG data, or null if there is none
+	 */
+	public static ByteBuffer getPreview(File file, int minSize){
+		List<Candidate> candidates = getCandidates(file);
+		if (candidates == null)
+			return null;
+
+		Candidate best = null;
+		for (Candidate candidate : candidates) {
+			if (best == null)
+				best = candidate;
+			else if (best.getSize() < minSize)
+				best = candidate.getSize() > best.getSize() ? candidate : best;
+			else if (candidate.getSize() >= minSize && candidate.getSize() < best.getSize())
+				best = candidate;
+		}
+		return best == null ? null : best.data;
+	}
+
+	/**
+	 * Decodes the preview chosen by getPreview(file, minSize).  Note that
+	 * previews are stored unrotated; check the file's Orientation tag.
+	 * @param file A JPEG or TIFF based file
+	 * @param minSize The size needed
+	 * @return The decoded preview, or null if there is none
+	 */
+	public static BufferedImage readPreview(File file, int minSize){
+		ByteBuffer preview = getPreview(file, minSize);
+		if (preview == null)
+			return null;
+		try {
+			return ImageIO.read(new ByteBufferInputStream(preview));
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Unable to decode embedded preview in " + file, ioe);
+			return null;
+		}
+	}
+
+	/**
+	 * Maps the file and finds all the previews in it.
+	 * @return The previews found, or null if the file could not be read
+	 */
+	private static List<Candidate> getCandidates(File file){
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE)
+				return null;
+			//The mapping remains valid after the channel is closed
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			List<Candidate> candidates = new ArrayList<Candidate>();
+			if ((data.get(0) & 0xff) == 0xff && (data.get(1) & 0xff) == ExifReader.SOI)
+				findInJpeg(data, candidates);
+			else if (ExifReader.Tiff.isTiff(data, 0))
+				findInTiff(data, 0, data.limit(), candidates, true);
+			else
+				return null;
+			return candidates;
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Unable to read embedded previews from " + file, ioe);
+			return null;
+		}
+		catch (RuntimeException re){
+			//Bad offsets, etc; the file is damaged.
+			logger.log(Level.WARNING, "Unable to read embedded previews from " + file, re);
+			return null;
+		}
+		finally {
+			if (raf != null){
+				try {
+					raf.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing " + file, ioe);
+				}
+			}
+		}
+	}
+
+	private static void findInJpeg(ByteBuffer data, List<Candidate> candidates) throws IOException {
+		boolean seenExif = false, seenMpf = false;
+		int position = 2;
+		while (position + 4 <= data.limit()){
+			if ((data.get(position) & 0xff) != 0xff)
+				return;
+			int marker = data.get(position + 1) & 0xff;
+			if (marker == 0xff){
+				position++;
+				continue;
+			}
+			if (marker == ExifReader.SOS || marker == ExifReader.EOI)
+				return;
+			if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)){
+				position += 2;
+				continue;
+			}
+			int length = data.getShort(position + 2) & 0xffff;
+			int start = position + 4;
+			int end = position + 2 + length;
+			if (length < 2 || end > data.limit())
+				return;
+
+			if (marker == ExifReader.APP1 && !seenExif && ExifReader.startsWith(data, start, end, "Exif\0\0")){
+				//The thumbnail is inside the APP1 segment
+				findInTiff(data, start + 6, end, candidates, false);
+				seenExif = true;
+			}
+			else if (marker == APP2 && !seenMpf && ExifReader.startsWith(data, start, end, "MPF\0")){
+				//MPF offsets are relative to the MP header, but point past the end of the segment
+				findInMpf(data, start + 4, candidates);
+				seenMpf = true;
+			}
+			position = end;
+		}
+	}
+
+	/**
+	 * Looks through the TIFF structure at data[base, end).
+	 * @param all If false, only the IFD1 thumbnail is wanted
+	 */
+	private static void findInTiff(ByteBuffer data, int base, int end, List<Candidate> candidates, boolean all) throws IOException {
+		ExifReader.Tiff tiff = new ExifReader.Tiff(ExifReader.slice(data, base, end));
+		Set<Integer> visited = new HashSet<Integer>();
+
+		int ifd0 = tiff.getFirstIfd();
+		if (ifd0 <= 0)
+			return;
+		int ifd1 = tiff.getNextIfd(ifd0);
+		if (ifd1 > 0)
+			addJpegIfd(data, base, tiff, ifd1, candidates, true);
+		if (!all)
+			return;
+
+		List<Integer> pending = new ArrayList<Integer>();
+		pending.add(ifd0);
+		while (pending.size() > 0 && visited.size() < MAX_IFDS){
+			int ifd = pending.remove(0);
+			if (ifd <= 0 || !visited.add(ifd))
+				continue;
+
+			if (ifd != ifd1){
+				addJpegIfd(data, base, tiff, ifd, candidates, false);
+				addStripIfd(data, base, tiff, ifd, candidates);
+			}
+
+			int entry = tiff.findEntry(ifd, TAG_SUB_IFDS);
+			if (entry >= 0){
+				for (int i = 0; i < tiff.getCount(entry) && i < MAX_IFDS; i++)
+					pending.add((int) tiff.getInt(entry, i));
+			}
+			pending.add(tiff.getNextIfd(ifd));
+		}
+	}
+
+	/**
+	 * Adds the JPEGInterchangeFormat image of the IFD, if it has one.
+	 */
+	private static void addJpegIfd(ByteBuffer data, int base, ExifReader.Tiff tiff, int ifd, List<Candidate> candidates, boolean thumbnail){
+		int offsetEntry = tiff.findEntry(ifd, TAG_JPEG_OFFSET);
+		int lengthEntry = tiff.findEntry(ifd, TAG_JPEG_LENGTH);
+		if (offsetEntry >= 0 && lengthEntry >= 0)
+			addCandidate(data, base + tiff.getInt(offsetEntry, 0), tiff.getInt(lengthEntry, 0), candidates, thumbnail);
+	}
+
+	/**
+	 * Adds the image of a JPEG compressed IFD which is stored in a single
+	 * strip, unless it is the main (raw) image.
+	 */
+	private static void addStripIfd(ByteBuffer data, int base, ExifReader.Tiff tiff, int ifd, List<Candidate> candidates){
+		int compression = tiff.findEntry(ifd, TAG_COMPRESSION);
+		if (compression < 0)
+			return;
+		long value = tiff.getInt(compression, 0);
+		if (value != 6 && value != 7)
+			return;
+		int subfileType = tiff.findEntry(ifd, TAG_NEW_SUBFILE_TYPE);
+		if (subfileType >= 0 && tiff.getInt(subfileType, 0) == 0 && ifd != tiff.getFirstIfd())
+			return; //Full resolution image in a SubIFD; not a preview
+		int offsets = tiff.findEntry(ifd, TAG_STRIP_OFFSETS);
+		int counts = tiff.findEntry(ifd, TAG_STRIP_BYTE_COUNTS);
+		if (offsets >= 0 && counts >= 0 && tiff.getCount(offsets) == 1 && tiff.getCount(counts) == 1)
+			addCandidate(data, base + tiff.getInt(offsets, 0), tiff.getInt(counts, 0), candidates, false);
+	}
+
+	/**
+	 * Adds the images listed in a Multi-Picture Format index, other than
+	 * the first (which is the main image).
+	 */
+	private static void findInMpf(ByteBuffer data, int base, List<Candidate> candidates) throws IOException {
+		ExifReader.Tiff tiff = new ExifReader.Tiff(ExifReader.slice(data, base, data.limit()));
+		int entry = tiff.findEntry(tiff.getFirstIfd(), TAG_MP_ENTRY);
+		if (entry < 0)
+			return;
+		ByteBuffer entries = tiff.getData();
+		int offset = tiff.getValueOffset(entry);
+		int count = tiff.getCount(entry) / 16;
+		for (int i = 1; i < count; i++){
+			long size = entries.getInt(offset + i * 16 + 4) & 0xffffffffL;
+			long start = entries.getInt(offset + i * 16 + 8) & 0xffffffffL;
+			if (start > 0)
+				addCandidate(data, base + start, size, candidates, false);
+		}
+	}
+
+	/**
+	 * Adds data[start, start + length) if it is a JPEG which ImageIO can decode.
+	 */
+	private static void addCandidate(ByteBuffer data, long start, long length, List<Candidate> candidates, boolean thumbnail){
+		if (start < 0 || length < 4 || start + length > data.limit())
+			return;
+		ByteBuffer jpeg = ExifReader.slice(data, (int) start, (int) (start + length));
+		if ((jpeg.get(0) & 0xff) != 0xff || (jpeg.get(1) & 0xff) != ExifReader.SOI)
+			return;
+
+		int[] size = getFrameSize(jpeg);
+		if (size == null)
+			return;
+		for (Candidate candidate : candidates) {
+			if (candidate.start == start)
+				return; //Already found through another IFD
+		}
+		candidates.add(new Candidate(jpeg, start, size[0], size[1], thumbnail));
+	}
+
+	/**
+	 * @return The width and height of a baseline or progressive JPEG, or null for other types
+	 */
+	private static int[] getFrameSize(ByteBuffer jpeg){
+		int position = 2;
+		while (position + 4 <= jpeg.limit()){
+			if ((jpeg.get(position) & 0xff) != 0xff)
+				return null;
+			int marker = jpeg.get(position + 1) & 0xff;
+			if (marker == 0xff){
+				position++;
+				continue;
+			}
+			if (marker == ExifReader.SOS || marker == ExifReader.EOI)
+				return null;
+			if (marker == 0xc0 || marker == 0xc1 || marker == 0xc2){
+				if (position + 9 > jpeg.limit())
+					return null;
+				return new int[]{jpeg.getShort(position + 7) & 0xffff, jpeg.getShort(position + 5) & 0xffff};
+			}
+			if (marker >= 0xc3 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc)
+				return null; //Lossless, arithmetic, etc
+			position += 2 + (jpeg.getShort(position + 2) & 0xffff);
+		}
+		return null;
+	}
+
+	private static class Candidate {
+		private final ByteBuffer data;
+		private final long start;
+		private final int width;
+		private final int height;
+		private final boolean thumbnail;
+
+		Candidate(ByteBuffer data, long start, int width, int height, boolean thumbnail) {
+			this.data = data;
+			this.start = start;
+			this.width = width;
+			this.height = height;
+			this.thumbnail = thumbnail;
+		}
+
+		int getSize(){
+			return Math.max(width, height);
+		}
+	}
+
+	/**
+	 * Reads from a ByteBuffer without copying it first.
+	 */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		public int read() throws IOException {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return buffer.remaining();
+		}
+	}
+}
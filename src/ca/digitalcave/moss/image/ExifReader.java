@@ -0,0 +1,591 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads a handful of common tags directly from JPEG and TIFF files, without
+ * starting exiftool.  Values are formatted the same way as 'exiftool -S -n'
+ * prints them, so callers of ExifToolWrapper.getTagsFromFiles() cannot tell
+ * the difference.
+ *
+ * This only answers when it can be sure of matching exiftool.  Whenever a
+ * tag could come from more than one place in the file (for instance
+ * Orientation in both EXIF and XMP) and the values do not agree, or the
+ * file is damaged or of another type, readTags() returns null and the
+ * caller should fall back to exiftool.  GPS coordinates are deliberately
+ * not supported, since exiftool's choice between the unsigned GPS tags and
+ * the signed Composite tags cannot be reproduced reliably here.
+ *
+ * Files are memory mapped; only the pages holding the metadata segments
+ * are actually read, and the JPEG marker walk stops once every segment
+ * which could hold a requested tag has been seen.
+ */
+class ExifReader {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	static final String DATE_TIME_ORIGINAL = "DateTimeOriginal";
+	static final String ORIENTATION = "Orientation";
+	static final String IMAGE_WIDTH = "ImageWidth";
+	static final String IMAGE_HEIGHT = "ImageHeight";
+	static final String MAKE = "Make";
+	static final String MODEL = "Model";
+	static final String RATING = "Rating";
+	static final String KEYWORDS = "Keywords";
+
+	static final Set<String> SUPPORTED_TAGS = new HashSet<String>(Arrays.asList(
+			DATE_TIME_ORIGINAL, ORIENTATION, IMAGE_WIDTH, IMAGE_HEIGHT, MAKE, MODEL, RATING, KEYWORDS));
+
+	//XMP property names (with their usual prefixes) which exiftool reports under the same tag names
+	private static final Map<String, String> XMP_PROPERTIES = new HashMap<String, String>();
+	static {
+		XMP_PROPERTIES.put(DATE_TIME_ORIGINAL, "exif:DateTimeOriginal");
+		XMP_PROPERTIES.put(ORIENTATION, "tiff:Orientation");
+		XMP_PROPERTIES.put(IMAGE_WIDTH, "tiff:ImageWidth");
+		XMP_PROPERTIES.put(IMAGE_HEIGHT, "tiff:ImageLength");
+		XMP_PROPERTIES.put(MAKE, "tiff:Make");
+		XMP_PROPERTIES.put(MODEL, "tiff:Model");
+		XMP_PROPERTIES.put(RATING, "xmp:Rating");
+		XMP_PROPERTIES.put(KEYWORDS, "pdf:Keywords");
+	}
+
+	//TIFF tags
+	static final int TAG_IMAGE_WIDTH = 0x0100;
+	static final int TAG_IMAGE_LENGTH = 0x0101;
+	static final int TAG_MAKE = 0x010f;
+	static final int TAG_MODEL = 0x0110;
+	static final int TAG_ORIENTATION = 0x0112;
+	static final int TAG_XMP = 0x02bc;
+	static final int TAG_RATING = 0x4746;
+	static final int TAG_IPTC = 0x83bb;
+	static final int TAG_EXIF_IFD = 0x8769;
+	static final int TAG_DATE_TIME_ORIGINAL = 0x9003;
+
+	//JPEG markers
+	static final int SOI = 0xd8;
+	static final int SOS = 0xda;
+	static final int EOI = 0xd9;
+	static final int APP1 = 0xe1;
+	static final int APP13 = 0xed;
+
+	/**
+	 * @return true if every one of the given tags can be read by readTags()
+	 */
+	static boolean isSupported(Collection<String> tagNames){
+		return tagNames.size() > 0 && SUPPORTED_TAGS.containsAll(tagNames);
+	}
+
+	/**
+	 * Reads the given tags from the file.
+	 * @param file A JPEG or TIFF file
+	 * @param tagNames Tag names, all of which must be supported
+	 * @return A map of the tags found to their values (tags which are not in
+	 * the file are not in the map), or null if the file needs to be read by
+	 * exiftool instead.
+	 */
+	static Map<String, String> readTags(File file, Set<String> tagNames){
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "r");
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < 8 || channel.size() > Integer.MAX_VALUE)
+				return null;
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			Values values = new Values();
+			if ((data.get(0) & 0xff) == 0xff && (data.get(1) & 0xff) == SOI){
+				if (!readJpeg(data, tagNames, values))
+					return null;
+			}
+			else if (isTiffFile(file, data)){
+				readTiff(data, values);
+			}
+			else {
+				return null;
+			}
+			return values.resolve(tagNames);
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "Unable to read metadata from " + file + "; falling back to exiftool", ioe);
+			return null;
+		}
+		catch (RuntimeException re){
+			//Buffer under / overflows, bad offsets, etc; the file is damaged,
+			// so let exiftool decide what to make of it.
+			logger.log(Level.FINE, "Unable to read metadata from " + file + "; falling back to exiftool", re);
+			return null;
+		}
+		finally {
+			if (raf != null){
+				try {
+					raf.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing " + file, ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Only plain TIFF files are handled here; camera raw files share the
+	 * structure, but exiftool reports many of their tags from maker notes.
+	 */
+	private static boolean isTiffFile(File file, ByteBuffer data){
+		String name = file.getName().toLowerCase();
+		if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+			return false;
+		return Tiff.isTiff(data, 0);
+	}
+
+	/**
+	 * Walks the JPEG markers up to the start of scan, reading the EXIF, XMP
+	 * and IPTC segments and the frame header.
+	 * @return false if the file is not a JPEG we can handle
+	 */
+	private static boolean readJpeg(ByteBuffer data, Set<String> tagNames, Values values) throws IOException {
+		boolean needExif = false, needIptc = tagNames.contains(KEYWORDS), needSof = tagNames.contains(IMAGE_WIDTH) || tagNames.contains(IMAGE_HEIGHT);
+		for (String tagName : tagNames) {
+			if (!tagName.equals(KEYWORDS) && !tagName.equals(IMAGE_WIDTH) && !tagName.equals(IMAGE_HEIGHT))
+				needExif = true;
+		}
+		boolean seenExif = false, seenXmp = false, seenIptc = false, seenSof = false;
+
+		int position = 2;
+		while (position + 4 <= data.limit()){
+			if ((data.get(position) & 0xff) != 0xff)
+				return false;
+			int marker = data.get(position + 1) & 0xff;
+			if (marker == 0xff){
+				position++; //Fill byte
+				continue;
+			}
+			if (marker == SOS || marker == EOI)
+				break;
+			if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)){
+				position += 2; //Markers without a length
+				continue;
+			}
+			int length = data.getShort(position + 2) & 0xffff;
+			int start = position + 4;
+			int end = position + 2 + length;
+			if (length < 2 || end > data.limit())
+				return false;
+
+			if (marker == APP1 && !seenExif && startsWith(data, start, end, "Exif\0\0")){
+				ByteBuffer tiff = slice(data, start + 6, end);
+				if (Tiff.isTiff(tiff, 0)){
+					readExif(new Tiff(tiff), values);
+					seenExif = true;
+				}
+			}
+			else if (marker == APP1 && !seenXmp && startsWith(data, start, end, "http://ns.adobe.com/xap/1.0/\0")){
+				readXmp(slice(data, start + 29, end), values);
+				seenXmp = true;
+			}
+			else if (marker == APP13 && !seenIptc && startsWith(data, start, end, "Photoshop 3.0\0")){
+				readPhotoshop(slice(data, start + 14, end), values);
+				seenIptc = true;
+			}
+			else if (isStartOfFrame(marker) && !seenSof){
+				values.putPrimary(IMAGE_HEIGHT, Integer.toString(data.getShort(start + 1) & 0xffff));
+				values.putPrimary(IMAGE_WIDTH, Integer.toString(data.getShort(start + 3) & 0xffff));
+				seenSof = true;
+			}
+
+			//XMP could always hold a conflicting value, so keep going until
+			// we have seen it, or until the frame header (after which there
+			// are no more metadata segments in practice).
+			if ((seenXmp || seenSof) && (!needExif || seenExif) && (!needIptc || seenIptc) && (!needSof || seenSof))
+				break;
+			position = end;
+		}
+		return true;
+	}
+
+	private static boolean isStartOfFrame(int marker){
+		return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+	}
+
+	private static void readTiff(ByteBuffer data, Values values) throws IOException {
+		Tiff tiff = new Tiff(data);
+		readExif(tiff, values);
+
+		int ifd0 = tiff.getFirstIfd();
+		int entry = tiff.findEntry(ifd0, TAG_IMAGE_WIDTH);
+		if (entry >= 0)
+			values.putPrimary(IMAGE_WIDTH, Long.toString(tiff.getInt(entry, 0)));
+		entry = tiff.findEntry(ifd0, TAG_IMAGE_LENGTH);
+		if (entry >= 0)
+			values.putPrimary(IMAGE_HEIGHT, Long.toString(tiff.getInt(entry, 0)));
+		entry = tiff.findEntry(ifd0, TAG_XMP);
+		if (entry >= 0)
+			readXmp(tiff.getBytes(entry), values);
+		entry = tiff.findEntry(ifd0, TAG_IPTC);
+		if (entry >= 0)
+			readIptc(tiff.getBytes(entry), values);
+	}
+
+	/**
+	 * Reads IFD0 and the EXIF sub IFD.
+	 */
+	private static void readExif(Tiff tiff, Values values) throws IOException {
+		int ifd0 = tiff.getFirstIfd();
+		int entry = tiff.findEntry(ifd0, TAG_MAKE);
+		if (entry >= 0)
+			values.putPrimary(MAKE, tiff.getString(entry).trim());
+		entry = tiff.findEntry(ifd0, TAG_MODEL);
+		if (entry >= 0)
+			values.putPrimary(MODEL, tiff.getString(entry).trim());
+		entry = tiff.findEntry(ifd0, TAG_ORIENTATION);
+		if (entry >= 0)
+			values.putPrimary(ORIENTATION, Long.toString(tiff.getInt(entry, 0)));
+		entry = tiff.findEntry(ifd0, TAG_RATING);
+		if (entry >= 0)
+			values.putPrimary(RATING, Long.toString(tiff.getInt(entry, 0)));
+
+		entry = tiff.findEntry(ifd0, TAG_EXIF_IFD);
+		if (entry >= 0){
+			int exifIfd = (int) tiff.getInt(entry, 0);
+			entry = tiff.findEntry(exifIfd, TAG_DATE_TIME_ORIGINAL);
+			if (entry >= 0)
+				values.putPrimary(DATE_TIME_ORIGINAL, tiff.getString(entry));
+		}
+	}
+
+	/**
+	 * Looks for the XMP equivalents of the supported tags, in either
+	 * attribute (prefix:Name="value") or simple element
+	 * (&lt;prefix:Name&gt;value&lt;/prefix:Name&gt;) form.  If a property is
+	 * present in some other form, the tag is marked as unknown.
+	 */
+	private static void readXmp(ByteBuffer data, Values values) throws UnsupportedEncodingException {
+		byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		String xmp = new String(bytes, "UTF-8");
+
+		for (Map.Entry<String, String> property : XMP_PROPERTIES.entrySet()) {
+			String name = property.getValue();
+			int index = xmp.indexOf(name);
+			if (index < 0)
+				continue;
+
+			String value = null;
+			int after = index + name.length();
+			if (after + 1 < xmp.length() && xmp.charAt(after) == '=' && (xmp.charAt(after + 1) == '"' || xmp.charAt(after + 1) == '\'')){
+				int end = xmp.indexOf(xmp.charAt(after + 1), after + 2);
+				if (end > 0)
+					value = xmp.substring(after + 2, end);
+			}
+			else if (index > 0 && xmp.charAt(index - 1) == '<' && after < xmp.length() && xmp.charAt(after) == '>'){
+				int end = xmp.indexOf("</" + name + ">", after);
+				if (end > 0 && xmp.lastIndexOf('<', end - 1) < after)
+					value = xmp.substring(after + 1, end);
+			}
+
+			if (value == null)
+				values.putUnknown(property.getKey());
+			else
+				values.putXmp(property.getKey(), unescapeXml(value).trim());
+		}
+	}
+
+	/**
+	 * Reads the Photoshop image resource blocks in an APP13 segment, looking
+	 * for the IPTC block.
+	 */
+	private static void readPhotoshop(ByteBuffer data, Values values) throws IOException {
+		int position = 0;
+		while (position + 12 <= data.limit()){
+			if (!startsWith(data, position, data.limit(), "8BIM"))
+				return;
+			int id = data.getShort(position + 4) & 0xffff;
+			int nameLength = data.get(position + 6) & 0xff;
+			int nameSize = (nameLength + 2) & ~1; //Length byte + name, padded to even
+			int sizeOffset = position + 6 + nameSize;
+			int size = data.getInt(sizeOffset);
+			int start = sizeOffset + 4;
+			if (size < 0 || start + size > data.limit())
+				throw new IOException("Bad Photoshop resource block");
+			if (id == 0x0404){
+				readIptc(slice(data, start, start + size), values);
+				return;
+			}
+			position = start + ((size + 1) & ~1);
+		}
+	}
+
+	/**
+	 * Reads keywords (dataset 2:25) from IPTC IIM data.
+	 */
+	private static void readIptc(ByteBuffer data, Values values) throws IOException {
+		String charset = "Cp1252"; //What exiftool assumes without a CodedCharacterSet
+		StringBuilder keywords = new StringBuilder();
+		int position = 0;
+		while (position + 5 <= data.limit() && data.get(position) == 0x1c){
+			int record = data.get(position + 1) & 0xff;
+			int dataset = data.get(position + 2) & 0xff;
+			int length = data.getShort(position + 3) & 0xffff;
+			if ((length & 0x8000) != 0)
+				throw new IOException("Extended IPTC datasets are not supported");
+			int start = position + 5;
+			if (start + length > data.limit())
+				throw new IOException("Bad IPTC dataset");
+
+			if (record == 1 && dataset == 90 && length >= 3
+					&& data.get(start) == 0x1b && data.get(start + 1) == '%' && data.get(start + 2) == 'G'){
+				charset = "UTF-8";
+			}
+			else if (record == 2 && dataset == 25){
+				byte[] bytes = new byte[length];
+				for (int i = 0; i < length; i++)
+					bytes[i] = data.get(start + i);
+				if (keywords.length() > 0)
+					keywords.append(", ");
+				keywords.append(new String(bytes, charset));
+			}
+			position = start + length;
+		}
+		if (keywords.length() > 0)
+			values.putPrimary(KEYWORDS, keywords.toString());
+	}
+
+	private static String unescapeXml(String value){
+		if (value.indexOf('&') < 0)
+			return value;
+		return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+	}
+
+	static boolean startsWith(ByteBuffer data, int start, int end, String prefix){
+		if (end - start < prefix.length())
+			return false;
+		for (int i = 0; i < prefix.length(); i++){
+			if (data.get(start + i) != (byte) prefix.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a view of data[start, end), without copying.
+	 */
+	static ByteBuffer slice(ByteBuffer data, int start, int end){
+		ByteBuffer duplicate = data.duplicate();
+		duplicate.limit(end);
+		duplicate.position(start);
+		return duplicate.slice();
+	}
+
+	/**
+	 * The values found for each tag, from the 'primary' location (EXIF,
+	 * IPTC or the JPEG frame header) and from XMP.
+	 */
+	private static class Values {
+		private final Map<String, String> primary = new HashMap<String, String>();
+		private final Map<String, String> xmp = new HashMap<String, String>();
+		private final Set<String> unknown = new HashSet<String>();
+
+		void putPrimary(String tagName, String value){
+			if (!primary.containsKey(tagName))
+				primary.put(tagName, value);
+		}
+
+		void putXmp(String tagName, String value){
+			xmp.put(tagName, value);
+		}
+
+		void putUnknown(String tagName){
+			unknown.add(tagName);
+		}
+
+		/**
+		 * @return The value for each tag, or null if any of them is ambiguous
+		 */
+		Map<String, String> resolve(Set<String> tagNames){
+			Map<String, String> result = new HashMap<String, String>();
+			for (String tagName : tagNames) {
+				if (unknown.contains(tagName))
+					return null;
+				String value = primary.get(tagName);
+				String xmpValue = xmp.get(tagName);
+				if (xmpValue != null){
+					//XMP dates are reformatted by exiftool, and we do not know
+					// which value exiftool would prefer if they differ.
+					if (tagName.equals(DATE_TIME_ORIGINAL) || (value != null && !value.equals(xmpValue)))
+						return null;
+					value = xmpValue;
+				}
+				if (value != null)
+					result.put(tagName, value);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Minimal random access to a TIFF structure (a TIFF file, or the TIFF
+	 * block inside a JPEG EXIF segment).  Offsets are relative to the start
+	 * of the TIFF header; IFD entries are referred to by their offset.
+	 */
+	static class Tiff {
+		static final int BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4, UNDEFINED = 7, SLONG = 9;
+		private static final int[] TYPE_SIZES = {0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4};
+
+		private final ByteBuffer data;
+
+		Tiff(ByteBuffer data) throws IOException {
+			this.data = data.duplicate();
+			if (!isTiff(data, 0))
+				throw new IOException("Not a TIFF header");
+			this.data.order(data.get(0) == 'I' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		}
+
+		static boolean isTiff(ByteBuffer data, int offset){
+			if (data.limit() - offset < 8)
+				return false;
+			byte b0 = data.get(offset), b1 = data.get(offset + 1), b2 = data.get(offset + 2), b3 = data.get(offset + 3);
+			return (b0 == 'I' && b1 == 'I' && b2 == 42 && b3 == 0) || (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 42);
+		}
+
+		ByteBuffer getData(){
+			return data;
+		}
+
+		int getFirstIfd(){
+			return data.getInt(4);
+		}
+
+		int getEntryCount(int ifd){
+			return data.getShort(ifd) & 0xffff;
+		}
+
+		/**
+		 * @return The offset of the next IFD in the chain, or 0 if this is the last
+		 */
+		int getNextIfd(int ifd){
+			return data.getInt(ifd + 2 + getEntryCount(ifd) * 12);
+		}
+
+		/**
+		 * @return The offset of the entry for the given tag in the IFD, or -1 if there is none
+		 */
+		int findEntry(int ifd, int tag){
+			if (ifd <= 0 || ifd + 2 > data.limit())
+				return -1;
+			int count = getEntryCount(ifd);
+			for (int i = 0; i < count; i++){
+				int entry = ifd + 2 + i * 12;
+				if ((data.getShort(entry) & 0xffff) == tag)
+					return entry;
+			}
+			return -1;
+		}
+
+		int getTag(int entry){
+			return data.getShort(entry) & 0xffff;
+		}
+
+		int getType(int entry){
+			return data.getShort(entry + 2) & 0xffff;
+		}
+
+		int getCount(int entry){
+			return data.getInt(entry + 4);
+		}
+
+		/**
+		 * @return The offset of the entry's value; values of four bytes or less are stored in the entry itself
+		 */
+		int getValueOffset(int entry){
+			int type = getType(entry);
+			long size = (long) (type < TYPE_SIZES.length ? TYPE_SIZES[type] : 1) * getCount(entry);
+			if (size <= 4)
+				return entry + 8;
+			int offset = data.getInt(entry + 8);
+			if (offset < 0 || offset + size > data.limit())
+				throw new BufferUnderflowException();
+			return offset;
+		}
+
+		/**
+		 * Returns the index'th value of a BYTE, SHORT, LONG or SLONG entry.
+		 */
+		long getInt(int entry, int index){
+			int offset = getValueOffset(entry);
+			switch (getType(entry)) {
+			case BYTE:
+			case UNDEFINED:
+				return data.get(offset + index) & 0xff;
+			case SHORT:
+				return data.getShort(offset + index * 2) & 0xffff;
+			case LONG:
+				return data.getInt(offset + index * 4) & 0xffffffffL;
+			case SLONG:
+				return data.getInt(offset + index * 4);
+			default:
+				throw new IllegalArgumentException("Tag " + getTag(entry) + " is not an integer");
+			}
+		}
+
+		/**
+		 * Sets the index'th value of a SHORT or LONG entry, in place; the
+		 * data must be writable.
+		 */
+		void setInt(int entry, int index, long value){
+			int offset = getValueOffset(entry);
+			switch (getType(entry)) {
+			case SHORT:
+				data.putShort(offset + index * 2, (short) value);
+				break;
+			case LONG:
+				data.putInt(offset + index * 4, (int) value);
+				break;
+			default:
+				throw new IllegalArgumentException("Tag " + getTag(entry) + " is not a SHORT or LONG");
+			}
+		}
+
+		/**
+		 * Returns an ASCII value, up to the first null (as exiftool does).
+		 */
+		String getString(int entry) throws UnsupportedEncodingException {
+			int offset = getValueOffset(entry);
+			int count = getCount(entry);
+			byte[] bytes = new byte[count];
+			int length = 0;
+			while (length < count && data.get(offset + length) != 0){
+				bytes[length] = data.get(offset + length);
+				length++;
+			}
+			return new String(bytes, 0, length, "UTF-8");
+		}
+
+		/**
+		 * Returns a view of the raw bytes of the entry's value.
+		 */
+		ByteBuffer getBytes(int entry){
+			int type = getType(entry);
+			int size = (type < TYPE_SIZES.length ? TYPE_SIZES[type] : 1) * getCount(entry);
+			int offset = getValueOffset(entry);
+			return slice(data, offset, offset + size);
+		}
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * A small streaming reader for the output of 'exiftool -j'.  This is an
+ * array of one object per file, each of which starts with a "SourceFile"
+ * field, followed by one field per tag.  With -b, binary values are
+ * written as strings prefixed with "base64:"; these are decoded straight
+ * into an OutputStream as they are read, so that large binary tags are
+ * never held in memory as text.
+ *
+ * Only the top level fields of each object are reported.  Arrays of simple
+ * values are joined with ", " (which is how exiftool prints lists without
+ * -j); nested objects are skipped.
+ */
+class ExifToolJsonReader {
+
+	/**
+	 * Receives the fields of each file in turn.
+	 */
+	interface Handler {
+		/**
+		 * Called with the SourceFile of each object, before any of its tags
+		 * (exiftool always writes SourceFile first).
+		 */
+		void startFile(String sourceFile) throws IOException;
+
+		/**
+		 * @return true if the value of the given tag should be read;
+		 * otherwise it is skipped without being decoded.
+		 */
+		boolean isWanted(String tagName);
+
+		/**
+		 * Called for wanted base64 values.
+		 * @return The stream to decode the value into, or null to skip it
+		 */
+		OutputStream startBinary(String tagName) throws IOException;
+
+		/**
+		 * Called once a binary value has been completely decoded into the
+		 * stream returned by startBinary().
+		 */
+		void endBinary(String tagName, OutputStream os, long length) throws IOException;
+
+		/**
+		 * Called for wanted non binary values.
+		 */
+		void value(String tagName, String value) throws IOException;
+
+		void endFile() throws IOException;
+	}
+
+	private static final String SOURCE_FILE = "SourceFile";
+	private static final char[] BASE64_PREFIX = "base64:".toCharArray();
+	private static final int[] BASE64 = new int[128];
+	static {
+		for (int i = 0; i < BASE64.length; i++)
+			BASE64[i] = -1;
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++)
+			BASE64[alphabet.charAt(i)] = i;
+	}
+
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	private final StringBuilder text = new StringBuilder();
+
+	ExifToolJsonReader(InputStream is) throws IOException {
+		this.reader = new InputStreamReader(is, "UTF-8");
+	}
+
+	/**
+	 * Reads the whole stream, passing each file's fields to the handler.
+	 */
+	void read(Handler handler) throws IOException {
+		int c = skipWhitespace();
+		if (c == -1)
+			return; //No output at all; e.g. none of the files could be read
+		expect(c, '[');
+		c = skipWhitespace();
+		if (c == ']')
+			return;
+		while (true){
+			expect(c, '{');
+			readFile(handler);
+			c = skipWhitespace();
+			if (c == ']')
+				return;
+			expect(c, ',');
+			c = skipWhitespace();
+		}
+	}
+
+	private void readFile(Handler handler) throws IOException {
+		boolean started = false;
+		int c = skipWhitespace();
+		if (c != '}'){
+			while (true){
+				expect(c, '"');
+				String key = readString();
+				expect(skipWhitespace(), ':');
+
+				if (!started && SOURCE_FILE.equals(key)){
+					expect(skipWhitespace(), '"');
+					handler.startFile(readString());
+					started = true;
+				}
+				else if (started && handler.isWanted(key)){
+					readValue(handler, key);
+				}
+				else {
+					skipValue();
+				}
+
+				c = skipWhitespace();
+				if (c == '}')
+					break;
+				expect(c, ',');
+				c = skipWhitespace();
+			}
+		}
+		if (started)
+			handler.endFile();
+	}
+
+	private void readValue(Handler handler, String key) throws IOException {
+		int c = skipWhitespace();
+		if (c == '"'){
+			if (startsWithBase64Prefix()){
+				OutputStream os = handler.startBinary(key);
+				long length = decodeBase64(os);
+				if (os != null)
+					handler.endBinary(key, os, length);
+			}
+			else {
+				handler.value(key, readString());
+			}
+		}
+		else if (c == '['){
+			StringBuilder joined = new StringBuilder();
+			c = skipWhitespace();
+			while (c != ']'){
+				if (joined.length() > 0)
+					joined.append(", ");
+				if (c == '"')
+					joined.append(readString());
+				else if (c == '{' || c == '[')
+					skipNested();
+				else
+					joined.append(readLiteral(c));
+				c = skipWhitespace();
+				if (c == ',')
+					c = skipWhitespace();
+			}
+			handler.value(key, joined.toString());
+		}
+		else if (c == '{'){
+			skipNested();
+		}
+		else {
+			handler.value(key, readLiteral(c));
+		}
+	}
+
+	private void skipValue() throws IOException {
+		int c = skipWhitespace();
+		if (c == '"')
+			skipString();
+		else if (c == '{' || c == '[')
+			skipNested();
+		else
+			readLiteral(c);
+	}
+
+	/**
+	 * Skips an object or array, whose opening bracket has already been read.
+	 */
+	private void skipNested() throws IOException {
+		int depth = 1;
+		while (depth > 0){
+			int c = next();
+			if (c == -1)
+				throw new IOException("Unexpected end of exiftool JSON output");
+			if (c == '"')
+				skipString();
+			else if (c == '{' || c == '[')
+				depth++;
+			else if (c == '}' || c == ']')
+				depth--;
+		}
+	}
+
+	/**
+	 * Reads a number, true, false or null, whose first character is c.
+	 */
+	private String readLiteral(int c) throws IOException {
+		text.setLength(0);
+		while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)){
+			text.append((char) c);
+			c = next();
+		}
+		if (c != -1)
+			position--; //Push back the terminator
+		return text.toString();
+	}
+
+	/**
+	 * Reads the rest of a string, whose opening quote has already been read.
+	 */
+	private String readString() throws IOException {
+		text.setLength(0);
+		while (true){
+			//Copy runs of plain characters in bulk
+			int start = position;
+			while (position < limit && buffer[position] != '"' && buffer[position] != '\\')
+				position++;
+			text.append(buffer, start, position - start);
+			if (position == limit){
+				//Ran off the end of the buffer mid string; refill and carry on copying
+				if (!fill(1))
+					throw new IOException("Unterminated string in exiftool JSON output");
+				continue;
+			}
+
+			int c = next();
+			if (c == -1)
+				throw new IOException("Unterminated string in exiftool JSON output");
+			if (c == '"')
+				return text.toString();
+			if (c == '\\'){
+				c = next();
+				switch (c) {
+				case 'n': text.append('\n'); break;
+				case 't': text.append('\t'); break;
+				case 'r': text.append('\r'); break;
+				case 'b': text.append('\b'); break;
+				case 'f': text.append('\f'); break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++)
+						code = (code << 4) + Character.digit(next(), 16);
+					text.append((char) code);
+					break;
+				case -1:
+					throw new IOException("Unterminated string in exiftool JSON output");
+				default: text.append((char) c);
+				}
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		while (true){
+			int c = next();
+			if (c == -1)
+				throw new IOException("Unterminated string in exiftool JSON output");
+			if (c == '"')
+				return;
+			if (c == '\\')
+				next();
+		}
+	}
+
+	/**
+	 * Checks whether the string which has just been opened starts with
+	 * "base64:", consuming the prefix if so.
+	 */
+	private boolean startsWithBase64Prefix() throws IOException {
+		if (limit - position < BASE64_PREFIX.length)
+			fill(BASE64_PREFIX.length);
+		if (limit - position < BASE64_PREFIX.length)
+			return false;
+		for (int i = 0; i < BASE64_PREFIX.length; i++){
+			if (buffer[position + i] != BASE64_PREFIX[i])
+				return false;
+		}
+		position += BASE64_PREFIX.length;
+		return true;
+	}
+
+	/**
+	 * Decodes base64 text up to the closing quote into os (which may be
+	 * null, in which case the value is just skipped).
+	 * @return The number of bytes decoded
+	 */
+	private long decodeBase64(OutputStream os) throws IOException {
+		byte[] out = new byte[6144];
+		int count = 0;
+		long total = 0;
+		int bits = 0, accumulator = 0;
+		while (true){
+			int c = next();
+			if (c == -1)
+				throw new IOException("Unterminated string in exiftool JSON output");
+			if (c == '"')
+				break;
+			if (c == '\\')
+				c = next(); //Only '\/' can appear in base64 text
+			int value = c < 128 ? BASE64[c] : -1;
+			if (value < 0)
+				continue; //Padding, or whitespace
+			accumulator = (accumulator << 6) | value;
+			bits += 6;
+			if (bits >= 8){
+				bits -= 8;
+				out[count++] = (byte) (accumulator >> bits);
+				if (count == out.length){
+					if (os != null)
+						os.write(out, 0, count);
+					total += count;
+					count = 0;
+				}
+			}
+		}
+		if (count > 0 && os != null)
+			os.write(out, 0, count);
+		return total + count;
+	}
+
+	private void expect(int c, char expected) throws IOException {
+		if (c != expected)
+			throw new IOException("Unexpected " + (c == -1 ? "end of output" : "'" + (char) c + "'") + " in exiftool JSON output; expected '" + expected + "'");
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c;
+		do {
+			c = next();
+		} while (c != -1 && Character.isWhitespace(c));
+		return c;
+	}
+
+	private int next() throws IOException {
+		if (position == limit && !fill(1))
+			return -1;
+		return buffer[position++];
+	}
+
+	/**
+	 * Ensures that at least 'needed' characters are buffered, if the
+	 * stream has that many left.
+	 */
+	private boolean fill(int needed) throws IOException {
+		if (position > 0){
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		while (limit < needed){
+			int ret = reader.read(buffer, limit, buffer.length - limit);
+			if (ret == -1)
+				return limit > 0;
+			limit += ret;
+		}
+		return true;
+	}
+}
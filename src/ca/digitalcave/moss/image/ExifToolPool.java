@@ -0,0 +1,138 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A fixed size pool of long lived exiftool processes.  Processes are 
+ * started lazily the first time they are needed, and are replaced if 
+ * they are found to have died (or fail part way through a request).
+ * At most 'size' requests run at once; any others block until a
+ * process is free.
+ */
+class ExifToolPool {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private final File exifTool;
+	private final Semaphore permits;
+	private final ConcurrentLinkedQueue<ExifToolProcess> idle = new ConcurrentLinkedQueue<ExifToolProcess>();
+	private final AtomicInteger requestId = new AtomicInteger();
+	private volatile boolean shutdown = false;
+
+	ExifToolPool(File exifTool, int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		this.exifTool = exifTool;
+		this.permits = new Semaphore(size, true);
+	}
+
+	/**
+	 * Runs the given arguments on the next free process.
+	 * @param args The exiftool arguments, not including the exiftool path
+	 * @return The output of the request
+	 * @throws IOException If the pool has been shut down, or the process failed
+	 */
+	ExifToolResult execute(List<String> args) throws IOException {
+		if (shutdown)
+			throw new IOException("ExifTool pool has been shut down");
+
+		try {
+			permits.acquire();
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for an exiftool process");
+		}
+
+		//Lets a timed out or cancelled operation kill the process it is using
+		ProcessTracker tracker = ProcessTracker.current();
+		ExifToolProcess process = null;
+		try {
+			if (tracker != null && tracker.isKilled())
+				throw new IOException("ExifTool operation was cancelled");
+			process = acquire();
+			if (tracker != null)
+				tracker.add(process);
+			long start = ImageMetrics.start();
+			ExifToolResult result;
+			try {
+				result = process.execute(nextId(), args);
+			}
+			catch (IOException ioe){
+				ImageMetrics.record(ImageMetrics.EXIFTOOL_RUN, start, null, 0, -1, -1, 0, 0, false);
+				throw ioe;
+			}
+			ImageMetrics.record(ImageMetrics.EXIFTOOL_RUN, start, null, 0, -1, -1, result.getOutput().length, 0, true);
+			if (tracker != null)
+				tracker.remove(process);
+			release(process);
+			return result;
+		}
+		catch (IOException ioe){
+			if (process != null){
+				if (tracker != null)
+					tracker.remove(process);
+				process.destroy();
+			}
+			throw ioe;
+		}
+		finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Stops all idle processes, and prevents any further requests from
+	 * being started.  Processes which are currently busy are stopped as 
+	 * soon as their request completes.
+	 */
+	void shutdown(){
+		shutdown = true;
+		ExifToolProcess process;
+		while ((process = idle.poll()) != null){
+			process.close();
+		}
+	}
+
+	private ExifToolProcess acquire() throws IOException {
+		ExifToolProcess process;
+		while ((process = idle.poll()) != null){
+			if (process.isAlive())
+				return process;
+			logger.log(Level.INFO, "ExifTool process has died; starting a new one");
+			process.destroy();
+		}
+		long start = ImageMetrics.start();
+		try {
+			process = new ExifToolProcess(exifTool);
+		}
+		catch (IOException ioe){
+			ImageMetrics.record(ImageMetrics.EXIFTOOL_SPAWN, start, null, 0, -1, -1, 0, 0, false);
+			throw ioe;
+		}
+		ImageMetrics.record(ImageMetrics.EXIFTOOL_SPAWN, start, null, 0, -1, -1, 0, 0, true);
+		return process;
+	}
+
+	private void release(ExifToolProcess process){
+		idle.offer(process);
+		//If we raced with shutdown(), make sure this process gets stopped too
+		if (shutdown)
+			shutdown();
+	}
+
+	private int nextId(){
+		//Keep ids positive, since exiftool only accepts digits after -execute
+		return requestId.incrementAndGet() & Integer.MAX_VALUE;
+	}
+}
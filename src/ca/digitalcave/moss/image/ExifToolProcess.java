@@ -0,0 +1,198 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single long lived exiftool process, started with '-stay_open True -@ -'.
+ * Arguments for each request are written to the process's stdin, one per
+ * line, and the request is terminated with '-execute<id>'.  ExifTool then
+ * writes '{ready<id>}' to stdout once the request is complete; we also ask
+ * it to echo the same marker to stderr (-echo4) so that we know when all of
+ * the error output for the request has arrived.
+ *
+ * Instances are not thread safe; use ExifToolPool to share them.
+ */
+class ExifToolProcess {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	//Sentinel placed on the stderr queue when the process closes stderr
+	private static final String EOF = new String("EOF");
+
+	private final Process process;
+	private final OutputStream stdin;
+	private final InputStream stdout;
+	private final BlockingQueue<String> errors = new LinkedBlockingQueue<String>();
+
+	ExifToolProcess(File exifTool) throws IOException {
+		String[] command = {
+				exifTool.getAbsolutePath(),
+				"-stay_open", "True",
+				"-@", "-",
+				"-common_args", "-charset", "filename=utf8"
+		};
+		process = Runtime.getRuntime().exec(command);
+		stdin = new BufferedOutputStream(process.getOutputStream());
+		stdout = process.getInputStream();
+
+		Thread drainer = new Thread(new Runnable() {
+			public void run() {
+				drainErrors();
+			}
+		}, "exiftool-stderr");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Runs a single request against this process and blocks until exiftool
+	 * reports that it is ready for the next one.
+	 * @param id The request id; used to build the -execute / {ready} markers
+	 * @param args The exiftool arguments, not including the exiftool path
+	 * @return The stdout and stderr output of the request
+	 * @throws IOException If the process dies or the pipes are closed
+	 */
+	ExifToolResult execute(int id, List<String> args) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String arg : args) {
+			if (arg.indexOf('\n') >= 0 || arg.indexOf('\r') >= 0){
+				throw new IOException("Argument '" + arg + "' contains a line break, which cannot be passed to exiftool through an argfile");
+			}
+			sb.append(arg).append('\n');
+		}
+		sb.append("-echo4\n{ready").append(id).append("}\n");
+		sb.append("-execute").append(id).append('\n');
+
+		stdin.write(sb.toString().getBytes("UTF-8"));
+		stdin.flush();
+
+		byte[] output = readUntilReady(id);
+		String error;
+		try {
+			error = errors.take();
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for exiftool to finish request " + id);
+		}
+		if (error == EOF){
+			throw new IOException("ExifTool closed its error stream while processing request " + id);
+		}
+
+		return new ExifToolResult(output, error);
+	}
+
+	boolean isAlive(){
+		return process.isAlive();
+	}
+
+	/**
+	 * Asks exiftool to exit, waiting a short time for it to do so before
+	 * killing it outright.
+	 */
+	void close(){
+		try {
+			stdin.write("-stay_open\nFalse\n".getBytes("UTF-8"));
+			stdin.flush();
+			stdin.close();
+			if (!process.waitFor(5, TimeUnit.SECONDS)){
+				logger.log(Level.WARNING, "ExifTool did not exit after being asked to; destroying it");
+			}
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "Problem encountered while closing exiftool process", ioe);
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+		destroy();
+	}
+
+	/**
+	 * Kills the process without waiting for it to finish the current request.
+	 */
+	void destroy(){
+		process.destroy();
+	}
+
+	/**
+	 * Reads stdout until the '{ready<id>}' line is seen, and returns
+	 * everything before it.  ExifTool does not write anything else
+	 * until it gets the next request, so we can never read past the marker.
+	 */
+	private byte[] readUntilReady(int id) throws IOException {
+		byte[] marker = ("{ready" + id + "}").getBytes("UTF-8");
+		byte[] data = new byte[8192];
+		int length = 0;
+		int ret;
+		while ((ret = stdout.read(data, length, data.length - length)) != -1){
+			length += ret;
+
+			int end = length;
+			if (end > 0 && data[end - 1] == '\n'){
+				end--;
+				if (end > 0 && data[end - 1] == '\r')
+					end--;
+				if (endsWith(data, end, marker)){
+					return Arrays.copyOf(data, end - marker.length);
+				}
+			}
+
+			if (length == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+		}
+
+		throw new IOException("ExifTool exited while processing request " + id);
+	}
+
+	private static boolean endsWith(byte[] data, int end, byte[] suffix){
+		if (end < suffix.length)
+			return false;
+		for (int i = 0; i < suffix.length; i++) {
+			if (data[end - suffix.length + i] != suffix[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs on its own thread for the life of the process, collecting
+	 * stderr lines until the {ready} marker written by -echo4 is seen.
+	 */
+	private void drainErrors(){
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(process.getErrorStream(), "UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			String line;
+			while ((line = br.readLine()) != null){
+				if (line.startsWith("{ready") && line.endsWith("}")){
+					errors.add(sb.toString());
+					sb.setLength(0);
+				}
+				else {
+					sb.append(line).append("\n");
+				}
+			}
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "ExifTool error stream closed", ioe);
+		}
+		errors.add(EOF);
+	}
+}
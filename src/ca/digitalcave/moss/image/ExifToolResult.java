@@ -0,0 +1,27 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * The raw output of a single exiftool request: everything written to
+ * stdout (which may be binary) and everything written to stderr.
+ */
+class ExifToolResult {
+
+	private final byte[] output;
+	private final String errors;
+
+	ExifToolResult(byte[] output, String errors) {
+		this.output = output;
+		this.errors = errors;
+	}
+
+	byte[] getOutput() {
+		return output;
+	}
+
+	String getErrors() {
+		return errors;
+	}
+}
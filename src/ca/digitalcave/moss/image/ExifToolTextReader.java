@@ -0,0 +1,162 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collection;
+
+/**
+ * A streaming reader for the output of 'exiftool -S', which prints one
+ * 'TagName: value' line per tag, preceded by a '======== path' line for
+ * each file when more than one file is read.
+ *
+ * Lines are scanned in place in a character buffer.  Tag names are matched
+ * against the wanted names without creating a String, and the handler is
+ * given the wanted name itself, so the only objects created per line are
+ * the values of wanted tags.  Lines which are not tags (such as the 'image
+ * files read' summary) are ignored.
+ *
+ * This reports to the same Handler as ExifToolJsonReader, so callers can
+ * switch between the two output formats; isWanted() and the binary methods
+ * are never called.
+ */
+class ExifToolTextReader {
+
+	private static final char[] FILE_HEADER = "======== ".toCharArray();
+
+	private final Reader reader;
+	private final String[] wanted;
+	private char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	private int lineStart;
+	private int lineEnd;
+
+	/**
+	 * @param is The output of exiftool
+	 * @param wanted The tag names to report
+	 */
+	ExifToolTextReader(InputStream is, Collection<String> wanted) throws IOException {
+		this.reader = new InputStreamReader(is, "UTF-8");
+		this.wanted = wanted.toArray(new String[wanted.size()]);
+	}
+
+	/**
+	 * Reads the whole stream, passing each file's tags to the handler.
+	 * @param singleFile When only one file is read, exiftool does not print
+	 * a header; this is the path to report it under.  Null otherwise.
+	 */
+	void read(ExifToolJsonReader.Handler handler, String singleFile) throws IOException {
+		boolean started = false;
+		if (singleFile != null){
+			handler.startFile(singleFile);
+			started = true;
+		}
+
+		while (nextLine()){
+			if (isHeader()){
+				if (started)
+					handler.endFile();
+				handler.startFile(trim(lineStart + FILE_HEADER.length, lineEnd));
+				started = true;
+				continue;
+			}
+			if (!started)
+				continue;
+
+			int colon = lineStart;
+			while (colon < lineEnd && buffer[colon] != ':')
+				colon++;
+			if (colon == lineEnd)
+				continue;
+			String name = match(lineStart, colon);
+			if (name != null)
+				handler.value(name, trim(colon + 1, lineEnd));
+		}
+
+		if (started)
+			handler.endFile();
+	}
+
+	private boolean isHeader(){
+		if (lineEnd - lineStart < FILE_HEADER.length)
+			return false;
+		for (int i = 0; i < FILE_HEADER.length; i++){
+			if (buffer[lineStart + i] != FILE_HEADER[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The wanted name equal to buffer[start, end), or null
+	 */
+	private String match(int start, int end){
+		int length = end - start;
+		for (String name : wanted) {
+			if (name.length() != length)
+				continue;
+			int i = 0;
+			while (i < length && buffer[start + i] == name.charAt(i))
+				i++;
+			if (i == length)
+				return name;
+		}
+		return null;
+	}
+
+	private String trim(int start, int end){
+		while (start < end && buffer[start] <= ' ')
+			start++;
+		while (end > start && buffer[end - 1] <= ' ')
+			end--;
+		return new String(buffer, start, end - start);
+	}
+
+	/**
+	 * Finds the next line, setting lineStart and lineEnd (which excludes
+	 * the line terminator).
+	 * @return false at the end of the stream
+	 */
+	private boolean nextLine() throws IOException {
+		int scan = position;
+		while (true){
+			while (scan < limit && buffer[scan] != '\n')
+				scan++;
+			if (scan < limit){
+				lineStart = position;
+				lineEnd = scan;
+				position = scan + 1;
+				return true;
+			}
+
+			//No terminator yet; make room and read more
+			if (position > 0){
+				System.arraycopy(buffer, position, buffer, 0, limit - position);
+				limit -= position;
+				scan -= position;
+				position = 0;
+			}
+			else if (limit == buffer.length){
+				char[] larger = new char[buffer.length * 2];
+				System.arraycopy(buffer, 0, larger, 0, limit);
+				buffer = larger;
+			}
+			int ret = reader.read(buffer, limit, buffer.length - limit);
+			if (ret == -1){
+				if (limit == position)
+					return false;
+				//Last line, without a terminator
+				lineStart = position;
+				lineEnd = limit;
+				position = limit;
+				return true;
+			}
+			limit += ret;
+		}
+	}
+}
@@ -4,18 +4,39 @@
 package ca.digitalcave.moss.image;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -27,17 +48,31 @@ import java.util.logging.Logger;
  * and write tags to files via a normal Java interface.
  * 
  * This class can currently read binary data, but cannot write it.  That
- * functionality may be added in a later release.
+ * functionality may be added in a later release.  Binary data can either
+ * be returned as byte arrays, or streamed to a BinaryTagSink.
+ * 
+ * By default each call starts a new exiftool process.  If you make a lot
+ * of calls, use the pooled constructor instead; this keeps a number of
+ * exiftool processes running in '-stay_open' mode, so that you only pay
+ * the Perl startup cost once per process rather than once per call.  Be
+ * sure to call shutdown() when you are finished with a pooled wrapper.
  * 
  */
 public class ExifToolWrapper {
 
 	private File exifTool;
+	private ExifToolPool pool;
+	private boolean builtInReader = true;
+	private boolean jsonOutput = false;
+	private MetadataCache metadataCache;
+	private int shardSize = 0;
+	private ExecutorService shardExecutor;
 	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
 
-	//When printing the values of multiple files, this is the 
-	// start of the line which identifies the file name.
-	private final String EXIFTOOL_FILE_HEADER = "========";
+	//Above this many files, non pooled calls pass the file names in an argfile
+	private static final int ARGFILE_THRESHOLD = 100;
+	//Printed after the output of each command in a batched write
+	private static final String EDIT_MARKER = "{edit ";
 
 	/**
 	 * Creates a new ExifTool wrapper, pointing to the ExifTool command 
@@ -54,112 +89,222 @@ public class ExifToolWrapper {
 		}
 	}
 
+	/**
+	 * Creates a new ExifTool wrapper which keeps up to poolSize exiftool
+	 * processes running between calls.  All calls on this wrapper are run
+	 * through the pool; up to poolSize calls can run at once, and the rest 
+	 * wait for a free process.  This requires a version of exiftool which
+	 * supports the -stay_open and -echo4 options.
+	 * @param exifTool The exiftool command line utility
+	 * @param poolSize The maximum number of exiftool processes to keep running
+	 * @throws FileNotFoundException
+	 */
+	public ExifToolWrapper(File exifTool, int poolSize) throws FileNotFoundException {
+		this(exifTool);
+		this.pool = new ExifToolPool(this.exifTool, poolSize);
+	}
+
+	/**
+	 * Stops any pooled exiftool processes and shard workers.  Calls made
+	 * after this will fail (and log an error) on pooled wrappers; this has
+	 * no other effect on non-pooled wrappers.
+	 */
+	public void shutdown(){
+		if (pool != null)
+			pool.shutdown();
+		if (shardExecutor != null){
+			shardExecutor.shutdown();
+			shardExecutor = null;
+		}
+	}
+
+	/**
+	 * Enables sharded execution of getTagsFromFiles() and the
+	 * setTagsToFiles() methods: collections of more than shardSize files are
+	 * split into chunks of shardSize, each of which is run by a separate
+	 * exiftool invocation, with up to 'workers' running at once.  Results
+	 * are matched to files by the file name exiftool reports, so the order
+	 * in which shards finish does not matter.  With a pooled wrapper, shards
+	 * also wait for a free pooled process, so there is little point in
+	 * having more workers than processes.
+	 * @param shardSize The maximum number of files per exiftool invocation, or 0 to disable sharding
+	 * @param workers The number of shards to run at once
+	 */
+	public void setSharding(int shardSize, int workers){
+		if (shardExecutor != null)
+			shardExecutor.shutdown();
+		this.shardSize = shardSize;
+		if (shardSize <= 0){
+			this.shardExecutor = null;
+			return;
+		}
+		this.shardExecutor = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "exiftool-shard-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Sets whether getTagsFromFiles() may read common tags (DateTimeOriginal,
+	 * Orientation, ImageWidth, ImageHeight, Make, Model, Rating and Keywords)
+	 * from JPEG and TIFF files itself, rather than starting exiftool.  The
+	 * values returned are the same either way; exiftool is still used for
+	 * any file which cannot be read unambiguously.  Defaults to true.
+	 */
+	public void setBuiltInReader(boolean builtInReader) {
+		this.builtInReader = builtInReader;
+	}
+
+	/**
+	 * Sets whether getTagsFromFiles() asks exiftool for JSON output (-j)
+	 * rather than plain text (-S).  JSON ties each value to its file
+	 * explicitly and copes with any characters in values; it needs a
+	 * version of exiftool which supports -j.  Defaults to false.
+	 */
+	public void setJsonOutput(boolean jsonOutput) {
+		this.jsonOutput = jsonOutput;
+	}
+
+	/**
+	 * Sets the cache used by getTagsFromFiles() and getTagsFromFile().  Only
+	 * files which are not cached (or have changed since) are read; entries
+	 * for files written by the setTagsToFile(s) methods are invalidated.
+	 * @param metadataCache The cache, or null to always read from the files
+	 */
+	public void setMetadataCache(MetadataCache metadataCache) {
+		this.metadataCache = metadataCache;
+	}
+
 	/**
 	 * Returns a byte array of a binary tag with the given name.  Can be
 	 * used to load embedded thumbnails, etc
 	 * @param image File to load from
 	 * @param tagName Name of the tag to load
-	 * @param maxSize The maximum size of the value.  You can either approximate this, or get the exact value from the getTagsFromFile(), and parse the exact number.
-	 * @return
+	 * @param maxSize The maximum size of the value; longer values are truncated (and a warning logged).
+	 * @return The value of the tag, or null if the file does not have it
 	 */
 	public byte[] getBinaryTagFromFile(File image, String tagName, int maxSize){
-		byte[] tagValue = new byte[maxSize];
-
-		List<String> command = new LinkedList<String>();
-		command.add(exifTool.getAbsolutePath());
-		command.add("-b");
-		command.add("-" + tagName);
-		command.add(image.getAbsolutePath());
+		byte[] tagValue = getBinaryTagFromFile(image, tagName);
+		if (tagValue != null && tagValue.length > maxSize){
+			logger.log(Level.WARNING, "Tag " + tagName + " in " + image + " is " + tagValue.length + " bytes; truncating to " + maxSize);
+			tagValue = Arrays.copyOf(tagValue, maxSize);
+		}
+		return tagValue;
+	}
 
-		try{
-			Process p = Runtime.getRuntime().exec(command.toArray(new String[0]));
-			BufferedInputStream bis = new BufferedInputStream(p.getInputStream());
-
-			int offset = 0, ret = 0, bufferSize = 1024;
-			byte[] temp = new byte[bufferSize];
-			while ((ret = bis.read(temp, 0, temp.length)) != -1){
-				for (int i = 0; i < temp.length; i++) {
-					tagValue[offset + i] = temp[i];
-				}
-				offset += ret;
-			}
+	/**
+	 * Returns a byte array of a binary tag with the given name.  Can be
+	 * used to load embedded thumbnails, etc
+	 * @param image File to load from
+	 * @param tagName Name of the tag to load
+	 * @return The value of the tag, or null if the file does not have it
+	 */
+	public byte[] getBinaryTagFromFile(File image, String tagName){
+		return getBinaryTagFromFiles(Collections.singleton(image), tagName).get(image);
+	}
 
+	/**
+	 * Returns the value of a binary tag for each of the given files.  Files
+	 * which do not have the tag are not included in the map.
+	 * @param files Files to load from
+	 * @param tagName Name of the tag to load
+	 * @return A map of file to tag value
+	 */
+	public Map<File, byte[]> getBinaryTagFromFiles(Collection<File> files, String tagName){
+		final Map<File, byte[]> binaryTags = new HashMap<File, byte[]>();
 
-		}
-		catch (IOException ioe){
-			logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
-		}
+		getBinaryTagFromFiles(files, tagName, new BinaryTagSink() {
+			public OutputStream open(File file, String tagName) throws IOException {
+				return new ByteArrayOutputStream();
+			}
+			public void close(File file, String tagName, OutputStream os, long length) throws IOException {
+				binaryTags.put(file, ((ByteArrayOutputStream) os).toByteArray());
+			}
+		});
 
-		return tagValue;
+		return binaryTags;
 	}
 
-	public Map<File, byte[]> getBinaryTagFromFiles(Collection<File> files, String tagName){
-		Map<File, byte[]> binaryTags = new HashMap<File, byte[]>();
+	/**
+	 * Streams the value of a binary tag for each of the given files into the
+	 * sink.  This uses a single exiftool invocation with JSON output, so
+	 * each value is explicitly tied to its file (rather than relying on the
+	 * order of the output), and no size needs to be known in advance.
+	 * @param files Files to load from
+	 * @param tagName Name of the tag to load
+	 * @param sink Receives the value for each file which has the tag
+	 * @return The number of values written to the sink
+	 */
+	public int getBinaryTagFromFiles(Collection<File> files, String tagName, final BinaryTagSink sink){
+		if (files.size() == 0)
+			return 0;
 
-		Set<String> tagNames = new HashSet<String>();
-		tagNames.add(tagName);
-		Map<File, Map<String, String>> sizesRaw = getTagsFromFiles(files, tagNames);
-		Map<File, Integer> tagSizeByFile = new HashMap<File, Integer>();
+		//exiftool reports tags without their group prefix, in its own capitalization
+		final String reportedName = tagName.substring(tagName.lastIndexOf(':') + 1);
+		final Map<String, File> filesByPath = getFilesByPath(files);
 
 		List<String> command = new LinkedList<String>();
-		command.add(exifTool.getAbsolutePath());
+		command.add("-j");
 		command.add("-b");
 		command.add("-" + tagName);
-		for (File file : files) {
-			command.add(file.getAbsolutePath());	
 
-			Map<String, String> sizeSet = sizesRaw.get(file);
-			if (sizeSet != null) {
-				String bufferSizeString = sizeSet.get(tagName);
+		long start = ImageMetrics.start();
+		boolean success = false;
+		final int[] count = new int[1];
+		final long[] bytes = new long[1];
+		try{
+			InputStream is = execute(command, files);
+			try {
+				new ExifToolJsonReader(is).read(new ExifToolJsonReader.Handler() {
+					private File file;
 
-				if (bufferSizeString != null){
-					bufferSizeString = bufferSizeString.replaceAll("\\D", "");
-					if (bufferSizeString != null && bufferSizeString.length() > 0){
-						int bufferSize = Integer.parseInt(bufferSizeString);
-						tagSizeByFile.put(file, bufferSize); 
+					public void startFile(String sourceFile) throws IOException {
+						file = filesByPath.get(sourceFile);
+						if (file == null)
+							logger.log(Level.WARNING, "ExifTool returned unexpected file " + sourceFile);
 					}
-//					else {
-//						Log.error("Nothing left in bufferSizeString after removing non-digits");
-//					}
-				}
-//				else {
-//					Log.error("No bufferSizeString for tagName " + tagName + " in file " + file);
-//				}
+					public boolean isWanted(String name) {
+						return file != null && name.equalsIgnoreCase(reportedName);
+					}
+					public OutputStream startBinary(String name) throws IOException {
+						return sink.open(file, name);
+					}
+					public void endBinary(String name, OutputStream os, long length) throws IOException {
+						sink.close(file, name, os, length);
+						count[0]++;
+						bytes[0] += length;
+					}
+					public void value(String name, String value) throws IOException {
+						//Values which happen to be valid UTF-8 are not base64 encoded
+						byte[] data = value.getBytes("UTF-8");
+						OutputStream os = sink.open(file, name);
+						if (os != null){
+							os.write(data);
+							sink.close(file, name, os, data.length);
+							count[0]++;
+							bytes[0] += data.length;
+						}
+					}
+					public void endFile() {
+						file = null;
+					}
+				});
 			}
-//			else {
-//				Log.error("No sizeSet for file " + file);
-//			}
-		}
-
-		//Find out the largest thumbnail size in bytes
-//		Vector<Integer> sortedTagSizes = new Vector<Integer>(tagSizeByFile.values()); 
-//		Collections.sort(sortedTagSizes);
-//		int largestTag = sortedTagSizes.lastElement();
-//		Log.info("Largest tag is " + largestTag);
-
-		try{
-			Process p = Runtime.getRuntime().exec(command.toArray(new String[0]));
-			BufferedInputStream bis = new BufferedInputStream(p.getInputStream());
-
-			//We assume that a) exiftool returns results for files in 
-			// the same order that we passed them in, and b) that 
-			// the foreach loop iterates through the files in the same
-			// order every time.
-			for (File file : files) {
-				if (tagSizeByFile.get(file) != null){
-					int bufferSize = tagSizeByFile.get(file);
-
-					byte[] binaryTag = readBytes(bis, bufferSize);
-					binaryTags.put(file, binaryTag);
-				}
+			finally {
+				is.close();
 			}
-
+			success = true;
 		}
 		catch (IOException ioe){
 			logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
 		}
+		record(ImageMetrics.READ_BINARY, start, files, bytes[0], success);
 
-		return binaryTags;
+		return count[0];
 	}
 
 	/**
@@ -171,71 +316,163 @@ public class ExifToolWrapper {
 	 * @return A map of tag names to values.  Values can be empty, but should not be null.
 	 */
 	public Map<File, Map<String, String>> getTagsFromFiles(Collection<File> images, Set<String> tagNames){
-		Map<File, Map<String, String>> fileToTagValues = new HashMap<File, Map<String, String>>();
+		final Map<File, Map<String, String>> fileToTagValues = new HashMap<File, Map<String, String>>();
+		getTagsFromFiles(images, tagNames, new TagSink() {
+			public void tags(File file, Map<String, String> tags) {
+				fileToTagValues.put(file, tags);
+			}
+		});
+		return fileToTagValues;
+	}
 
+	/**
+	 * Reads the given tags from each of the files, passing the values for
+	 * each file to the sink as soon as they have been read, rather than
+	 * collecting the values for all files first.  Files are reported under
+	 * the File objects passed in, but not necessarily in the same order:
+	 * cached files and files read without exiftool come first.
+	 * @param images The images to read from
+	 * @param tagNames A set of all the names of tags to read.
+	 * @param sink Receives the values for each file
+	 * @return The number of files passed to the sink
+	 */
+	public int getTagsFromFiles(Collection<File> images, final Set<String> tagNames, final TagSink sink){
 		if (images.size() == 0){
-			logger.log(Level.WARNING, "ExifToolWrapper: No files to read.  Returning empty Map.");
-			return fileToTagValues;
+			logger.log(Level.WARNING, "ExifToolWrapper: No files to read.");
+			return 0;
 		}
 
+		long start = ImageMetrics.start();
+		boolean success = false;
+		final MetadataCache cache = metadataCache;
+		final Map<File, long[]> stamps = new HashMap<File, long[]>();
+		List<File> remaining = new LinkedList<File>();
+		int count = 0;
+		try {
+			for (File image : images) {
+				if (cache != null){
+					Map<String, String> tags = cache.get(image, tagNames);
+					if (tags != null){
+						sink.tags(image, tags);
+						count++;
+						continue;
+					}
+					//Taken before reading, so that a change during the read is caught next time
+					stamps.put(image, new long[]{image.length(), image.lastModified()});
+				}
+				remaining.add(image);
+			}
+
+			if (builtInReader && ExifReader.isSupported(tagNames)){
+				for (Iterator<File> i = remaining.iterator(); i.hasNext(); ) {
+					File image = i.next();
+					Map<String, String> tags = ExifReader.readTags(image, tagNames);
+					if (tags != null){
+						deliver(image, tagNames, tags, cache, stamps, sink);
+						count++;
+						i.remove();
+					}
+				}
+			}
+
+			if (remaining.size() > 0){
+				//Shards may finish in any order, but the sink only sees one file at a time
+				final TagSink serialized = new TagSink() {
+					public synchronized void tags(File file, Map<String, String> tags) throws IOException {
+						sink.tags(file, tags);
+					}
+				};
+				List<Integer> counts = runSharded(remaining, new Shard<Integer>() {
+					public Integer run(Collection<File> files) throws IOException {
+						return readTags(files, tagNames, cache, stamps, serialized);
+					}
+				});
+				for (Integer shardCount : counts) {
+					count += shardCount;
+				}
+			}
+			success = true;
+		}
+		catch (IOException ioe){
+			logger.log(Level.SEVERE, "Problem encountered while reading tags", ioe);
+		}
+		record(ImageMetrics.READ_TAGS, start, images, 0, success);
+
+		return count;
+	}
+
+	/**
+	 * Reads the tags with exiftool, in either -S or -j format.
+	 * @return The number of files passed to the sink
+	 */
+	private int readTags(Collection<File> images, final Set<String> tagNames, final MetadataCache cache, final Map<File, long[]> stamps, final TagSink sink) throws IOException {
 		List<String> command = new LinkedList<String>();
-		command.add(exifTool.getAbsolutePath());
-		command.add("-S");
+		command.add(jsonOutput ? "-j" : "-S");
 		command.add("-n");
 		for (String tagName : tagNames) {
 			command.add("-" + tagName);
 		}
-		for (File image : images) {
-			command.add(image.getAbsolutePath());	
-		}
-
 
-		try{
-			Process p = Runtime.getRuntime().exec(command.toArray(new String[0]));
-			BufferedReader br = new BufferedReader(new InputStreamReader(new BufferedInputStream(p.getInputStream()))); 
-
-			String line;
-			File currentFile = null;
-			String value;
-			
-			if (images.size() == 1){
-				currentFile = images.toArray(new File[1])[0];
-				value = null;
-				fileToTagValues.put(currentFile, new HashMap<String, String>());					
-			}
-			
-			while ((line = br.readLine()) != null){
-//				Log.debug("Read line '" + line + "'");
-				if (line.matches(EXIFTOOL_FILE_HEADER + ".*")){
-					currentFile = new File(line.replaceAll(EXIFTOOL_FILE_HEADER, "").trim());
-					value = null;
-					fileToTagValues.put(currentFile, new HashMap<String, String>());
-				}
-				else if (line.matches("[^:]+:.+")){
-					value = line.replaceFirst("[^:]+:", "").trim();
-				}
-				else {
-					value = null;
-				}
+		final Map<String, File> filesByPath = getFilesByPath(images);
+		//Lets values be stored under the caller's tag name strings, rather than one copy per file
+		final Map<String, String> interned = new HashMap<String, String>();
+		for (String tagName : tagNames) {
+			interned.put(tagName, tagName);
+		}
 
-				String[] split = line.split(":");
-				String tag = split[0].trim();
+		final int[] count = new int[1];
+		ExifToolJsonReader.Handler handler = new ExifToolJsonReader.Handler() {
+			private File file;
+			private Map<String, String> tags;
 
-				if (currentFile != null){
-					if (fileToTagValues.get(currentFile) != null){
-						if (tagNames.contains(tag)){
-							fileToTagValues.get(currentFile).put(tag, value);
-//							Log.debug(tag + " = " + value + " in file " + currentFile.getAbsolutePath());
-						}
-					}
+			public void startFile(String sourceFile) {
+				file = filesByPath.get(sourceFile);
+				if (file == null)
+					logger.log(Level.WARNING, "ExifTool returned unexpected file " + sourceFile);
+				tags = new HashMap<String, String>();
+			}
+			public boolean isWanted(String name) {
+				return file != null && interned.containsKey(name);
+			}
+			public OutputStream startBinary(String name) {
+				return null; //Only with -b
+			}
+			public void endBinary(String name, OutputStream os, long length) {
+			}
+			public void value(String name, String value) {
+				String tagName = interned.get(name);
+				if (file != null && tagName != null)
+					tags.put(tagName, value);
+			}
+			public void endFile() throws IOException {
+				if (file != null){
+					deliver(file, tagNames, tags, cache, stamps, sink);
+					count[0]++;
 				}
+				file = null;
+				tags = null;
 			}
+		};
+
+		InputStream is = execute(command, images);
+		try {
+			if (jsonOutput)
+				new ExifToolJsonReader(is).read(handler);
+			else
+				new ExifToolTextReader(is, tagNames).read(handler, images.size() == 1 ? images.iterator().next().getAbsolutePath() : null);
 		}
-		catch (IOException ioe){
-			logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
+		finally {
+			is.close();
 		}
+		return count[0];
+	}
 
-		return fileToTagValues;
+	private static void deliver(File image, Set<String> tagNames, Map<String, String> tags, MetadataCache cache, Map<File, long[]> stamps, TagSink sink) throws IOException {
+		if (cache != null){
+			long[] stamp = stamps.get(image);
+			cache.put(image, stamp[0], stamp[1], tagNames, tags);
+		}
+		sink.tags(image, tags);
 	}
 
 	/**
@@ -255,44 +492,143 @@ public class ExifToolWrapper {
 	 * Sets the given tags to the file. 
 	 * @param image File to save tags to
 	 * @param tags Map of tags and associated values
-	 * @return All the output of the exiftool command (TODO: boolean value to see if write was successful or not)
+	 * @return All the output of the exiftool command; see setTagsToFiles(Map)
+	 * for whether the write succeeded for each file
 	 */
 	public String setTagsToFiles(Collection<File> images, Map<String, String> tags){
-		//TODO Return boolean value indicating whether write was successful or not. 
-		StringBuffer returnValue = new StringBuffer();
-
+		long start = ImageMetrics.start();
 		List<String> command = new LinkedList<String>();
-		command.add(exifTool.getAbsolutePath());
 		command.add("-overwrite_original_in_place");
 		command.add("-n");
 		for (String tagName : tags.keySet()) {
 			command.add("-" + tagName + "=" + tags.get(tagName));
 		}
-		for (File image : images) {
-			command.add(image.getAbsolutePath());
-		}
 
-		try{
-			Process p = Runtime.getRuntime().exec(command.toArray(new String[1]));
-			BufferedReader br = new BufferedReader(new InputStreamReader(new BufferedInputStream(p.getInputStream()))); 
+		String output = write(command, images);
+		invalidate(images);
+		record(ImageMetrics.WRITE_TAGS, start, images, 0, isUpdated(output));
+		return output;
+	}
 
-			String line;
-			while ((line = br.readLine()) != null){
-				returnValue.append(line).append("\n");
+	public String setTagsToFile(File image, Map<String, String> tags){
+		Set<File> file = new HashSet<File>();
+		file.add(image);
+
+		return setTagsToFiles(file, tags);
+	}
+
+	/**
+	 * Writes a different set of tags to each file, in a single exiftool
+	 * invocation: each file gets its own command, chained with -execute.
+	 * Tag values may not contain line breaks.
+	 * @param edits The tags to write to each file
+	 * @return The result for each file, in the same order as the edits
+	 */
+	public Map<File, WriteResult> setTagsToFiles(Map<File, Map<String, String>> edits){
+		Map<File, WriteResult> results = new LinkedHashMap<File, WriteResult>();
+		if (edits.size() == 0)
+			return results;
+
+		long start = ImageMetrics.start();
+		boolean success = true;
+		List<String> args = new ArrayList<String>();
+		int index = 0;
+		for (Map.Entry<File, Map<String, String>> edit : edits.entrySet()) {
+			if (index > 0)
+				args.add("-execute");
+			args.add("-overwrite_original_in_place");
+			args.add("-n");
+			for (Map.Entry<String, String> tag : edit.getValue().entrySet()) {
+				args.add("-" + tag.getKey() + "=" + tag.getValue());
+			}
+			args.add(edit.getKey().getAbsolutePath());
+			//Marks the end of this command's output, so that it can be told apart from the next
+			args.add("-echo3");
+			args.add(EDIT_MARKER + index + "}");
+			args.add("-echo4");
+			args.add(EDIT_MARKER + index + "}");
+			index++;
+		}
+
+		try {
+			ExifToolResult result = executeForResult(args);
+			List<String> outputs = splitOutput(new String(result.getOutput(), "UTF-8"), edits.size());
+			List<String> errors = splitOutput(result.getErrors(), edits.size());
+			index = 0;
+			for (File file : edits.keySet()) {
+				String output = outputs.get(index);
+				String error = errors.get(index);
+				String message = (output + "\n" + error).trim();
+				//Warnings do not stop a write, so only the summary line counts
+				boolean updated = isUpdated(output);
+				results.put(file, new WriteResult(file, updated, message));
+				success &= updated;
+				index++;
 			}
 		}
 		catch (IOException ioe){
 			logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
+			for (File file : edits.keySet()) {
+				results.put(file, new WriteResult(file, false, ioe.toString()));
+			}
+			success = false;
 		}
 
-		return returnValue.toString();
+		invalidate(edits.keySet());
+		record(ImageMetrics.WRITE_TAGS, start, edits.keySet(), 0, success);
+		return results;
 	}
 
-	public String setTagsToFile(File image, Map<String, String> tags){
-		Set<File> file = new HashSet<File>();
-		file.add(image);
+	/**
+	 * Splits output at the edit markers, into one (trimmed) part per
+	 * command.  Commands without a marker (e.g. if exiftool died) get
+	 * whatever is left, or an empty string.
+	 */
+	private static List<String> splitOutput(String output, int count){
+		List<String> parts = new ArrayList<String>(count);
+		int start = 0;
+		for (int i = 0; i < count; i++){
+			String marker = EDIT_MARKER + i + "}";
+			int end = output.indexOf(marker, start);
+			if (end < 0){
+				parts.add(stripReady(output.substring(start)));
+				start = output.length();
+			}
+			else {
+				parts.add(stripReady(output.substring(start, end)));
+				start = end + marker.length();
+			}
+		}
+		return parts;
+	}
 
-		return setTagsToFiles(file, tags);
+	/**
+	 * Removes the '{ready}' lines printed after each -execute by pooled processes.
+	 */
+	private static String stripReady(String output){
+		StringBuilder sb = new StringBuilder();
+		for (String line : output.split("\n")) {
+			if (line.trim().length() > 0 && !line.startsWith("{ready"))
+				sb.append(line.trim()).append("\n");
+		}
+		return sb.toString().trim();
+	}
+
+	/**
+	 * @return true if exiftool reported that the file was updated or unchanged
+	 */
+	private static boolean isUpdated(String output){
+		for (String line : output.split("\n")) {
+			String[] words = line.trim().split(" ", 2);
+			if (words.length == 2 && (words[1].startsWith("image files updated") || words[1].startsWith("image files unchanged"))){
+				try {
+					if (Integer.parseInt(words[0]) > 0)
+						return true;
+				}
+				catch (NumberFormatException nfe){}
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -303,72 +639,380 @@ public class ExifToolWrapper {
 	 * or you will lose data! 
 	 * @param images Set of images to update
 	 * @param tags Set of tags and files to read each tag from.
-	 * @return
+	 * @return All the output of the exiftool command
 	 */
 	public String setTagsToFilesFromDatafile(Set<File> images, Map<String, File> tags){
-		//TODO Return boolean value indicating whether write was successful or not. 
-		StringBuffer returnValue = new StringBuffer();
-
+		long start = ImageMetrics.start();
 		List<String> command = new LinkedList<String>();
-		command.add(exifTool.getAbsolutePath());
 		command.add("-overwrite_original_in_place");
 		command.add("-n");
 		for (String tagName : tags.keySet()) {
 			command.add("-" + tagName + "<=" + tags.get(tagName).getAbsolutePath());
 		}
-		for (File image : images) {
-			command.add(image.getAbsolutePath());
+
+		String output = write(command, images);
+		invalidate(images);
+		record(ImageMetrics.WRITE_TAGS, start, images, 0, isUpdated(output));
+		return output;
+	}
+	
+	public String setTagsToFileFromDatafile(File image, Map<String, File> tags){
+		Set<File> file = new HashSet<File>();
+		file.add(image);
+
+		return setTagsToFilesFromDatafile(file, tags);
+	}
+
+	/**
+	 * Runs a write command on the files, in shards if enabled.
+	 * @param options The exiftool arguments, not including the files
+	 * @return All the output of exiftool
+	 */
+	private String write(final List<String> options, Collection<File> images){
+		StringBuffer returnValue = new StringBuffer();
+		List<String> outputs = runSharded(images, new Shard<String>() {
+			public String run(Collection<File> files) throws IOException {
+				StringBuilder output = new StringBuilder();
+				BufferedReader br = new BufferedReader(new InputStreamReader(new BufferedInputStream(execute(options, files))));
+				try {
+					String line;
+					while ((line = br.readLine()) != null){
+						output.append(line).append("\n");
+					}
+				}
+				finally {
+					br.close();
+				}
+				return output.toString();
+			}
+		});
+		for (String output : outputs) {
+			returnValue.append(output);
+		}
+		return returnValue.toString();
+	}
+
+	/**
+	 * One exiftool invocation over part of a collection of files.
+	 */
+	private interface Shard<T> {
+		public T run(Collection<File> files) throws IOException;
+	}
+
+	/**
+	 * Runs the shard over the files.  If sharding is enabled and there are
+	 * more than shardSize files, they are split into chunks which are run
+	 * concurrently on the shard executor.  Failed shards are logged and
+	 * left out of the results.
+	 * @return The result of each shard, in the order of the files
+	 */
+	private <T> List<T> runSharded(Collection<File> images, final Shard<T> shard){
+		List<T> results = new ArrayList<T>();
+		ExecutorService executor = shardExecutor;
+		int size = shardSize;
+		if (executor == null || images.size() <= size){
+			try {
+				results.add(shard.run(images));
+			}
+			catch (IOException ioe){
+				logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
+			}
+			return results;
 		}
 
-		try{
-			Process p = Runtime.getRuntime().exec(command.toArray(new String[1]));
-			BufferedReader br = new BufferedReader(
-					new InputStreamReader(new BufferedInputStream(
-							p.getInputStream()))); 
+		//Shards belong to the calling operation, so can be killed along with it
+		final ProcessTracker tracker = ProcessTracker.current();
+		List<File> all = new ArrayList<File>(images);
+		List<Future<T>> futures = new ArrayList<Future<T>>();
+		for (int i = 0; i < all.size(); i += size){
+			final List<File> files = all.subList(i, Math.min(i + size, all.size()));
+			futures.add(executor.submit(new Callable<T>() {
+				public T call() throws Exception {
+					ProcessTracker.setCurrent(tracker);
+					try {
+						return shard.run(files);
+					}
+					finally {
+						ProcessTracker.setCurrent(null);
+					}
+				}
+			}));
+		}
+		for (int i = 0; i < futures.size(); i++){
+			try {
+				results.add(futures.get(i).get());
+			}
+			catch (ExecutionException ee){
+				logger.log(Level.SEVERE, "Problem encountered in exiftool shard " + (i + 1) + " of " + futures.size(), ee.getCause());
+			}
+			catch (InterruptedException ie){
+				logger.log(Level.WARNING, "Interrupted while waiting for exiftool shards", ie);
+				for (Future<T> future : futures) {
+					future.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Records a call on the given files in ImageMetrics, if it is enabled.
+	 */
+	private static void record(String operation, long start, Collection<File> files, long bytesIn, boolean success){
+		if (start != 0)
+			ImageMetrics.record(operation, start, files.isEmpty() ? null : files.iterator().next(), files.size(), -1, -1, bytesIn, 0, success);
+	}
 
-			String line;
-			while ((line = br.readLine()) != null){
-				returnValue.append(line).append("\n");
+	/**
+	 * Wraps exiftool's output so that its run and parse times are recorded,
+	 * if metrics are enabled.
+	 */
+	private InputStream meter(InputStream is, Collection<File> files){
+		if (!ImageMetrics.isEnabled())
+			return is;
+		return new MeteredInputStream(is, pool == null, files.isEmpty() ? null : files.iterator().next(), files.size());
+	}
+
+	/**
+	 * Removes the given files from the metadata cache, if there is one.
+	 */
+	private void invalidate(Collection<File> images){
+		MetadataCache cache = metadataCache;
+		if (cache != null){
+			for (File image : images) {
+				cache.invalidate(image);
 			}
 		}
+	}
+
+	/**
+	 * Runs exiftool with the given arguments followed by the given files.
+	 * Without a pool, large numbers of files are passed in a temporary
+	 * argfile (-@) rather than on the command line, which would otherwise
+	 * overflow the operating system's argument length limit.  (Pooled
+	 * processes read their arguments from stdin, so have no such limit.)
+	 * @param args The exiftool arguments, not including the exiftool path or the files
+	 * @param files The files to run on
+	 * @return The stdout of the exiftool command
+	 * @throws IOException
+	 */
+	private InputStream execute(List<String> args, Collection<File> files) throws IOException {
+		List<String> command = new ArrayList<String>(args.size() + files.size() + 4);
+		command.addAll(args);
+		if (pool != null || files.size() <= ARGFILE_THRESHOLD){
+			for (File file : files) {
+				command.add(file.getAbsolutePath());
+			}
+			return meter(execute(command), files);
+		}
+
+		List<String> paths = new ArrayList<String>(files.size());
+		for (File file : files) {
+			paths.add(file.getAbsolutePath());
+		}
+		final File argFile = writeArgFile(paths);
+		try {
+			command.add("-charset");
+			command.add("filename=utf8");
+			command.add("-@");
+			command.add(argFile.getAbsolutePath());
+
+			//exiftool has read the argfile by the time its output is finished
+			return new FilterInputStream(meter(execute(command), files)) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					}
+					finally {
+						argFile.delete();
+					}
+				}
+			};
+		}
 		catch (IOException ioe){
-			logger.log(Level.SEVERE, "Unable to connect to process's console", ioe);
+			argFile.delete();
+			throw ioe;
 		}
+	}
 
-		return returnValue.toString();
+	/**
+	 * Runs exiftool with the given arguments and waits for it to finish,
+	 * returning both its output and its error output.  Without a pool, the
+	 * arguments are passed in an argfile, so they may include -execute to
+	 * run several commands in one invocation.
+	 * @param args The exiftool arguments, not including the exiftool path
+	 * @return The stdout and stderr of the exiftool command
+	 * @throws IOException
+	 */
+	private ExifToolResult executeForResult(List<String> args) throws IOException {
+		if (pool != null)
+			return pool.execute(args);
+
+		File argFile = writeArgFile(args);
+		try {
+			List<String> command = new ArrayList<String>();
+			command.add(exifTool.getAbsolutePath());
+			command.add("-@");
+			command.add(argFile.getAbsolutePath());
+			command.add("-common_args");
+			command.add("-charset");
+			command.add("filename=utf8");
+			final Process p = spawn(command);
+
+			final StringBuffer errors = new StringBuffer();
+			Thread drainer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						BufferedReader br = new BufferedReader(new InputStreamReader(p.getErrorStream(), "UTF-8"));
+						String line;
+						while ((line = br.readLine()) != null){
+							errors.append(line).append("\n");
+						}
+					}
+					catch (IOException ioe){
+						logger.log(Level.FINE, "ExifTool error stream closed", ioe);
+					}
+				}
+			}, "exiftool-stderr");
+			drainer.setDaemon(true);
+			drainer.start();
+
+			long start = ImageMetrics.start();
+			boolean success = false;
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			InputStream is = p.getInputStream();
+			try {
+				byte[] buffer = new byte[8192];
+				int count;
+				while ((count = is.read(buffer)) != -1){
+					output.write(buffer, 0, count);
+				}
+				success = true;
+			}
+			finally {
+				is.close();
+				ImageMetrics.record(ImageMetrics.EXIFTOOL_RUN, start, null, 0, -1, -1, output.size(), 0, success);
+			}
+			try {
+				drainer.join();
+			}
+			catch (InterruptedException ie){
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for exiftool");
+			}
+			return new ExifToolResult(output.toByteArray(), errors.toString());
+		}
+		finally {
+			argFile.delete();
+		}
 	}
-	
-	public String setTagsToFileFromDatafile(File image, Map<String, File> tags){
-		Set<File> file = new HashSet<File>();
-		file.add(image);
 
-		return setTagsToFilesFromDatafile(file, tags);
+	/**
+	 * Writes the given arguments to a temporary argfile, one per line.
+	 */
+	private static File writeArgFile(Collection<String> args) throws IOException {
+		File argFile = File.createTempFile("exiftool", ".args");
+		try {
+			Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(argFile)), "UTF-8");
+			try {
+				for (String arg : args) {
+					writer.write(arg);
+					writer.write('\n');
+				}
+			}
+			finally {
+				writer.close();
+			}
+			return argFile;
+		}
+		catch (IOException ioe){
+			argFile.delete();
+			throw ioe;
+		}
 	}
 
 	/**
-	 * Reads the specified number of bytes from the buffered input stream, 
-	 * starting at offset.
-	 * @param bis
-	 * @param lenth
-	 * @return
+	 * Runs exiftool with the given arguments, either on a pooled process or
+	 * on a newly started one, and returns its output.  Error output is
+	 * logged rather than returned.
+	 * @param args The exiftool arguments, not including the exiftool path
+	 * @return The stdout of the exiftool command
+	 * @throws IOException
 	 */
-	private byte[] readBytes(BufferedInputStream bis, int length) throws IOException {
-//		int position = 0;
-		byte[] binaryTag = new byte[length];
-//		byte[] temp = new byte[1024];
+	private InputStream execute(List<String> args) throws IOException {
+		if (pool != null){
+			ExifToolResult result = pool.execute(args);
+			if (result.getErrors().length() > 0){
+				logger.log(Level.WARNING, "ExifTool reported errors: " + result.getErrors());
+			}
+			return new ByteArrayInputStream(result.getOutput());
+		}
 
-		for (int i = 0; i < length; i++) {
-			binaryTag[i] = (byte) bis.read();
+		List<String> command = new ArrayList<String>(args.size() + 1);
+		command.add(exifTool.getAbsolutePath());
+		command.addAll(args);
+		final Process p = spawn(command);
+		
+		//Drain stderr so that a chatty exiftool cannot block on a full pipe
+		Thread drainer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					BufferedReader br = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+					String line;
+					while ((line = br.readLine()) != null){
+						logger.log(Level.WARNING, "ExifTool reported error: " + line);
+					}
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "ExifTool error stream closed", ioe);
+				}
+			}
+		}, "exiftool-stderr");
+		drainer.setDaemon(true);
+		drainer.start();
+
+		return p.getInputStream();
+	}
+
+	/**
+	 * Starts exiftool, registering it with the current operation's
+	 * ProcessTracker (if any) so that it can be killed.
+	 * @param command The command line, starting with the exiftool path
+	 */
+	private static Process spawn(List<String> command) throws IOException {
+		long start = ImageMetrics.start();
+		Process p;
+		try {
+			p = Runtime.getRuntime().exec(command.toArray(new String[0]));
+		}
+		catch (IOException ioe){
+			ImageMetrics.record(ImageMetrics.EXIFTOOL_SPAWN, start, null, 0, -1, -1, 0, 0, false);
+			throw ioe;
 		}
-//		ret = bis.read();//temp, offset, temp.length);
-//		if (ret == binaryTag.length){
-//		offset += ret;
-//		}
-//		else {
-//		Log.critical("Did not read complete tag for the file " + file + "; only read " + ret + " bytes.");
-//		}
+		ImageMetrics.record(ImageMetrics.EXIFTOOL_SPAWN, start, null, 0, -1, -1, 0, 0, true);
+
+		ProcessTracker tracker = ProcessTracker.current();
+		if (tracker != null)
+			tracker.add(p);
+		return p;
+	}
 
-		return binaryTag;
+	/**
+	 * Returns a map of the paths which exiftool will report for the given
+	 * files (in its 'SourceFile' output), to the files themselves.
+	 */
+	static Map<String, File> getFilesByPath(Collection<File> files){
+		Map<String, File> filesByPath = new HashMap<String, File>();
+		for (File file : files) {
+			String path = file.getAbsolutePath();
+			filesByPath.put(path, file);
+			//ExifTool uses forward slashes on Windows, too
+			filesByPath.put(path.replace('\\', '/'), file);
+		}
+		return filesByPath;
 	}
 
 //	public String getTagFromFile(File image, String tagName){
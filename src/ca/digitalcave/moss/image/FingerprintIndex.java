@@ -0,0 +1,420 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fingerprints (see ImageFingerprint) of the image files seen so far,
+ * for finding byte for byte and near duplicates of a file before doing any
+ * work on it.  RenditionCache uses it to serve a duplicate's renditions
+ * instead of rendering, MetadataCache to serve a byte for byte copy's tags
+ * instead of starting exiftool, and DirectoryIngest fingerprints each batch
+ * first so that both can.
+ *
+ * Fingerprints are kept per path, along with the file's size and
+ * modification time, and are computed again once the file changes; so
+ * fingerprint() only reads and decodes a file once per version.  Identical
+ * files are found through a map of content hashes.  Near duplicates are
+ * found through a BK-tree on the distance between perceptual hashes: each
+ * node's children are keyed by their distance from it, so by the triangle
+ * inequality a search within d of a target only needs to visit the
+ * children within d of the target's distance from the node, which is a
+ * small part of the tree for small d.  Entries for files which have
+ * changed or been removed are left in the tree, marked as removed, until
+ * they are the majority, when the tree is rebuilt.
+ *
+ * Optionally the index is kept in a store file (a RecordStore): changes are
+ * appended by flush(), and the store is compacted when opened, and whenever
+ * it holds many more superseded records than live ones.
+ */
+public class FingerprintIndex {
+
+	/**
+	 * A distance (out of 128 bits) under which images are near duplicates:
+	 * re-encoded and resized copies, but not different shots of a scene.
+	 */
+	public static final int DEFAULT_DISTANCE = 10;
+
+	private static final int STORE_MAGIC = 0x4d464932; //'MFI2'
+	private static final int HASH_LENGTH = 20;
+
+	private final RecordStore<Entry> store;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	//Content hash (hex) -> entries with that content
+	private final Map<String, List<Entry>> byContent = new HashMap<String, List<Entry>>();
+	private Node root;
+	private int treeSize = 0;
+	private int treeRemoved = 0;
+
+	/**
+	 * Creates an in memory index.
+	 */
+	public FingerprintIndex() {
+		this(null);
+	}
+
+	/**
+	 * Creates an index backed by the given store file, which is created if
+	 * needed and compacted if it already exists.
+	 * @param store The store file, or null for an in memory index
+	 */
+	public FingerprintIndex(File store) {
+		this.store = new RecordStore<Entry>(store, STORE_MAGIC, "fingerprint store", new RecordStore.Codec<Entry>() {
+			public void write(DataOutputStream dos, Entry entry) throws IOException {
+				ImageFingerprint fingerprint = entry.fingerprint;
+				dos.writeLong(entry.size);
+				dos.writeLong(entry.modified);
+				dos.write(fingerprint.getContentHash());
+				dos.writeBoolean(fingerprint.isPerceptual());
+				if (fingerprint.isPerceptual()){
+					dos.writeLong(fingerprint.getDHash());
+					dos.writeLong(fingerprint.getPHash());
+					dos.writeFloat(fingerprint.getAspectRatio());
+					dos.writeInt(fingerprint.getWidth());
+					dos.writeInt(fingerprint.getHeight());
+				}
+			}
+
+			public Entry read(DataInputStream dis, String path) throws IOException {
+				long size = dis.readLong();
+				long modified = dis.readLong();
+				byte[] contentHash = new byte[HASH_LENGTH];
+				dis.readFully(contentHash);
+				ImageFingerprint fingerprint;
+				if (dis.readBoolean())
+					fingerprint = new ImageFingerprint(contentHash, true, dis.readLong(), dis.readLong(), dis.readFloat(), dis.readInt(), dis.readInt());
+				else
+					fingerprint = new ImageFingerprint(contentHash, false, 0, 0, 0, 0, 0);
+				return new Entry(path, size, modified, fingerprint);
+			}
+		});
+		entries.putAll(this.store.read());
+		this.store.compact(entries, null);
+		for (Entry entry : entries.values()) {
+			addContent(entry);
+		}
+		rebuild();
+	}
+
+	/**
+	 * Returns the fingerprint of the file as it is now, computing and
+	 * indexing it if the file is new or has changed.
+	 * @return The fingerprint, or null if the file could not be read
+	 */
+	public ImageFingerprint fingerprint(File file){
+		String path = file.getAbsolutePath();
+		//Taken before reading, so that a change during the read is caught next time
+		long size = file.length();
+		long modified = file.lastModified();
+		synchronized (this) {
+			Entry entry = entries.get(path);
+			if (entry != null && entry.size == size && entry.modified == modified)
+				return entry.fingerprint;
+		}
+
+		ImageFingerprint fingerprint = ImageFingerprint.compute(file);
+		if (fingerprint == null)
+			return null;
+		put(new Entry(path, size, modified, fingerprint));
+		return fingerprint;
+	}
+
+	/**
+	 * Returns the fingerprint of the file if it has already been computed
+	 * for the file as it is now; never reads the file.
+	 */
+	public synchronized ImageFingerprint getFingerprint(File file){
+		Entry entry = entries.get(file.getAbsolutePath());
+		if (entry == null || !entry.isCurrent())
+			return null;
+		return entry.fingerprint;
+	}
+
+	/**
+	 * Returns the other files which are byte for byte copies of the given
+	 * one.  Only fingerprints already computed are used.
+	 */
+	public synchronized List<File> findIdentical(File file){
+		List<File> result = new ArrayList<File>();
+		ImageFingerprint fingerprint = getFingerprint(file);
+		if (fingerprint == null)
+			return result;
+		String path = file.getAbsolutePath();
+		for (Entry entry : byContent.get(fingerprint.getContentKey())) {
+			if (!entry.path.equals(path) && entry.isCurrent())
+				result.add(new File(entry.path));
+		}
+		return result;
+	}
+
+	/**
+	 * Finds the files which are byte for byte copies or near duplicates of
+	 * an image, nearest first (copies have distance 0).  Near duplicates
+	 * must have the same aspect ratio.  Files which have changed since they
+	 * were fingerprinted are left out.
+	 * @param file The image, which is left out of the results
+	 * @param fingerprint Its fingerprint
+	 * @param maxDistance The largest distance between perceptual hashes to
+	 * include, or -1 for byte for byte copies only
+	 */
+	public synchronized List<Match> findDuplicates(File file, ImageFingerprint fingerprint, int maxDistance){
+		String path = file.getAbsolutePath();
+		List<Match> matches = new ArrayList<Match>();
+		List<Entry> identical = byContent.get(fingerprint.getContentKey());
+		if (identical != null){
+			for (Entry entry : identical) {
+				if (!entry.path.equals(path) && entry.isCurrent())
+					matches.add(new Match(new File(entry.path), entry.fingerprint, 0));
+			}
+		}
+		if (maxDistance < 0 || !fingerprint.isPerceptual() || root == null)
+			return matches;
+
+		//Search the BK-tree
+		List<Match> near = new ArrayList<Match>();
+		Deque<Node> nodes = new ArrayDeque<Node>();
+		nodes.push(root);
+		while (!nodes.isEmpty()){
+			Node node = nodes.pop();
+			int distance = node.entry.fingerprint.getDistance(fingerprint);
+			if (distance <= maxDistance && !node.entry.removed && !node.entry.path.equals(path)
+					&& !node.entry.fingerprint.isIdentical(fingerprint) && node.entry.fingerprint.isSameShape(fingerprint)
+					&& node.entry.isCurrent()){
+				near.add(new Match(new File(node.entry.path), node.entry.fingerprint, distance));
+			}
+			for (int i = 0; i < node.count; i++){
+				if (Math.abs(node.distances[i] - distance) <= maxDistance)
+					nodes.push(node.children[i]);
+			}
+		}
+		Collections.sort(near, new Comparator<Match>() {
+			public int compare(Match m1, Match m2) {
+				return m1.distance - m2.distance;
+			}
+		});
+		matches.addAll(near);
+		return matches;
+	}
+
+	/**
+	 * Forgets the file.
+	 */
+	public synchronized void remove(File file){
+		String path = file.getAbsolutePath();
+		Entry entry = entries.remove(path);
+		if (entry == null)
+			return;
+		unlink(entry);
+		store.remove(path);
+	}
+
+	/**
+	 * @return The number of files indexed
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Writes the changes since the last flush to the store.
+	 */
+	public synchronized void flush(){
+		store.flush();
+		if (store.isWasteful(entries.size()))
+			store.compact(entries, null);
+	}
+
+	/**
+	 * Writes any changes, and closes the store.
+	 */
+	public synchronized void close(){
+		store.close();
+	}
+
+	private synchronized void put(Entry entry){
+		//unlink() may rebuild the tree from the entries, so the new entry is
+		// only added after it; otherwise it would be inserted twice
+		Entry previous = entries.remove(entry.path);
+		if (previous != null)
+			unlink(previous);
+		entries.put(entry.path, entry);
+		addContent(entry);
+		insert(entry);
+		store.put(entry.path, entry);
+	}
+
+	/**
+	 * Removes the entry from the content map, and marks it removed in the tree.
+	 */
+	private void unlink(Entry entry){
+		removeContent(entry);
+		if (entry.fingerprint.isPerceptual()){
+			entry.removed = true;
+			treeRemoved++;
+			if (treeRemoved > treeSize / 2)
+				rebuild();
+		}
+	}
+
+	private void insert(Entry entry){
+		if (!entry.fingerprint.isPerceptual())
+			return;
+		treeSize++;
+		if (root == null){
+			root = new Node(entry);
+			return;
+		}
+		Node node = root;
+		while (true){
+			int distance = node.entry.fingerprint.getDistance(entry.fingerprint);
+			Node child = node.getChild(distance);
+			if (child == null){
+				node.addChild(distance, new Node(entry));
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Builds the tree again from the live entries.
+	 */
+	private void rebuild(){
+		root = null;
+		treeSize = 0;
+		treeRemoved = 0;
+		for (Entry entry : entries.values()) {
+			insert(entry);
+		}
+	}
+
+	private void addContent(Entry entry){
+		List<Entry> identical = byContent.get(entry.fingerprint.getContentKey());
+		if (identical == null){
+			identical = new ArrayList<Entry>(1);
+			byContent.put(entry.fingerprint.getContentKey(), identical);
+		}
+		identical.add(entry);
+	}
+
+	private void removeContent(Entry entry){
+		List<Entry> identical = byContent.get(entry.fingerprint.getContentKey());
+		if (identical != null){
+			identical.remove(entry);
+			if (identical.isEmpty())
+				byContent.remove(entry.fingerprint.getContentKey());
+		}
+	}
+
+	/**
+	 * A duplicate found by findDuplicates().
+	 */
+	public static class Match {
+		private final File file;
+		private final ImageFingerprint fingerprint;
+		private final int distance;
+
+		Match(File file, ImageFingerprint fingerprint, int distance) {
+			this.file = file;
+			this.fingerprint = fingerprint;
+			this.distance = distance;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public ImageFingerprint getFingerprint() {
+			return fingerprint;
+		}
+
+		/**
+		 * @return The distance between the perceptual hashes; 0 for a byte
+		 * for byte copy
+		 */
+		public int getDistance() {
+			return distance;
+		}
+
+		@Override
+		public String toString() {
+			return file + " (" + distance + ")";
+		}
+	}
+
+	private static class Entry {
+		private final String path;
+		private final long size;
+		private final long modified;
+		private final ImageFingerprint fingerprint;
+		//Superseded, but still in the tree
+		private boolean removed = false;
+
+		Entry(String path, long size, long modified, ImageFingerprint fingerprint) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.fingerprint = fingerprint;
+		}
+
+		/**
+		 * Whether the file is still as it was when fingerprinted.
+		 */
+		boolean isCurrent(){
+			File file = new File(path);
+			return file.length() == size && file.lastModified() == modified;
+		}
+	}
+
+	/**
+	 * A BK-tree node; children are kept in small parallel arrays, as most
+	 * nodes have few.
+	 */
+	private static class Node {
+		private final Entry entry;
+		private int[] distances;
+		private Node[] children;
+		private int count = 0;
+
+		Node(Entry entry) {
+			this.entry = entry;
+		}
+
+		Node getChild(int distance){
+			for (int i = 0; i < count; i++){
+				if (distances[i] == distance)
+					return children[i];
+			}
+			return null;
+		}
+
+		void addChild(int distance, Node child){
+			if (children == null){
+				distances = new int[2];
+				children = new Node[2];
+			}
+			else if (count == children.length){
+				distances = Arrays.copyOf(distances, count * 2);
+				children = Arrays.copyOf(children, count * 2);
+			}
+			distances[count] = distance;
+			children[count] = child;
+			count++;
+		}
+	}
+}
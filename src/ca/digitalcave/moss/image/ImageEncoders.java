@@ -0,0 +1,129 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Pools of ImageWriters, one pool per format, so that encoding an image
+ * does not look the writer up in the ImageIO registry, create it and
+ * work out its parameters every time.
+ *
+ * A writer is only ever used by one thread at a time: it is taken from
+ * the pool, used, reset, and put back.  Writers which fail are disposed
+ * of rather than returned, in case they are left in a bad state, and
+ * writers beyond the number which are idle at once are disposed of too.
+ *
+ * The quality is only applied to formats with lossy compression (JPEG,
+ * etc); formats which cannot be compressed (BMP, in some modes) or whose
+ * compression is lossless (PNG, GIF) are written with their defaults.
+ */
+class ImageEncoders {
+
+	private static final int MAX_IDLE = Runtime.getRuntime().availableProcessors() * 2;
+
+	private static final ConcurrentMap<String, BlockingQueue<Encoder>> pools = new ConcurrentHashMap<String, BlockingQueue<Encoder>>();
+
+	/**
+	 * Encodes the image to the output, which is flushed but not closed.
+	 * @param format A file suffix (jpg, png, ...) or format name (jpeg, ...)
+	 * @throws IOException If there is no writer for the format, or writing fails
+	 */
+	static void write(BufferedImage image, ImageOutputStream output, float quality, String format) throws IOException {
+		Encoder encoder = borrow(format);
+		if (encoder == null)
+			throw new IOException("No image writer available for format " + format);
+
+		boolean success = false;
+		try {
+			encoder.setQuality(quality);
+			encoder.writer.setOutput(output);
+			encoder.writer.write(null, new IIOImage(image, null, null), encoder.param);
+			output.flush();
+			success = true;
+		}
+		finally {
+			//A writer which failed may be left in a bad state
+			if (success)
+				release(format, encoder);
+			else
+				encoder.writer.dispose();
+		}
+	}
+
+	private static Encoder borrow(String format){
+		Encoder encoder = getPool(format).poll();
+		if (encoder != null)
+			return encoder;
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(format);
+		if (!writers.hasNext())
+			writers = ImageIO.getImageWritersByFormatName(format);
+		if (!writers.hasNext())
+			return null;
+		return new Encoder(writers.next());
+	}
+
+	private static void release(String format, Encoder encoder){
+		encoder.writer.reset();
+		if (!getPool(format).offer(encoder))
+			encoder.writer.dispose();
+	}
+
+	private static BlockingQueue<Encoder> getPool(String format){
+		String key = format.toLowerCase(Locale.ENGLISH);
+		BlockingQueue<Encoder> pool = pools.get(key);
+		if (pool == null){
+			pool = new ArrayBlockingQueue<Encoder>(MAX_IDLE);
+			BlockingQueue<Encoder> existing = pools.putIfAbsent(key, pool);
+			if (existing != null)
+				pool = existing;
+		}
+		return pool;
+	}
+
+	/**
+	 * A writer, and its parameters.
+	 */
+	private static class Encoder {
+		private final ImageWriter writer;
+		private final ImageWriteParam param;
+		private final boolean lossy;
+
+		Encoder(ImageWriter writer) {
+			this.writer = writer;
+			this.param = writer.getDefaultWriteParam();
+
+			boolean lossy = false;
+			if (param.canWriteCompressed()){
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				String[] types = param.getCompressionTypes();
+				if (param.getCompressionType() == null && types != null && types.length > 0)
+					param.setCompressionType(types[0]);
+				lossy = !param.isCompressionLossless();
+				if (!lossy)
+					param.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+			}
+			this.lossy = lossy;
+		}
+
+		void setQuality(float quality){
+			if (lossy)
+				param.setCompressionQuality(quality);
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Identifies an image file both exactly and by what it looks like.  The
+ * content hash is the SHA-1 of the file's bytes, so files with the same
+ * hash are byte for byte copies.  The perceptual hashes are computed from
+ * a tiny copy of the image, decoded subsampled and scaled with the same
+ * path as thumbnails (see ImageFunctions.getBufferedImage(File, int)), so
+ * they change little when an image is re-encoded, resized or has its
+ * metadata edited:
+ *
+ * <ul>
+ * <li>dHash: the image in gray at 9x8, one bit per pair of horizontally
+ * neighbouring pixels, set if the left one is brighter</li>
+ * <li>pHash: the image in gray at 32x32, one bit for each of the lowest
+ * 8x8 frequencies of its DCT, set if the coefficient is above the median</li>
+ * </ul>
+ *
+ * The distance between two fingerprints is the number of bits in which
+ * their hashes differ (0 - 128); re-encoded copies are usually within a few
+ * bits of each other, and different images are usually 40 or more apart.
+ * The pixel size of the source is kept too, since a near duplicate may be
+ * a much smaller copy.  Files which cannot be decoded only have a content
+ * hash.
+ */
+public class ImageFingerprint {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	//The subsampled decode is at least twice this on its longest side
+	private static final int DECODE_SIZE = 64;
+	private static final int DCT_SIZE = 32;
+	private static final int PHASH_SIZE = 8;
+	//cos((2x + 1) * u * pi / 64) for the lowest frequencies u
+	private static final double[][] DCT_COSINES = new double[PHASH_SIZE][DCT_SIZE];
+	static {
+		for (int u = 0; u < PHASH_SIZE; u++){
+			for (int x = 0; x < DCT_SIZE; x++)
+				DCT_COSINES[u][x] = Math.cos((2 * x + 1) * u * Math.PI / (2 * DCT_SIZE));
+		}
+	}
+
+	private final byte[] contentHash;
+	private final boolean perceptual;
+	private final long dHash;
+	private final long pHash;
+	private final float aspectRatio;
+	private final int width;
+	private final int height;
+
+	ImageFingerprint(byte[] contentHash, boolean perceptual, long dHash, long pHash, float aspectRatio, int width, int height) {
+		this.contentHash = contentHash;
+		this.perceptual = perceptual;
+		this.dHash = dHash;
+		this.pHash = pHash;
+		this.aspectRatio = aspectRatio;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Fingerprints the file.  The content hash reads the whole file; the
+	 * perceptual hashes need a subsampled decode, which goes through the
+	 * DecodeGovernor like any other.
+	 * @return The fingerprint, or null if the file could not be read
+	 */
+	public static ImageFingerprint compute(File file){
+		byte[] contentHash = getContentHash(file);
+		if (contentHash == null)
+			return null;
+
+		DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+		int[] size = new int[2];
+		BufferedImage image;
+		try {
+			image = ImageFunctions.readSubsampled(file, DECODE_SIZE, permit, size);
+		}
+		finally {
+			permit.close();
+		}
+		if (image == null)
+			return new ImageFingerprint(contentHash, false, 0, 0, 0, 0, 0);
+
+		float aspectRatio = (float) image.getWidth() / image.getHeight();
+		int[][] small = getGray(Resampler.scale(image, 9, 8, ResampleQuality.BILINEAR, BufferedImage.TYPE_INT_RGB));
+		int[][] large = getGray(Resampler.scale(image, DCT_SIZE, DCT_SIZE, ResampleQuality.BILINEAR, BufferedImage.TYPE_INT_RGB));
+		return new ImageFingerprint(contentHash, true, getDHash(small), getPHash(large), aspectRatio, size[0], size[1]);
+	}
+
+	/**
+	 * @return The SHA-1 of the file's bytes, or null if it could not be read
+	 */
+	static byte[] getContentHash(File file){
+		FileInputStream fis = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			fis = new FileInputStream(file);
+			FileChannel channel = fis.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			while (channel.read(buffer) >= 0){
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			return digest.digest();
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while hashing " + file, ioe);
+			return null;
+		}
+		catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		}
+		finally {
+			if (fis != null){
+				try {
+					fis.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing " + file, ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The luma of each pixel, by row
+	 */
+	private static int[][] getGray(BufferedImage image){
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+		int[][] gray = new int[height][width];
+		for (int y = 0; y < height; y++){
+			for (int x = 0; x < width; x++){
+				int p = rgb[y * width + x];
+				gray[y][x] = (((p >> 16) & 0xff) * 299 + ((p >> 8) & 0xff) * 587 + (p & 0xff) * 114) / 1000;
+			}
+		}
+		return gray;
+	}
+
+	private static long getDHash(int[][] gray){
+		long hash = 0;
+		for (int y = 0; y < 8; y++){
+			for (int x = 0; x < 8; x++){
+				hash <<= 1;
+				if (gray[y][x] > gray[y][x + 1])
+					hash |= 1;
+			}
+		}
+		return hash;
+	}
+
+	private static long getPHash(int[][] gray){
+		//The DCT is separable: rows first, then the columns of the result
+		double[][] rows = new double[DCT_SIZE][PHASH_SIZE];
+		for (int y = 0; y < DCT_SIZE; y++){
+			for (int u = 0; u < PHASH_SIZE; u++){
+				double sum = 0;
+				for (int x = 0; x < DCT_SIZE; x++)
+					sum += gray[y][x] * DCT_COSINES[u][x];
+				rows[y][u] = sum;
+			}
+		}
+		double[] coefficients = new double[PHASH_SIZE * PHASH_SIZE];
+		for (int v = 0; v < PHASH_SIZE; v++){
+			for (int u = 0; u < PHASH_SIZE; u++){
+				double sum = 0;
+				for (int y = 0; y < DCT_SIZE; y++)
+					sum += rows[y][u] * DCT_COSINES[v][y];
+				coefficients[v * PHASH_SIZE + u] = sum;
+			}
+		}
+
+		double[] sorted = coefficients.clone();
+		Arrays.sort(sorted);
+		double median = (sorted[sorted.length / 2 - 1] + sorted[sorted.length / 2]) / 2;
+		long hash = 0;
+		for (double coefficient : coefficients) {
+			hash <<= 1;
+			if (coefficient > median)
+				hash |= 1;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return The SHA-1 of the file's bytes
+	 */
+	public byte[] getContentHash() {
+		return contentHash.clone();
+	}
+
+	/**
+	 * @return Whether the image could be decoded, so that the perceptual
+	 * hashes are set
+	 */
+	public boolean isPerceptual() {
+		return perceptual;
+	}
+
+	public long getDHash() {
+		return dHash;
+	}
+
+	public long getPHash() {
+		return pHash;
+	}
+
+	/**
+	 * @return The width of the image divided by its height
+	 */
+	public float getAspectRatio() {
+		return aspectRatio;
+	}
+
+	/**
+	 * @return The width of the source image in pixels; 0 if it could not
+	 * be decoded
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return The height of the source image in pixels; 0 if it could not
+	 * be decoded
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The longer of the width and height
+	 */
+	public int getLongestSide() {
+		return Math.max(width, height);
+	}
+
+	/**
+	 * @return Whether the files have the same bytes
+	 */
+	public boolean isIdentical(ImageFingerprint other){
+		return Arrays.equals(contentHash, other.contentHash);
+	}
+
+	/**
+	 * @return The number of bits in which the perceptual hashes differ, or
+	 * Integer.MAX_VALUE if either image could not be decoded
+	 */
+	public int getDistance(ImageFingerprint other){
+		if (!perceptual || !other.perceptual)
+			return Integer.MAX_VALUE;
+		return Long.bitCount(dHash ^ other.dHash) + Long.bitCount(pHash ^ other.pHash);
+	}
+
+	/**
+	 * @return Whether the images have the same aspect ratio, to within 2%;
+	 * a near duplicate with another shape has been cropped, so its
+	 * renditions would be different sizes
+	 */
+	public boolean isSameShape(ImageFingerprint other){
+		return Math.abs(aspectRatio - other.aspectRatio) <= 0.02f * Math.max(aspectRatio, other.aspectRatio);
+	}
+
+	String getContentKey(){
+		StringBuilder sb = new StringBuilder(contentHash.length * 2);
+		for (byte b : contentHash)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getContentKey() + (perceptual ? String.format(" d=%016x p=%016x %dx%d", dHash, pHash, width, height) : "");
+	}
+}
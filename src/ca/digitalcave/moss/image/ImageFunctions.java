@@ -5,20 +5,27 @@ package ca.digitalcave.moss.image;
 
 import java.awt.Graphics;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonReadableChannelException;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
 import javax.imageio.stream.MemoryCacheImageOutputStream;
 
@@ -27,22 +34,43 @@ public class ImageFunctions {
 	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
 	
 	/**
-	 * Scales the image.  Is relatively slow for large images, but should 
-	 * be fine for smaller ones.
+	 * Scales the image so that the longest side is maxSize pixels, using
+	 * the default (bicubic) quality.  The result is always TYPE_INT_RGB.
 	 * @param img
 	 * @param maxSize
 	 * @return
 	 */
 	public static BufferedImage scaleImage(BufferedImage img, int maxSize){
+		return scaleImage(img, maxSize, ResampleQuality.BICUBIC);
+	}
+	
+	/**
+	 * Scales the image so that the longest side is maxSize pixels, using 
+	 * the given filter.  The result is always TYPE_INT_RGB.
+	 * @param img
+	 * @param maxSize
+	 * @param quality
+	 * @return
+	 */
+	public static BufferedImage scaleImage(BufferedImage img, int maxSize, ResampleQuality quality){
+		return scaleImage(img, maxSize, quality, null);
+	}
+	
+	/**
+	 * Scales the image so that the longest side is maxSize pixels, using 
+	 * the given filter.  If pool is not null, large images are scaled in 
+	 * parallel bands on that pool; see Resampler.scale().  The result is 
+	 * always TYPE_INT_RGB.
+	 * @param img
+	 * @param maxSize
+	 * @param quality
+	 * @param pool
+	 * @return
+	 */
+	public static BufferedImage scaleImage(BufferedImage img, int maxSize, ResampleQuality quality, ForkJoinPool pool){
 		if (img == null)
 			return null;
 
-		//We create a new image of type RGB to significantly speed up scale operations on larger images  
-		BufferedImage tempImg = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
-		Graphics g = tempImg.getGraphics();
-		g.drawImage(img, 0, 0, null);
-		img = tempImg;
-		
 		int width = img.getWidth();
 		int height = img.getHeight();
 		if (width > height){
@@ -54,7 +82,7 @@ public class ImageFunctions {
 			width = -1;
 		}
 
-		return getBufferedImage(img.getScaledInstance(width, height, Image.SCALE_SMOOTH));
+		return scaleImage(img, width, height, quality, pool);
 	}
 	
 	/**
@@ -80,25 +108,78 @@ public class ImageFunctions {
 //	}
 	
 	/**
-	 * Scales the image.  Is relatively slow for larger ones, but
-	 * should be fine for smaller ones.
+	 * Scales the image to the given size, using the default (bilinear) 
+	 * quality.  As with Image.getScaledInstance(), if one of width or 
+	 * height is negative it is calculated from the other so as to keep
+	 * the aspect ratio.  The result is always TYPE_INT_RGB.
 	 * @param img
 	 * @param width
 	 * @param height
 	 * @return
 	 */
 	public static BufferedImage scaleImage(BufferedImage img, int width, int height){
-		return getBufferedImage(img.getScaledInstance(width, height, Image.SCALE_FAST));
+		return scaleImage(img, width, height, ResampleQuality.BILINEAR);
+	}
+	
+	/**
+	 * Scales the image to the given size, using the given filter.  If one
+	 * of width or height is negative it is calculated from the other so 
+	 * as to keep the aspect ratio.  The result is always TYPE_INT_RGB.
+	 * @param img
+	 * @param width
+	 * @param height
+	 * @param quality
+	 * @return
+	 */
+	public static BufferedImage scaleImage(BufferedImage img, int width, int height, ResampleQuality quality){
+		return scaleImage(img, width, height, quality, null);
+	}
+	
+	/**
+	 * Scales the image to the given size, using the given filter.  If pool
+	 * is not null, large images are scaled in parallel bands on that pool;
+	 * see Resampler.scale().  The result is always TYPE_INT_RGB.
+	 * @param img
+	 * @param width
+	 * @param height
+	 * @param quality
+	 * @param pool
+	 * @return
+	 */
+	public static BufferedImage scaleImage(BufferedImage img, int width, int height, ResampleQuality quality, ForkJoinPool pool){
+		if (img == null)
+			return null;
+
+		//Same rounding as ReplicateScaleFilter, so that sizes match what getScaledInstance() used to produce
+		if (width < 0 && height < 0){
+			width = img.getWidth();
+			height = img.getHeight();
+		}
+		else if (width < 0){
+			width = Math.max(1, img.getWidth() * height / img.getHeight());
+		}
+		else if (height < 0){
+			height = Math.max(1, img.getHeight() * width / img.getWidth());
+		}
+
+		long start = ImageMetrics.start();
+		BufferedImage scaled = Resampler.scale(img, width, height, quality, BufferedImage.TYPE_INT_RGB, pool);
+		ImageMetrics.record(ImageMetrics.RESAMPLE, start, null, scaled, 0, 0);
+		return scaled;
 	}
 	
 	/**
 	 * Converts from Image to BufferedImage.  To go the other direction,
 	 * you can just cast BufferedImage as Image.
 	 * @param img The Image to convert to BufferedImage
-	 * @return A BufferedImage representation of the Image
+	 * @return A BufferedImage representation of the Image, always TYPE_INT_RGB
 	 */
 	public static BufferedImage getBufferedImage(Image img){
 		BufferedImage bi = new BufferedImage(img.getWidth(null),img.getHeight(null),BufferedImage.TYPE_INT_RGB);
+		if (img instanceof BufferedImage){
+			Resampler.convert((BufferedImage) img, bi, null);
+			return bi;
+		}
 	    Graphics bg = bi.getGraphics();
 	    bg.drawImage(img, 0, 0, null);
 	    bg.dispose();
@@ -106,29 +187,337 @@ public class ImageFunctions {
 	}
 	
 	/**
-	 * Rotates the given BufferedImage the specified number of degrees.
+	 * Rotates the given BufferedImage the specified number of degrees 
+	 * clockwise.  Multiples of 90 degrees are exact, and are done by 
+	 * Rotator without any resampling; other angles are resampled (nearest
+	 * neighbour) into an image just large enough to hold the result.
 	 * @param img The BufferedImage to rotate
 	 * @param degrees The number of degrees to rotate
 	 * @return A rotated copy of the BufferedImage 
 	 */
 	public static BufferedImage rotate(BufferedImage img, int degrees){
+		long start = ImageMetrics.start();
+		if (degrees % 90 == 0){
+			BufferedImage rotated = Rotator.rotate(img, degrees);
+			//Rotator returns the image itself for multiples of 360, but callers are promised a copy
+			if (rotated == img)
+				rotated = new BufferedImage(img.getColorModel(), img.copyData(null), img.isAlphaPremultiplied(), null);
+			ImageMetrics.record(ImageMetrics.ROTATE, start, null, rotated, 0, 0);
+			return rotated;
+		}
+
+		double radians = Math.toRadians(degrees);
+		double sin = Math.abs(Math.sin(radians));
+		double cos = Math.abs(Math.cos(radians));
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int newWidth = (int) Math.ceil(width * cos + height * sin);
+		int newHeight = (int) Math.ceil(width * sin + height * cos);
+
+		//Rotate about the centre, then move the centre to the middle of the (larger) result
 		AffineTransform tx = new AffineTransform();
-//		tx.setToTranslation(tx, ty)
-		tx.rotate(Math.toRadians(degrees), img.getHeight() / 2.0, img.getWidth() / 2.0);
-//		AffineTransform tx = AffineTransform.getRotateInstance(Math.toRadians(degrees));
+		tx.translate(newWidth / 2.0, newHeight / 2.0);
+		tx.rotate(radians);
+		tx.translate(-width / 2.0, -height / 2.0);
 		AffineTransformOp op = new AffineTransformOp(tx, AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
-		img = op.filter(img, null);
-		return img;
+		BufferedImage result = new BufferedImage(img.getColorModel(), img.getRaster().createCompatibleWritableRaster(newWidth, newHeight), img.isAlphaPremultiplied(), null);
+		result = op.filter(img, result);
+		ImageMetrics.record(ImageMetrics.ROTATE, start, null, result, 0, 0);
+		return result;
 	}
 	
+	/**
+	 * Transforms an image as decoded from a file so that it displays the 
+	 * right way up, given the file's EXIF Orientation tag (1 - 8).  See
+	 * Rotator.applyExifOrientation().
+	 * @param img The image as decoded
+	 * @param orientation The value of the Orientation tag (as a number, i.e. exiftool -n)
+	 * @return The oriented image; the image itself for orientation 1 or any unknown value
+	 */
+	public static BufferedImage applyExifOrientation(BufferedImage img, int orientation){
+		if (img == null)
+			return null;
+		return Rotator.applyExifOrientation(img, orientation);
+	}
+	
+	/**
+	 * Reads the full image from the given file.  If the DecodeGovernor is
+	 * on, the decode waits for its memory to be reserved, but the
+	 * reservation ends when the image is returned; to cover scaling the
+	 * result too, use getBufferedImage(File, int, DecodeGovernor.Permit).
+	 * @param file
+	 * @return The image, or null if it could not be read
+	 */
 	public static BufferedImage getBufferedImage(File file){
+		if (DecodeGovernor.isEnabled()){
+			//Reserve memory for the decode; the caller owns the image after
+			DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+			try {
+				return read(file, 0, false, permit, null);
+			}
+			finally {
+				permit.close();
+			}
+		}
+		long start = ImageMetrics.start();
+		BufferedImage image = null;
+		try {
+			image = ImageIO.read(file);
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while reading image from file", ioe);
+		}
+		if (start != 0)
+			ImageMetrics.record(ImageMetrics.DECODE, start, file, image, file.length(), 0);
+		return image;
+	}
+	
+	/**
+	 * Reads part of the image from the given file, without decoding the 
+	 * rest; see RegionDecoder.  To read many regions of the same file, use
+	 * a RegionDecoder directly, so that the file is only opened once.
+	 * @param file
+	 * @param region The region to read, in full resolution pixels
+	 * @param subsampling 1 to read every pixel, or n to read every n'th pixel of every n'th row
+	 * @return The region, or null if it could not be read
+	 */
+	public static BufferedImage getBufferedImage(File file, Rectangle region, int subsampling){
+		RegionDecoder decoder = null;
 		try {
-			return ImageIO.read(file);
+			decoder = new RegionDecoder(file);
+			return decoder.read(region, subsampling);
 		}
 		catch (IOException ioe){
 			logger.log(Level.WARNING, "Problem encountered while reading image from file", ioe);
 			return null;
 		}
+		finally {
+			if (decoder != null){
+				try {
+					decoder.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing image file", ioe);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Reads the image from the given file, scaled so that the longest side 
+	 * is maxSize pixels, using the default (bicubic) quality.  See
+	 * getBufferedImage(File, int, ResampleQuality).
+	 * @param file
+	 * @param maxSize
+	 * @return
+	 */
+	public static BufferedImage getBufferedImage(File file, int maxSize){
+		return getBufferedImage(file, maxSize, ResampleQuality.BICUBIC);
+	}
+	
+	/**
+	 * Reads the image from the given file, scaled so that the longest side 
+	 * is maxSize pixels.  Unlike getBufferedImage(File) followed by 
+	 * scaleImage(), the full resolution image is never held in memory: 
+	 * the dimensions are read from the header first, and the reader is
+	 * told to only decode every n'th pixel in each direction, such that the
+	 * decoded image is still at least twice the target size.  The result 
+	 * is then resampled to the exact size.  The result is always TYPE_INT_RGB.
+	 * @param file
+	 * @param maxSize
+	 * @param quality
+	 * @return The scaled image, or null if the file could not be read
+	 */
+	public static BufferedImage getBufferedImage(File file, int maxSize, ResampleQuality quality){
+		DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+		try {
+			return scaleImage(readSubsampled(file, maxSize, permit), maxSize, quality);
+		}
+		finally {
+			permit.close();
+		}
+	}
+	
+	/**
+	 * Reads the image from the given file, scaled so that the longest side 
+	 * is maxSize pixels, and oriented according to the given EXIF 
+	 * Orientation.  The orientation is applied last, to the scaled image, 
+	 * so the pixels moved are those of the thumbnail rather than those of
+	 * the full (or subsampled) image.
+	 * @param file
+	 * @param maxSize
+	 * @param quality
+	 * @param orientation The value of the file's Orientation tag, from 1 to 8
+	 * @return The scaled and oriented image, or null if the file could not be read
+	 */
+	public static BufferedImage getBufferedImage(File file, int maxSize, ResampleQuality quality, int orientation){
+		return applyExifOrientation(getBufferedImage(file, maxSize, quality), orientation);
+	}
+	
+	/**
+	 * Scales the image to each of the given sizes, scaling each from the
+	 * next larger one instead of from the full size image; see
+	 * RenditionChain.  The results are always TYPE_INT_RGB.
+	 * @param img
+	 * @param maxSizes The size of the longest side of each result, in any order
+	 * @param quality
+	 * @return The scaled images, in the same order as maxSizes
+	 */
+	public static BufferedImage[] scaleImages(BufferedImage img, int[] maxSizes, ResampleQuality quality){
+		if (img == null)
+			return null;
+		return RenditionChain.scale(img, maxSizes, quality, null);
+	}
+	
+	/**
+	 * Reads the image from the given file once, and scales it to each of
+	 * the given sizes, scaling each from the next larger one; see 
+	 * RenditionChain.  The results are always TYPE_INT_RGB.
+	 * @param file
+	 * @param maxSizes The size of the longest side of each result, in any order
+	 * @param quality
+	 * @return The scaled images, in the same order as maxSizes, or null if the file could not be read
+	 */
+	public static BufferedImage[] getBufferedImages(File file, int[] maxSizes, ResampleQuality quality){
+		return RenditionChain.read(file, maxSizes, quality, null);
+	}
+	
+	/**
+	 * Reads the image from the given file, subsampled so that it is no 
+	 * less than twice maxSize on the longest side, but without resampling
+	 * it to the exact size.  If the DecodeGovernor is on, memory for the 
+	 * decode and for scaling the result to maxSize is reserved in the 
+	 * given permit first, which the caller must close once it is done with
+	 * the image; if the governor downgrades the decode, the image is only
+	 * subsampled to no less than maxSize.
+	 * @param file
+	 * @param maxSize The target size, or 0 to read the full image
+	 * @param permit An unused permit, or null to read without reserving memory
+	 * @return The subsampled image, or null if the file could not be read
+	 */
+	static BufferedImage readSubsampled(File file, int maxSize, DecodeGovernor.Permit permit){
+		return read(file, maxSize, true, permit, null);
+	}
+
+	/**
+	 * As readSubsampled(File, int, Permit), also setting the full size of
+	 * the image, from its header, in size (width, height).
+	 */
+	static BufferedImage readSubsampled(File file, int maxSize, DecodeGovernor.Permit permit, int[] size){
+		return read(file, maxSize, true, permit, size);
+	}
+
+	/**
+	 * Reads the full image from the given file, which the caller is going
+	 * to scale (e.g. with scaleImage()) so that its longest side is
+	 * scaleTo.  If the DecodeGovernor is on, memory for both the decode and
+	 * the scale is reserved in the given permit before decoding, and held
+	 * until the caller closes the permit, which should be once the scaled
+	 * image has been made:
+	 *
+	 * <pre>
+	 * DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+	 * try {
+	 *     BufferedImage image = ImageFunctions.getBufferedImage(file, 2048, permit);
+	 *     BufferedImage scaled = ImageFunctions.scaleImage(image, 2048, quality);
+	 *     ...
+	 * }
+	 * finally {
+	 *     permit.close();
+	 * }
+	 * </pre>
+	 *
+	 * Where only the scaled image is wanted, getBufferedImage(File, int) is
+	 * cheaper, as it subsamples while decoding.
+	 * @param file
+	 * @param scaleTo The size the caller will scale the longest side to, or 0
+	 * if it will not scale the image
+	 * @param permit An unused permit, which the caller must close
+	 * @return The full image, or null if it could not be read
+	 */
+	public static BufferedImage getBufferedImage(File file, int scaleTo, DecodeGovernor.Permit permit){
+		return read(file, scaleTo, false, permit, null);
+	}
+
+	/**
+	 * Reads the image, reserving memory for the decode and for scaling it
+	 * to maxSize in the permit (if not null) first.
+	 * @param subsample Whether to subsample the decode towards maxSize, or
+	 * read every pixel
+	 * @param size If not null, set to the full width and height of the image
+	 */
+	private static BufferedImage read(File file, int maxSize, boolean subsample, DecodeGovernor.Permit permit, int[] size){
+		long start = ImageMetrics.start();
+		BufferedImage image = null;
+		ImageInputStream input = null;
+		ImageReader reader = null;
+		try {
+			input = ImageIO.createImageInputStream(file);
+			if (input == null){
+				logger.log(Level.WARNING, "Unable to open " + file + " for reading");
+				return null;
+			}
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()){
+				logger.log(Level.WARNING, "No image reader found for " + file);
+				return null;
+			}
+			reader = readers.next();
+			reader.setInput(input, true, true);
+
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			if (size != null){
+				size[0] = width;
+				size[1] = height;
+			}
+			int longest = Math.max(width, height);
+			int subsampling = maxSize <= 0 || !subsample ? 1 : Math.max(1, longest / (maxSize * 2));
+			if (permit != null && DecodeGovernor.isEnabled()){
+				int bytesPerPixel = DecodeGovernor.getBytesPerPixel(reader);
+				int downgraded = maxSize <= 0 || !subsample ? subsampling : Math.max(1, longest / maxSize);
+				long bytes = DecodeGovernor.estimate(width, height, bytesPerPixel, subsampling, maxSize);
+				long downgradedBytes = downgraded == subsampling ? 0 : DecodeGovernor.estimate(width, height, bytesPerPixel, downgraded, maxSize);
+				DecodeGovernor.acquire(permit, file, bytes, downgradedBytes);
+				if (permit.isDowngraded())
+					subsampling = downgraded;
+				//Time the decode from here, not including the wait
+				if (start != 0)
+					start = ImageMetrics.start();
+			}
+			ImageReadParam param = reader.getDefaultReadParam();
+			if (subsampling > 1)
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+			image = reader.read(0, param);
+			return image;
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while reading image from file", ioe);
+			return null;
+		}
+		catch (TimeoutException te){
+			logger.log(Level.WARNING, "Not reading " + file + ": " + te.getMessage());
+			return null;
+		}
+		catch (InterruptedException ie){
+			logger.log(Level.WARNING, "Interrupted while waiting to read " + file);
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		finally {
+			if (reader != null)
+				reader.dispose();
+			try {
+				if (input != null)
+					input.close();
+			}
+			catch (IOException ioe){
+				logger.log(Level.FINE, "Problem encountered while closing image file", ioe);
+			}
+			if (start != 0)
+				ImageMetrics.record(ImageMetrics.DECODE, start, file, image, file.length(), 0);
+		}
 	}
 	
 	/**
@@ -168,35 +557,135 @@ public class ImageFunctions {
 //	}
 	
 	/**
-	 * Writes the given buffered image to disk, using the given quality (if appropriate).
-	 * The file type is determined by the extension of imageFile.
+	 * Writes the given buffered image to the stream, using the given quality (if appropriate).
+	 * The file type is determined by the extension.  Writers are pooled and
+	 * reused (see ImageEncoders).  If the stream is a FileOutputStream, the
+	 * image is written straight to its channel; otherwise it is written 
+	 * through a memory cache, which is flushed to the stream before this 
+	 * returns.  The stream is not closed.
 	 * @param bi
-	 * @param imageFile
+	 * @param os
 	 * @param quality
+	 * @param extension
+	 * @return true if the image was written
 	 */
-	public static void writeImage(BufferedImage bi, OutputStream os, float quality, String extension) {
+	public static boolean writeImage(BufferedImage bi, OutputStream os, float quality, String extension) {
 		if (bi == null){
 			logger.log(Level.WARNING, "Buffered Image is null!  Cannot write image to file");
-			return;
+			return false;
 		}
 			
+		long metricsStart = ImageMetrics.start();
+		long length = -1;
+		ImageOutputStream output = null;
 		try {
-			//Get the ImageWriter which allows us to set quality, and write the image
-			Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(extension);
-			ImageWriter imageWriter = writers.next();
-			ImageWriteParam imageWriterParam = imageWriter.getDefaultWriteParam();
-			imageWriterParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-			imageWriterParam.setCompressionQuality(quality);
-			ImageOutputStream output = new MemoryCacheImageOutputStream(os);
-			IIOImage image = new IIOImage(bi, null, null);
-			imageWriter.setOutput(output);
-			imageWriter.write(null, image, imageWriterParam);
+			if (os instanceof FileOutputStream){
+				FileChannel channel = ((FileOutputStream) os).getChannel();
+				long start = channel.position();
+				output = new ChannelImageOutputStream(channel);
+				try {
+					ImageEncoders.write(bi, output, quality, extension);
+					length = output.length();
+					output.close();
+					output = null;
+					return true;
+				}
+				catch (NonReadableChannelException nrce){
+					//The writer reads back what it has written (TIFF does), which 
+					// a FileOutputStream's channel can't do; start again through memory
+					output = null;
+					channel.truncate(start);
+					channel.position(start);
+				}
+			}
+			output = new MemoryCacheImageOutputStream(os);
+			ImageEncoders.write(bi, output, quality, extension);
+			length = output.length();
+			output.close();
+			output = null;
+			return true;
 		}
 		catch (IOException ioe){
-			logger.log(Level.SEVERE, "Problem encountered while writing image to file", ioe);
+			logger.log(Level.SEVERE, "Problem encountered while writing image to stream", ioe);
+			length = -1;
+			return false;
+		}
+		catch (RuntimeException re){
+			//Writers throw IllegalArgumentException etc for images they can't encode
+			logger.log(Level.SEVERE, "Problem encountered while writing image to stream", re);
+			length = -1;
+			return false;
+		}
+		finally {
+			close(output);
+			ImageMetrics.record(ImageMetrics.ENCODE, metricsStart, null, 0, bi.getWidth(), bi.getHeight(), 0, Math.max(0, length), length >= 0);
 		}
 	}
 	
+	/**
+	 * Writes the given buffered image to a file, using the given quality (if appropriate).
+	 * The file is written directly, without any intermediate buffering of 
+	 * the whole image.
+	 * @param bi
+	 * @param imageFile
+	 * @param quality
+	 * @param extension The file type (jpg, png, ...)
+	 * @return true if the image was written
+	 */
+	public static boolean writeImage(BufferedImage bi, File imageFile, float quality, String extension) {
+		if (bi == null){
+			logger.log(Level.WARNING, "Buffered Image is null!  Cannot write image to file");
+			return false;
+		}
+
+		long start = ImageMetrics.start();
+		long length = -1;
+		RandomAccessFile raf = null;
+		ImageOutputStream output = null;
+		try {
+			raf = new RandomAccessFile(imageFile, "rw");
+			raf.setLength(0);
+			output = new ChannelImageOutputStream(raf.getChannel());
+			ImageEncoders.write(bi, output, quality, extension);
+			length = output.length();
+			output.close();
+			output = null;
+			return true;
+		}
+		catch (IOException ioe){
+			logger.log(Level.SEVERE, "Problem encountered while writing image to " + imageFile, ioe);
+			length = -1;
+			return false;
+		}
+		catch (RuntimeException re){
+			logger.log(Level.SEVERE, "Problem encountered while writing image to " + imageFile, re);
+			length = -1;
+			return false;
+		}
+		finally {
+			close(output);
+			ImageMetrics.record(ImageMetrics.ENCODE, start, imageFile, 1, bi.getWidth(), bi.getHeight(), 0, Math.max(0, length), length >= 0);
+			if (raf != null){
+				try {
+					raf.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.WARNING, "Problem encountered while closing " + imageFile, ioe);
+				}
+			}
+		}
+	}
+	
+	private static void close(ImageOutputStream output){
+		if (output != null){
+			try {
+				output.close();
+			}
+			catch (IOException ioe){
+				logger.log(Level.FINE, "Problem encountered while closing image output stream", ioe);
+			}
+		}
+	}
 //	public static void writeImage(BufferedImage bi, File imageFile, float quality) {
 //		if (bi == null){
 //			logger.log(Level.WARNING, "Buffered Image is null!  Cannot write image to file");
@@ -0,0 +1,263 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Timing, counts and sizes of the work done by ImageFunctions and
+ * ExifToolWrapper, broken down so that it is clear where the time goes:
+ * waiting for DecodeGovernor to admit a decode (image.admit), decoding,
+ * resampling, rotating and encoding images; and starting
+ * exiftool, waiting for it to run, and parsing its output, as well as
+ * the time of each wrapper call as a whole.  Each operation has an
+ * OperationStats, which can be read directly, or through JMX once
+ * registerMBeans() has been called.  Listeners can be added to see each
+ * operation as it completes, e.g. to feed another metrics library.
+ *
+ * Metrics are off by default, and cost nothing but a volatile read per
+ * operation until they are enabled (with setEnabled(), or through the
+ * ca.digitalcave.moss.image:type=Metrics MBean).  Once enabled, calls
+ * which take longer than the slow call threshold are logged with their
+ * file and image size.
+ *
+ * Exiftool's time is split between spawn (starting the process), run
+ * (waiting for its output) and parse.  Without a pool, exiftool runs
+ * while its output is being parsed, so run is the time spent blocked
+ * reading its output, and parse is the rest.
+ */
+public class ImageMetrics {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	public static final String DECODE = "image.decode";
+	public static final String RESAMPLE = "image.resample";
+	public static final String ROTATE = "image.rotate";
+	public static final String ENCODE = "image.encode";
+	public static final String ADMIT = "image.admit";
+	public static final String EXIFTOOL_SPAWN = "exiftool.spawn";
+	public static final String EXIFTOOL_RUN = "exiftool.run";
+	public static final String EXIFTOOL_PARSE = "exiftool.parse";
+	public static final String READ_TAGS = "exiftool.readTags";
+	public static final String READ_BINARY = "exiftool.readBinary";
+	public static final String WRITE_TAGS = "exiftool.writeTags";
+
+	private static final String DOMAIN = "ca.digitalcave.moss.image";
+
+	private static volatile boolean enabled = false;
+	private static volatile long slowCallNanos = 0;
+	private static volatile boolean registered = false;
+	private static final List<OperationListener> listeners = new CopyOnWriteArrayList<OperationListener>();
+	private static final ConcurrentMap<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+
+	private ImageMetrics() {}
+
+	/**
+	 * Turns recording on or off.  Statistics recorded so far are kept.
+	 */
+	public static void setEnabled(boolean enabled){
+		ImageMetrics.enabled = enabled;
+	}
+
+	public static boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Sets how long a call has to take to be logged (at WARNING), while
+	 * metrics are enabled.  This applies to all operations, including the
+	 * wrapper calls which include the others.
+	 * @param millis The threshold, or 0 to log nothing
+	 */
+	public static void setSlowCallThreshold(long millis){
+		slowCallNanos = Math.max(0, millis) * 1000000;
+	}
+
+	public static long getSlowCallThreshold(){
+		return slowCallNanos / 1000000;
+	}
+
+	public static void addListener(OperationListener listener){
+		listeners.add(listener);
+	}
+
+	public static void removeListener(OperationListener listener){
+		listeners.remove(listener);
+	}
+
+	/**
+	 * @return The statistics for the given operation (one of the constants
+	 * in this class), which are created if there are none yet
+	 */
+	public static OperationStats getStats(String operation){
+		OperationStats operationStats = stats.get(operation);
+		if (operationStats == null){
+			operationStats = new OperationStats(operation);
+			OperationStats existing = stats.putIfAbsent(operation, operationStats);
+			if (existing != null)
+				return existing;
+			if (registered)
+				register(operationStats);
+		}
+		return operationStats;
+	}
+
+	/**
+	 * @return The statistics of every operation recorded so far, by name
+	 */
+	public static Map<String, OperationStats> getAllStats(){
+		return new TreeMap<String, OperationStats>(stats);
+	}
+
+	/**
+	 * Resets the statistics of all operations.
+	 */
+	public static void reset(){
+		for (OperationStats operationStats : stats.values()) {
+			operationStats.reset();
+		}
+	}
+
+	/**
+	 * Registers the metrics control MBean, the DecodeGovernor MBean, and an
+	 * OperationStats MBean for each operation (now and as they are first recorded), with the
+	 * platform MBean server.  This does not enable metrics.
+	 */
+	public static synchronized void registerMBeans(){
+		if (registered)
+			return;
+		registered = true;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=Metrics");
+			if (!server.isRegistered(name))
+				server.registerMBean(new StandardMBean(new Control(), ImageMetricsMBean.class), name);
+			name = new ObjectName(DOMAIN + ":type=DecodeGovernor");
+			if (!server.isRegistered(name))
+				server.registerMBean(new StandardMBean(DecodeGovernor.getMBean(), DecodeGovernorMBean.class), name);
+		}
+		catch (JMException jme){
+			logger.log(Level.WARNING, "Unable to register metrics MBean", jme);
+		}
+		for (OperationStats operationStats : stats.values()) {
+			register(operationStats);
+		}
+	}
+
+	public static synchronized void unregisterMBeans(){
+		if (!registered)
+			return;
+		registered = false;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (ObjectName name : server.queryNames(new ObjectName(DOMAIN + ":*"), null)) {
+				server.unregisterMBean(name);
+			}
+		}
+		catch (JMException jme){
+			logger.log(Level.WARNING, "Unable to unregister metrics MBeans", jme);
+		}
+	}
+
+	private static void register(OperationStats operationStats){
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=Operation,name=" + ObjectName.quote(operationStats.getOperation()));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name))
+				server.registerMBean(operationStats, name);
+		}
+		catch (JMException jme){
+			logger.log(Level.WARNING, "Unable to register MBean for " + operationStats.getOperation(), jme);
+		}
+	}
+
+	/**
+	 * @return The start time of an operation, to pass to record(), or 0
+	 * if metrics are disabled
+	 */
+	static long start(){
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records an operation on an image; it failed if the image is null.
+	 */
+	static void record(String operation, long start, File file, BufferedImage image, long bytesIn, long bytesOut){
+		if (start == 0)
+			return;
+		record(operation, start, file, file == null ? 0 : 1, image == null ? -1 : image.getWidth(), image == null ? -1 : image.getHeight(), bytesIn, bytesOut, image != null);
+	}
+
+	/**
+	 * Records an operation which started at the given time (from start()),
+	 * and has just finished.  Does nothing if start is 0.
+	 */
+	static void record(String operation, long start, File file, int fileCount, int width, int height, long bytesIn, long bytesOut, boolean success){
+		if (start == 0)
+			return;
+		recordNanos(operation, System.nanoTime() - start, file, fileCount, width, height, bytesIn, bytesOut, success);
+	}
+
+	/**
+	 * Records an operation which took the given time.
+	 */
+	static void recordNanos(String operation, long nanos, File file, int fileCount, int width, int height, long bytesIn, long bytesOut, boolean success){
+		if (!enabled)
+			return;
+		getStats(operation).record(nanos, bytesIn, bytesOut, success);
+
+		long slow = slowCallNanos;
+		boolean isSlow = slow > 0 && nanos >= slow;
+		if (!isSlow && listeners.isEmpty())
+			return;
+
+		OperationEvent event = new OperationEvent(operation, file, fileCount, width, height, nanos, bytesIn, bytesOut, success);
+		if (isSlow)
+			logger.log(Level.WARNING, "Slow call: " + event);
+		for (OperationListener listener : listeners) {
+			try {
+				listener.operationCompleted(event);
+			}
+			catch (RuntimeException re){
+				logger.log(Level.WARNING, "Operation listener " + listener + " failed", re);
+			}
+		}
+	}
+
+	/**
+	 * Gives JMX control over the static settings.
+	 */
+	private static class Control implements ImageMetricsMBean {
+		public boolean isEnabled() {
+			return ImageMetrics.isEnabled();
+		}
+		public void setEnabled(boolean enabled) {
+			ImageMetrics.setEnabled(enabled);
+		}
+		public long getSlowCallThresholdMillis() {
+			return ImageMetrics.getSlowCallThreshold();
+		}
+		public void setSlowCallThresholdMillis(long millis) {
+			ImageMetrics.setSlowCallThreshold(millis);
+		}
+		public void reset() {
+			ImageMetrics.reset();
+		}
+	}
+}
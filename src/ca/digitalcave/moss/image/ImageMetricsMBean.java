@@ -0,0 +1,23 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * The JMX controls for ImageMetrics, so that metrics can be turned on in
+ * a running application when they are needed.
+ */
+public interface ImageMetricsMBean {
+	public boolean isEnabled();
+
+	public void setEnabled(boolean enabled);
+
+	public long getSlowCallThresholdMillis();
+
+	public void setSlowCallThresholdMillis(long millis);
+
+	/**
+	 * Resets the statistics of all operations.
+	 */
+	public void reset();
+}
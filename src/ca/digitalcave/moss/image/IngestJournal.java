@@ -0,0 +1,162 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of each file seen by DirectoryIngest: its size and modification
+ * time when it was processed, which renditions were made, and whether its
+ * tags were read.  All entries are held in memory, and kept in a
+ * RecordStore: changes are appended to the journal file when flush() is
+ * called (once per batch), and the file is compacted when it is opened,
+ * and whenever it holds many more superseded records than live ones.
+ */
+class IngestJournal {
+
+	private static final int JOURNAL_MAGIC = 0x4d494a31; //'MIJ1'
+	private static final byte FLAG_TAGS = 1;
+	private static final byte FLAG_FAILED = 2;
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private final RecordStore<Entry> journal;
+
+	/**
+	 * Opens (or creates) the journal.
+	 * @param file The journal file, or null to only keep entries in memory
+	 */
+	IngestJournal(File file) {
+		journal = new RecordStore<Entry>(file, JOURNAL_MAGIC, "ingest journal", new RecordStore.Codec<Entry>() {
+			public void write(DataOutputStream dos, Entry entry) throws IOException {
+				dos.writeLong(entry.size);
+				dos.writeLong(entry.modified);
+				dos.writeByte((entry.tagsRead ? FLAG_TAGS : 0) | (entry.failed ? FLAG_FAILED : 0));
+				dos.writeShort(entry.renditions.length);
+				for (int maxSize : entry.renditions)
+					dos.writeInt(maxSize);
+			}
+
+			public Entry read(DataInputStream dis, String path) throws IOException {
+				long size = dis.readLong();
+				long modified = dis.readLong();
+				byte flags = dis.readByte();
+				int[] renditions = new int[dis.readUnsignedShort()];
+				for (int i = 0; i < renditions.length; i++)
+					renditions[i] = dis.readInt();
+				return new Entry(size, modified, renditions, (flags & FLAG_TAGS) != 0, (flags & FLAG_FAILED) != 0);
+			}
+		});
+		entries.putAll(journal.read());
+		journal.compact(entries, null);
+	}
+
+	synchronized Entry get(String path){
+		return entries.get(path);
+	}
+
+	synchronized void put(String path, Entry entry){
+		entries.put(path, entry);
+		journal.put(path, entry);
+	}
+
+	/**
+	 * @return Whether there was an entry for the path
+	 */
+	synchronized boolean remove(String path){
+		if (entries.remove(path) == null)
+			return false;
+		journal.remove(path);
+		return true;
+	}
+
+	/**
+	 * Removes the entries of all paths under the given directory.
+	 * @param prefix The directory's path, ending in a separator
+	 * @return The paths removed
+	 */
+	synchronized List<String> removeUnder(String prefix){
+		List<String> removed = new ArrayList<String>();
+		for (String path : entries.keySet()) {
+			if (path.startsWith(prefix))
+				removed.add(path);
+		}
+		for (String path : removed) {
+			remove(path);
+		}
+		return removed;
+	}
+
+	/**
+	 * Removes the entries of all paths not in the given set.
+	 * @return The paths removed
+	 */
+	synchronized List<String> retain(Set<String> paths){
+		List<String> removed = new ArrayList<String>();
+		for (String path : entries.keySet()) {
+			if (!paths.contains(path))
+				removed.add(path);
+		}
+		for (String path : removed) {
+			remove(path);
+		}
+		return removed;
+	}
+
+	/**
+	 * Writes the records added since the last flush to the journal file.
+	 */
+	synchronized void flush(){
+		journal.flush();
+		if (journal.isWasteful(entries.size()))
+			journal.compact(entries, null);
+	}
+
+	/**
+	 * Writes any buffered records, and closes the journal file.
+	 */
+	synchronized void close(){
+		journal.close();
+	}
+
+	/**
+	 * What was done to a file, as it was when it was processed.
+	 */
+	static class Entry {
+		final long size;
+		final long modified;
+		//The sizes of the renditions made
+		final int[] renditions;
+		final boolean tagsRead;
+		//Whether something could not be done; the file is not retried until it changes
+		final boolean failed;
+
+		Entry(long size, long modified, int[] renditions, boolean tagsRead, boolean failed) {
+			this.size = size;
+			this.modified = modified;
+			this.renditions = renditions;
+			this.tagsRead = tagsRead;
+			this.failed = failed;
+		}
+
+		boolean isSame(long size, long modified){
+			return this.size == size && this.modified == modified;
+		}
+
+		boolean hasRendition(int maxSize){
+			for (int rendition : renditions) {
+				if (rendition == maxSize)
+					return true;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,817 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The quantized DCT coefficients of a sequential Huffman coded JPEG (SOF0
+ * or SOF1, 8 bit samples), along with the tables and metadata segments
+ * needed to write them out again.  This is the part of a JPEG codec before
+ * the inverse DCT: reading and writing only entropy decodes and encodes,
+ * so a read followed by a write loses nothing.
+ *
+ * Coefficients are held per component, one block of 64 shorts (natural,
+ * not zigzag, order) per 8x8 block, in a grid padded out to whole MCUs.
+ * DC values are absolute, not differences.  Progressive, arithmetic coded,
+ * lossless and 12 bit JPEGs are not supported, and cause read() to throw
+ * an IOException.
+ *
+ * write() always produces a single interleaved scan with optimized
+ * Huffman tables and no restart markers.
+ */
+class JpegCoefficients {
+
+	static final int SOF0 = 0xc0, SOF1 = 0xc1, DHT = 0xc4, RST0 = 0xd0, RST7 = 0xd7, DQT = 0xdb, DRI = 0xdd, APP0 = 0xe0, APP15 = 0xef, COM = 0xfe;
+
+	//Natural order index of each zigzag position
+	static final int[] ZIGZAG = {
+		0,  1,  8, 16,  9,  2,  3, 10,
+		17, 24, 32, 25, 18, 11,  4,  5,
+		12, 19, 26, 33, 40, 48, 41, 34,
+		27, 20, 13,  6,  7, 14, 21, 28,
+		35, 42, 49, 56, 57, 50, 43, 36,
+		29, 22, 15, 23, 30, 37, 44, 51,
+		58, 59, 52, 45, 38, 31, 39, 46,
+		53, 60, 61, 54, 47, 55, 62, 63
+	};
+
+	int width;
+	int height;
+	int maxH = 1;
+	int maxV = 1;
+	int mcusX;
+	int mcusY;
+	Component[] components;
+	//Natural order; null for unused slots
+	int[][] quantTables = new int[4][];
+	//APPn and COM segments, each including its marker and length
+	List<byte[]> segments = new ArrayList<byte[]>();
+
+	static class Component {
+		int id;
+		int h;
+		int v;
+		int quantTable;
+		//Size of the coefficient grid, in blocks (a whole number of MCUs)
+		int blocksX;
+		int blocksY;
+		short[] coefficients;
+
+		//Scan state
+		private Huffman dcTable;
+		private Huffman acTable;
+		private int predictor;
+
+		Component copy(){
+			Component c = new Component();
+			c.id = id;
+			c.h = h;
+			c.v = v;
+			c.quantTable = quantTable;
+			return c;
+		}
+	}
+
+	/**
+	 * Sets the size of the image and of each component's coefficient grid,
+	 * and allocates the (zeroed) coefficients.
+	 */
+	void setSize(int width, int height){
+		this.width = width;
+		this.height = height;
+		maxH = 1;
+		maxV = 1;
+		for (Component c : components) {
+			maxH = Math.max(maxH, c.h);
+			maxV = Math.max(maxV, c.v);
+		}
+		mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+		mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+		for (Component c : components) {
+			c.blocksX = mcusX * c.h;
+			c.blocksY = mcusY * c.v;
+			c.coefficients = new short[c.blocksX * c.blocksY * 64];
+		}
+	}
+
+	/**
+	 * @return The MCU width in pixels
+	 */
+	int getMcuWidth(){
+		return 8 * maxH;
+	}
+
+	/**
+	 * @return The MCU height in pixels
+	 */
+	int getMcuHeight(){
+		return 8 * maxV;
+	}
+
+	/**
+	 * Entropy decodes a JPEG.
+	 * @throws IOException If the data is not a JPEG, is corrupt, or uses an unsupported coding process
+	 */
+	static JpegCoefficients read(byte[] data) throws IOException {
+		if (data.length < 4 || (data[0] & 0xff) != 0xff || (data[1] & 0xff) != ExifReader.SOI)
+			throw new IOException("Not a JPEG");
+
+		JpegCoefficients jpeg = new JpegCoefficients();
+		Huffman[] dcTables = new Huffman[4];
+		Huffman[] acTables = new Huffman[4];
+		int restartInterval = 0;
+		boolean scanned = false;
+
+		int pos = 2;
+		while (true){
+			if (pos + 2 > data.length)
+				throw new IOException("Unexpected end of JPEG");
+			if ((data[pos] & 0xff) != 0xff)
+				throw new IOException("Expected a marker at " + pos);
+			int marker = data[pos + 1] & 0xff;
+			if (marker == 0xff){
+				pos++; //Fill byte
+				continue;
+			}
+			if (marker == ExifReader.EOI)
+				break;
+			if (marker == 0x01 || (marker >= RST0 && marker <= RST7)){
+				pos += 2; //Markers without a length
+				continue;
+			}
+			if (pos + 4 > data.length)
+				throw new IOException("Unexpected end of JPEG");
+			int length = ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+			int start = pos + 4;
+			int end = pos + 2 + length;
+			if (length < 2 || end > data.length)
+				throw new IOException("Bad segment length at " + pos);
+
+			if ((marker >= APP0 && marker <= APP15) || marker == COM){
+				byte[] segment = new byte[length + 2];
+				System.arraycopy(data, pos, segment, 0, segment.length);
+				jpeg.segments.add(segment);
+			}
+			else if (marker == DQT){
+				for (int p = start; p < end; ){
+					int precision = (data[p] & 0xff) >> 4;
+					int id = data[p] & 0x0f;
+					if (id > 3)
+						throw new IOException("Bad quantization table " + id);
+					p++;
+					int[] table = new int[64];
+					for (int k = 0; k < 64; k++){
+						if (precision == 0)
+							table[ZIGZAG[k]] = data[p++] & 0xff;
+						else {
+							table[ZIGZAG[k]] = ((data[p] & 0xff) << 8) | (data[p + 1] & 0xff);
+							p += 2;
+						}
+					}
+					jpeg.quantTables[id] = table;
+				}
+			}
+			else if (marker == DHT){
+				for (int p = start; p < end; ){
+					int tableClass = (data[p] & 0xff) >> 4;
+					int id = data[p] & 0x0f;
+					if (id > 3 || tableClass > 1)
+						throw new IOException("Bad Huffman table " + id);
+					int[] bits = new int[17];
+					int count = 0;
+					for (int i = 1; i <= 16; i++){
+						bits[i] = data[p + i] & 0xff;
+						count += bits[i];
+					}
+					p += 17;
+					int[] values = new int[count];
+					for (int i = 0; i < count; i++)
+						values[i] = data[p++] & 0xff;
+					(tableClass == 0 ? dcTables : acTables)[id] = Huffman.forDecoding(bits, values);
+				}
+			}
+			else if (marker == DRI){
+				restartInterval = ((data[start] & 0xff) << 8) | (data[start + 1] & 0xff);
+			}
+			else if (marker == SOF0 || marker == SOF1){
+				if ((data[start] & 0xff) != 8)
+					throw new IOException("Only 8 bit JPEGs are supported");
+				int height = ((data[start + 1] & 0xff) << 8) | (data[start + 2] & 0xff);
+				int width = ((data[start + 3] & 0xff) << 8) | (data[start + 4] & 0xff);
+				int count = data[start + 5] & 0xff;
+				if (width == 0 || height == 0 || count == 0)
+					throw new IOException("Unsupported frame (DNL, or no components)");
+				jpeg.components = new Component[count];
+				for (int i = 0; i < count; i++){
+					Component c = new Component();
+					int p = start + 6 + i * 3;
+					c.id = data[p] & 0xff;
+					c.h = (data[p + 1] & 0xff) >> 4;
+					c.v = data[p + 1] & 0x0f;
+					c.quantTable = data[p + 2] & 0x03;
+					if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4)
+						throw new IOException("Bad sampling factors");
+					//A single component is never interleaved, so its MCU is always one block
+					if (count == 1){
+						c.h = 1;
+						c.v = 1;
+					}
+					jpeg.components[i] = c;
+				}
+				jpeg.setSize(width, height);
+			}
+			else if (marker >= 0xc2 && marker <= 0xcf && marker != DHT && marker != 0xc8 && marker != 0xcc){
+				throw new IOException("Unsupported JPEG coding process (SOF" + (marker - 0xc0) + ")");
+			}
+			else if (marker == ExifReader.SOS){
+				if (jpeg.components == null)
+					throw new IOException("Scan before frame header");
+				int count = data[start] & 0xff;
+				Component[] scan = new Component[count];
+				for (int i = 0; i < count; i++){
+					int id = data[start + 1 + i * 2] & 0xff;
+					int tables = data[start + 2 + i * 2] & 0xff;
+					for (Component c : jpeg.components) {
+						if (c.id == id)
+							scan[i] = c;
+					}
+					if (scan[i] == null)
+						throw new IOException("Scan refers to unknown component " + id);
+					scan[i].dcTable = dcTables[tables >> 4 & 3];
+					scan[i].acTable = acTables[tables & 3];
+					if (scan[i].dcTable == null || scan[i].acTable == null)
+						throw new IOException("Scan refers to undefined Huffman table");
+				}
+				int p = start + 1 + count * 2;
+				if ((data[p] & 0xff) != 0 || (data[p + 1] & 0xff) != 63 || (data[p + 2] & 0xff) != 0)
+					throw new IOException("Unsupported scan (spectral selection or successive approximation)");
+				end = jpeg.decodeScan(data, end, scan, restartInterval);
+				scanned = true;
+			}
+			pos = end;
+		}
+
+		if (!scanned)
+			throw new IOException("No image data");
+		for (Component c : jpeg.components) {
+			if (jpeg.quantTables[c.quantTable] == null)
+				throw new IOException("Component refers to undefined quantization table");
+		}
+		return jpeg;
+	}
+
+	/**
+	 * Decodes one scan.
+	 * @return The position of the marker following the entropy coded data
+	 */
+	private int decodeScan(byte[] data, int pos, Component[] scan, int restartInterval) throws IOException {
+		BitReader in = new BitReader(data, pos);
+		for (Component c : scan)
+			c.predictor = 0;
+
+		int unitsX, unitsY;
+		if (scan.length == 1){
+			//Non interleaved; the scan only covers the blocks inside the component
+			Component c = scan[0];
+			int componentWidth = (width * c.h + maxH - 1) / maxH;
+			int componentHeight = (height * c.v + maxV - 1) / maxV;
+			unitsX = (componentWidth + 7) / 8;
+			unitsY = (componentHeight + 7) / 8;
+		}
+		else {
+			unitsX = mcusX;
+			unitsY = mcusY;
+		}
+
+		int units = 0;
+		for (int y = 0; y < unitsY; y++){
+			for (int x = 0; x < unitsX; x++){
+				if (restartInterval > 0 && units > 0 && units % restartInterval == 0){
+					in.restart();
+					for (Component c : scan)
+						c.predictor = 0;
+				}
+				if (scan.length == 1){
+					Component c = scan[0];
+					decodeBlock(in, c, (y * c.blocksX + x) * 64);
+				}
+				else {
+					for (Component c : scan) {
+						for (int v = 0; v < c.v; v++){
+							for (int h = 0; h < c.h; h++){
+								decodeBlock(in, c, ((y * c.v + v) * c.blocksX + x * c.h + h) * 64);
+							}
+						}
+					}
+				}
+				units++;
+			}
+		}
+
+		//Skip to the next marker (padding bits, or anything after a short scan)
+		int p = in.getPosition();
+		while (p + 1 < data.length && ((data[p] & 0xff) != 0xff || (data[p + 1] & 0xff) == 0 || ((data[p + 1] & 0xff) >= RST0 && (data[p + 1] & 0xff) <= RST7)))
+			p++;
+		return p;
+	}
+
+	private static void decodeBlock(BitReader in, Component c, int offset) throws IOException {
+		short[] coefficients = c.coefficients;
+		int s = in.decode(c.dcTable);
+		if (s != 0)
+			c.predictor += in.receive(s);
+		coefficients[offset] = (short) c.predictor;
+
+		Huffman ac = c.acTable;
+		for (int k = 1; k < 64; k++){
+			int rs = in.decode(ac);
+			int r = rs >> 4;
+			s = rs & 0x0f;
+			if (s == 0){
+				if (r != 15)
+					break; //End of block
+				k += 15;
+				continue;
+			}
+			k += r;
+			if (k > 63)
+				throw new IOException("Corrupt JPEG data (coefficient index out of range)");
+			coefficients[offset + ZIGZAG[k]] = (short) in.receive(s);
+		}
+	}
+
+	/**
+	 * Entropy encodes the coefficients, along with the metadata segments,
+	 * quantization tables and (optimized) Huffman tables.
+	 */
+	byte[] write(){
+		//Luminance (or the only component) uses table 0, everything else table 1
+		Huffman[] dcTables = new Huffman[Math.min(components.length, 2)];
+		Huffman[] acTables = new Huffman[dcTables.length];
+		for (int i = 0; i < dcTables.length; i++){
+			dcTables[i] = new Huffman();
+			acTables[i] = new Huffman();
+		}
+		for (int i = 0; i < components.length; i++){
+			components[i].dcTable = dcTables[Math.min(i, 1)];
+			components[i].acTable = acTables[Math.min(i, 1)];
+		}
+
+		//First pass gathers symbol frequencies, second writes with the resulting tables
+		encodeScan(null);
+		for (int i = 0; i < dcTables.length; i++){
+			dcTables[i].optimize();
+			acTables[i].optimize();
+		}
+		BitWriter entropy = new BitWriter(width * height / 4 + 1024);
+		encodeScan(entropy);
+		entropy.flush();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(entropy.length + 4096);
+		out.write(0xff);
+		out.write(ExifReader.SOI);
+		for (byte[] segment : segments)
+			out.write(segment, 0, segment.length);
+
+		boolean baseline = true;
+		for (int id = 0; id < quantTables.length; id++){
+			int[] table = quantTables[id];
+			if (table == null)
+				continue;
+			int precision = 0;
+			for (int q : table) {
+				if (q > 255)
+					precision = 1;
+			}
+			if (precision != 0)
+				baseline = false;
+			writeMarker(out, DQT, 1 + 64 * (precision + 1));
+			out.write((precision << 4) | id);
+			for (int k = 0; k < 64; k++){
+				int q = table[ZIGZAG[k]];
+				if (precision != 0)
+					out.write(q >> 8);
+				out.write(q);
+			}
+		}
+
+		writeMarker(out, baseline ? SOF0 : SOF1, 6 + components.length * 3);
+		out.write(8);
+		out.write(height >> 8);
+		out.write(height);
+		out.write(width >> 8);
+		out.write(width);
+		out.write(components.length);
+		for (Component c : components) {
+			out.write(c.id);
+			out.write((c.h << 4) | c.v);
+			out.write(c.quantTable);
+		}
+
+		for (int i = 0; i < dcTables.length; i++){
+			dcTables[i].writeTable(out, 0x00 | i);
+			acTables[i].writeTable(out, 0x10 | i);
+		}
+
+		writeMarker(out, ExifReader.SOS, 4 + components.length * 2);
+		out.write(components.length);
+		for (int i = 0; i < components.length; i++){
+			out.write(components[i].id);
+			out.write(Math.min(i, 1) * 0x11);
+		}
+		out.write(0);
+		out.write(63);
+		out.write(0);
+		out.write(entropy.data, 0, entropy.length);
+
+		out.write(0xff);
+		out.write(ExifReader.EOI);
+		return out.toByteArray();
+	}
+
+	private static void writeMarker(ByteArrayOutputStream out, int marker, int payload){
+		out.write(0xff);
+		out.write(marker);
+		out.write((payload + 2) >> 8);
+		out.write(payload + 2);
+	}
+
+	/**
+	 * Encodes all components in a single scan (interleaved, unless there
+	 * is only one), or with a null writer just counts the symbols.
+	 */
+	private void encodeScan(BitWriter out){
+		for (Component c : components)
+			c.predictor = 0;
+
+		if (components.length == 1){
+			Component c = components[0];
+			int unitsX = (width + 7) / 8;
+			int unitsY = (height + 7) / 8;
+			for (int y = 0; y < unitsY; y++){
+				for (int x = 0; x < unitsX; x++)
+					encodeBlock(out, c, (y * c.blocksX + x) * 64);
+			}
+			return;
+		}
+
+		for (int y = 0; y < mcusY; y++){
+			for (int x = 0; x < mcusX; x++){
+				for (Component c : components) {
+					for (int v = 0; v < c.v; v++){
+						for (int h = 0; h < c.h; h++){
+							encodeBlock(out, c, ((y * c.v + v) * c.blocksX + x * c.h + h) * 64);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static void encodeBlock(BitWriter out, Component c, int offset){
+		short[] coefficients = c.coefficients;
+		int dc = coefficients[offset];
+		encodeValue(out, c.dcTable, 0, dc - c.predictor);
+		c.predictor = dc;
+
+		Huffman ac = c.acTable;
+		int run = 0;
+		for (int k = 1; k < 64; k++){
+			int value = coefficients[offset + ZIGZAG[k]];
+			if (value == 0){
+				run++;
+				continue;
+			}
+			while (run > 15){
+				if (out == null)
+					ac.count(0xf0);
+				else
+					out.write(ac, 0xf0);
+				run -= 16;
+			}
+			encodeValue(out, ac, run << 4, value);
+			run = 0;
+		}
+		if (run > 0){
+			if (out == null)
+				ac.count(0x00);
+			else
+				out.write(ac, 0x00);
+		}
+	}
+
+	/**
+	 * Writes (or counts) the symbol for the value's magnitude category,
+	 * combined with the given run, followed by the value's bits.
+	 */
+	private static void encodeValue(BitWriter out, Huffman table, int run, int value){
+		int magnitude = value < 0 ? -value : value;
+		int size = magnitude == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(magnitude);
+		if (out == null){
+			table.count(run | size);
+			return;
+		}
+		out.write(table, run | size);
+		if (size > 0)
+			out.writeBits((value < 0 ? value - 1 : value) & ((1 << size) - 1), size);
+	}
+
+	/**
+	 * A Huffman table, for decoding (from a DHT segment) or for encoding
+	 * (built from symbol frequencies).
+	 */
+	static class Huffman {
+		private static final int LOOKAHEAD = 9;
+
+		private int[] bits;
+		private int[] values;
+
+		//Decoding: (length << 8 | value) for codes of up to LOOKAHEAD bits, by their padded code
+		private int[] lookahead;
+		private int[] maxCode;
+		private int[] valueOffset;
+
+		//Encoding
+		private long[] frequencies = new long[257];
+		private int[] codes;
+		private int[] sizes;
+
+		static Huffman forDecoding(int[] bits, int[] values) throws IOException {
+			Huffman huffman = new Huffman();
+			huffman.bits = bits;
+			huffman.values = values;
+			huffman.lookahead = new int[1 << LOOKAHEAD];
+			huffman.maxCode = new int[18];
+			huffman.valueOffset = new int[17];
+
+			int code = 0;
+			int p = 0;
+			for (int length = 1; length <= 16; length++){
+				huffman.valueOffset[length] = p - code;
+				for (int i = 0; i < bits[length]; i++){
+					if (length <= LOOKAHEAD){
+						int shift = LOOKAHEAD - length;
+						for (int fill = 0; fill < (1 << shift); fill++)
+							huffman.lookahead[(code << shift) | fill] = (length << 8) | values[p];
+					}
+					p++;
+					code++;
+				}
+				huffman.maxCode[length] = bits[length] == 0 ? -1 : code - 1;
+				if (code > (1 << length))
+					throw new IOException("Bad Huffman table");
+				code <<= 1;
+			}
+			huffman.maxCode[17] = Integer.MAX_VALUE; //Sentinel
+			return huffman;
+		}
+
+		void count(int symbol){
+			frequencies[symbol]++;
+		}
+
+		/**
+		 * Builds code lengths from the counted frequencies, limited to 16
+		 * bits, as in section K.2 of the JPEG specification.
+		 */
+		void optimize(){
+			long[] freq = frequencies.clone();
+			freq[256] = 1; //Reserves one code point, so that no code is all ones
+			int[] codeSize = new int[257];
+			int[] others = new int[257];
+			for (int i = 0; i < 257; i++)
+				others[i] = -1;
+
+			while (true){
+				int c1 = -1;
+				long v = Long.MAX_VALUE;
+				for (int i = 0; i < 257; i++){
+					if (freq[i] != 0 && freq[i] <= v){
+						v = freq[i];
+						c1 = i;
+					}
+				}
+				int c2 = -1;
+				v = Long.MAX_VALUE;
+				for (int i = 0; i < 257; i++){
+					if (freq[i] != 0 && freq[i] <= v && i != c1){
+						v = freq[i];
+						c2 = i;
+					}
+				}
+				if (c2 < 0)
+					break;
+
+				freq[c1] += freq[c2];
+				freq[c2] = 0;
+				codeSize[c1]++;
+				while (others[c1] >= 0){
+					c1 = others[c1];
+					codeSize[c1]++;
+				}
+				others[c1] = c2;
+				codeSize[c2]++;
+				while (others[c2] >= 0){
+					c2 = others[c2];
+					codeSize[c2]++;
+				}
+			}
+
+			int[] count = new int[258];
+			for (int i = 0; i < 257; i++){
+				if (codeSize[i] > 0)
+					count[codeSize[i]]++;
+			}
+			//Shorten codes longer than 16 bits
+			for (int i = count.length - 1; i > 16; i--){
+				while (count[i] > 0){
+					int j = i - 2;
+					while (count[j] == 0)
+						j--;
+					count[i] -= 2;
+					count[i - 1]++;
+					count[j + 1] += 2;
+					count[j]--;
+				}
+			}
+			int longest = 16;
+			while (count[longest] == 0)
+				longest--;
+			count[longest]--; //Removes the reserved code point
+
+			bits = new int[17];
+			System.arraycopy(count, 1, bits, 1, 16);
+			int total = 0;
+			for (int i = 1; i <= 16; i++)
+				total += bits[i];
+			values = new int[total];
+			int p = 0;
+			for (int size = 1; size < count.length && p < total; size++){
+				for (int symbol = 0; symbol < 256; symbol++){
+					if (codeSize[symbol] == size)
+						values[p++] = symbol;
+				}
+			}
+
+			codes = new int[256];
+			sizes = new int[256];
+			int code = 0;
+			p = 0;
+			for (int length = 1; length <= 16; length++){
+				for (int i = 0; i < bits[length]; i++){
+					codes[values[p]] = code++;
+					sizes[values[p]] = length;
+					p++;
+				}
+				code <<= 1;
+			}
+		}
+
+		void writeTable(ByteArrayOutputStream out, int classAndId){
+			writeMarker(out, DHT, 17 + values.length);
+			out.write(classAndId);
+			for (int i = 1; i <= 16; i++)
+				out.write(bits[i]);
+			for (int value : values)
+				out.write(value);
+		}
+	}
+
+	/**
+	 * Reads bits from entropy coded data, removing stuffed zero bytes.  At
+	 * a marker it stops, and supplies zero bits from then on.
+	 */
+	static class BitReader {
+		private final byte[] data;
+		private int position;
+		private int buffer;
+		private int count;
+		private boolean atMarker;
+
+		BitReader(byte[] data, int position) {
+			this.data = data;
+			this.position = position;
+		}
+
+		private void fill(){
+			while (count <= 24){
+				int b = 0;
+				if (!atMarker && position < data.length){
+					b = data[position] & 0xff;
+					if (b == 0xff){
+						int next = position + 1 < data.length ? data[position + 1] & 0xff : 0xd9;
+						if (next == 0)
+							position += 2;
+						else {
+							atMarker = true;
+							b = 0;
+						}
+					}
+					else
+						position++;
+				}
+				buffer = (buffer << 8) | b;
+				count += 8;
+			}
+		}
+
+		int decode(Huffman table) throws IOException {
+			if (count < 16)
+				fill();
+			int entry = table.lookahead[(buffer >>> (count - Huffman.LOOKAHEAD)) & ((1 << Huffman.LOOKAHEAD) - 1)];
+			if (entry != 0){
+				count -= entry >> 8;
+				return entry & 0xff;
+			}
+			for (int length = Huffman.LOOKAHEAD + 1; length <= 16; length++){
+				int code = (buffer >>> (count - length)) & ((1 << length) - 1);
+				if (code <= table.maxCode[length]){
+					count -= length;
+					return table.values[table.valueOffset[length] + code];
+				}
+			}
+			throw new IOException("Corrupt JPEG data (bad Huffman code)");
+		}
+
+		/**
+		 * Reads s bits, and extends them to a signed value (F.2.2.1 in the specification).
+		 */
+		int receive(int s){
+			if (count < s)
+				fill();
+			int value = (buffer >>> (count - s)) & ((1 << s) - 1);
+			count -= s;
+			return value < (1 << (s - 1)) ? value - (1 << s) + 1 : value;
+		}
+
+		/**
+		 * Skips to the byte after the next restart marker.
+		 */
+		void restart() throws IOException {
+			count = 0;
+			buffer = 0;
+			atMarker = false;
+			while (position + 1 < data.length && !((data[position] & 0xff) == 0xff && (data[position + 1] & 0xff) >= RST0 && (data[position + 1] & 0xff) <= RST7)){
+				if ((data[position] & 0xff) == 0xff && (data[position + 1] & 0xff) != 0)
+					throw new IOException("Corrupt JPEG data (missing restart marker)");
+				position++;
+			}
+			position += 2;
+		}
+
+		/**
+		 * @return The position of the next unread byte; never past a marker
+		 */
+		int getPosition(){
+			return position;
+		}
+	}
+
+	/**
+	 * Writes bits, stuffing a zero after each 0xff.
+	 */
+	static class BitWriter {
+		private byte[] data;
+		private int length;
+		private int buffer;
+		private int count;
+
+		BitWriter(int capacity) {
+			data = new byte[capacity];
+		}
+
+		void write(Huffman table, int symbol){
+			writeBits(table.codes[symbol], table.sizes[symbol]);
+		}
+
+		void writeBits(int bits, int size){
+			buffer = (buffer << size) | bits;
+			count += size;
+			while (count >= 8){
+				int b = (buffer >> (count - 8)) & 0xff;
+				count -= 8;
+				if (length + 2 > data.length){
+					byte[] grown = new byte[data.length * 2];
+					System.arraycopy(data, 0, grown, 0, length);
+					data = grown;
+				}
+				data[length++] = (byte) b;
+				if (b == 0xff)
+					data[length++] = 0;
+			}
+		}
+
+		/**
+		 * Pads the last byte with one bits.
+		 */
+		void flush(){
+			if (count > 0)
+				writeBits((1 << (8 - count)) - 1, 8 - count);
+		}
+	}
+}
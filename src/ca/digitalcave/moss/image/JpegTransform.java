@@ -0,0 +1,414 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lossless rotation, flipping and cropping of JPEG files, in the manner of
+ * jpegtran.  Rather than decoding to pixels and encoding again (which is
+ * slow, and loses quality every time), the file is only entropy decoded:
+ * the 8x8 blocks of DCT coefficients are moved to their new places, and
+ * within each block the coefficients are transposed and / or have their
+ * signs flipped, which is exactly equivalent to transforming the block's
+ * pixels.  The quantization tables are transposed to match, and the
+ * result is entropy encoded with optimized Huffman tables.
+ *
+ * Transforms are given as the operations of Rotator.applyExifOrientation()
+ * (1 - 8), and apply to the image as it is displayed: the file's EXIF
+ * Orientation is applied first, and then reset to 1 in the result, so
+ * that a file never ends up with pixels and an Orientation tag which
+ * disagree.  All APPn and COM segments are kept; in the EXIF segment the
+ * Orientation and pixel dimensions are updated, as is any Orientation in
+ * the XMP packet.  The EXIF thumbnail is left alone.
+ *
+ * Blocks can only move as whole MCUs (8 or 16 pixels square, depending on
+ * chroma subsampling), so, as with jpegtran -trim, a partial MCU at an
+ * edge which would end up at the top or left of the result is dropped,
+ * and the top left corner of a crop is moved up and left to the nearest
+ * MCU boundary.  Only sequential Huffman coded 8 bit JPEGs (by far the
+ * most common kind) are supported; the methods return false (or throw an
+ * IOException) for progressive and other JPEGs.
+ */
+public class JpegTransform {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private static final int TAG_PIXEL_X_DIMENSION = 0xa002;
+	private static final int TAG_PIXEL_Y_DIMENSION = 0xa003;
+
+	//Each orientation as a matrix {xx, xy, yx, yy}, taking source (x, y)
+	// to destination (xx * x + xy * y, yx * x + yy * y) about the centre
+	private static final int[][] MATRICES = {
+		null,
+		{1, 0, 0, 1},
+		{-1, 0, 0, 1},
+		{-1, 0, 0, -1},
+		{1, 0, 0, -1},
+		{0, 1, 1, 0},
+		{0, -1, 1, 0},
+		{0, -1, -1, 0},
+		{0, 1, -1, 0},
+	};
+
+	/**
+	 * Rotates the image clockwise, as displayed, by a multiple of 90 degrees.
+	 * @return true if the transformed image was written
+	 */
+	public static boolean rotate(File source, File destination, int degrees){
+		switch (((degrees % 360) + 360) % 360) {
+		case 0: return transform(source, destination, 1, null);
+		case 90: return transform(source, destination, 6, null);
+		case 180: return transform(source, destination, 3, null);
+		case 270: return transform(source, destination, 8, null);
+		default: throw new IllegalArgumentException("Only multiples of 90 degrees are supported, not " + degrees);
+		}
+	}
+
+	/**
+	 * Mirrors the image, as displayed, left to right.
+	 * @return true if the transformed image was written
+	 */
+	public static boolean flipHorizontal(File source, File destination){
+		return transform(source, destination, 2, null);
+	}
+
+	/**
+	 * Mirrors the image, as displayed, top to bottom.
+	 * @return true if the transformed image was written
+	 */
+	public static boolean flipVertical(File source, File destination){
+		return transform(source, destination, 4, null);
+	}
+
+	/**
+	 * Crops the image, as displayed.  The top left corner is moved to the
+	 * nearest MCU boundary above and to the left.
+	 * @return true if the cropped image was written
+	 */
+	public static boolean crop(File source, File destination, Rectangle crop){
+		return transform(source, destination, 1, crop);
+	}
+
+	/**
+	 * Rotates and / or flips the pixels so that the image is stored the way
+	 * up it is displayed, and resets the EXIF Orientation to 1.
+	 * @return true if the transformed image was written
+	 */
+	public static boolean applyExifOrientation(File source, File destination){
+		return transform(source, destination, 1, null);
+	}
+
+	/**
+	 * Transforms and / or crops a JPEG file.  The destination is written
+	 * to a temporary file first, so it may be the same as the source.
+	 * @param source The JPEG file to read
+	 * @param destination The file to write to
+	 * @param orientation The transform to apply to the displayed image, as
+	 * in Rotator.applyExifOrientation()
+	 * @param crop The area of the transformed image to keep, or null to keep it all
+	 * @return true if the transformed image was written
+	 */
+	public static boolean transform(File source, File destination, int orientation, Rectangle crop){
+		File temp = null;
+		try {
+			byte[] data;
+			RandomAccessFile raf = new RandomAccessFile(source, "r");
+			try {
+				if (raf.length() > Integer.MAX_VALUE)
+					throw new IOException("File is too large");
+				data = new byte[(int) raf.length()];
+				raf.readFully(data);
+			}
+			finally {
+				raf.close();
+			}
+
+			byte[] result = transform(data, orientation, crop);
+
+			File directory = destination.getAbsoluteFile().getParentFile();
+			temp = File.createTempFile(destination.getName(), ".tmp", directory);
+			OutputStream os = new FileOutputStream(temp);
+			try {
+				os.write(result);
+			}
+			finally {
+				os.close();
+			}
+			if (!(temp.renameTo(destination) || (destination.delete() && temp.renameTo(destination))))
+				throw new IOException("Unable to rename " + temp + " to " + destination);
+			temp = null;
+			return true;
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while transforming " + source, ioe);
+			return false;
+		}
+		catch (RuntimeException re){
+			//Bad offsets in damaged files, etc
+			logger.log(Level.WARNING, "Problem encountered while transforming " + source, re);
+			return false;
+		}
+		finally {
+			if (temp != null)
+				temp.delete();
+		}
+	}
+
+	/**
+	 * Transforms and / or crops a JPEG in memory.
+	 * @param jpeg The JPEG file contents
+	 * @param orientation The transform to apply to the displayed image, as
+	 * in Rotator.applyExifOrientation()
+	 * @param crop The area of the transformed image to keep, or null to keep it all
+	 * @return The transformed JPEG
+	 * @throws IOException If the JPEG is damaged or of an unsupported kind,
+	 * or the crop area is outside the image
+	 */
+	public static byte[] transform(byte[] jpeg, int orientation, Rectangle crop) throws IOException {
+		if (orientation < 1 || orientation > 8)
+			throw new IllegalArgumentException("Orientation must be from 1 to 8, not " + orientation);
+
+		JpegCoefficients source = JpegCoefficients.read(jpeg);
+		int combined = combine(getExifOrientation(source), orientation);
+		JpegCoefficients result = transform(source, combined, crop);
+		for (int i = 0; i < result.segments.size(); i++){
+			result.segments.set(i, updateMetadata(result.segments.get(i), result.width, result.height));
+		}
+		return result.write();
+	}
+
+	/**
+	 * @return The orientation which has the effect of applying first and then second
+	 */
+	static int combine(int first, int second){
+		int[] a = MATRICES[first], b = MATRICES[second];
+		int[] product = {
+			b[0] * a[0] + b[1] * a[2], b[0] * a[1] + b[1] * a[3],
+			b[2] * a[0] + b[3] * a[2], b[2] * a[1] + b[3] * a[3]
+		};
+		for (int i = 1; i < MATRICES.length; i++){
+			int[] m = MATRICES[i];
+			if (m[0] == product[0] && m[1] == product[1] && m[2] == product[2] && m[3] == product[3])
+				return i;
+		}
+		throw new IllegalStateException("Unreachable");
+	}
+
+	/**
+	 * Moves (and transforms) the blocks of every component.
+	 */
+	private static JpegCoefficients transform(JpegCoefficients source, int orientation, Rectangle crop) throws IOException {
+		boolean swap = orientation >= 5;
+		//Whether source x (and y) run backwards in the result
+		boolean reverseX = orientation == 2 || orientation == 3 || orientation == 7 || orientation == 8;
+		boolean reverseY = orientation == 3 || orientation == 4 || orientation == 6 || orientation == 7;
+
+		//A partial MCU can't end up at the start of an axis; drop it
+		int mcuWidth = source.getMcuWidth(), mcuHeight = source.getMcuHeight();
+		int trimmedWidth = reverseX ? source.width / mcuWidth * mcuWidth : source.width;
+		int trimmedHeight = reverseY ? source.height / mcuHeight * mcuHeight : source.height;
+		if (trimmedWidth == 0 || trimmedHeight == 0)
+			throw new IOException("Image is smaller than one MCU");
+
+		JpegCoefficients result = new JpegCoefficients();
+		result.segments.addAll(source.segments);
+		result.components = new JpegCoefficients.Component[source.components.length];
+		for (int i = 0; i < source.components.length; i++){
+			JpegCoefficients.Component c = source.components[i].copy();
+			if (swap){
+				c.h = source.components[i].v;
+				c.v = source.components[i].h;
+			}
+			result.components[i] = c;
+		}
+		for (int i = 0; i < source.quantTables.length; i++){
+			int[] table = source.quantTables[i];
+			result.quantTables[i] = table == null ? null : swap ? transpose(table) : table.clone();
+		}
+
+		int width = swap ? trimmedHeight : trimmedWidth;
+		int height = swap ? trimmedWidth : trimmedHeight;
+		int resultMcuWidth = swap ? mcuHeight : mcuWidth;
+		int resultMcuHeight = swap ? mcuWidth : mcuHeight;
+		int cropX = 0, cropY = 0;
+		if (crop != null){
+			cropX = Math.max(crop.x, 0) / resultMcuWidth * resultMcuWidth;
+			cropY = Math.max(crop.y, 0) / resultMcuHeight * resultMcuHeight;
+			int right = Math.min(crop.x + crop.width, width);
+			int bottom = Math.min(crop.y + crop.height, height);
+			if (right <= cropX || bottom <= cropY)
+				throw new IOException("Crop area " + crop + " is outside the " + width + "x" + height + " image");
+			width = right - cropX;
+			height = bottom - cropY;
+		}
+		result.setSize(width, height);
+
+		int[] destinations = new int[64];
+		boolean[] negate = new boolean[64];
+		for (int v = 0; v < 8; v++){
+			for (int u = 0; u < 8; u++){
+				destinations[v * 8 + u] = swap ? u * 8 + v : v * 8 + u;
+				negate[v * 8 + u] = ((reverseX ? u : 0) + (reverseY ? v : 0)) % 2 == 1;
+			}
+		}
+
+		for (int i = 0; i < result.components.length; i++){
+			JpegCoefficients.Component from = source.components[i];
+			JpegCoefficients.Component to = result.components[i];
+			//Size of the (trimmed) source in blocks, used when counting from the far edge
+			int sourceBlocksX = trimmedWidth / mcuWidth * from.h;
+			int sourceBlocksY = trimmedHeight / mcuHeight * from.v;
+			int offsetX = cropX / resultMcuWidth * to.h;
+			int offsetY = cropY / resultMcuHeight * to.v;
+
+			for (int by = 0; by < to.blocksY; by++){
+				for (int bx = 0; bx < to.blocksX; bx++){
+					int x = bx + offsetX, y = by + offsetY;
+					int sx, sy;
+					switch (orientation) {
+					case 2: sx = sourceBlocksX - 1 - x; sy = y; break;
+					case 3: sx = sourceBlocksX - 1 - x; sy = sourceBlocksY - 1 - y; break;
+					case 4: sx = x; sy = sourceBlocksY - 1 - y; break;
+					case 5: sx = y; sy = x; break;
+					case 6: sx = y; sy = sourceBlocksY - 1 - x; break;
+					case 7: sx = sourceBlocksX - 1 - y; sy = sourceBlocksY - 1 - x; break;
+					case 8: sx = sourceBlocksX - 1 - y; sy = x; break;
+					default: sx = x; sy = y;
+					}
+					//Padding blocks past the edge of the source are left as zero
+					if (sx < 0 || sy < 0 || sx >= from.blocksX || sy >= from.blocksY)
+						continue;
+
+					int src = (sy * from.blocksX + sx) * 64;
+					int dst = (by * to.blocksX + bx) * 64;
+					for (int k = 0; k < 64; k++){
+						short value = from.coefficients[src + k];
+						to.coefficients[dst + destinations[k]] = negate[k] ? (short) -value : value;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int[] transpose(int[] table){
+		int[] transposed = new int[64];
+		for (int v = 0; v < 8; v++){
+			for (int u = 0; u < 8; u++)
+				transposed[u * 8 + v] = table[v * 8 + u];
+		}
+		return transposed;
+	}
+
+	/**
+	 * @return The Orientation from the EXIF segment, or 1 if there is none
+	 */
+	private static int getExifOrientation(JpegCoefficients jpeg){
+		for (byte[] segment : jpeg.segments) {
+			ExifReader.Tiff tiff = getExif(segment);
+			if (tiff == null)
+				continue;
+			try {
+				int entry = tiff.findEntry(tiff.getFirstIfd(), ExifReader.TAG_ORIENTATION);
+				if (entry >= 0){
+					int orientation = (int) tiff.getInt(entry, 0);
+					if (orientation >= 1 && orientation <= 8)
+						return orientation;
+				}
+			}
+			catch (RuntimeException re){
+				logger.log(Level.FINE, "Unable to read EXIF orientation; treating it as normal", re);
+			}
+			return 1;
+		}
+		return 1;
+	}
+
+	/**
+	 * @return The TIFF structure inside an EXIF segment, or null if the segment is not EXIF
+	 */
+	private static ExifReader.Tiff getExif(byte[] segment){
+		ByteBuffer data = ByteBuffer.wrap(segment);
+		if ((segment[1] & 0xff) != ExifReader.APP1 || !ExifReader.startsWith(data, 4, segment.length, "Exif\0\0"))
+			return null;
+		ByteBuffer tiff = ExifReader.slice(data, 10, segment.length);
+		if (!ExifReader.Tiff.isTiff(tiff, 0))
+			return null;
+		try {
+			return new ExifReader.Tiff(tiff);
+		}
+		catch (IOException ioe){
+			return null;
+		}
+	}
+
+	/**
+	 * Resets the orientation and updates the pixel dimensions in a copy of
+	 * an EXIF or XMP segment; other segments are returned as they are.
+	 */
+	private static byte[] updateMetadata(byte[] segment, int width, int height){
+		ByteBuffer data = ByteBuffer.wrap(segment);
+		if (getExif(segment) != null){
+			segment = segment.clone();
+			ExifReader.Tiff tiff = getExif(segment);
+			try {
+				int ifd = tiff.getFirstIfd();
+				int entry = tiff.findEntry(ifd, ExifReader.TAG_ORIENTATION);
+				if (entry >= 0 && tiff.getCount(entry) == 1)
+					tiff.setInt(entry, 0, 1);
+				int exifIfd = tiff.findEntry(ifd, ExifReader.TAG_EXIF_IFD);
+				if (exifIfd >= 0){
+					exifIfd = (int) tiff.getInt(exifIfd, 0);
+					entry = tiff.findEntry(exifIfd, TAG_PIXEL_X_DIMENSION);
+					if (entry >= 0 && tiff.getCount(entry) == 1)
+						tiff.setInt(entry, 0, width);
+					entry = tiff.findEntry(exifIfd, TAG_PIXEL_Y_DIMENSION);
+					if (entry >= 0 && tiff.getCount(entry) == 1)
+						tiff.setInt(entry, 0, height);
+				}
+			}
+			catch (RuntimeException re){
+				logger.log(Level.FINE, "Unable to update EXIF orientation and dimensions", re);
+			}
+		}
+		else if ((segment[1] & 0xff) == ExifReader.APP1 && ExifReader.startsWith(data, 4, segment.length, "http://ns.adobe.com/xap/1.0/\0")){
+			//Orientation is a single digit, so it can be replaced in place
+			// whether it is an attribute or an element
+			segment = segment.clone();
+			resetXmpOrientation(segment, "tiff:Orientation=\"");
+			resetXmpOrientation(segment, "tiff:Orientation='");
+			resetXmpOrientation(segment, "<tiff:Orientation>");
+		}
+		return segment;
+	}
+
+	private static void resetXmpOrientation(byte[] segment, String prefix){
+		byte[] pattern;
+		try {
+			pattern = prefix.getBytes("US-ASCII");
+		}
+		catch (UnsupportedEncodingException uee){
+			throw new IllegalStateException(uee);
+		}
+		outer: for (int i = 0; i + pattern.length < segment.length; i++){
+			for (int j = 0; j < pattern.length; j++){
+				if (segment[i + j] != pattern[j])
+					continue outer;
+			}
+			int digit = i + pattern.length;
+			if (segment[digit] >= '1' && segment[digit] <= '8' && digit + 1 < segment.length && (segment[digit + 1] < '0' || segment[digit + 1] > '9'))
+				segment[digit] = '1';
+		}
+	}
+}
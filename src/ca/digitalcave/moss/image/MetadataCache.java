@@ -0,0 +1,340 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the tag values read by ExifToolWrapper.getTagsFromFiles(), so that
+ * asking again for the same tags of an unchanged file does not start
+ * exiftool.  Set it with ExifToolWrapper.setMetadataCache().
+ *
+ * Entries are keyed by absolute path, and are only used while the file's
+ * size and modification time are the same as when it was read; the tags
+ * found and the tags known to be missing are both remembered, and tags read
+ * by later calls are merged in.  Files written through the wrapper's
+ * setTagsToFile(s) methods are invalidated straight away, regardless of
+ * timestamps.
+ *
+ * A bounded number of entries are kept in memory, in least recently used
+ * order.  Optionally, every entry is also appended to a store file (a
+ * RecordStore), which keeps entries across restarts and beyond the in
+ * memory limit: only the offset of each path's latest record is held in
+ * memory, and the record is read back when needed.  The store is compacted
+ * (rewritten with only the latest record of each path) when the cache is
+ * opened.
+ *
+ * If a FingerprintIndex is set, a file which is not cached but is a byte
+ * for byte copy of one which is gets a copy of that file's entry, so the
+ * tags of duplicates are not read again; tags from the file system, such
+ * as FileName and FileModifyDate, are still read for each file.  Only
+ * fingerprints which are already in the index are used (e.g. those
+ * computed by DirectoryIngest), since hashing every file on a miss could
+ * cost more than exiftool.
+ */
+public class MetadataCache {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private static final int STORE_MAGIC = 0x4d4d4331; //'MMC1'
+	//exiftool's System group (less FileSize, which copies share), and SourceFile
+	private static final Set<String> PER_FILE_TAGS = new HashSet<String>(Arrays.asList(
+			"SourceFile", "FileName", "Directory", "FileModifyDate", "FileAccessDate",
+			"FileInodeChangeDate", "FileCreateDate", "FilePermissions", "FileAttributes",
+			"FileDeviceNumber", "FileInodeNumber", "FileHardLinks", "FileUserID", "FileGroupID",
+			"FileDeviceID", "FileBlockSize", "FileBlockCount"));
+
+	private final int maxEntries;
+	private final LinkedHashMap<String, CachedTags> entries;
+
+	private final RecordStore<CachedTags> store;
+	//Path -> offset of the latest record in the store
+	private final Map<String, Long> storeIndex = new HashMap<String, Long>();
+
+	private long hits = 0;
+	private long misses = 0;
+
+	private FingerprintIndex fingerprints;
+
+	/**
+	 * Creates an in memory cache.
+	 * @param maxEntries The maximum number of files to keep entries for
+	 */
+	public MetadataCache(int maxEntries) {
+		this(maxEntries, null);
+	}
+
+	/**
+	 * Creates a cache backed by the given store file, which is created if
+	 * needed and compacted if it already exists.  A damaged store is read
+	 * up to the first bad record; if the store cannot be written at all, the
+	 * cache works in memory only.
+	 * @param maxEntries The maximum number of files to keep entries for in memory
+	 * @param store The store file, or null for an in memory cache
+	 */
+	public MetadataCache(int maxEntries, File store) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CachedTags>(Math.min(maxEntries, 1024), 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedTags> eldest) {
+				return size() > MetadataCache.this.maxEntries;
+			}
+		};
+		this.store = new RecordStore<CachedTags>(store, STORE_MAGIC, "metadata cache store", new RecordStore.Codec<CachedTags>() {
+			public void write(DataOutputStream dos, CachedTags entry) throws IOException {
+				dos.writeLong(entry.size);
+				dos.writeLong(entry.modified);
+				dos.writeInt(entry.values.size());
+				for (Map.Entry<String, String> value : entry.values.entrySet()) {
+					RecordStore.writeString(dos, value.getKey());
+					RecordStore.writeString(dos, value.getValue());
+				}
+				dos.writeInt(entry.missing.size());
+				for (String tagName : entry.missing)
+					RecordStore.writeString(dos, tagName);
+			}
+
+			public CachedTags read(DataInputStream dis, String path) throws IOException {
+				CachedTags entry = new CachedTags(dis.readLong(), dis.readLong());
+				int count = dis.readInt();
+				for (int i = 0; i < count; i++)
+					entry.values.put(RecordStore.readString(dis), RecordStore.readString(dis));
+				count = dis.readInt();
+				for (int i = 0; i < count; i++)
+					entry.missing.add(RecordStore.readString(dis));
+				return entry;
+			}
+		});
+		compact();
+	}
+
+	/**
+	 * Serves the entries of byte for byte copies from each other.
+	 * @param fingerprints The index to find copies in, or null
+	 */
+	public synchronized void setFingerprintIndex(FingerprintIndex fingerprints) {
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * Returns the cached values of the given tags, if all of them are known
+	 * for the file as it is now.
+	 * @return A map of the tags which the file has to their values, or null
+	 * if the file is not cached, has changed, or some of the tags have not
+	 * been read yet.
+	 */
+	public synchronized Map<String, String> get(File file, Set<String> tagNames){
+		String path = file.getAbsolutePath();
+		CachedTags entry = getEntry(path);
+		if (entry == null || entry.size != file.length() || entry.modified != file.lastModified()){
+			if (entry != null)
+				invalidate(file);
+			entry = copyFromIdentical(file);
+			if (entry == null){
+				misses++;
+				return null;
+			}
+		}
+		Map<String, String> result = new HashMap<String, String>();
+		for (String tagName : tagNames) {
+			String value = entry.values.get(tagName);
+			if (value != null)
+				result.put(tagName, value);
+			else if (!entry.missing.contains(tagName)){
+				misses++;
+				return null;
+			}
+		}
+		hits++;
+		return result;
+	}
+
+	/**
+	 * Records the values read for a file.  Tags which were asked for but not
+	 * found are remembered as missing.
+	 * @param file The file the values were read from
+	 * @param size The size of the file before it was read
+	 * @param modified The modification time of the file before it was read
+	 * @param tagNames The tags which were asked for
+	 * @param values The tags found, and their values
+	 */
+	public synchronized void put(File file, long size, long modified, Set<String> tagNames, Map<String, String> values){
+		String path = file.getAbsolutePath();
+		CachedTags entry = getEntry(path);
+		if (entry == null || entry.size != size || entry.modified != modified)
+			entry = new CachedTags(size, modified);
+
+		for (String tagName : tagNames) {
+			String value = values.get(tagName);
+			if (value != null){
+				entry.values.put(tagName, value);
+				entry.missing.remove(tagName);
+			}
+			else {
+				entry.values.remove(tagName);
+				entry.missing.add(tagName);
+			}
+		}
+		entries.put(path, entry);
+		append(path, entry);
+	}
+
+	/**
+	 * Forgets everything cached for the given file.
+	 */
+	public synchronized void invalidate(File file){
+		String path = file.getAbsolutePath();
+		entries.remove(path);
+		if (storeIndex.remove(path) != null){
+			store.remove(path);
+			store.flush();
+		}
+	}
+
+	/**
+	 * Forgets everything.
+	 */
+	public synchronized void clear(){
+		entries.clear();
+		store.compact(new HashMap<String, CachedTags>(), storeIndex);
+	}
+
+	/**
+	 * Rewrites the store file with only the latest record for each path.
+	 * This is done automatically when the cache is opened.
+	 */
+	public synchronized void compact(){
+		store.close();
+		store.compact(store.read(), storeIndex);
+	}
+
+	/**
+	 * Closes the store file.  Records are written as they are added, so
+	 * nothing is lost if this is not called; after it has been called, the
+	 * cache only holds entries in memory.
+	 */
+	public synchronized void close(){
+		store.close();
+	}
+
+	/**
+	 * @return The number of lookups which were answered from the cache
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups which were not
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+
+	/**
+	 * Copies the entry of a byte for byte copy of the file, if one is cached
+	 * and up to date, to the file.  Tags which describe the file rather
+	 * than its contents (see isPerFileTag()) are left out, so that they
+	 * are read for the file itself.
+	 * @return The file's new entry, or null
+	 */
+	private CachedTags copyFromIdentical(File file){
+		if (fingerprints == null)
+			return null;
+		for (File identical : fingerprints.findIdentical(file)) {
+			CachedTags original = getEntry(identical.getAbsolutePath());
+			if (original == null || original.size != identical.length() || original.modified != identical.lastModified())
+				continue;
+			CachedTags entry = new CachedTags(file.length(), file.lastModified());
+			for (Map.Entry<String, String> value : original.values.entrySet()) {
+				if (!isPerFileTag(value.getKey()))
+					entry.values.put(value.getKey(), value.getValue());
+			}
+			for (String tagName : original.missing) {
+				if (!isPerFileTag(tagName))
+					entry.missing.add(tagName);
+			}
+			String path = file.getAbsolutePath();
+			entries.put(path, entry);
+			append(path, entry);
+			return entry;
+		}
+		return null;
+	}
+
+	/**
+	 * Whether the tag comes from the file system rather than the file's
+	 * contents (exiftool's System group, and SourceFile), so that byte for
+	 * byte copies can have different values.  Tag names may have a group
+	 * prefix (e.g. "System:FileName").
+	 */
+	static boolean isPerFileTag(String tagName){
+		int colon = tagName.lastIndexOf(':');
+		if (colon >= 0){
+			String group = tagName.substring(0, colon);
+			if (group.equals("System") || group.endsWith(":System"))
+				return true;
+			tagName = tagName.substring(colon + 1);
+		}
+		return PER_FILE_TAGS.contains(tagName) || tagName.startsWith("XAttr") || tagName.startsWith("MDItem");
+	}
+
+	/**
+	 * Returns the entry for the path from memory, or failing that from the store.
+	 */
+	private CachedTags getEntry(String path){
+		CachedTags entry = entries.get(path);
+		if (entry != null || !store.isOpen())
+			return entry;
+
+		Long offset = storeIndex.get(path);
+		if (offset == null)
+			return null;
+		try {
+			entry = store.read(offset, path);
+			entries.put(path, entry);
+			return entry;
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Unable to read metadata cache store", ioe);
+			storeIndex.remove(path);
+			return null;
+		}
+	}
+
+	/**
+	 * Appends a record of the entry to the store.
+	 */
+	private void append(String path, CachedTags entry){
+		long offset = store.put(path, entry);
+		//Written straight away, so that nothing is lost if close() is not called
+		store.flush();
+		if (offset >= 0 && store.isOpen())
+			storeIndex.put(path, offset);
+	}
+
+	private static class CachedTags {
+		private final long size;
+		private final long modified;
+		private final Map<String, String> values = new HashMap<String, String>();
+		private final Set<String> missing = new HashSet<String>();
+
+		CachedTags(long size, long modified) {
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+}
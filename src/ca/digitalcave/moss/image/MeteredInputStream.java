@@ -0,0 +1,105 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Wraps exiftool's output while it is parsed, timing how long the reader
+ * is blocked waiting for exiftool (which is exiftool's run time) and how
+ * long it spends on everything else (which is the parse time).  Both are
+ * recorded in ImageMetrics when the stream is closed.
+ */
+class MeteredInputStream extends FilterInputStream {
+
+	private final boolean recordRun;
+	private final File file;
+	private final int fileCount;
+	private final long created = System.nanoTime();
+	private long readNanos = 0;
+	private long bytes = 0;
+	private boolean failed = false;
+	private boolean closed = false;
+
+	/**
+	 * @param recordRun Whether to record the time blocked reading as exiftool's
+	 * run time; false if the output was already read (by a pooled process)
+	 * @param file The first file exiftool is running on, or null
+	 * @param fileCount The number of files exiftool is running on
+	 */
+	MeteredInputStream(InputStream in, boolean recordRun, File file, int fileCount) {
+		super(in);
+		this.recordRun = recordRun;
+		this.file = file;
+		this.fileCount = fileCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		long start = System.nanoTime();
+		try {
+			int c = super.read();
+			if (c >= 0)
+				bytes++;
+			return c;
+		}
+		catch (IOException ioe){
+			failed = true;
+			throw ioe;
+		}
+		finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		try {
+			int count = super.read(b, off, len);
+			if (count > 0)
+				bytes += count;
+			return count;
+		}
+		catch (IOException ioe){
+			failed = true;
+			throw ioe;
+		}
+		finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long count = super.skip(n);
+			bytes += count;
+			return count;
+		}
+		finally {
+			readNanos += System.nanoTime() - start;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		}
+		finally {
+			if (!closed){
+				closed = true;
+				long total = System.nanoTime() - created;
+				if (recordRun)
+					ImageMetrics.recordNanos(ImageMetrics.EXIFTOOL_RUN, readNanos, file, fileCount, -1, -1, bytes, 0, !failed);
+				ImageMetrics.recordNanos(ImageMetrics.EXIFTOOL_PARSE, recordRun ? total - readNanos : total, file, fileCount, -1, -1, bytes, 0, !failed);
+			}
+		}
+	}
+}
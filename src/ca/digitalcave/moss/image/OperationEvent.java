@@ -0,0 +1,109 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+
+/**
+ * A single completed operation, as passed to OperationListeners.  Values
+ * which do not apply to the operation (the size of an exiftool call, the
+ * file of a resample) are -1, or null for the file.
+ */
+public class OperationEvent {
+	private final String operation;
+	private final File file;
+	private final int fileCount;
+	private final int width;
+	private final int height;
+	private final long durationNanos;
+	private final long bytesIn;
+	private final long bytesOut;
+	private final boolean success;
+
+	OperationEvent(String operation, File file, int fileCount, int width, int height, long durationNanos, long bytesIn, long bytesOut, boolean success) {
+		this.operation = operation;
+		this.file = file;
+		this.fileCount = fileCount;
+		this.width = width;
+		this.height = height;
+		this.durationNanos = durationNanos;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.success = success;
+	}
+
+	/**
+	 * @return The name of the operation; one of the ImageMetrics constants
+	 */
+	public String getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return The file operated on; the first of them for operations on
+	 * several files
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The number of files operated on (0 for operations on images
+	 * in memory)
+	 */
+	public int getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @return The width of the image produced (decoded, scaled, ...)
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * @return The bytes read: the size of the file decoded, or the output
+	 * read from exiftool
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return The bytes written: the size of the encoded image
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(operation);
+		sb.append(success ? " took " : " failed after ").append(durationNanos / 1000000).append(" ms");
+		if (file != null){
+			sb.append(": ").append(file.getPath());
+			if (fileCount > 1)
+				sb.append(" (and ").append(fileCount - 1).append(" other files)");
+		}
+		else if (fileCount > 1){
+			sb.append(": ").append(fileCount).append(" files");
+		}
+		if (width >= 0 && height >= 0)
+			sb.append(file != null || fileCount > 1 ? ", " : ": ").append(width).append("x").append(height);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,17 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * Receives an event for each image or exiftool operation which completes
+ * while metrics are enabled; see ImageMetrics.addListener().
+ */
+public interface OperationListener {
+	/**
+	 * Called on the thread which ran the operation, straight after it
+	 * completes, so this should return quickly.  Exceptions are logged and
+	 * otherwise ignored.
+	 */
+	public void operationCompleted(OperationEvent event);
+}
@@ -0,0 +1,175 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts, failures, bytes and a latency histogram for one operation.
+ * Recording is lock free, so many threads can record at once; the
+ * values read while they do may be a little out of step with each other.
+ *
+ * Latencies are kept in a histogram of nanoseconds with four buckets per
+ * power of two, so that percentiles are accurate to within about 12%
+ * over any range, in a fixed 2k of memory per operation.
+ */
+public class OperationStats implements OperationStatsMBean {
+
+	//Values below this get a bucket each; above it, four buckets per power of two
+	private static final int LINEAR = 8;
+	private static final int BUCKETS = LINEAR + (63 - 3) * 4;
+
+	private final String operation;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	OperationStats(String operation) {
+		this.operation = operation;
+	}
+
+	void record(long nanos, long in, long out, boolean success){
+		if (nanos < 0)
+			nanos = 0;
+		count.incrementAndGet();
+		if (!success)
+			failures.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+		if (in > 0)
+			bytesIn.addAndGet(in);
+		if (out > 0)
+			bytesOut.addAndGet(out);
+		histogram.incrementAndGet(getBucket(nanos));
+	}
+
+	static int getBucket(long nanos){
+		if (nanos < LINEAR)
+			return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		return LINEAR + (exponent - 3) * 4 + (int) ((nanos >> (exponent - 2)) & 3);
+	}
+
+	/**
+	 * @return The smallest value which falls in the given bucket
+	 */
+	static long getBucketStart(int bucket){
+		if (bucket < LINEAR)
+			return bucket;
+		int exponent = (bucket - LINEAR) / 4 + 3;
+		return (4L + (bucket - LINEAR) % 4) << (exponent - 2);
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	public long getTotalNanos() {
+		return totalNanos.get();
+	}
+
+	public double getTotalTimeMillis() {
+		return totalNanos.get() / 1000000.0;
+	}
+
+	public double getMeanTimeMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+	}
+
+	public double getMaxTimeMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	public double getMedianTimeMillis() {
+		return getPercentileTimeMillis(50);
+	}
+
+	public double getP90TimeMillis() {
+		return getPercentileTimeMillis(90);
+	}
+
+	public double getP99TimeMillis() {
+		return getPercentileTimeMillis(99);
+	}
+
+	public double getPercentileTimeMillis(double percentile) {
+		return getPercentileNanos(percentile) / 1000000.0;
+	}
+
+	/**
+	 * @param percentile From 0 to 100
+	 * @return The middle of the histogram bucket which holds the given
+	 * percentile, or 0 if nothing has been recorded
+	 */
+	public long getPercentileNanos(double percentile){
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			counts[i] = histogram.get(i);
+			total += counts[i];
+		}
+		if (total == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100.0 * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++){
+			seen += counts[i];
+			if (seen >= rank){
+				long start = getBucketStart(i);
+				long end = i + 1 < BUCKETS ? getBucketStart(i + 1) : Long.MAX_VALUE;
+				long middle = start + (end - start) / 2;
+				//The bucket may be wider than anything actually recorded
+				return Math.min(middle, maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * Sets everything back to zero.  Operations recorded while this runs
+	 * may be partly kept.
+	 */
+	public void reset() {
+		count.set(0);
+		failures.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+		for (int i = 0; i < BUCKETS; i++)
+			histogram.set(i, 0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d calls, %d failed, mean %.2f ms, median %.2f ms, 99%% %.2f ms, max %.2f ms, %d bytes in, %d bytes out",
+				operation, getCount(), getFailures(), getMeanTimeMillis(), getMedianTimeMillis(), getP99TimeMillis(), getMaxTimeMillis(), getBytesIn(), getBytesOut());
+	}
+}
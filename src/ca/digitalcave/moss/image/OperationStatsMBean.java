@@ -0,0 +1,39 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * The JMX view of an OperationStats.  Times are in milliseconds;
+ * percentiles are estimated from a histogram, to within about 12%.
+ */
+public interface OperationStatsMBean {
+	public String getOperation();
+
+	public long getCount();
+
+	public long getFailures();
+
+	public double getTotalTimeMillis();
+
+	public double getMeanTimeMillis();
+
+	public double getMaxTimeMillis();
+
+	public double getMedianTimeMillis();
+
+	public double getP90TimeMillis();
+
+	public double getP99TimeMillis();
+
+	/**
+	 * @param percentile From 0 to 100
+	 */
+	public double getPercentileTimeMillis(double percentile);
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	public void reset();
+}
@@ -0,0 +1,127 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The per pixel inner loops of Resampler: unpacking interleaved byte
+ * rasters into packed ints, converting between INT_ARGB and INT_RGB, and
+ * the horizontal and vertical filter passes.  Every method works on a
+ * range of rows (or pixels) only, so callers can split the work into
+ * bands with RowBandTask.
+ *
+ * The implementation is chosen once, when the class is loaded.  If the
+ * VectorKernels class (from vector/src, built on Java 16 or later) is on
+ * the classpath and the JVM was started with
+ * --add-modules jdk.incubator.vector, the SIMD kernels are used; otherwise
+ * ScalarKernels is.  Setting the system property moss.image.kernels to
+ * "scalar" forces the scalar kernels.  All implementations produce exactly
+ * the same pixels, since the filter arithmetic is integer only.
+ */
+abstract class PixelKernels {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	//Fixed point precision of the filter weights.  With 8 bit channels
+	// this leaves headroom for the negative lobes of bicubic / lanczos.
+	static final int PRECISION_BITS = 32 - 8 - 2;
+	static final int ROUNDING = 1 << (PRECISION_BITS - 1);
+
+	private static final PixelKernels kernels = load();
+
+	/**
+	 * @return The kernels chosen for this JVM
+	 */
+	static PixelKernels get(){
+		return kernels;
+	}
+
+	private static PixelKernels load(){
+		if (!"scalar".equals(System.getProperty("moss.image.kernels"))){
+			try {
+				PixelKernels vector = (PixelKernels) Class.forName("ca.digitalcave.moss.image.VectorKernels").getDeclaredConstructor().newInstance();
+				if (vector.isSupported())
+					return vector;
+				logger.fine("SIMD kernels are not supported on this hardware; using scalar kernels");
+			}
+			catch (ClassNotFoundException cnfe){
+				logger.fine("SIMD kernels are not on the classpath; using scalar kernels");
+			}
+			catch (LinkageError le){
+				logger.fine("SIMD kernels need Java 16 or later, started with --add-modules jdk.incubator.vector; using scalar kernels");
+			}
+			catch (Exception e){
+				logger.log(Level.WARNING, "Unable to load SIMD kernels; using scalar kernels", e);
+			}
+		}
+		return new ScalarKernels();
+	}
+
+	/**
+	 * @return A short description of the implementation, e.g. "scalar"
+	 */
+	abstract String getName();
+
+	/**
+	 * @return Whether this implementation will run efficiently here
+	 */
+	boolean isSupported(){
+		return true;
+	}
+
+	/**
+	 * Converts rows [rowStart, rowEnd) of an interleaved byte raster into
+	 * packed non-premultiplied ARGB, width pixels per row.  Pixels without
+	 * alpha are made opaque; gray pixels have the same value in each channel.
+	 */
+	abstract void unpack(Resampler.ByteLayout src, int[] dst, int width, int rowStart, int rowEnd);
+
+	/**
+	 * Composites pixels [from, to) of src, in ARGB, over black, storing
+	 * the (opaque) result in dst.  This is what drawing an INT_ARGB image
+	 * on a new INT_RGB image does.  src and dst may be the same array.
+	 */
+	abstract void flatten(int[] src, int[] dst, int from, int to);
+
+	/**
+	 * Copies pixels [from, to) of src to dst, making them opaque; this
+	 * converts INT_RGB to INT_ARGB.  src and dst may be the same array.
+	 */
+	abstract void opaque(int[] src, int[] dst, int from, int to);
+
+	/**
+	 * Filters source rows [rowStart, rowEnd) horizontally, from srcWidth
+	 * to the width described by the coefficients.
+	 */
+	abstract void horizontalPass(int[] src, int srcWidth, int[] dst, int dstWidth, Resampler.Coefficients c, int rowStart, int rowEnd);
+
+	/**
+	 * Filters destination rows [rowStart, rowEnd) vertically.  Both src and
+	 * dst are width pixels wide.
+	 */
+	abstract void verticalPass(int[] src, int[] dst, int width, Resampler.Coefficients c, int rowStart, int rowEnd);
+
+	/**
+	 * Returns round(c * a / 255), without dividing.
+	 */
+	static int multiply(int c, int a){
+		int x = c * a + 128;
+		return (x + (x >> 8)) >> 8;
+	}
+
+	static int pack(int a, int r, int g, int b){
+		return (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+	}
+
+	static int clamp(int value){
+		value >>= PRECISION_BITS;
+		if (value < 0)
+			return 0;
+		if (value > 255)
+			return 255;
+		return value;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the exiftool processes used by one operation, so that
+ * they can be killed if the operation times out or is cancelled.  The
+ * tracker for the running operation is held in a thread local; the code
+ * which starts (or borrows) a process registers it with current(), if
+ * there is one.
+ *
+ * Killing a process makes the operation's pending read fail, which ends
+ * the operation.  Processes started after kill() are killed straight away.
+ */
+class ProcessTracker {
+
+	private static final ThreadLocal<ProcessTracker> current = new ThreadLocal<ProcessTracker>();
+
+	//Process or ExifToolProcess
+	private final List<Object> processes = new ArrayList<Object>();
+	private boolean killed = false;
+
+	/**
+	 * @return The tracker for the operation running on this thread, or null
+	 */
+	static ProcessTracker current(){
+		return current.get();
+	}
+
+	/**
+	 * Sets (or with null, clears) the tracker for this thread.
+	 */
+	static void setCurrent(ProcessTracker tracker){
+		if (tracker == null)
+			current.remove();
+		else
+			current.set(tracker);
+	}
+
+	void add(Process process){
+		if (register(process))
+			process.destroy();
+	}
+
+	void add(ExifToolProcess process){
+		if (register(process))
+			process.destroy();
+	}
+
+	/**
+	 * Stops tracking a pooled process, which is about to be returned to
+	 * the pool and used by other operations.
+	 */
+	synchronized void remove(ExifToolProcess process){
+		processes.remove(process);
+	}
+
+	/**
+	 * Kills all the processes in use by the operation, and any which it
+	 * starts later.
+	 */
+	void kill(){
+		List<Object> toKill;
+		synchronized (this) {
+			killed = true;
+			toKill = new ArrayList<Object>(processes);
+			processes.clear();
+		}
+		for (Object process : toKill) {
+			if (process instanceof Process)
+				((Process) process).destroy();
+			else
+				((ExifToolProcess) process).destroy();
+		}
+	}
+
+	synchronized boolean isKilled(){
+		return killed;
+	}
+
+	/**
+	 * @return true if the process should be killed straight away
+	 */
+	private synchronized boolean register(Object process){
+		if (killed)
+			return true;
+		processes.add(process);
+		return false;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An append only file of keyed records, which keeps the state of
+ * MetadataCache, IngestJournal and FingerprintIndex across restarts.  Each
+ * record either puts a value for a key or removes the key, so the state is
+ * the latest record of each key.  The owner holds that state (or, like
+ * MetadataCache, where to find it), and supplies a Codec for its values;
+ * the store only frames, reads back and compacts the records.
+ *
+ * Records are buffered by put() and remove() until flush().  A file which
+ * is damaged (most likely by a crash part way through a write) is read up
+ * to the first bad record.  If the file cannot be written, the store closes
+ * itself, and the owner carries on in memory only.  A store without a file
+ * does nothing.
+ */
+class RecordStore<V> {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+	//Superseded records allowed before compacting, beyond the live ones
+	private static final int COMPACT_SLACK = 10000;
+
+	/**
+	 * Encodes the values of a store.
+	 */
+	interface Codec<V> {
+		public void write(DataOutputStream dos, V value) throws IOException;
+		public V read(DataInputStream dis, String key) throws IOException;
+	}
+
+	private final File file;
+	private final int magic;
+	private final String name;
+	private final Codec<V> codec;
+
+	private RandomAccessFile storeFile;
+	//Records not yet written
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private final DataOutputStream bufferStream = new DataOutputStream(buffer);
+	//The length of the file once the buffer has been written
+	private long length = 0;
+	//Records in the file and buffer, whether superseded or not
+	private long records = 0;
+
+	/**
+	 * Creates a store, which is not open until compact() is called.
+	 * @param file The file, or null for a store which does nothing
+	 * @param magic The first int of the file, which identifies the format
+	 * @param name What the file is, for log messages (e.g. "ingest journal")
+	 * @param codec Encodes the values
+	 */
+	RecordStore(File file, int magic, String name, Codec<V> codec) {
+		this.file = file;
+		this.magic = magic;
+		this.name = name;
+		this.codec = codec;
+	}
+
+	/**
+	 * @return Whether records are being written to the file
+	 */
+	boolean isOpen(){
+		return storeFile != null;
+	}
+
+	/**
+	 * Reads the latest value of each key from the file.
+	 * @return The values, in the order their keys were first put
+	 */
+	Map<String, V> read(){
+		Map<String, V> live = new LinkedHashMap<String, V>();
+		if (file == null || !file.isFile())
+			return live;
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (dis.readInt() != magic)
+				throw new IOException("Not a " + name);
+			while (true){
+				byte type;
+				try {
+					type = dis.readByte();
+				}
+				catch (EOFException eofe){
+					break;
+				}
+				String key = readString(dis);
+				if (type == RECORD_PUT)
+					live.put(key, codec.read(dis, key));
+				else if (type == RECORD_REMOVE)
+					live.remove(key);
+				else
+					throw new IOException("Bad record type " + type);
+			}
+		}
+		catch (IOException ioe){
+			//Most likely a partial record from a crash; keep what we have
+			logger.log(Level.WARNING, "The " + name + " " + file + " is damaged; keeping " + live.size() + " entries", ioe);
+		}
+		finally {
+			close(dis, file);
+		}
+		return live;
+	}
+
+	/**
+	 * Reads back the value of the put record at the given offset.  Buffered
+	 * records are written first.
+	 * @param offset The offset of the record, from put() or compact()
+	 * @param key The key the record should be for
+	 * @throws IOException If the store is not open, or the record is not a
+	 * put record for the key
+	 */
+	V read(long offset, String key) throws IOException {
+		flush();
+		if (storeFile == null)
+			throw new IOException("The " + name + " " + file + " is not open");
+		//put() and flush() always seek to the end before writing, so there is no need to restore the position
+		storeFile.seek(offset);
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(storeFile.getChannel())));
+		if (dis.readByte() != RECORD_PUT || !key.equals(readString(dis)))
+			throw new IOException("No record for " + key + " at " + offset);
+		return codec.read(dis, key);
+	}
+
+	/**
+	 * Buffers a record of the key's value.
+	 * @return The offset the record will have in the file, or -1 if the
+	 * store is not open
+	 */
+	long put(String key, V value){
+		if (storeFile == null)
+			return -1;
+		long offset = length;
+		int start = buffer.size();
+		try {
+			bufferStream.writeByte(RECORD_PUT);
+			writeString(bufferStream, key);
+			codec.write(bufferStream, value);
+		}
+		catch (IOException ioe){
+			//Not thrown by a ByteArrayOutputStream
+			logger.log(Level.WARNING, "Problem encountered while buffering " + name + " record", ioe);
+		}
+		length += buffer.size() - start;
+		records++;
+		return offset;
+	}
+
+	/**
+	 * Buffers a record of the key's removal.
+	 */
+	void remove(String key){
+		if (storeFile == null)
+			return;
+		int start = buffer.size();
+		try {
+			bufferStream.writeByte(RECORD_REMOVE);
+			writeString(bufferStream, key);
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while buffering " + name + " record", ioe);
+		}
+		length += buffer.size() - start;
+		records++;
+	}
+
+	/**
+	 * Writes the buffered records to the file.
+	 */
+	void flush(){
+		if (buffer.size() == 0)
+			return;
+		if (storeFile != null){
+			try {
+				storeFile.seek(storeFile.length());
+				storeFile.write(buffer.toByteArray());
+			}
+			catch (IOException ioe){
+				logger.log(Level.WARNING, "Unable to write to " + name + " " + file + "; continuing in memory only", ioe);
+				closeFile();
+			}
+		}
+		buffer.reset();
+	}
+
+	/**
+	 * @param live The number of live entries
+	 * @return Whether the file holds so many superseded records that it
+	 * should be compacted
+	 */
+	boolean isWasteful(int live){
+		return storeFile != null && records > live + COMPACT_SLACK;
+	}
+
+	/**
+	 * Rewrites the file with only the given values, swaps it in, and opens
+	 * it for appending.  Buffered records are dropped, as the values should
+	 * include them.  If the file cannot be written, the store is left closed.
+	 * @param live The latest value of each key
+	 * @param offsets If not null, cleared and filled with the offset of
+	 * each key's record
+	 */
+	void compact(Map<String, V> live, Map<String, Long> offsets){
+		if (file == null)
+			return;
+		closeFile();
+		buffer.reset();
+		if (offsets != null)
+			offsets.clear();
+
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			dos.writeInt(magic);
+			for (Map.Entry<String, V> entry : live.entrySet()) {
+				if (offsets != null)
+					offsets.put(entry.getKey(), (long) dos.size());
+				dos.writeByte(RECORD_PUT);
+				writeString(dos, entry.getKey());
+				codec.write(dos, entry.getValue());
+			}
+			dos.close();
+			dos = null;
+			if (!temp.renameTo(file)){
+				file.delete();
+				if (!temp.renameTo(file))
+					throw new IOException("Unable to replace " + file);
+			}
+			storeFile = new RandomAccessFile(file, "rw");
+			length = storeFile.length();
+			records = live.size();
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Unable to write " + name + " " + file + "; continuing in memory only", ioe);
+			if (offsets != null)
+				offsets.clear();
+		}
+		finally {
+			close(dos, temp);
+		}
+	}
+
+	/**
+	 * Writes any buffered records, and closes the file.
+	 */
+	void close(){
+		flush();
+		closeFile();
+	}
+
+	private void closeFile(){
+		if (storeFile != null){
+			try {
+				storeFile.close();
+			}
+			catch (IOException ioe){
+				logger.log(Level.FINE, "Problem encountered while closing " + file, ioe);
+			}
+			storeFile = null;
+		}
+	}
+
+	private static void close(Closeable closeable, File file){
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "Problem encountered while closing " + file, ioe);
+		}
+	}
+
+	//Not writeUTF(), which is limited to 64k
+	static void writeString(DataOutputStream dos, String string) throws IOException {
+		byte[] bytes = string.getBytes("UTF-8");
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+
+	static String readString(DataInputStream dis) throws IOException {
+		int length = dis.readInt();
+		if (length < 0)
+			throw new IOException("Bad string length " + length);
+		byte[] bytes = new byte[length];
+		dis.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
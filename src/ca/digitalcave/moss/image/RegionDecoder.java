@@ -0,0 +1,112 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes rectangular regions of an image file, optionally subsampled,
+ * without ever decoding the rest of the image into memory; this is the
+ * only way to work with images (gigapixel scans etc) which are too large
+ * to decode at once.  The file is opened once, and the reader is kept
+ * for any number of reads, until close() is called.
+ *
+ * How cheap a region is depends on the format: tiled or stripped TIFFs
+ * only decode the tiles or strips which overlap the region, but JPEG
+ * (and PNG) readers decode every row above the region as well, so reading
+ * such an image in bands from top to bottom costs more for each band.
+ * Instances are not thread safe.
+ */
+public class RegionDecoder implements Closeable {
+
+	private final File file;
+	private final ImageInputStream input;
+	private final ImageReader reader;
+	private final int width;
+	private final int height;
+
+	/**
+	 * Opens the file and reads its header.
+	 * @throws IOException If the file cannot be read, or there is no reader for it
+	 */
+	public RegionDecoder(File file) throws IOException {
+		this.file = file;
+		this.input = ImageIO.createImageInputStream(file);
+		if (input == null)
+			throw new IOException("Unable to open " + file + " for reading");
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext())
+				throw new IOException("No image reader found for " + file);
+			this.reader = readers.next();
+			reader.setInput(input, true, true);
+			this.width = reader.getWidth(0);
+			this.height = reader.getHeight(0);
+		}
+		catch (IOException ioe){
+			input.close();
+			throw ioe;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return The width of the whole image, in pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Decodes the given region of the image.  With a subsampling of n,
+	 * only every n'th pixel of every n'th row is decoded, so the result is
+	 * (roughly) n times smaller in each direction.
+	 * @param region The region to decode, in full resolution pixels; it is
+	 * clipped to the image
+	 * @param subsampling 1 for every pixel, or more to decode fewer
+	 * @return The decoded region, in whatever type the reader produces
+	 * @throws IOException If the region is empty or cannot be decoded
+	 */
+	public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+		Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+		if (clipped.isEmpty())
+			throw new IOException("Region " + region + " is outside the " + width + "x" + height + " image " + file);
+
+		long start = ImageMetrics.start();
+		BufferedImage image = null;
+		try {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(clipped);
+			if (subsampling > 1)
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+			image = reader.read(0, param);
+			return image;
+		}
+		finally {
+			ImageMetrics.record(ImageMetrics.DECODE, start, file, image, 0, 0);
+		}
+	}
+
+	public void close() throws IOException {
+		reader.dispose();
+		input.close();
+	}
+}
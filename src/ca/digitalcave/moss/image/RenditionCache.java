@@ -0,0 +1,691 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An on disk cache of scaled renditions of source images.  Each rendition
+ * is keyed by the source path, size and modification time, along with the
+ * target size, resample quality, encode quality and format; if the source
+ * changes, its old renditions are simply never asked for again, and age
+ * out of the cache.
+ *
+ * Renditions are stored as files named by the SHA-1 of their key, in 256
+ * shard directories named by the first byte of the hash.  An in memory
+ * index (in least recently used order) tracks the size of every entry, so
+ * that lookups never touch the disk and the cache can be kept under a
+ * maximum total size; it is persisted to a compact binary 'index' file by
+ * flush() and close().  When the cache is opened, the index file is checked
+ * against the shard directories, so that renditions written since the last
+ * flush() (before a crash, say) are still counted and evicted; if it is
+ * missing or damaged, it is rebuilt from them.
+ *
+ * Concurrent requests for the same missing rendition wait for a single
+ * render rather than each doing the work.
+ *
+ * If a FingerprintIndex is set, a missing rendition of a source which is
+ * a byte for byte copy or near duplicate of one already rendered is linked
+ * (or copied) from the duplicate's rendition instead of being rendered.
+ * This costs a fingerprint of each source on its first miss (a read of the
+ * file and a tiny subsampled decode), which the index keeps, and saves the
+ * full decode, scale and encode of every duplicate.
+ */
+public class RenditionCache {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private static final int INDEX_MAGIC = 0x4d524331; //'MRC1'
+	private static final String INDEX_FILE = "index";
+	private static final int HASH_LENGTH = 20;
+
+	private final File directory;
+	private final long maxBytes;
+
+	//Hex hash -> size in bytes; in access order, so the first entry is the least recently used
+	private final LinkedHashMap<String, Long> index = new LinkedHashMap<String, Long>(1024, 0.75f, true);
+	private long totalBytes = 0;
+
+	private final ConcurrentHashMap<String, FutureTask<File>> renders = new ConcurrentHashMap<String, FutureTask<File>>();
+
+	private volatile FingerprintIndex fingerprints;
+	private volatile int maxDistance;
+	private long duplicateHits = 0;
+
+	/**
+	 * Opens (or creates) a rendition cache in the given directory.
+	 * @param directory The cache root
+	 * @param maxBytes The maximum total size of all cached renditions
+	 * @throws IOException If the directory cannot be created
+	 */
+	public RenditionCache(File directory, long maxBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create cache directory " + directory.getAbsolutePath());
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+
+		try {
+			if (new File(directory, INDEX_FILE).isFile()){
+				readIndex();
+				reconcileIndex();
+			}
+			else
+				rebuildIndex();
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Rendition cache index is unreadable; rebuilding from " + directory, ioe);
+			rebuildIndex();
+		}
+		evict();
+	}
+
+	/**
+	 * Serves missing renditions of duplicates from the renditions of the
+	 * files they duplicate, when those are cached.
+	 * @param fingerprints The index to find duplicates in, or null to always render
+	 * @param maxDistance The largest distance between the perceptual hashes
+	 * of near duplicates (see FingerprintIndex.DEFAULT_DISTANCE), or -1 for
+	 * byte for byte copies only
+	 */
+	public void setFingerprintIndex(FingerprintIndex fingerprints, int maxDistance) {
+		this.maxDistance = maxDistance;
+		this.fingerprints = fingerprints;
+	}
+
+	/**
+	 * Returns the cached rendition of the given source, rendering and
+	 * caching it first if needed.
+	 * @param source The source image
+	 * @param maxSize The size of the longest side of the rendition
+	 * @param quality The filter to scale with
+	 * @param encodeQuality The compression quality to encode with (if appropriate to the format)
+	 * @param format The image format, as a file extension (e.g. "jpg", "png")
+	 * @return The cached file, or null if the rendition could not be created
+	 */
+	public File getRendition(final File source, final int maxSize, final ResampleQuality quality, final float encodeQuality, final String format){
+		final String hash = getHash(source, maxSize, quality, encodeQuality, format);
+
+		File cached = getCached(hash, format);
+		if (cached != null)
+			return cached;
+
+		FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+			public File call() throws Exception {
+				//Another render may have finished between the lookup and claiming the slot
+				File cached = getCached(hash, format);
+				if (cached != null)
+					return cached;
+				return render(hash, source, maxSize, quality, encodeQuality, format);
+			}
+		});
+		FutureTask<File> existing = renders.putIfAbsent(hash, task);
+		if (existing == null){
+			try {
+				task.run();
+			}
+			finally {
+				renders.remove(hash, task);
+			}
+		}
+		else {
+			task = existing;
+		}
+
+		try {
+			return task.get();
+		}
+		catch (InterruptedException ie){
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException ee){
+			logger.log(Level.WARNING, "Problem encountered while rendering " + source, ee.getCause());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the cached renditions of the given source at each of the
+	 * given sizes.  Those which are not cached yet are all rendered from a
+	 * single decode of the source, each scaled from the next larger one
+	 * (see RenditionChain), which is much cheaper than calling 
+	 * getRendition() for each size.
+	 * @param source The source image
+	 * @param maxSizes The size of the longest side of each rendition
+	 * @param quality The filter to scale with
+	 * @param encodeQuality The compression quality to encode with (if appropriate to the format)
+	 * @param format The image format, as a file extension (e.g. "jpg", "png")
+	 * @return The cached files, in the same order as maxSizes; null for any
+	 * which could not be created
+	 */
+	public File[] getRenditions(final File source, int[] maxSizes, final ResampleQuality quality, final float encodeQuality, final String format){
+		File[] files = new File[maxSizes.length];
+		final String[] hashes = new String[maxSizes.length];
+		List<Integer> missing = new ArrayList<Integer>();
+		for (int i = 0; i < maxSizes.length; i++){
+			hashes[i] = getHash(source, maxSizes[i], quality, encodeQuality, format);
+			files[i] = getCached(hashes[i], format);
+			if (files[i] == null)
+				missing.add(i);
+		}
+		if (missing.isEmpty())
+			return files;
+
+		//Claim the missing sizes, so that concurrent requests for them wait
+		// for this render; sizes already being rendered elsewhere are waited for
+		final File[] rendered = new File[maxSizes.length];
+		final IOException[] failure = new IOException[1];
+		Map<Integer, FutureTask<File>> tasks = new LinkedHashMap<Integer, FutureTask<File>>();
+		List<Integer> owned = new ArrayList<Integer>();
+		for (final Integer i : missing) {
+			FutureTask<File> task = new FutureTask<File>(new Callable<File>() {
+				public File call() throws Exception {
+					if (rendered[i] == null)
+						throw failure[0] != null ? failure[0] : new IOException("Unable to render " + source);
+					return rendered[i];
+				}
+			});
+			FutureTask<File> existing = renders.putIfAbsent(hashes[i], task);
+			if (existing == null)
+				owned.add(i);
+			tasks.put(i, existing == null ? task : existing);
+		}
+
+		if (owned.size() > 0){
+			DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+			try {
+				//Another render may have finished between the lookup and claiming
+				// the slots; serve what we can from duplicates, and render the rest
+				final List<Integer> ownedIndexes = new ArrayList<Integer>();
+				for (Integer i : owned) {
+					rendered[i] = getCached(hashes[i], format);
+					if (rendered[i] == null)
+						ownedIndexes.add(i);
+				}
+				List<FingerprintIndex.Match> duplicates = ownedIndexes.isEmpty() ? Collections.<FingerprintIndex.Match>emptyList() : getDuplicates(source);
+				for (Iterator<Integer> iterator = ownedIndexes.iterator(); iterator.hasNext();) {
+					Integer i = iterator.next();
+					rendered[i] = copyFromDuplicate(hashes[i], source, duplicates, maxSizes[i], quality, encodeQuality, format);
+					if (rendered[i] != null)
+						iterator.remove();
+				}
+				if (ownedIndexes.size() > 0){
+					int[] sizes = new int[ownedIndexes.size()];
+					for (int j = 0; j < sizes.length; j++)
+						sizes[j] = maxSizes[ownedIndexes.get(j)];
+					BufferedImage image = ImageFunctions.readSubsampled(source, max(sizes), permit);
+					if (image == null)
+						throw new IOException("Unable to read " + source);
+					RenditionChain.scale(image, sizes, quality, null, new RenditionChain.Sink() {
+						public void rendition(int index, int maxSize, BufferedImage rendition) throws IOException {
+							int i = ownedIndexes.get(index);
+							rendered[i] = store(hashes[i], source, rendition, encodeQuality, format);
+						}
+					});
+				}
+			}
+			catch (IOException ioe){
+				failure[0] = ioe;
+				logger.log(Level.WARNING, "Problem encountered while rendering " + source, ioe);
+			}
+			catch (RuntimeException re){
+				failure[0] = new IOException("Unable to render " + source, re);
+				logger.log(Level.WARNING, "Problem encountered while rendering " + source, re);
+			}
+			finally {
+				permit.close();
+				for (Integer i : owned) {
+					tasks.get(i).run();
+					renders.remove(hashes[i], tasks.get(i));
+				}
+			}
+		}
+
+		for (Map.Entry<Integer, FutureTask<File>> entry : tasks.entrySet()) {
+			try {
+				files[entry.getKey()] = entry.getValue().get();
+			}
+			catch (InterruptedException ie){
+				Thread.currentThread().interrupt();
+				break;
+			}
+			catch (ExecutionException ee){
+				//Failures of our own render have already been logged
+				if (!owned.contains(entry.getKey()))
+					logger.log(Level.WARNING, "Problem encountered while rendering " + source + " at " + maxSizes[entry.getKey()], ee.getCause());
+			}
+		}
+		return files;
+	}
+
+	private static int max(int[] values){
+		int max = 0;
+		for (int value : values)
+			max = Math.max(max, value);
+		return max;
+	}
+
+	/**
+	 * Writes the cached rendition of the given source to the output stream,
+	 * rendering and caching it first if needed.  Cached bytes are copied
+	 * with FileChannel.transferTo(), which for file and socket outputs
+	 * can avoid copying through the Java heap entirely.
+	 * @return true if the rendition was written, false otherwise
+	 */
+	public boolean writeRendition(File source, int maxSize, ResampleQuality quality, float encodeQuality, String format, OutputStream os){
+		File file = getRendition(source, maxSize, quality, encodeQuality, format);
+		if (file == null)
+			return false;
+
+		FileInputStream fis = null;
+		try {
+			fis = new FileInputStream(file);
+			FileChannel in = fis.getChannel();
+			WritableByteChannel out = os instanceof FileOutputStream ? ((FileOutputStream) os).getChannel() : Channels.newChannel(os);
+			long position = 0;
+			long size = in.size();
+			while (position < size){
+				position += in.transferTo(position, size - position, out);
+			}
+			return true;
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while writing cached rendition of " + source, ioe);
+			return false;
+		}
+		finally {
+			close(fis);
+		}
+	}
+
+	/**
+	 * Writes the index to disk.
+	 */
+	public synchronized void flush(){
+		File temp = new File(directory, INDEX_FILE + ".tmp");
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeInt(index.size());
+			//Iteration order is least recently used first; reading back in
+			// the same order restores the LRU order.
+			for (Map.Entry<String, Long> entry : index.entrySet()) {
+				dos.write(fromHex(entry.getKey()));
+				dos.writeLong(entry.getValue());
+			}
+			dos.close();
+			dos = null;
+
+			File indexFile = new File(directory, INDEX_FILE);
+			if (!temp.renameTo(indexFile)){
+				indexFile.delete();
+				if (!temp.renameTo(indexFile))
+					throw new IOException("Unable to replace " + indexFile);
+			}
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while writing rendition cache index", ioe);
+		}
+		finally {
+			close(dos);
+		}
+	}
+
+	/**
+	 * Writes the index to disk.  The cache can still be used afterwards.
+	 */
+	public void close(){
+		flush();
+	}
+
+	/**
+	 * @return The total size in bytes of all cached renditions
+	 */
+	public synchronized long getTotalBytes(){
+		return totalBytes;
+	}
+
+	/**
+	 * @return The number of renditions served from duplicates
+	 */
+	public synchronized long getDuplicateCount(){
+		return duplicateHits;
+	}
+
+	private File render(String hash, File source, int maxSize, ResampleQuality quality, float encodeQuality, String format) throws IOException {
+		File duplicate = copyFromDuplicate(hash, source, getDuplicates(source), maxSize, quality, encodeQuality, format);
+		if (duplicate != null)
+			return duplicate;
+		BufferedImage image = ImageFunctions.getBufferedImage(source, maxSize, quality);
+		if (image == null)
+			throw new IOException("Unable to read " + source);
+		return store(hash, source, image, encodeQuality, format);
+	}
+
+	/**
+	 * Encodes the rendition into the cache.
+	 */
+	private File store(String hash, File source, BufferedImage image, float encodeQuality, String format) throws IOException {
+		File file = getFile(hash, format);
+		File shard = file.getParentFile();
+		if (!shard.isDirectory() && !shard.mkdirs())
+			throw new IOException("Unable to create cache directory " + shard);
+
+		//Write to a temp file and rename, so that readers never see a partial rendition
+		File temp = File.createTempFile(hash, ".tmp", shard);
+		if (!ImageFunctions.writeImage(image, temp, encodeQuality, format) || !(temp.renameTo(file) || (file.delete() && temp.renameTo(file)))){
+			temp.delete();
+			throw new IOException("Unable to write rendition of " + source + " to " + file);
+		}
+
+		add(hash, file);
+		return file;
+	}
+
+	private synchronized void add(String hash, File file){
+		Long previous = index.put(hash, file.length());
+		if (previous != null)
+			totalBytes -= previous;
+		totalBytes += file.length();
+		evict();
+	}
+
+	/**
+	 * @return The duplicates of the source, nearest first; none if there is
+	 * no fingerprint index
+	 */
+	private List<FingerprintIndex.Match> getDuplicates(File source){
+		FingerprintIndex fingerprints = this.fingerprints;
+		if (fingerprints == null)
+			return Collections.emptyList();
+		ImageFingerprint fingerprint = fingerprints.fingerprint(source);
+		if (fingerprint == null)
+			return Collections.emptyList();
+		return fingerprints.findDuplicates(source, fingerprint, maxDistance);
+	}
+
+	/**
+	 * Adds the cached rendition of the nearest duplicate which has one to
+	 * the cache under the given hash, as a hard link if possible.  A near
+	 * duplicate smaller than both the source and maxSize is passed over,
+	 * as its rendition would have been scaled up from fewer pixels.
+	 * @return The cached file, or null if no duplicate has the rendition
+	 */
+	private File copyFromDuplicate(String hash, File source, List<FingerprintIndex.Match> duplicates, int maxSize, ResampleQuality quality, float encodeQuality, String format){
+		if (duplicates.isEmpty())
+			return null;
+		FingerprintIndex fingerprints = this.fingerprints;
+		ImageFingerprint fingerprint = fingerprints == null ? null : fingerprints.getFingerprint(source);
+		if (fingerprint == null)
+			return null;
+		int needed = Math.min(fingerprint.getLongestSide(), maxSize);
+		for (FingerprintIndex.Match duplicate : duplicates) {
+			if (!duplicate.getFingerprint().isIdentical(fingerprint) && duplicate.getFingerprint().getLongestSide() < needed)
+				continue;
+			String duplicateHash = getHash(duplicate.getFile(), maxSize, quality, encodeQuality, format);
+			File cached;
+			synchronized (this) {
+				if (index.get(duplicateHash) == null)
+					continue;
+				cached = getFile(duplicateHash, format);
+			}
+
+			File file = getFile(hash, format);
+			File temp = null;
+			try {
+				File shard = file.getParentFile();
+				if (!shard.isDirectory() && !shard.mkdirs())
+					throw new IOException("Unable to create cache directory " + shard);
+				temp = File.createTempFile(hash, ".tmp", shard);
+				temp.delete();
+				try {
+					Files.createLink(temp.toPath(), cached.toPath());
+				}
+				catch (IOException ioe){
+					//e.g. not supported by the file system
+					Files.copy(cached.toPath(), temp.toPath());
+				}
+				catch (UnsupportedOperationException uoe){
+					Files.copy(cached.toPath(), temp.toPath());
+				}
+				if (!(temp.renameTo(file) || (file.delete() && temp.renameTo(file))))
+					throw new IOException("Unable to write rendition to " + file);
+			}
+			catch (IOException ioe){
+				//Most likely evicted since we looked; try the next
+				logger.log(Level.FINE, "Unable to copy rendition of duplicate " + duplicate, ioe);
+				if (temp != null)
+					temp.delete();
+				continue;
+			}
+			add(hash, file);
+			synchronized (this) {
+				duplicateHits++;
+			}
+			return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Removes least recently used entries until the total size is under
+	 * the limit.  The most recent entry is always kept, even if it alone
+	 * is over the limit.
+	 */
+	private synchronized void evict(){
+		Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+		while (totalBytes > maxBytes && index.size() > 1 && iterator.hasNext()){
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			totalBytes -= eldest.getValue();
+			deleteEntry(eldest.getKey());
+		}
+	}
+
+	private void deleteEntry(String hash){
+		File[] files = new File(directory, hash.substring(0, 2)).listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (file.getName().startsWith(hash + "."))
+				file.delete();
+		}
+	}
+
+	private void readIndex() throws IOException {
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, INDEX_FILE))));
+		try {
+			if (dis.readInt() != INDEX_MAGIC)
+				throw new IOException("Rendition cache index has the wrong format");
+			int count = dis.readInt();
+			byte[] hash = new byte[HASH_LENGTH];
+			for (int i = 0; i < count; i++){
+				dis.readFully(hash);
+				long size = dis.readLong();
+				index.put(toHex(hash), size);
+				totalBytes += size;
+			}
+		}
+		catch (IOException ioe){
+			index.clear();
+			totalBytes = 0;
+			throw ioe;
+		}
+		finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the shard directories, using file modification
+	 * time as an approximation of last access.
+	 */
+	private void rebuildIndex(){
+		index.clear();
+		totalBytes = 0;
+		for (File file : listEntries()) {
+			index.put(file.getName().substring(0, HASH_LENGTH * 2), file.length());
+			totalBytes += file.length();
+		}
+	}
+
+	/**
+	 * Brings the index read from disk up to date with the shard directories:
+	 * renditions written since it was last flushed are added as the most
+	 * recently used, and entries whose files are gone are dropped.
+	 */
+	private void reconcileIndex(){
+		Set<String> found = new HashSet<String>();
+		int added = 0;
+		for (File file : listEntries()) {
+			String hash = file.getName().substring(0, HASH_LENGTH * 2);
+			found.add(hash);
+			//containsKey() does not count as an access, so the LRU order is kept
+			if (!index.containsKey(hash)){
+				index.put(hash, file.length());
+				totalBytes += file.length();
+				added++;
+			}
+		}
+		int dropped = 0;
+		for (Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator(); iterator.hasNext();) {
+			Map.Entry<String, Long> entry = iterator.next();
+			if (!found.contains(entry.getKey())){
+				iterator.remove();
+				totalBytes -= entry.getValue();
+				dropped++;
+			}
+		}
+		if (added > 0 || dropped > 0)
+			logger.log(Level.INFO, "Rendition cache index was out of date; added " + added + " and dropped " + dropped + " entries");
+	}
+
+	/**
+	 * Lists the renditions in the shard directories, oldest first, deleting
+	 * any temp files left by interrupted writes.
+	 */
+	private List<File> listEntries(){
+		List<File> files = new ArrayList<File>();
+		File[] shards = directory.listFiles();
+		if (shards != null){
+			for (File shard : shards) {
+				File[] entries = shard.isDirectory() ? shard.listFiles() : null;
+				if (entries == null)
+					continue;
+				for (File entry : entries) {
+					if (entry.getName().endsWith(".tmp"))
+						entry.delete();
+					else if (entry.getName().indexOf('.') == HASH_LENGTH * 2)
+						files.add(entry);
+				}
+			}
+		}
+		Collections.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified(), m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+			}
+		});
+		return files;
+	}
+
+	/**
+	 * @return The cached rendition with the given hash, or null if it is not
+	 * cached
+	 */
+	private synchronized File getCached(String hash, String format){
+		if (index.get(hash) == null)
+			return null;
+		File file = getFile(hash, format);
+		if (file.isFile())
+			return file;
+		//Deleted from under us; forget about it and render again
+		totalBytes -= index.remove(hash);
+		return null;
+	}
+
+	private File getFile(String hash, String format){
+		return new File(new File(directory, hash.substring(0, 2)), hash + "." + format.toLowerCase());
+	}
+
+	static String getHash(File source, int maxSize, ResampleQuality quality, float encodeQuality, String format){
+		StringBuilder key = new StringBuilder();
+		key.append(source.getAbsolutePath()).append('\0')
+			.append(source.length()).append('\0')
+			.append(source.lastModified()).append('\0')
+			.append(maxSize).append('\0')
+			.append(quality).append('\0')
+			.append(Float.floatToIntBits(encodeQuality)).append('\0')
+			.append(format.toLowerCase());
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			return toHex(digest.digest(key.toString().getBytes("UTF-8")));
+		}
+		catch (NoSuchAlgorithmException nsae){
+			throw new IllegalStateException("SHA-1 is not available", nsae);
+		}
+		catch (IOException ioe){
+			throw new IllegalStateException("UTF-8 is not available", ioe);
+		}
+	}
+
+	static String toHex(byte[] bytes){
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	static byte[] fromHex(String hex){
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++){
+			bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static void close(Closeable closeable){
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		}
+		catch (IOException ioe){
+			logger.log(Level.FINE, "Problem encountered while closing stream", ioe);
+		}
+	}
+}
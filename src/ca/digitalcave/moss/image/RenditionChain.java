@@ -0,0 +1,237 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates several renditions of one image (e.g. 2048, 1024, 512, 256 and
+ * 128 pixels) from a single decode.  Rather than scaling the full size
+ * image once per size, the renditions are made largest first, and each
+ * is scaled from the one before it, so only the largest reads the source
+ * pixels.  With sizes a factor of two apart (a mipmap chain), each of the
+ * others costs a quarter of the one before it.  The source is only
+ * decoded at the resolution the largest rendition needs; see
+ * ImageFunctions.getBufferedImage(File, int).
+ *
+ * Each rendition is passed to a Sink as soon as it has been made, while
+ * the next is scaled from it, so renditions can be encoded in parallel
+ * with the chain; apart from what the sink keeps, only the current
+ * rendition and the one it is being scaled from are held in memory.
+ *
+ * The sizes are the same as scaleImage() gives for each size on its own.
+ * The pixels differ slightly, since each size is filtered from a
+ * smaller image.
+ */
+public class RenditionChain {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	/**
+	 * Receives each rendition as it is made, largest first.
+	 */
+	public interface Sink {
+		/**
+		 * @param index The index of the size in the maxSizes array
+		 * @param maxSize The size of the rendition's longest side
+		 * @param image The rendition (TYPE_INT_RGB), which the sink may keep;
+		 * it is not modified afterwards
+		 * @throws IOException To stop the chain
+		 */
+		public void rendition(int index, int maxSize, BufferedImage image) throws IOException;
+	}
+
+	/**
+	 * Scales the image to each of the given sizes.
+	 * @param img The source image
+	 * @param maxSizes The size of the longest side of each rendition, in any order
+	 * @param quality The filter to scale with
+	 * @param pool The pool to scale large images on in parallel, or null
+	 * @return The renditions, in the same order as maxSizes
+	 */
+	public static BufferedImage[] scale(BufferedImage img, int[] maxSizes, ResampleQuality quality, ForkJoinPool pool){
+		final BufferedImage[] renditions = new BufferedImage[maxSizes.length];
+		try {
+			scale(img, maxSizes, quality, pool, new Sink() {
+				public void rendition(int index, int maxSize, BufferedImage image) {
+					renditions[index] = image;
+				}
+			});
+		}
+		catch (IOException ioe){
+			//Not thrown by this sink
+			logger.log(Level.WARNING, "Problem encountered while scaling renditions", ioe);
+		}
+		return renditions;
+	}
+
+	/**
+	 * Reads the image from the file once, and scales it to each of the
+	 * given sizes.
+	 * @return The renditions, in the same order as maxSizes, or null if the
+	 * file could not be read
+	 */
+	public static BufferedImage[] read(File file, int[] maxSizes, ResampleQuality quality, ForkJoinPool pool){
+		DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+		try {
+			BufferedImage img = readLargest(file, maxSizes, permit);
+			if (img == null)
+				return null;
+			return scale(img, maxSizes, quality, pool);
+		}
+		finally {
+			permit.close();
+		}
+	}
+
+	/**
+	 * Reads the image from the source file once, scales it to each of the
+	 * given sizes, and writes each rendition to the matching destination.
+	 * If an executor is given, each rendition is encoded on it as soon as
+	 * it has been made, while the next is being scaled; otherwise they are
+	 * encoded in turn on the calling thread.  Either way, this returns once
+	 * all have been written.
+	 * @param source The file to read
+	 * @param maxSizes The size of the longest side of each rendition
+	 * @param quality The filter to scale with
+	 * @param encodeQuality The compression quality (if appropriate to the format)
+	 * @param format The image format, as a file extension (e.g. "jpg", "png")
+	 * @param destinations The file to write each rendition to, in the same order as maxSizes
+	 * @param encoders The executor to encode on, or null
+	 * @return Whether each rendition was written, in the same order as maxSizes
+	 */
+	public static boolean[] write(File source, int[] maxSizes, ResampleQuality quality, final float encodeQuality, final String format, final File[] destinations, final ExecutorService encoders){
+		if (destinations.length != maxSizes.length)
+			throw new IllegalArgumentException("There must be one destination for each size");
+
+		final boolean[] written = new boolean[maxSizes.length];
+		DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+		try {
+			BufferedImage img = readLargest(source, maxSizes, permit);
+			if (img == null)
+				return written;
+			write(img, source, maxSizes, quality, encodeQuality, format, destinations, encoders, written);
+		}
+		finally {
+			permit.close();
+		}
+		return written;
+	}
+
+	private static void write(BufferedImage img, File source, int[] maxSizes, ResampleQuality quality, final float encodeQuality, final String format, final File[] destinations, final ExecutorService encoders, final boolean[] written){
+
+		final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		final List<Integer> indexes = new ArrayList<Integer>();
+		try {
+			scale(img, maxSizes, quality, null, new Sink() {
+				public void rendition(int index, int maxSize, final BufferedImage image) {
+					final File destination = destinations[index];
+					if (encoders == null){
+						written[index] = ImageFunctions.writeImage(image, destination, encodeQuality, format);
+						return;
+					}
+					futures.add(encoders.submit(new Callable<Boolean>() {
+						public Boolean call() throws Exception {
+							return ImageFunctions.writeImage(image, destination, encodeQuality, format);
+						}
+					}));
+					indexes.add(index);
+				}
+			});
+		}
+		catch (IOException ioe){
+			//Not thrown by this sink
+			logger.log(Level.WARNING, "Problem encountered while scaling renditions of " + source, ioe);
+		}
+
+		for (int i = 0; i < futures.size(); i++){
+			try {
+				written[indexes.get(i)] = futures.get(i).get();
+			}
+			catch (ExecutionException ee){
+				logger.log(Level.SEVERE, "Problem encountered while writing rendition of " + source, ee.getCause());
+			}
+			catch (InterruptedException ie){
+				Thread.currentThread().interrupt();
+				for (Future<Boolean> future : futures) {
+					future.cancel(true);
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Scales the image to each of the given sizes, largest first, passing
+	 * each rendition to the sink as soon as it has been made.
+	 * @param img The source image
+	 * @param maxSizes The size of the longest side of each rendition, in any order
+	 * @param quality The filter to scale with
+	 * @param pool The pool to scale large images on in parallel, or null
+	 * @param sink Receives the renditions
+	 * @throws IOException If the sink throws it; no more renditions are made
+	 */
+	public static void scale(BufferedImage img, final int[] maxSizes, ResampleQuality quality, ForkJoinPool pool, Sink sink) throws IOException {
+		Integer[] order = new Integer[maxSizes.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return maxSizes[i2] - maxSizes[i1];
+			}
+		});
+
+		int sourceWidth = img.getWidth();
+		int sourceHeight = img.getHeight();
+		BufferedImage previous = null;
+		for (Integer index : order) {
+			int[] size = getSize(sourceWidth, sourceHeight, maxSizes[index]);
+			BufferedImage rendition;
+			if (previous != null && previous.getWidth() == size[0] && previous.getHeight() == size[1]){
+				rendition = previous;
+			}
+			else {
+				//Scale from the previous rendition, unless it was enlarged past the source
+				BufferedImage from = previous != null && previous.getWidth() <= sourceWidth ? previous : img;
+				rendition = ImageFunctions.scaleImage(from, size[0], size[1], quality, pool);
+			}
+			sink.rendition(index, maxSizes[index], rendition);
+			previous = rendition;
+		}
+	}
+
+	/**
+	 * @return The width and height which ImageFunctions.scaleImage() gives
+	 * an image of the given size when scaled to maxSize
+	 */
+	static int[] getSize(int width, int height, int maxSize){
+		if (width > height)
+			return new int[]{maxSize, Math.max(1, height * maxSize / width)};
+		return new int[]{Math.max(1, width * maxSize / height), maxSize};
+	}
+
+	/**
+	 * Decodes the file at the resolution needed for the largest size,
+	 * reserving memory for it in the permit.
+	 */
+	private static BufferedImage readLargest(File file, int[] maxSizes, DecodeGovernor.Permit permit){
+		int largest = 0;
+		for (int maxSize : maxSizes)
+			largest = Math.max(largest, maxSize);
+		return ImageFunctions.readSubsampled(file, largest, permit);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * The filter used by Resampler for the final resampling pass.  All three
+ * are preceded by progressive 2x2 halving when shrinking by a large factor,
+ * so the difference between them is mostly in sharpness rather than speed.
+ */
+public enum ResampleQuality {
+
+	/**
+	 * Triangle filter; fastest, and slightly soft.
+	 */
+	BILINEAR(1.0) {
+		double weight(double x){
+			if (x < 0.0)
+				x = -x;
+			return x < 1.0 ? 1.0 - x : 0.0;
+		}
+	},
+
+	/**
+	 * Catmull-Rom cubic; a good default for thumbnails.
+	 */
+	BICUBIC(2.0) {
+		double weight(double x){
+			//Keys' cubic convolution, with a = -0.5
+			final double a = -0.5;
+			if (x < 0.0)
+				x = -x;
+			if (x < 1.0)
+				return ((a + 2.0) * x - (a + 3.0)) * x * x + 1;
+			if (x < 2.0)
+				return (((x - 5) * x + 8) * x - 4) * a;
+			return 0.0;
+		}
+	},
+
+	/**
+	 * Three lobed Lanczos; sharpest, at the cost of some ringing on hard edges.
+	 */
+	LANCZOS(3.0) {
+		double weight(double x){
+			if (x < 0.0)
+				x = -x;
+			if (x >= 3.0)
+				return 0.0;
+			return sinc(x) * sinc(x / 3.0);
+		}
+	};
+
+	private final double support;
+
+	private ResampleQuality(double support) {
+		this.support = support;
+	}
+
+	/**
+	 * @return The radius of the filter, in source pixels, when not shrinking
+	 */
+	double getSupport() {
+		return support;
+	}
+
+	/**
+	 * @param x The distance from the centre of the filter
+	 * @return The (unnormalized) filter weight at that distance
+	 */
+	abstract double weight(double x);
+
+	private static double sinc(double x){
+		if (x == 0.0)
+			return 1.0;
+		x *= Math.PI;
+		return Math.sin(x) / x;
+	}
+}
@@ -0,0 +1,472 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.Graphics;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Resamples images held as packed int pixels (TYPE_INT_RGB or TYPE_INT_ARGB),
+ * working directly on the raster's int[] rather than going through Java2D.
+ *
+ * Large reductions are done in two steps: first the image is box filtered
+ * down by a power of two (equivalent to repeated 2x2 halving, but done in 
+ * a single pass which reads each source pixel exactly once, straight from
+ * the source raster), until it is within a factor of four of the target 
+ * size; then a single separable pass with the requested filter produces 
+ * the exact target size.  Filter weights are precomputed per
+ * output row / column in fixed point, so the inner loops are integer only.
+ *
+ * All four channels are filtered independently; alpha is not premultiplied.
+ *
+ * Every pass writes each destination row independently of the others, so
+ * large images can be split into bands of rows and scaled on a ForkJoinPool
+ * with exactly the same result as the serial path.
+ *
+ * The per pixel loops (unpacking byte rasters, converting between types
+ * and the filter passes) are in PixelKernels, which uses SIMD instructions
+ * where the JVM allows it; see getKernels().  Java2D is only used to 
+ * convert image types which the kernels cannot read.
+ */
+public class Resampler {
+
+	private static final PixelKernels kernels = PixelKernels.get();
+
+	private static volatile long parallelThreshold = 4 * 1024 * 1024;
+
+	/**
+	 * Scales the image to exactly the given size.
+	 * @param img The source image; INT_RGB, INT_ARGB and interleaved byte RGB or gray (e.g. 3BYTE_BGR or BYTE_GRAY from the JPEG reader) are read directly, other types are converted first
+	 * @param width The target width
+	 * @param height The target height
+	 * @param quality The filter to use for the final pass
+	 * @param imageType The type of the returned image; either TYPE_INT_RGB or TYPE_INT_ARGB
+	 * @return A new image of the given size and type
+	 */
+	public static BufferedImage scale(BufferedImage img, int width, int height, ResampleQuality quality, int imageType){
+		return scale(img, width, height, quality, imageType, null);
+	}
+
+	/**
+	 * Scales the image to exactly the given size, splitting the work into 
+	 * bands of rows which are run in parallel on the given pool.  The 
+	 * result is identical to the serial version.  Images with fewer source
+	 * pixels than the parallel threshold (see setParallelThreshold()) are
+	 * scaled serially on the calling thread, since the cost of splitting
+	 * outweighs the gain.
+	 * @param img The source image
+	 * @param width The target width
+	 * @param height The target height
+	 * @param quality The filter to use for the final pass
+	 * @param imageType The type of the returned image; either TYPE_INT_RGB or TYPE_INT_ARGB
+	 * @param pool The pool to run on, or null to always scale serially
+	 * @return A new image of the given size and type
+	 */
+	public static BufferedImage scale(BufferedImage img, int width, int height, ResampleQuality quality, int imageType, ForkJoinPool pool){
+		if (width < 1 || height < 1)
+			throw new IllegalArgumentException("Target size must be at least 1x1; was " + width + "x" + height);
+		if (imageType != BufferedImage.TYPE_INT_RGB && imageType != BufferedImage.TYPE_INT_ARGB)
+			throw new IllegalArgumentException("Only TYPE_INT_RGB and TYPE_INT_ARGB output is supported");
+
+		if (pool != null && (long) img.getWidth() * img.getHeight() < parallelThreshold)
+			pool = null;
+
+		int factor = getReductionFactor(img.getWidth(), img.getHeight(), width, height);
+		int[] reduced = reduce(img, imageType, factor, pool);
+
+		BufferedImage result = new BufferedImage(width, height, imageType);
+		resample(reduced, img.getWidth() / factor, img.getHeight() / factor, getPixels(result), width, height, quality, pool);
+		return result;
+	}
+
+	/**
+	 * Sets the number of source pixels below which scale() stays serial 
+	 * even when given a pool.  The default is four megapixels.
+	 * @param pixels
+	 */
+	public static void setParallelThreshold(long pixels){
+		parallelThreshold = pixels;
+	}
+
+	/**
+	 * Returns the kernels which do the per pixel work, e.g. "scalar" or
+	 * "vector (256 bit)".  SIMD kernels are used when the moss-image-vector
+	 * jar is on the classpath, and the JVM (Java 16 or later) was started 
+	 * with --add-modules jdk.incubator.vector.
+	 */
+	public static String getKernels(){
+		return kernels.getName();
+	}
+
+	/**
+	 * Returns the power of two by which the source can be box filtered
+	 * before the final pass.  We stop while there is still at least a factor 
+	 * of two to go, which leaves a reasonable amount of work for the final 
+	 * filter.  The factor is capped at 64 so that block sums fit in an int.
+	 */
+	static int getReductionFactor(int srcWidth, int srcHeight, int dstWidth, int dstHeight){
+		int factor = 1;
+		while (factor < 64 && srcWidth / (factor * 2) >= dstWidth * 2 && srcHeight / (factor * 2) >= dstHeight * 2)
+			factor *= 2;
+		return factor;
+	}
+
+	/**
+	 * Returns the packed pixels of the image (in the layout given by 
+	 * imageType), box filtered down by the given factor.  This reads 
+	 * the source raster directly where possible, so that large images
+	 * are never copied at full size.  If factor is 1 and the image is
+	 * already in the right layout, the backing array itself is returned.
+	 */
+	static int[] reduce(BufferedImage img, int imageType, final int factor, ForkJoinPool pool){
+		if (factor == 1)
+			return getPixels(img, imageType, pool);
+
+		final int width = img.getWidth() / factor;
+		final int height = img.getHeight() / factor;
+		final int[] reduced = new int[width * height];
+
+		//Pixels with alpha must be flattened before they are averaged, so 
+		// they are converted at full size first.
+		final ByteLayout layout = img.getType() == imageType ? null : ByteLayout.get(img);
+		if (layout != null && (layout.alpha < 0 || imageType == BufferedImage.TYPE_INT_ARGB)){
+			RowBandTask.run(pool, new RowBandTask.Band() {
+				public void process(int rowStart, int rowEnd) {
+					boxReduce(layout, reduced, width, factor, rowStart, rowEnd);
+				}
+			}, 0, height);
+			return reduced;
+		}
+
+		final int[] pixels = getPixels(img, imageType, pool);
+		final int srcWidth = img.getWidth();
+		RowBandTask.run(pool, new RowBandTask.Band() {
+			public void process(int rowStart, int rowEnd) {
+				boxReduce(pixels, srcWidth, reduced, width, factor, rowStart, rowEnd);
+			}
+		}, 0, height);
+		return reduced;
+	}
+
+	/**
+	 * Resamples the packed pixels in src into dst, using a single separable
+	 * pass of the given filter.  src is not modified.
+	 */
+	static void resample(final int[] src, final int srcWidth, int srcHeight, final int[] dst, final int dstWidth, int dstHeight, ResampleQuality quality, ForkJoinPool pool){
+		if (srcWidth == dstWidth && srcHeight == dstHeight){
+			System.arraycopy(src, 0, dst, 0, dst.length);
+			return;
+		}
+
+		final Coefficients horizontal = new Coefficients(srcWidth, dstWidth, quality);
+		final Coefficients vertical = new Coefficients(srcHeight, dstHeight, quality);
+
+		//Only the source rows which the vertical pass will read need to be
+		// filtered horizontally.
+		int firstRow = vertical.bounds[0];
+		int lastRow = vertical.bounds[(dstHeight - 1) * 2] + vertical.bounds[(dstHeight - 1) * 2 + 1];
+		final int[] temp = new int[dstWidth * srcHeight];
+		RowBandTask.run(pool, new RowBandTask.Band() {
+			public void process(int rowStart, int rowEnd) {
+				kernels.horizontalPass(src, srcWidth, temp, dstWidth, horizontal, rowStart, rowEnd);
+			}
+		}, firstRow, lastRow);
+		RowBandTask.run(pool, new RowBandTask.Band() {
+			public void process(int rowStart, int rowEnd) {
+				kernels.verticalPass(temp, dst, dstWidth, vertical, rowStart, rowEnd);
+			}
+		}, 0, dstHeight);
+	}
+
+	/**
+	 * Averages each factor x factor block of src into one pixel of dst, for
+	 * destination rows [rowStart, rowEnd).  factor must be a power of two.
+	 * Trailing rows and columns which do not fill a whole block are dropped.
+	 */
+	static void boxReduce(int[] src, int srcWidth, int[] dst, int dstWidth, int factor, int rowStart, int rowEnd){
+		int shift = Integer.numberOfTrailingZeros(factor) * 2;
+		int round = (1 << shift) >> 1;
+		int[] sums = new int[dstWidth * 4];
+		for (int y = rowStart; y < rowEnd; y++){
+			Arrays.fill(sums, 0);
+			for (int sy = y * factor; sy < (y + 1) * factor; sy++){
+				int index = sy * srcWidth;
+				for (int x = 0; x < dstWidth; x++){
+					//Add pairs of channels at once; a row of a block is at
+					// most 64 pixels, so each 16 bit half cannot overflow.
+					int rb = 0, ag = 0;
+					for (int i = 0; i < factor; i++){
+						int p = src[index++];
+						rb += p & 0x00ff00ff;
+						ag += (p >>> 8) & 0x00ff00ff;
+					}
+					sums[x * 4] += ag >>> 16;
+					sums[x * 4 + 1] += rb >>> 16;
+					sums[x * 4 + 2] += ag & 0xffff;
+					sums[x * 4 + 3] += rb & 0xffff;
+				}
+			}
+			storeSums(sums, dst, y * dstWidth, dstWidth, shift, round);
+		}
+	}
+
+	/**
+	 * As boxReduce(int[], ...), but reading from an interleaved byte raster.
+	 * A factor of 1 simply converts to packed ints.
+	 */
+	static void boxReduce(ByteLayout src, int[] dst, int dstWidth, int factor, int rowStart, int rowEnd){
+		byte[] data = src.data;
+		int stride = src.pixelStride;
+		int red = src.red, green = src.green, blue = src.blue, alpha = src.alpha;
+		int shift = Integer.numberOfTrailingZeros(factor) * 2;
+		int round = (1 << shift) >> 1;
+		int opaque = 0xff << shift;
+		int[] sums = new int[dstWidth * 4];
+		for (int y = rowStart; y < rowEnd; y++){
+			Arrays.fill(sums, 0);
+			for (int sy = y * factor; sy < (y + 1) * factor; sy++){
+				int index = sy * src.scanlineStride;
+				for (int x = 0; x < dstWidth; x++){
+					int a = 0, r = 0, g = 0, b = 0;
+					if (alpha >= 0){
+						for (int i = 0; i < factor; i++){
+							a += data[index + alpha] & 0xff;
+							r += data[index + red] & 0xff;
+							g += data[index + green] & 0xff;
+							b += data[index + blue] & 0xff;
+							index += stride;
+						}
+					}
+					else {
+						for (int i = 0; i < factor; i++){
+							r += data[index + red] & 0xff;
+							g += data[index + green] & 0xff;
+							b += data[index + blue] & 0xff;
+							index += stride;
+						}
+					}
+					sums[x * 4] += a;
+					sums[x * 4 + 1] += r;
+					sums[x * 4 + 2] += g;
+					sums[x * 4 + 3] += b;
+				}
+			}
+			if (alpha < 0){
+				for (int x = 0; x < dstWidth; x++)
+					sums[x * 4] = opaque;
+			}
+			storeSums(sums, dst, y * dstWidth, dstWidth, shift, round);
+		}
+	}
+
+	private static void storeSums(int[] sums, int[] dst, int offset, int width, int shift, int round){
+		for (int x = 0; x < width; x++){
+			int a = (sums[x * 4] + round) >> shift;
+			int r = (sums[x * 4 + 1] + round) >> shift;
+			int g = (sums[x * 4 + 2] + round) >> shift;
+			int b = (sums[x * 4 + 3] + round) >> shift;
+			dst[offset + x] = (a << 24) | (r << 16) | (g << 8) | b;
+		}
+	}
+
+	/**
+	 * Returns the packed pixels of the image, in the layout given by imageType.
+	 * If the image is already in that layout (and is not a sub image),
+	 * the backing array itself is returned; otherwise the image is
+	 * converted into a new array.
+	 */
+	static int[] getPixels(BufferedImage img, int imageType){
+		return getPixels(img, imageType, null);
+	}
+
+	/**
+	 * As getPixels(BufferedImage, int), converting in parallel bands on
+	 * the given pool (if not null).
+	 */
+	static int[] getPixels(BufferedImage img, int imageType, ForkJoinPool pool){
+		if (img.getType() == imageType){
+			int[] pixels = getPixels(img);
+			if (pixels != null)
+				return pixels;
+		}
+
+		BufferedImage converted = new BufferedImage(img.getWidth(), img.getHeight(), imageType);
+		convert(img, converted, pool);
+		return getPixels(converted);
+	}
+
+	/**
+	 * Copies the image into dst, which must be a new TYPE_INT_RGB or 
+	 * TYPE_INT_ARGB image of the same size, giving the same result as 
+	 * drawing it there.  INT_RGB, INT_ARGB and the images described by 
+	 * ByteLayout are converted by the kernels, in parallel bands on the 
+	 * given pool (if not null); anything else is drawn by Java2D.
+	 */
+	static void convert(BufferedImage img, BufferedImage dst, ForkJoinPool pool){
+		final int width = img.getWidth();
+		final int[] pixels = getPixels(dst);
+		final ByteLayout layout = ByteLayout.get(img);
+		final int[] ints = layout == null && (img.getType() == BufferedImage.TYPE_INT_RGB || img.getType() == BufferedImage.TYPE_INT_ARGB) ? getPixels(img) : null;
+		if (ints != null && img.getType() == dst.getType()){
+			System.arraycopy(ints, 0, pixels, 0, pixels.length);
+			return;
+		}
+		if (layout == null && ints == null){
+			Graphics g = dst.getGraphics();
+			g.drawImage(img, 0, 0, null);
+			g.dispose();
+			return;
+		}
+
+		final boolean flatten = dst.getType() == BufferedImage.TYPE_INT_RGB && (ints != null || layout.alpha >= 0);
+		RowBandTask.run(pool, new RowBandTask.Band() {
+			public void process(int rowStart, int rowEnd) {
+				int[] src = ints;
+				if (layout != null){
+					kernels.unpack(layout, pixels, width, rowStart, rowEnd);
+					src = pixels;
+				}
+				if (flatten)
+					kernels.flatten(src, pixels, rowStart * width, rowEnd * width);
+				else if (ints != null)
+					kernels.opaque(src, pixels, rowStart * width, rowEnd * width);
+			}
+		}, 0, img.getHeight());
+	}
+
+	/**
+	 * Returns the backing array of an INT_RGB / INT_ARGB image, or null if
+	 * the raster is not laid out as one contiguous width x height block.
+	 */
+	static int[] getPixels(BufferedImage img){
+		Raster raster = img.getRaster();
+		if (!(raster.getDataBuffer() instanceof DataBufferInt))
+			return null;
+		if (!(raster.getSampleModel() instanceof SinglePixelPackedSampleModel))
+			return null;
+		SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+		DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+		if (sm.getScanlineStride() != img.getWidth()
+				|| raster.getSampleModelTranslateX() != 0
+				|| raster.getSampleModelTranslateY() != 0
+				|| buffer.getOffset() != 0
+				|| buffer.getNumBanks() != 1)
+			return null;
+		return buffer.getData();
+	}
+
+	/**
+	 * Describes an interleaved 8 bit sRGB or gray raster (such as 
+	 * TYPE_3BYTE_BGR, TYPE_4BYTE_ABGR or TYPE_BYTE_GRAY) which can be read
+	 * directly.  Gray has the same offset for red, green and blue, which
+	 * gives the same pixels as Java2D does when drawing gray on RGB.
+	 */
+	static class ByteLayout {
+		final byte[] data;
+		final int scanlineStride;
+		final int pixelStride;
+		final int red, green, blue, alpha;
+
+		private ByteLayout(byte[] data, int scanlineStride, int pixelStride, int[] offsets) {
+			this.data = data;
+			this.scanlineStride = scanlineStride;
+			this.pixelStride = pixelStride;
+			this.red = offsets[0];
+			this.green = offsets.length > 1 ? offsets[1] : offsets[0];
+			this.blue = offsets.length > 1 ? offsets[2] : offsets[0];
+			this.alpha = offsets.length > 3 ? offsets[3] : -1;
+		}
+
+		/**
+		 * Returns the layout of the image, or null if it cannot be read
+		 * directly.  Alpha is not premultiplied, so pixels with alpha must
+		 * be flattened before they are used as TYPE_INT_RGB.
+		 */
+		static ByteLayout get(BufferedImage img){
+			Raster raster = img.getRaster();
+			if (!(raster.getDataBuffer() instanceof DataBufferByte))
+				return null;
+			if (!(raster.getSampleModel() instanceof PixelInterleavedSampleModel))
+				return null;
+			if (!(img.getColorModel() instanceof ComponentColorModel))
+				return null;
+			ColorModel cm = img.getColorModel();
+			boolean gray = cm.getColorSpace().getType() == ColorSpace.TYPE_GRAY && !cm.hasAlpha();
+			if (!(cm.getColorSpace().isCS_sRGB() || gray) || cm.isAlphaPremultiplied())
+				return null;
+
+			PixelInterleavedSampleModel sm = (PixelInterleavedSampleModel) raster.getSampleModel();
+			DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+			int bands = gray ? 1 : cm.hasAlpha() ? 4 : 3;
+			if (sm.getNumBands() != bands
+					|| raster.getSampleModelTranslateX() != 0
+					|| raster.getSampleModelTranslateY() != 0
+					|| buffer.getOffset() != 0
+					|| buffer.getNumBanks() != 1)
+				return null;
+			for (int i = 0; i < bands; i++){
+				if (sm.getSampleSize(i) != 8)
+					return null;
+			}
+			return new ByteLayout(buffer.getData(), sm.getScanlineStride(), sm.getPixelStride(), sm.getBandOffsets());
+		}
+	}
+
+	/**
+	 * Precomputed fixed point filter weights for resampling one dimension
+	 * from inSize to outSize.  For output position i, the contributing
+	 * input positions are bounds[i*2] to bounds[i*2] + bounds[i*2+1] - 1,
+	 * and their weights start at weights[i * taps].
+	 */
+	static class Coefficients {
+		final int[] bounds;
+		final int[] weights;
+		final int taps;
+
+		Coefficients(int inSize, int outSize, ResampleQuality quality) {
+			double scale = (double) inSize / outSize;
+			double filterScale = Math.max(scale, 1.0);
+			double support = quality.getSupport() * filterScale;
+
+			taps = (int) Math.ceil(support) * 2 + 1;
+			bounds = new int[outSize * 2];
+			weights = new int[outSize * taps];
+
+			double[] w = new double[taps];
+			for (int i = 0; i < outSize; i++){
+				double center = (i + 0.5) * scale;
+				int min = (int) Math.max(0, Math.floor(center - support + 0.5));
+				int max = (int) Math.min(inSize, Math.floor(center + support + 0.5));
+				if (max <= min){
+					//Can only happen through rounding at the very edge
+					min = Math.min(Math.max(0, (int) center), inSize - 1);
+					max = min + 1;
+				}
+				int count = Math.min(max - min, taps);
+
+				double total = 0.0;
+				for (int j = 0; j < count; j++){
+					w[j] = quality.weight((j + min - center + 0.5) / filterScale);
+					total += w[j];
+				}
+				for (int j = 0; j < count; j++){
+					double normalized = total == 0.0 ? 0.0 : w[j] / total;
+					weights[i * taps + j] = (int) Math.round(normalized * (1 << PixelKernels.PRECISION_BITS));
+				}
+				bounds[i * 2] = min;
+				bounds[i * 2 + 1] = count;
+			}
+		}
+	}
+}
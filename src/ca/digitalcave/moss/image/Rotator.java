@@ -0,0 +1,257 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Exact right angle rotations and flips, and the eight EXIF orientations.
+ * These only move pixels, so rather than going through AffineTransformOp,
+ * each pixel is copied straight from the source data array to its place in
+ * the destination array.
+ *
+ * Every one of these transforms maps source pixel (x, y) to destination
+ * index offset + x * xStep + y * yStep, so a single copy loop handles them
+ * all.  For the transforms which swap rows and columns, walking the source
+ * in row order would write the destination in column order, touching a new
+ * cache line for every pixel; the copy is therefore done in square tiles,
+ * small enough that the destination lines for a whole tile stay in cache.
+ *
+ * Images backed by a single int[] (TYPE_INT_RGB, TYPE_INT_ARGB, etc) or an
+ * interleaved byte[] (TYPE_3BYTE_BGR, which is what ImageIO decodes JPEGs
+ * to, TYPE_BYTE_GRAY, etc) are copied directly; anything else is copied
+ * through the Raster, one pixel at a time.  The result always has the same
+ * type and color model as the source.
+ */
+public class Rotator {
+
+	//Tile edge length, in pixels.  64 x 64 ints is 16k, which fits in L1 along with the source lines.
+	static final int TILE = 64;
+
+	/**
+	 * Rotates the image clockwise by a multiple of 90 degrees.
+	 * @param img The image to rotate
+	 * @param degrees A multiple of 90 (negative values rotate anticlockwise)
+	 * @return The rotated image; the image itself if degrees is a multiple of 360
+	 */
+	public static BufferedImage rotate(BufferedImage img, int degrees){
+		if (degrees % 90 != 0)
+			throw new IllegalArgumentException("Only multiples of 90 degrees are supported, not " + degrees);
+		switch (((degrees % 360) + 360) % 360) {
+		case 90: return applyExifOrientation(img, 6);
+		case 180: return applyExifOrientation(img, 3);
+		case 270: return applyExifOrientation(img, 8);
+		default: return img;
+		}
+	}
+
+	/**
+	 * Mirrors the image left to right.
+	 */
+	public static BufferedImage flipHorizontal(BufferedImage img){
+		return applyExifOrientation(img, 2);
+	}
+
+	/**
+	 * Mirrors the image top to bottom.
+	 */
+	public static BufferedImage flipVertical(BufferedImage img){
+		return applyExifOrientation(img, 4);
+	}
+
+	/**
+	 * Flips the image about its top left to bottom right diagonal.
+	 */
+	public static BufferedImage transpose(BufferedImage img){
+		return applyExifOrientation(img, 5);
+	}
+
+	/**
+	 * Flips the image about its top right to bottom left diagonal.
+	 */
+	public static BufferedImage transverse(BufferedImage img){
+		return applyExifOrientation(img, 7);
+	}
+
+	/**
+	 * Transforms an image as stored in a file into the way it should be
+	 * displayed, given the file's EXIF Orientation tag:
+	 *
+	 * <ol>
+	 * <li>Normal</li>
+	 * <li>Mirrored horizontally</li>
+	 * <li>Rotated 180 degrees</li>
+	 * <li>Mirrored vertically</li>
+	 * <li>Mirrored horizontally and rotated 270 degrees clockwise (transposed)</li>
+	 * <li>Rotated 90 degrees clockwise</li>
+	 * <li>Mirrored horizontally and rotated 90 degrees clockwise (transversed)</li>
+	 * <li>Rotated 270 degrees clockwise</li>
+	 * </ol>
+	 *
+	 * @param img The image as stored
+	 * @param orientation The EXIF orientation, from 1 to 8
+	 * @return The transformed image; the image itself for orientation 1 (or
+	 * any value outside 1 - 8, which are treated as normal)
+	 */
+	public static BufferedImage applyExifOrientation(BufferedImage img, int orientation){
+		if (orientation < 2 || orientation > 8)
+			return img;
+
+		int width = img.getWidth();
+		int height = img.getHeight();
+		boolean swap = orientation >= 5;
+		int dstWidth = swap ? height : width;
+		int dstHeight = swap ? width : height;
+
+		//The destination index of source pixels (0, 0), (1, 0) and (0, 1)
+		int origin = getIndex(orientation, 0, 0, width, height, dstWidth);
+		int xStep = getIndex(orientation, 1, 0, width, height, dstWidth) - origin;
+		int yStep = getIndex(orientation, 0, 1, width, height, dstWidth) - origin;
+
+		WritableRaster src = img.getRaster();
+		WritableRaster dst = src.createCompatibleWritableRaster(dstWidth, dstHeight);
+		BufferedImage result = new BufferedImage(img.getColorModel(), dst, img.isAlphaPremultiplied(), null);
+
+		if (!copyInts(src, dst, width, height, origin, xStep, yStep)
+				&& !copyBytes(src, dst, width, height, origin, xStep, yStep)){
+			copyPixels(src, dst, width, height, origin, xStep, yStep, dstWidth);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The index in the destination (dstWidth pixels wide) of source pixel (x, y)
+	 */
+	static int getIndex(int orientation, int x, int y, int width, int height, int dstWidth){
+		int dx, dy;
+		switch (orientation) {
+		case 2: dx = width - 1 - x; dy = y; break;
+		case 3: dx = width - 1 - x; dy = height - 1 - y; break;
+		case 4: dx = x; dy = height - 1 - y; break;
+		case 5: dx = y; dy = x; break;
+		case 6: dx = height - 1 - y; dy = x; break;
+		case 7: dx = height - 1 - y; dy = width - 1 - x; break;
+		case 8: dx = y; dy = width - 1 - x; break;
+		default: dx = x; dy = y;
+		}
+		return dy * dstWidth + dx;
+	}
+
+	/**
+	 * Copies images backed by a single packed int per pixel.
+	 * @return false if the rasters are not of that form
+	 */
+	private static boolean copyInts(Raster src, Raster dst, int width, int height, int origin, int xStep, int yStep){
+		SampleModel srcModel = src.getSampleModel();
+		if (!(srcModel instanceof SinglePixelPackedSampleModel) || !(src.getDataBuffer() instanceof DataBufferInt)
+				|| src.getDataBuffer().getNumBanks() != 1 || src.getParent() != null)
+			return false;
+		if (!(dst.getDataBuffer() instanceof DataBufferInt))
+			return false;
+
+		int[] srcData = ((DataBufferInt) src.getDataBuffer()).getData();
+		int srcOffset = src.getDataBuffer().getOffset();
+		int srcStride = ((SinglePixelPackedSampleModel) srcModel).getScanlineStride();
+		int[] dstData = ((DataBufferInt) dst.getDataBuffer()).getData();
+		int dstOffset = dst.getDataBuffer().getOffset() + origin;
+
+		for (int ty = 0; ty < height; ty += TILE){
+			int yEnd = Math.min(ty + TILE, height);
+			for (int tx = 0; tx < width; tx += TILE){
+				int xEnd = Math.min(tx + TILE, width);
+				for (int y = ty; y < yEnd; y++){
+					int s = srcOffset + y * srcStride + tx;
+					int d = dstOffset + tx * xStep + y * yStep;
+					for (int x = tx; x < xEnd; x++){
+						dstData[d] = srcData[s++];
+						d += xStep;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies images backed by a single byte array, with all the samples of
+	 * a pixel next to each other.
+	 * @return false if the rasters are not of that form
+	 */
+	private static boolean copyBytes(Raster src, Raster dst, int width, int height, int origin, int xStep, int yStep){
+		SampleModel srcModel = src.getSampleModel();
+		if (!(srcModel instanceof ComponentSampleModel) || !(src.getDataBuffer() instanceof DataBufferByte)
+				|| src.getDataBuffer().getNumBanks() != 1 || src.getParent() != null)
+			return false;
+		ComponentSampleModel srcComponents = (ComponentSampleModel) srcModel;
+		int pixelStride = srcComponents.getPixelStride();
+		for (int offset : srcComponents.getBandOffsets()) {
+			if (offset >= pixelStride)
+				return false; //Planar, not interleaved
+		}
+		SampleModel dstModel = dst.getSampleModel();
+		if (!(dstModel instanceof ComponentSampleModel) || !(dst.getDataBuffer() instanceof DataBufferByte)
+				|| ((ComponentSampleModel) dstModel).getPixelStride() != pixelStride)
+			return false;
+
+		byte[] srcData = ((DataBufferByte) src.getDataBuffer()).getData();
+		int srcOffset = src.getDataBuffer().getOffset();
+		int srcStride = srcComponents.getScanlineStride();
+		byte[] dstData = ((DataBufferByte) dst.getDataBuffer()).getData();
+		int dstOffset = dst.getDataBuffer().getOffset() + origin * pixelStride;
+		int dstXStep = xStep * pixelStride;
+		int dstYStep = yStep * pixelStride;
+
+		for (int ty = 0; ty < height; ty += TILE){
+			int yEnd = Math.min(ty + TILE, height);
+			for (int tx = 0; tx < width; tx += TILE){
+				int xEnd = Math.min(tx + TILE, width);
+				for (int y = ty; y < yEnd; y++){
+					int s = srcOffset + y * srcStride + tx * pixelStride;
+					int d = dstOffset + tx * dstXStep + y * dstYStep;
+					if (pixelStride == 3){
+						for (int x = tx; x < xEnd; x++){
+							dstData[d] = srcData[s];
+							dstData[d + 1] = srcData[s + 1];
+							dstData[d + 2] = srcData[s + 2];
+							s += 3;
+							d += dstXStep;
+						}
+					}
+					else {
+						for (int x = tx; x < xEnd; x++){
+							for (int b = 0; b < pixelStride; b++)
+								dstData[d + b] = srcData[s + b];
+							s += pixelStride;
+							d += dstXStep;
+						}
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Copies any other kind of image, one pixel at a time.
+	 */
+	private static void copyPixels(Raster src, WritableRaster dst, int width, int height, int origin, int xStep, int yStep, int dstWidth){
+		Object pixel = null;
+		int minX = src.getMinX(), minY = src.getMinY();
+		for (int y = 0; y < height; y++){
+			int d = origin + y * yStep;
+			for (int x = 0; x < width; x++){
+				pixel = src.getDataElements(minX + x, minY + y, pixel);
+				dst.setDataElements(d % dstWidth, d / dstWidth, pixel);
+				d += xStep;
+			}
+		}
+	}
+}
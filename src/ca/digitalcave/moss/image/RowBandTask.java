@@ -0,0 +1,61 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of rows in half until each piece is no more than 'grain'
+ * rows, and processes the pieces on a ForkJoinPool.  Each band writes only
+ * its own rows of the destination, so no further synchronization is needed.
+ */
+class RowBandTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The work to be done for a band of rows [rowStart, rowEnd).
+	 */
+	interface Band {
+		void process(int rowStart, int rowEnd);
+	}
+
+	private final Band band;
+	private final int rowStart;
+	private final int rowEnd;
+	private final int grain;
+
+	RowBandTask(Band band, int rowStart, int rowEnd, int grain) {
+		this.band = band;
+		this.rowStart = rowStart;
+		this.rowEnd = rowEnd;
+		this.grain = Math.max(1, grain);
+	}
+
+	/**
+	 * Processes rows [rowStart, rowEnd) on the given pool, splitting into 
+	 * about four bands per worker thread.  If pool is null, the rows are
+	 * processed serially on the calling thread.
+	 */
+	static void run(ForkJoinPool pool, Band band, int rowStart, int rowEnd){
+		if (pool == null || rowEnd - rowStart < 2){
+			band.process(rowStart, rowEnd);
+			return;
+		}
+		int grain = (rowEnd - rowStart) / (pool.getParallelism() * 4);
+		pool.invoke(new RowBandTask(band, rowStart, rowEnd, grain));
+	}
+
+	@Override
+	protected void compute() {
+		if (rowEnd - rowStart <= grain){
+			band.process(rowStart, rowEnd);
+		}
+		else {
+			int middle = (rowStart + rowEnd) >>> 1;
+			invokeAll(new RowBandTask(band, rowStart, middle, grain), new RowBandTask(band, middle, rowEnd, grain));
+		}
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+/**
+ * Plain Java kernels, which run anywhere.  Each output pixel is computed
+ * by a small static method with a single counted loop, which the JIT
+ * inlines and unrolls.
+ */
+class ScalarKernels extends PixelKernels {
+
+	@Override
+	String getName() {
+		return "scalar";
+	}
+
+	@Override
+	void unpack(Resampler.ByteLayout src, int[] dst, int width, int rowStart, int rowEnd) {
+		byte[] data = src.data;
+		int stride = src.pixelStride;
+		int red = src.red, green = src.green, blue = src.blue, alpha = src.alpha;
+		for (int y = rowStart; y < rowEnd; y++){
+			int index = y * src.scanlineStride;
+			int out = y * width;
+			if (alpha >= 0){
+				for (int x = 0; x < width; x++){
+					dst[out + x] = ((data[index + alpha] & 0xff) << 24)
+							| ((data[index + red] & 0xff) << 16)
+							| ((data[index + green] & 0xff) << 8)
+							| (data[index + blue] & 0xff);
+					index += stride;
+				}
+			}
+			else {
+				for (int x = 0; x < width; x++){
+					dst[out + x] = 0xff000000
+							| ((data[index + red] & 0xff) << 16)
+							| ((data[index + green] & 0xff) << 8)
+							| (data[index + blue] & 0xff);
+					index += stride;
+				}
+			}
+		}
+	}
+
+	@Override
+	void flatten(int[] src, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++)
+			dst[i] = flatten(src[i]);
+	}
+
+	static int flatten(int p){
+		int a = p >>> 24;
+		return 0xff000000
+				| (multiply((p >> 16) & 0xff, a) << 16)
+				| (multiply((p >> 8) & 0xff, a) << 8)
+				| multiply(p & 0xff, a);
+	}
+
+	@Override
+	void opaque(int[] src, int[] dst, int from, int to) {
+		for (int i = from; i < to; i++)
+			dst[i] = src[i] | 0xff000000;
+	}
+
+	@Override
+	void horizontalPass(int[] src, int srcWidth, int[] dst, int dstWidth, Resampler.Coefficients c, int rowStart, int rowEnd) {
+		int[] bounds = c.bounds;
+		int[] weights = c.weights;
+		int taps = c.taps;
+		for (int y = rowStart; y < rowEnd; y++){
+			int row = y * srcWidth;
+			int out = y * dstWidth;
+			for (int x = 0; x < dstWidth; x++)
+				dst[out + x] = horizontalPixel(src, row + bounds[x * 2], bounds[x * 2 + 1], weights, x * taps);
+		}
+	}
+
+	/**
+	 * Filters count pixels of src starting at start, with the weights
+	 * starting at k.
+	 */
+	static int horizontalPixel(int[] src, int start, int count, int[] weights, int k){
+		int a = ROUNDING, r = ROUNDING, g = ROUNDING, b = ROUNDING;
+		for (int i = 0; i < count; i++){
+			int p = src[start + i];
+			int w = weights[k + i];
+			a += (p >>> 24) * w;
+			r += ((p >> 16) & 0xff) * w;
+			g += ((p >> 8) & 0xff) * w;
+			b += (p & 0xff) * w;
+		}
+		return pack(a, r, g, b);
+	}
+
+	@Override
+	void verticalPass(int[] src, int[] dst, int width, Resampler.Coefficients c, int rowStart, int rowEnd) {
+		int[] bounds = c.bounds;
+		int[] weights = c.weights;
+		int taps = c.taps;
+		for (int y = rowStart; y < rowEnd; y++){
+			int start = bounds[y * 2] * width;
+			int count = bounds[y * 2 + 1];
+			int out = y * width;
+			for (int x = 0; x < width; x++)
+				dst[out + x] = verticalPixel(src, start + x, width, count, weights, y * taps);
+		}
+	}
+
+	/**
+	 * Filters the pixel at index, and the count - 1 pixels below it in
+	 * rows of the given width, with the weights starting at k.
+	 */
+	static int verticalPixel(int[] src, int index, int width, int count, int[] weights, int k){
+		int a = ROUNDING, r = ROUNDING, g = ROUNDING, b = ROUNDING;
+		for (int i = 0; i < count; i++){
+			int p = src[index];
+			int w = weights[k + i];
+			a += (p >>> 24) * w;
+			r += ((p >> 16) & 0xff) * w;
+			g += ((p >> 8) & 0xff) * w;
+			b += (p & 0xff) * w;
+			index += width;
+		}
+		return pack(a, r, g, b);
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Receives tag values from ExifToolWrapper.getTagsFromFiles(), one file at
+ * a time, as soon as each file has been read.  This avoids holding the
+ * values for a whole (possibly very large) collection in memory at once.
+ */
+public interface TagSink {
+
+	/**
+	 * Called once for each file which could be read.
+	 * @param file The file, as passed to getTagsFromFiles()
+	 * @param tags The requested tags which the file has, and their values.
+	 * The sink may keep this map.
+	 * @throws IOException
+	 */
+	public void tags(File file, Map<String, String> tags) throws IOException;
+}
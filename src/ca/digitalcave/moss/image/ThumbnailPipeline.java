@@ -0,0 +1,420 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates thumbnails for large batches of images.  Each image goes through
+ * three stages - decode, resize and encode - each with its own pool of
+ * worker threads.  The stages are connected by bounded queues, so that a
+ * slow stage holds up the ones before it instead of letting decoded images
+ * pile up in memory; submit() itself blocks when the decode queue is full.
+ * If a DecodeGovernor budget is set, each decode also waits for its memory
+ * to be reserved, and the reservation is held until the image is resized.
+ *
+ * Per stage statistics (see getStatistics()) show where the time is going,
+ * so that the thread counts can be tuned for the machine: a stage with a
+ * long queue and busy threads needs more threads, while one whose threads
+ * are mostly idle can give some up.
+ *
+ * Call shutdown() once all calls to submit() have returned; jobs already
+ * submitted are still completed.
+ */
+public class ThumbnailPipeline {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	/**
+	 * Notified when each job finishes.  Methods are called on the
+	 * pipeline's worker threads, so should return quickly.
+	 */
+	public interface Listener {
+		public void completed(Job job);
+		/**
+		 * @param e The reason; an Error thrown by a stage (such as an
+		 * OutOfMemoryError) is wrapped in an ExecutionException
+		 */
+		public void failed(Job job, Exception e);
+		public void cancelled(Job job);
+	}
+
+	/**
+	 * A single thumbnail to create.
+	 */
+	public static class Job {
+		private final File source;
+		private final File destination;
+		private final int maxSize;
+		private final ResampleQuality quality;
+		private final float encodeQuality;
+		private final String format;
+		private final Listener listener;
+		private volatile boolean cancelled = false;
+		private BufferedImage image;
+		//Memory reserved for the decode and resize, from DecodeGovernor
+		private final DecodeGovernor.Permit permit = new DecodeGovernor.Permit();
+
+		private Job(File source, File destination, int maxSize, ResampleQuality quality, float encodeQuality, String format, Listener listener) {
+			this.source = source;
+			this.destination = destination;
+			this.maxSize = maxSize;
+			this.quality = quality;
+			this.encodeQuality = encodeQuality;
+			this.format = format;
+			this.listener = listener;
+		}
+
+		public File getSource() {
+			return source;
+		}
+
+		public File getDestination() {
+			return destination;
+		}
+
+		/**
+		 * Cancels this job.  If it is already being worked on, the current
+		 * stage finishes, but the job goes no further.
+		 */
+		public void cancel(){
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * A snapshot of the counters for one stage.
+	 */
+	public static class Statistics {
+		private final String name;
+		private final int threads;
+		private final int queued;
+		private final long completed;
+		private final long failed;
+		private final long busyNanos;
+		private final long elapsedNanos;
+
+		private Statistics(String name, int threads, int queued, long completed, long failed, long busyNanos, long elapsedNanos) {
+			this.name = name;
+			this.threads = threads;
+			this.queued = queued;
+			this.completed = completed;
+			this.failed = failed;
+			this.busyNanos = busyNanos;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getThreads() {
+			return threads;
+		}
+
+		/**
+		 * @return The number of jobs waiting for this stage
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		public long getCompleted() {
+			return completed;
+		}
+
+		public long getFailed() {
+			return failed;
+		}
+
+		/**
+		 * @return The total time spent working (not waiting) across all threads of this stage
+		 */
+		public long getBusyNanos() {
+			return busyNanos;
+		}
+
+		/**
+		 * @return Jobs completed per second of wall clock time since the pipeline started
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0.0 : completed * 1e9 / elapsedNanos;
+		}
+
+		/**
+		 * @return The fraction of the stage's available thread time spent working, from 0 to 1
+		 */
+		public double getUtilization() {
+			return elapsedNanos == 0 ? 0.0 : (double) busyNanos / ((double) elapsedNanos * threads);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d threads, %d queued, %d completed, %d failed, %.1f/s, %.0f%% busy",
+					name, threads, queued, completed, failed, getThroughput(), getUtilization() * 100);
+		}
+	}
+
+	//Placed on a stage's queue to tell one of its threads to stop
+	private static final Job STOP = new Job(null, null, 0, null, 0, null, null);
+
+	private final long started = System.nanoTime();
+	private final Stage decode;
+	private final Stage resize;
+	private final Stage encode;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * Creates and starts a new pipeline.
+	 * @param decodeThreads The number of threads reading source images
+	 * @param resizeThreads The number of threads scaling images
+	 * @param encodeThreads The number of threads writing thumbnails
+	 * @param queueSize The maximum number of jobs waiting for each stage
+	 */
+	public ThumbnailPipeline(int decodeThreads, int resizeThreads, int encodeThreads, int queueSize) {
+		encode = new Stage("encode", encodeThreads, queueSize, null) {
+			void process(Job job) throws Exception {
+				try {
+					File parent = job.destination.getAbsoluteFile().getParentFile();
+					if (parent != null)
+						parent.mkdirs();
+					if (!ImageFunctions.writeImage(job.image, job.destination, job.encodeQuality, job.format))
+						throw new IOException("Unable to write thumbnail " + job.destination);
+				}
+				finally {
+					job.image = null;
+				}
+			}
+		};
+		resize = new Stage("resize", resizeThreads, queueSize, encode) {
+			void process(Job job) throws Exception {
+				try {
+					job.image = ImageFunctions.scaleImage(job.image, job.maxSize, job.quality);
+				}
+				finally {
+					job.permit.close();
+				}
+			}
+		};
+		decode = new Stage("decode", decodeThreads, queueSize, resize) {
+			void process(Job job) throws Exception {
+				job.image = ImageFunctions.readSubsampled(job.source, job.maxSize, job.permit);
+				if (job.image == null)
+					throw new IOException("Unable to read image " + job.source);
+			}
+		};
+
+		encode.start();
+		resize.start();
+		decode.start();
+	}
+
+	/**
+	 * Adds a job to the pipeline, blocking if the decode queue is full.
+	 * @param source The image to read
+	 * @param destination The file to write the thumbnail to
+	 * @param maxSize The size of the longest side of the thumbnail
+	 * @param quality The filter to scale with
+	 * @param encodeQuality The compression quality (if appropriate to the format)
+	 * @param format The format to write, as a file extension (e.g. "jpg")
+	 * @param listener Notified when the job completes; may be null
+	 * @return The job, which can be used to cancel it
+	 * @throws InterruptedException If interrupted while waiting for space in the queue
+	 */
+	public Job submit(File source, File destination, int maxSize, ResampleQuality quality, float encodeQuality, String format, Listener listener) throws InterruptedException {
+		if (shutdown)
+			throw new IllegalStateException("Pipeline has been shut down");
+		Job job = new Job(source, destination, maxSize, quality, encodeQuality, format, listener);
+		decode.queue.put(job);
+		return job;
+	}
+
+	/**
+	 * Stops accepting new jobs.  Jobs already submitted are still completed,
+	 * after which the worker threads exit.
+	 */
+	public void shutdown(){
+		if (shutdown)
+			return;
+		shutdown = true;
+		decode.stop();
+	}
+
+	/**
+	 * Waits for all submitted jobs to finish after shutdown().
+	 * @return true if all jobs finished, false if the timeout expired first
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return encode.finished.await(timeout, unit);
+	}
+
+	/**
+	 * @return Statistics for the decode, resize and encode stages, in that order
+	 */
+	public List<Statistics> getStatistics(){
+		long elapsed = System.nanoTime() - started;
+		List<Statistics> result = new ArrayList<Statistics>();
+		for (Stage stage : new Stage[]{decode, resize, encode}) {
+			result.add(new Statistics(stage.name, stage.threads.length, stage.queue.size(),
+					stage.completed.get(), stage.failed.get(), stage.busyNanos.get(), elapsed));
+		}
+		return result;
+	}
+
+	/**
+	 * One stage of the pipeline: a queue, and the threads which take jobs
+	 * from it and pass them on to the next stage.
+	 */
+	private abstract class Stage implements Runnable {
+		private final String name;
+		private final BlockingQueue<Job> queue;
+		private final Thread[] threads;
+		private final Stage next;
+		private final AtomicInteger running;
+		private final CountDownLatch finished = new CountDownLatch(1);
+		private final AtomicLong completed = new AtomicLong();
+		private final AtomicLong failed = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+
+		Stage(String name, int threadCount, int queueSize, Stage next) {
+			if (threadCount < 1)
+				throw new IllegalArgumentException("Each stage needs at least one thread");
+			this.name = name;
+			this.queue = new ArrayBlockingQueue<Job>(queueSize);
+			this.threads = new Thread[threadCount];
+			this.next = next;
+			this.running = new AtomicInteger(threadCount);
+			for (int i = 0; i < threads.length; i++){
+				threads[i] = new Thread(this, "thumbnail-" + name + "-" + i);
+				threads[i].setDaemon(true);
+			}
+		}
+
+		abstract void process(Job job) throws Exception;
+
+		void start(){
+			for (Thread thread : threads) {
+				thread.start();
+			}
+		}
+
+		/**
+		 * Tells each thread to stop once it reaches the end of the queue.
+		 */
+		void stop(){
+			for (int i = 0; i < threads.length; i++){
+				putUninterruptibly(queue, STOP);
+			}
+		}
+
+		public void run() {
+			try {
+				while (true){
+					Job job;
+					try {
+						job = queue.take();
+					}
+					catch (InterruptedException ie){
+						continue;
+					}
+					if (job == STOP)
+						break;
+
+					if (job.cancelled){
+						job.image = null;
+						job.permit.close();
+						report(job, null, true);
+						continue;
+					}
+
+					long start = System.nanoTime();
+					try {
+						process(job);
+						busyNanos.addAndGet(System.nanoTime() - start);
+						completed.incrementAndGet();
+					}
+					catch (Throwable t){
+						//Including Errors, most likely an OutOfMemoryError while
+						// decoding; the job is reported and its reservation
+						// released either way, and the thread carries on
+						busyNanos.addAndGet(System.nanoTime() - start);
+						failed.incrementAndGet();
+						job.image = null;
+						job.permit.close();
+						report(job, t instanceof Exception ? (Exception) t : new ExecutionException(t), false);
+						continue;
+					}
+
+					if (next != null)
+						putUninterruptibly(next.queue, job);
+					else
+						report(job, null, false);
+				}
+			}
+			finally {
+				//The last thread out tells the next stage to stop
+				if (running.decrementAndGet() == 0){
+					if (next != null)
+						next.stop();
+					finished.countDown();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tells the job's listener how it ended, making sure that a misbehaving
+	 * listener cannot kill a worker thread.
+	 */
+	private static void report(Job job, Exception e, boolean cancelled){
+		if (job.listener == null){
+			if (e != null)
+				logger.log(Level.WARNING, "Problem encountered while creating thumbnail of " + job.source, e);
+			return;
+		}
+		try {
+			if (cancelled)
+				job.listener.cancelled(job);
+			else if (e != null)
+				job.listener.failed(job, e);
+			else
+				job.listener.completed(job);
+		}
+		catch (RuntimeException re){
+			logger.log(Level.WARNING, "Thumbnail listener failed", re);
+		}
+	}
+
+	private static void putUninterruptibly(BlockingQueue<Job> queue, Job job){
+		boolean interrupted = false;
+		while (true){
+			try {
+				queue.put(job);
+				break;
+			}
+			catch (InterruptedException ie){
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
@@ -0,0 +1,405 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cuts an image of any size into a pyramid of fixed size tiles for
+ * zoomable viewers, in the Deep Zoom layout: a descriptor 'name.dzi', and
+ * the tiles of each level in 'name_files/level/column_row.format'.  The
+ * highest level is the image at full size, and each level below it is
+ * half the size of the one above (rounding up), down to a single pixel at
+ * level 0.  Tiles do not overlap, and those at the right and bottom edges
+ * are smaller than the rest.
+ *
+ * The source is never decoded whole.  It is read with a RegionDecoder in
+ * full width bands (tileSize rows each, by default), and each band is
+ * passed down through every level as it is read: each level keeps only
+ * the rows of its current row of tiles, writes the row of tiles once it
+ * is complete, and halves (2x2 box filter) the rows it is given for the
+ * level below.  Memory therefore depends on the image's width and the
+ * band height, but not on its height.
+ *
+ * With a ForkJoinPool, the tiles completed by each band, from every
+ * level at once, are encoded in parallel while the next band is read.
+ */
+public class TilePyramid {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private final int tileSize;
+	private final String format;
+	private final float encodeQuality;
+	private int bandHeight;
+
+	/**
+	 * @param tileSize The width and height of each tile (256 is typical)
+	 * @param format The tile format, as a file extension (e.g. "jpg", "png")
+	 * @param encodeQuality The compression quality (if appropriate to the format)
+	 */
+	public TilePyramid(int tileSize, String format, float encodeQuality) {
+		if (tileSize < 1)
+			throw new IllegalArgumentException("Tile size must be at least 1");
+		this.tileSize = tileSize;
+		this.format = format;
+		this.encodeQuality = encodeQuality;
+		this.bandHeight = tileSize;
+	}
+
+	/**
+	 * Sets the number of rows of the source which are decoded at once.  The
+	 * default is the tile size.  Larger bands use more memory, but suit
+	 * formats such as JPEG, whose readers decode every row above a region
+	 * to get to it.
+	 * @param rows
+	 */
+	public void setBandHeight(int rows) {
+		if (rows < 1)
+			throw new IllegalArgumentException("Band height must be at least 1");
+		this.bandHeight = rows;
+	}
+
+	/**
+	 * @return The directory which holds the tiles for the given descriptor;
+	 * 'name_files' for 'name.dzi'
+	 */
+	public static File getTileDirectory(File descriptor){
+		String name = descriptor.getName();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0)
+			name = name.substring(0, dot);
+		return new File(descriptor.getParentFile(), name + "_files");
+	}
+
+	/**
+	 * @return The number of the highest (full size) level for an image of the given size
+	 */
+	public static int getMaxLevel(int width, int height){
+		int level = 0;
+		while ((1L << level) < Math.max(width, height))
+			level++;
+		return level;
+	}
+
+	/**
+	 * Writes the pyramid of the source image.
+	 * @param source The image to tile
+	 * @param descriptor The .dzi file to write; tiles are written next to it (see getTileDirectory())
+	 * @param pool The pool to encode tiles on, or null to encode them on the calling thread
+	 * @return true if every tile and the descriptor were written
+	 */
+	public boolean write(File source, File descriptor, ForkJoinPool pool){
+		RegionDecoder decoder = null;
+		try {
+			decoder = new RegionDecoder(source);
+			return write(decoder, descriptor, pool);
+		}
+		catch (IOException ioe){
+			logger.log(Level.WARNING, "Problem encountered while tiling " + source, ioe);
+			return false;
+		}
+		finally {
+			if (decoder != null){
+				try {
+					decoder.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing " + source, ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the pyramid of the image open in the decoder.
+	 * @throws IOException If the image cannot be decoded, or a directory cannot be created
+	 */
+	public boolean write(RegionDecoder decoder, File descriptor, ForkJoinPool pool) throws IOException {
+		int width = decoder.getWidth();
+		int height = decoder.getHeight();
+		File directory = getTileDirectory(descriptor);
+		int maxLevel = getMaxLevel(width, height);
+
+		//Levels are linked from the full size one down to level 0
+		Tiler top = null;
+		Tiler previous = null;
+		int levelWidth = width, levelHeight = height;
+		for (int level = maxLevel; level >= 0; level--){
+			File levelDirectory = new File(directory, String.valueOf(level));
+			if (!levelDirectory.isDirectory() && !levelDirectory.mkdirs())
+				throw new IOException("Unable to create " + levelDirectory);
+			Tiler tiler = new Tiler(level, levelWidth, levelHeight, levelDirectory);
+			if (previous == null)
+				top = tiler;
+			else
+				previous.next = tiler;
+			previous = tiler;
+			levelWidth = (levelWidth + 1) / 2;
+			levelHeight = (levelHeight + 1) / 2;
+		}
+
+		AtomicBoolean failed = new AtomicBoolean();
+		ForkJoinTask<?> encoding = null;
+		int imageType = 0;
+		try {
+			for (int y = 0; y < height; y += bandHeight){
+				int rows = Math.min(bandHeight, height - y);
+				BufferedImage band = decoder.read(new Rectangle(0, y, width, rows), 1);
+				if (imageType == 0)
+					imageType = band.getColorModel().hasAlpha() && !isJpeg() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+				top.imageType = imageType;
+				int[] pixels = Resampler.reduce(band, imageType, 1, null);
+				band = null;
+
+				List<Tile> ready = new ArrayList<Tile>();
+				top.add(pixels, rows, ready);
+
+				//Encode this band's tiles while the next band is read
+				if (encoding != null)
+					encoding.join();
+				encoding = encode(ready, pool, failed);
+			}
+		}
+		finally {
+			if (encoding != null)
+				encoding.join();
+		}
+
+		if (!writeDescriptor(descriptor, width, height))
+			failed.set(true);
+		return !failed.get();
+	}
+
+	private boolean isJpeg(){
+		String lower = format.toLowerCase(Locale.ENGLISH);
+		return lower.equals("jpg") || lower.equals("jpeg");
+	}
+
+	/**
+	 * Encodes the tiles; on the pool if there is one, in which case the
+	 * returned task must be joined.
+	 */
+	private ForkJoinTask<?> encode(List<Tile> tiles, ForkJoinPool pool, AtomicBoolean failed){
+		if (tiles.isEmpty())
+			return null;
+		if (pool == null){
+			for (Tile tile : tiles) {
+				if (!tile.write())
+					failed.set(true);
+			}
+			return null;
+		}
+		return pool.submit(new TileTask(tiles, 0, tiles.size(), failed));
+	}
+
+	private boolean writeDescriptor(File descriptor, int width, int height){
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(descriptor), "UTF-8");
+			writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			writer.write("<Image xmlns=\"http://schemas.microsoft.com/deepzoom/2008\" Format=\"" + format.toLowerCase(Locale.ENGLISH) + "\" Overlap=\"0\" TileSize=\"" + tileSize + "\">\n");
+			writer.write("\t<Size Width=\"" + width + "\" Height=\"" + height + "\"/>\n");
+			writer.write("</Image>\n");
+			writer.close();
+			writer = null;
+			return true;
+		}
+		catch (IOException ioe){
+			logger.log(Level.SEVERE, "Problem encountered while writing " + descriptor, ioe);
+			return false;
+		}
+		finally {
+			if (writer != null){
+				try {
+					writer.close();
+				}
+				catch (IOException ioe){
+					logger.log(Level.FINE, "Problem encountered while closing " + descriptor, ioe);
+				}
+			}
+		}
+	}
+
+	/**
+	 * One level of the pyramid, which is given its rows from top to bottom.
+	 */
+	private class Tiler {
+		private final int level;
+		private final int width;
+		private final int height;
+		private final File directory;
+		private final int[] buffer;
+		private int imageType;
+		private int bufferedRows = 0;
+		private int rowsSeen = 0;
+		private int tileRow = 0;
+		//An odd row left over from the last call, to be halved with the next row
+		private int[] pendingRow = null;
+		private Tiler next;
+
+		Tiler(int level, int width, int height, File directory) {
+			this.level = level;
+			this.width = width;
+			this.height = height;
+			this.directory = directory;
+			this.buffer = new int[width * Math.min(tileSize, height)];
+		}
+
+		/**
+		 * Adds the next rows of this level (width x count packed pixels),
+		 * collecting any tiles which they complete, and passes them on,
+		 * halved, to the next level.
+		 */
+		void add(int[] rows, int count, List<Tile> ready){
+			for (int r = 0; r < count; r++){
+				System.arraycopy(rows, r * width, buffer, bufferedRows * width, width);
+				bufferedRows++;
+				rowsSeen++;
+				if (bufferedRows == tileSize || rowsSeen == height){
+					cut(ready);
+					bufferedRows = 0;
+					tileRow++;
+				}
+			}
+
+			if (next == null)
+				return;
+			next.imageType = imageType;
+			int halfWidth = next.width;
+			int available = count + (pendingRow == null ? 0 : 1);
+			boolean last = rowsSeen == height;
+			int halfCount = last ? (available + 1) / 2 : available / 2;
+			int[] half = new int[halfWidth * halfCount];
+			int r = 0;
+			for (int h = 0; h < halfCount; h++){
+				int[] first, second;
+				int firstOffset, secondOffset;
+				if (pendingRow != null){
+					first = pendingRow;
+					firstOffset = 0;
+					pendingRow = null;
+				}
+				else {
+					first = rows;
+					firstOffset = r++ * width;
+				}
+				if (r < count){
+					second = rows;
+					secondOffset = r++ * width;
+				}
+				else {
+					//The last row of an image with an odd height is halved with itself
+					second = first;
+					secondOffset = firstOffset;
+				}
+				halve(first, firstOffset, second, secondOffset, half, h * halfWidth, halfWidth);
+			}
+			if (r < count){
+				pendingRow = new int[width];
+				System.arraycopy(rows, r * width, pendingRow, 0, width);
+			}
+			next.add(half, halfCount, ready);
+		}
+
+		/**
+		 * Averages each 2x2 block of the two rows into one pixel; the last
+		 * column of an odd width is averaged with itself.
+		 */
+		private void halve(int[] src1, int offset1, int[] src2, int offset2, int[] dst, int dstOffset, int dstWidth){
+			for (int x = 0; x < dstWidth; x++){
+				int x1 = x * 2;
+				int x2 = Math.min(x1 + 1, width - 1);
+				int a = src1[offset1 + x1], b = src1[offset1 + x2], c = src2[offset2 + x1], d = src2[offset2 + x2];
+				int alpha = (((a >>> 24) + (b >>> 24) + (c >>> 24) + (d >>> 24) + 2) >> 2);
+				int red = ((((a >> 16) & 0xff) + ((b >> 16) & 0xff) + ((c >> 16) & 0xff) + ((d >> 16) & 0xff) + 2) >> 2);
+				int green = ((((a >> 8) & 0xff) + ((b >> 8) & 0xff) + ((c >> 8) & 0xff) + ((d >> 8) & 0xff) + 2) >> 2);
+				int blue = (((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2);
+				dst[dstOffset + x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+			}
+		}
+
+		/**
+		 * Copies the buffered rows into a row of tiles.
+		 */
+		private void cut(List<Tile> ready){
+			for (int x = 0, column = 0; x < width; x += tileSize, column++){
+				int tileWidth = Math.min(tileSize, width - x);
+				BufferedImage image = new BufferedImage(tileWidth, bufferedRows, imageType);
+				int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+				for (int y = 0; y < bufferedRows; y++){
+					System.arraycopy(buffer, y * width + x, pixels, y * tileWidth, tileWidth);
+				}
+				ready.add(new Tile(image, new File(directory, column + "_" + tileRow + "." + format)));
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "level " + level + " (" + width + "x" + height + ")";
+		}
+	}
+
+	private class Tile {
+		private final BufferedImage image;
+		private final File file;
+
+		Tile(BufferedImage image, File file) {
+			this.image = image;
+			this.file = file;
+		}
+
+		boolean write(){
+			return ImageFunctions.writeImage(image, file, encodeQuality, format);
+		}
+	}
+
+	/**
+	 * Writes a range of tiles, splitting it in half until each piece is
+	 * a single tile.
+	 */
+	private static class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Tile> tiles;
+		private final int start;
+		private final int end;
+		private final AtomicBoolean failed;
+
+		TileTask(List<Tile> tiles, int start, int end, AtomicBoolean failed) {
+			this.tiles = tiles;
+			this.start = start;
+			this.end = end;
+			this.failed = failed;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start == 1){
+				if (!tiles.get(start).write())
+					failed.set(true);
+			}
+			else {
+				int middle = (start + end) >>> 1;
+				invokeAll(new TileTask(tiles, start, middle, failed), new TileTask(tiles, middle, end, failed));
+			}
+		}
+	}
+}
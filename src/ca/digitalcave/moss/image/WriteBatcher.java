@@ -0,0 +1,195 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects small tag edits and writes them in batches, so that a stream
+ * of edits to many files does not start an exiftool process per edit.
+ *
+ * Edits wait until the window has passed since the first edit of the
+ * batch, or until edits for maxFiles different files are waiting,
+ * whichever comes first.  Edits to the same file in one batch are merged
+ * (later values of a tag replace earlier ones).  Each batch is written by
+ * a single exiftool invocation through
+ * ExifToolWrapper.setTagsToFiles(Map), and each edit's future is completed
+ * with the result for its file.  Batches are written one at a time, in
+ * order, so later edits to a file always win.
+ */
+public class WriteBatcher {
+
+	private static Logger logger = Logger.getLogger("org.homeunix.thecave.moss");
+
+	private final ExifToolWrapper exifTool;
+	private final long windowMillis;
+	private final int maxFiles;
+	//Single threaded, so that batches are written in order
+	private final ScheduledThreadPoolExecutor flusher;
+
+	private LinkedHashMap<File, Pending> pending = new LinkedHashMap<File, Pending>();
+	//Writes the pending batch at the end of its window
+	private ScheduledFuture<?> timer;
+	private boolean closed = false;
+
+	/**
+	 * @param exifTool The wrapper to write with
+	 * @param window How long to collect edits for before writing them
+	 * @param unit The unit of window
+	 * @param maxFiles The number of files at which a batch is written straight away
+	 */
+	public WriteBatcher(ExifToolWrapper exifTool, long window, TimeUnit unit, int maxFiles) {
+		if (maxFiles < 1)
+			throw new IllegalArgumentException("maxFiles must be at least 1");
+		this.exifTool = exifTool;
+		this.windowMillis = unit.toMillis(window);
+		this.maxFiles = maxFiles;
+		this.flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "exiftool-write-batcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		//Timers cancelled by an early write are dropped, rather than left queued
+		this.flusher.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Queues tags to be written to a file.
+	 * @param file The file to write to
+	 * @param tags The tags and their values; values may not be null or
+	 * contain line breaks
+	 * @return Completed with the result for the file once its batch has been written
+	 */
+	public CompletableFuture<WriteResult> submit(File file, Map<String, String> tags){
+		CompletableFuture<WriteResult> future = new CompletableFuture<WriteResult>();
+		for (Map.Entry<String, String> tag : tags.entrySet()) {
+			if (tag.getValue() == null){
+				future.completeExceptionally(new IllegalArgumentException("Value of " + tag.getKey() + " is null"));
+				return future;
+			}
+			if (tag.getValue().indexOf('\n') >= 0 || tag.getValue().indexOf('\r') >= 0){
+				future.completeExceptionally(new IllegalArgumentException("Value of " + tag.getKey() + " contains a line break"));
+				return future;
+			}
+		}
+
+		boolean full;
+		synchronized (this) {
+			if (closed)
+				throw new IllegalStateException("Write batcher has been closed");
+			if (pending.size() == 0){
+				timer = flusher.schedule(new Runnable() {
+					public void run() {
+						write();
+					}
+				}, windowMillis, TimeUnit.MILLISECONDS);
+			}
+			File key = file.getAbsoluteFile();
+			Pending edit = pending.get(key);
+			if (edit == null){
+				edit = new Pending();
+				pending.put(key, edit);
+			}
+			edit.tags.putAll(tags);
+			edit.futures.add(future);
+			full = pending.size() >= maxFiles;
+		}
+
+		if (full)
+			flush();
+		return future;
+	}
+
+	/**
+	 * Starts writing the waiting edits now, rather than at the end of the window.
+	 */
+	public void flush(){
+		flusher.execute(new Runnable() {
+			public void run() {
+				write();
+			}
+		});
+	}
+
+	/**
+	 * Writes any waiting edits, and stops accepting new ones.
+	 * @param timeout How long to wait for the last batch to be written
+	 * @return true if everything was written within the timeout
+	 */
+	public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+		}
+		flush();
+		flusher.shutdown();
+		return flusher.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Writes the current batch; runs on the flusher thread.
+	 */
+	private void write(){
+		LinkedHashMap<File, Pending> batch;
+		synchronized (this) {
+			if (pending.size() == 0)
+				return; //Already written by an earlier flush
+			batch = pending;
+			pending = new LinkedHashMap<File, Pending>();
+			//If written early, the window's timer must not write the next batch before its own window
+			if (timer != null){
+				timer.cancel(false);
+				timer = null;
+			}
+		}
+
+		Map<File, Map<String, String>> edits = new LinkedHashMap<File, Map<String, String>>();
+		for (Map.Entry<File, Pending> entry : batch.entrySet()) {
+			edits.put(entry.getKey(), entry.getValue().tags);
+		}
+
+		Map<File, WriteResult> results;
+		try {
+			results = exifTool.setTagsToFiles(edits);
+		}
+		catch (RuntimeException re){
+			logger.log(Level.SEVERE, "Problem encountered while writing batch of " + edits.size() + " files", re);
+			for (Pending edit : batch.values()) {
+				for (CompletableFuture<WriteResult> future : edit.futures) {
+					future.completeExceptionally(re);
+				}
+			}
+			return;
+		}
+
+		for (Map.Entry<File, Pending> entry : batch.entrySet()) {
+			WriteResult result = results.get(entry.getKey());
+			if (result == null)
+				result = new WriteResult(entry.getKey(), false, "No result from exiftool");
+			for (CompletableFuture<WriteResult> future : entry.getValue().futures) {
+				future.complete(result);
+			}
+		}
+	}
+
+	/**
+	 * The merged edits waiting for one file.
+	 */
+	private static class Pending {
+		private final Map<String, String> tags = new LinkedHashMap<String, String>();
+		private final List<CompletableFuture<WriteResult>> futures = new ArrayList<CompletableFuture<WriteResult>>();
+	}
+}
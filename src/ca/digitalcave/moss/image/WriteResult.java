@@ -0,0 +1,46 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import java.io.File;
+
+/**
+ * The outcome of writing tags to a single file.
+ */
+public class WriteResult {
+
+	private final File file;
+	private final boolean success;
+	private final String message;
+
+	public WriteResult(File file, boolean success, String message) {
+		this.file = file;
+		this.success = success;
+		this.message = message;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return true if exiftool updated the file (or found that it already
+	 * had the given values)
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * @return What exiftool printed for this file, including any errors
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return file + (success ? ": OK" : ": failed") + (message.length() > 0 ? " (" + message + ")" : "");
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Created on Oct 17, 2026
+ */
+package ca.digitalcave.moss.image;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernels, using the (incubating) Vector API of Java 16 and later.
+ * This class is compiled separately from the rest of the library (see the
+ * vector-jar target), and is only loaded by PixelKernels when it is on the
+ * classpath and jdk.incubator.vector has been added to the module graph.
+ *
+ * Each vector holds one packed ARGB pixel per lane, and the channels are
+ * split out with shifts and masks, exactly as in the scalar kernels, so
+ * the results are identical.  Both filter passes work on a vector of
+ * adjacent output pixels at a time: the vertical pass loads them straight
+ * from each source row, and the horizontal pass gathers each tap of each
+ * of them from the source row.  Whatever does not fill a whole vector at
+ * the end of a row is left to the scalar kernels, as is converting
+ * between INT_ARGB and INT_RGB, which is limited by memory bandwidth
+ * rather than arithmetic.
+ */
+class VectorKernels extends ScalarKernels {
+
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, INTS.vectorShape());
+	private static final int LANES = INTS.length();
+
+	@Override
+	String getName() {
+		return "vector (" + INTS.vectorBitSize() + " bit)";
+	}
+
+	@Override
+	boolean isSupported() {
+		//Without at least 128 bit vectors the API falls back to Java code,
+		// which is far slower than the scalar kernels.
+		return LANES >= 4;
+	}
+
+	@Override
+	void unpack(Resampler.ByteLayout src, int[] dst, int width, int rowStart, int rowEnd) {
+		byte[] data = src.data;
+		int stride = src.pixelStride;
+		int alpha = src.alpha;
+		if (stride > 4){
+			super.unpack(src, dst, width, rowStart, rowEnd);
+			return;
+		}
+
+		//Gathers the bytes of LANES pixels into the little endian byte
+		// order of packed ints: blue, green, red, alpha.
+		int[] order = new int[BYTES.length()];
+		for (int i = 0; i < LANES; i++){
+			order[i * 4] = i * stride + src.blue;
+			order[i * 4 + 1] = i * stride + src.green;
+			order[i * 4 + 2] = i * stride + src.red;
+			order[i * 4 + 3] = i * stride + (alpha >= 0 ? alpha : src.blue);
+		}
+		VectorShuffle<Byte> shuffle = VectorShuffle.fromArray(BYTES, order, 0);
+		int opaque = alpha >= 0 ? 0 : 0xff000000;
+
+		for (int y = rowStart; y < rowEnd; y++){
+			int index = y * src.scanlineStride;
+			int out = y * width;
+			int x = 0;
+			for (; x + LANES <= width && index + BYTES.length() <= data.length; x += LANES){
+				ByteVector bytes = ByteVector.fromArray(BYTES, data, index).rearrange(shuffle);
+				bytes.reinterpretAsInts().or(opaque).intoArray(dst, out + x);
+				index += stride * LANES;
+			}
+			for (; x < width; x++){
+				int a = alpha >= 0 ? data[index + alpha] & 0xff : 0xff;
+				dst[out + x] = (a << 24)
+						| ((data[index + src.red] & 0xff) << 16)
+						| ((data[index + src.green] & 0xff) << 8)
+						| (data[index + src.blue] & 0xff);
+				index += stride;
+			}
+		}
+	}
+
+	@Override
+	void horizontalPass(int[] src, int srcWidth, int[] dst, int dstWidth, Resampler.Coefficients c, int rowStart, int rowEnd) {
+		int[] bounds = c.bounds;
+		int[] weights = c.weights;
+		int taps = c.taps;
+		if (srcWidth < taps || dstWidth < LANES){
+			super.horizontalPass(src, srcWidth, dst, dstWidth, c, rowStart, rowEnd);
+			return;
+		}
+
+		//Each lane is one output pixel, gathering its taps from the row.
+		// Every window is made taps wide, moving those at the right hand
+		// edge left so they stay within the row, and the weights are laid
+		// out by tap and then output pixel, with zeros where a window was
+		// widened.
+		int[] starts = new int[dstWidth];
+		int[] columns = new int[taps * dstWidth];
+		for (int x = 0; x < dstWidth; x++){
+			int start = Math.min(bounds[x * 2], srcWidth - taps);
+			int shift = bounds[x * 2] - start;
+			for (int i = 0; i < bounds[x * 2 + 1]; i++)
+				columns[(i + shift) * dstWidth + x] = weights[x * taps + i];
+			starts[x] = start;
+		}
+
+		for (int y = rowStart; y < rowEnd; y++){
+			int row = y * srcWidth;
+			int out = y * dstWidth;
+			int x = 0;
+			for (; x + LANES <= dstWidth; x += LANES){
+				IntVector a = IntVector.broadcast(INTS, ROUNDING), r = a, g = a, b = a;
+				for (int i = 0; i < taps; i++){
+					IntVector p = IntVector.fromArray(INTS, src, row + i, starts, x);
+					IntVector w = IntVector.fromArray(INTS, columns, i * dstWidth + x);
+					a = a.add(p.lanewise(VectorOperators.LSHR, 24).mul(w));
+					r = r.add(p.lanewise(VectorOperators.ASHR, 16).and(0xff).mul(w));
+					g = g.add(p.lanewise(VectorOperators.ASHR, 8).and(0xff).mul(w));
+					b = b.add(p.and(0xff).mul(w));
+				}
+				store(a, r, g, b, dst, out + x);
+			}
+			for (; x < dstWidth; x++)
+				dst[out + x] = horizontalPixel(src, row + bounds[x * 2], bounds[x * 2 + 1], weights, x * taps);
+		}
+	}
+
+	@Override
+	void verticalPass(int[] src, int[] dst, int width, Resampler.Coefficients c, int rowStart, int rowEnd) {
+		int[] bounds = c.bounds;
+		int[] weights = c.weights;
+		int taps = c.taps;
+		for (int y = rowStart; y < rowEnd; y++){
+			int start = bounds[y * 2] * width;
+			int count = bounds[y * 2 + 1];
+			int k = y * taps;
+			int out = y * width;
+			int x = 0;
+			for (; x + LANES <= width; x += LANES){
+				IntVector a = IntVector.broadcast(INTS, ROUNDING), r = a, g = a, b = a;
+				int index = start + x;
+				for (int i = 0; i < count; i++){
+					IntVector p = IntVector.fromArray(INTS, src, index);
+					int w = weights[k + i];
+					a = a.add(p.lanewise(VectorOperators.LSHR, 24).mul(w));
+					r = r.add(p.lanewise(VectorOperators.ASHR, 16).and(0xff).mul(w));
+					g = g.add(p.lanewise(VectorOperators.ASHR, 8).and(0xff).mul(w));
+					b = b.add(p.and(0xff).mul(w));
+					index += width;
+				}
+				store(a, r, g, b, dst, out + x);
+			}
+			for (; x < width; x++)
+				dst[out + x] = verticalPixel(src, start + x, width, count, weights, k);
+		}
+	}
+
+	/**
+	 * Clamps and packs the channel sums, as PixelKernels.pack() does, and
+	 * stores them in dst at index.
+	 */
+	private static void store(IntVector a, IntVector r, IntVector g, IntVector b, int[] dst, int index){
+		clamp(a).lanewise(VectorOperators.LSHL, 24)
+				.or(clamp(r).lanewise(VectorOperators.LSHL, 16))
+				.or(clamp(g).lanewise(VectorOperators.LSHL, 8))
+				.or(clamp(b))
+				.intoArray(dst, index);
+	}
+
+	private static IntVector clamp(IntVector value){
+		return value.lanewise(VectorOperators.ASHR, PRECISION_BITS).max(0).min(255);
+	}
+}